@@ -17,7 +17,9 @@
 #include <jni.h>
 #include <time.h>
 #include <stdio.h>
+#include <algorithm>
 #include <memory>
+#include <thread>
 #include <vector>
 
 #include <android/log.h>
@@ -73,9 +75,79 @@ T* getPixel(T* buffer, int width, int x, int y) {
     return buffer + (y * width + x);
 }
 
+// Max number of threads generating the rows of an output image.
+const int MAX_RESIZE_THREADS = 4;
+
+// Min number of output rows per thread; smaller images are not worth splitting up.
+const int MIN_ROWS_PER_THREAD = 16;
+
 } // namespace
 
-int GifTranscoder::transcode(const char* pathIn, const char* pathOut) {
+void ColorLookup::reset(ColorMapObject* colorMap, int transparentColorIndex) {
+    // Compare the colors rather than the color map pointer: giflib frees each frame's local color
+    // map and may allocate the next one at the same address.
+    const int colorCount = std::min(colorMap->ColorCount, 256);
+    bool unchanged = colorCount == mColorCount && transparentColorIndex == mTransparentColorIndex;
+    for (int i = 0; i < colorCount; i++) {
+        const GifColorType& color = colorMap->Colors[i];
+        if (unchanged && color.Red == mRed[i] && color.Green == mGreen[i] &&
+                color.Blue == mBlue[i]) {
+            continue;
+        }
+        unchanged = false;
+        mRed[i] = color.Red;
+        mGreen[i] = color.Green;
+        mBlue[i] = color.Blue;
+    }
+    if (unchanged) {
+        return;
+    }
+    mTransparentColorIndex = transparentColorIndex;
+    mColorCount = colorCount;
+    // Any value with bits above the 24 RGB bits set never matches a color.
+    std::fill(mCacheColors, mCacheColors + CACHE_SIZE, 0xffffffff);
+}
+
+GifByteType ColorLookup::findBestColor(ColorARGB targetColor) {
+    // Return the transparent color if the average alpha is zero.
+    if (ALPHA(targetColor) == 0 && mTransparentColorIndex != NO_TRANSPARENT_COLOR) {
+        return mTransparentColorIndex;
+    }
+
+    const uint32_t rgb = targetColor & 0xffffff;
+    const uint32_t slot = (rgb * 2654435761u) >> (32 - CACHE_BITS);
+    if (mCacheColors[slot] == rgb) {
+        return mCacheIndices[slot];
+    }
+
+    // Linear search; the first of equally close colors wins.
+    const int red = RED(rgb);
+    const int green = GREEN(rgb);
+    const int blue = BLUE(rgb);
+    GifByteType closestColorIndex = 0;
+    int closestColorDistance = MAX_COLOR_DISTANCE;
+    for (int i = 0; i < mColorCount; i++) {
+        // Skip the transparent color (we've already eliminated that option).
+        if (i == mTransparentColorIndex) {
+            continue;
+        }
+        const int distance = SQUARE(red - mRed[i]) +
+                             SQUARE(green - mGreen[i]) +
+                             SQUARE(blue - mBlue[i]);
+        if (distance < closestColorDistance) {
+            closestColorIndex = i;
+            closestColorDistance = distance;
+            if (distance == 0) {
+                break;
+            }
+        }
+    }
+    mCacheColors[slot] = rgb;
+    mCacheIndices[slot] = closestColorIndex;
+    return closestColorIndex;
+}
+
+int GifTranscoder::transcode(const char* pathIn, const char* pathOut, TranscodeStats* stats) {
     int error;
     double t0;
     GifFileType* gifIn;
@@ -103,8 +175,14 @@ int GifTranscoder::transcode(const char* pathIn, const char* pathOut) {
     }
 
     t0 = now();
-    if (resizeBoxFilter(gifIn, gifOut)) {
-        LOGD("Resized GIF in %.2f ms", now() - t0);
+    int frameCount = 0;
+    if (resizeBoxFilter(gifIn, gifOut, &frameCount)) {
+        const double elapsedMs = now() - t0;
+        LOGD("Resized GIF (%d frames) in %.2f ms", frameCount, elapsedMs);
+        if (stats) {
+            stats->frameCount = frameCount;
+            stats->resizeMs = elapsedMs;
+        }
     } else {
         LOGE("Could not resize GIF");
         return GIF_ERROR;
@@ -113,7 +191,7 @@ int GifTranscoder::transcode(const char* pathIn, const char* pathOut) {
     return GIF_OK;
 }
 
-bool GifTranscoder::resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut) {
+bool GifTranscoder::resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut, int* frameCount) {
     ASSERT(gifIn != NULL, "gifIn cannot be NULL");
     ASSERT(gifOut != NULL, "gifOut cannot be NULL");
 
@@ -146,8 +224,16 @@ bool GifTranscoder::resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut) {
     // Buffer for rendering images from the input GIF.
     std::unique_ptr<ColorARGB[]> renderBuffer(new ColorARGB[gifIn->SWidth * gifIn->SHeight]);
 
-    // Buffer for writing new images to output GIF (one row at a time).
-    std::unique_ptr<GifByteType[]> dstRowBuffer(new GifByteType[gifOut->SWidth]);
+    // Buffer for writing new images to output GIF.
+    std::vector<GifByteType> dstBuffer(gifOut->SWidth * gifOut->SHeight);
+
+    // The rows of each output image are split up between threads, each with its own color lookup
+    // so they don't need to synchronize. Images themselves are processed in order, as each one
+    // is rendered on top of the previous ones.
+    const int threadCount = std::max(1, std::min(
+            std::min(MAX_RESIZE_THREADS, (int) std::thread::hardware_concurrency()),
+            gifOut->SHeight / MIN_ROWS_PER_THREAD));
+    std::vector<ColorLookup> colorLookups(threadCount);
 
     // Many GIFs use DISPOSE_DO_NOT to make images draw on top of previous images. They can also
     // use DISPOSE_BACKGROUND to clear the last image region before drawing the next one. We need
@@ -218,17 +304,32 @@ bool GifTranscoder::resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut) {
                 LOGD("Rendered image (%d)", imageIndex);
 
                 // Generate the image in the output GIF.
-                for (int y = 0; y < gifOut->SHeight; y++) {
-                    for (int x = 0; x < gifOut->SWidth; x++) {
-                      const GifByteType dstColorIndex = computeNewColorIndex(
-                          gifIn, transparentColor, renderBuffer.get(), x, y);
-                      *(dstRowBuffer.get() + x) = dstColorIndex;
-                    }
-                    if (EGifPutLine(gifOut, dstRowBuffer.get(), gifOut->SWidth) == GIF_ERROR) {
-                        LOGE("Could not write raster data (%d)", imageIndex);
-                        return false;
+                ColorMapObject* colorMap = getColorMap(gifIn);
+                std::vector<std::thread> threads;
+                const int rowsPerThread = (gifOut->SHeight + threadCount - 1) / threadCount;
+                for (int i = 0; i < threadCount; i++) {
+                    colorLookups[i].reset(colorMap, transparentColor);
+                    const int startRow = i * rowsPerThread;
+                    const int endRow = std::min(startRow + rowsPerThread, (int) gifOut->SHeight);
+                    if (i == threadCount - 1) {
+                        // Do the last band on this thread.
+                        computeNewRows(gifIn, renderBuffer.get(), startRow, endRow,
+                                       gifOut->SWidth, &colorLookups[i], dstBuffer.data());
+                    } else {
+                        threads.push_back(std::thread(computeNewRows, gifIn,
+                                                      renderBuffer.get(), startRow, endRow,
+                                                      gifOut->SWidth, &colorLookups[i],
+                                                      dstBuffer.data()));
                     }
                 }
+                for (std::thread& thread : threads) {
+                    thread.join();
+                }
+                if (EGifPutLine(gifOut, dstBuffer.data(),
+                                gifOut->SWidth * gifOut->SHeight) == GIF_ERROR) {
+                    LOGE("Could not write raster data (%d)", imageIndex);
+                    return false;
+                }
                 LOGD("Wrote raster data (%d)", imageIndex);
 
                 // Save the disposal mode for rendering the next image.
@@ -252,6 +353,7 @@ bool GifTranscoder::resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut) {
                 }
 
                 imageIndex++;
+                *frameCount = imageIndex;
             } break;
             case EXTENSION_RECORD_TYPE: {
                 int extCode;
@@ -426,22 +528,24 @@ void GifTranscoder::fillRect(ColorARGB* renderBuffer,
     }
 }
 
-GifByteType GifTranscoder::computeNewColorIndex(GifFileType* gifIn,
-                                                int transparentColorIndex,
-                                                ColorARGB* renderBuffer,
-                                                int x,
-                                                int y) {
-    ColorMapObject* colorMap = getColorMap(gifIn);
-
-    // Compute the average color of 4 adjacent pixels from the input image.
-    ColorARGB c1 = *getPixel(renderBuffer, gifIn->SWidth, x * 2, y * 2);
-    ColorARGB c2 = *getPixel(renderBuffer, gifIn->SWidth, x * 2 + 1, y * 2);
-    ColorARGB c3 = *getPixel(renderBuffer, gifIn->SWidth, x * 2, y * 2 + 1);
-    ColorARGB c4 = *getPixel(renderBuffer, gifIn->SWidth, x * 2 + 1, y * 2 + 1);
-    ColorARGB avgColor = computeAverage(c1, c2, c3, c4);
-
-    // Search the color map for the best match.
-    return findBestColor(colorMap, transparentColorIndex, avgColor);
+void GifTranscoder::computeNewRows(GifFileType* gifIn,
+                                   ColorARGB* renderBuffer,
+                                   int startRow,
+                                   int endRow,
+                                   int dstWidth,
+                                   ColorLookup* colorLookup,
+                                   GifByteType* dstBuffer) {
+    for (int y = startRow; y < endRow; y++) {
+        GifByteType* dstRow = getPixel(dstBuffer, dstWidth, 0, y);
+        for (int x = 0; x < dstWidth; x++) {
+            // Compute the average color of 4 adjacent pixels from the input image.
+            ColorARGB c1 = *getPixel(renderBuffer, gifIn->SWidth, x * 2, y * 2);
+            ColorARGB c2 = *getPixel(renderBuffer, gifIn->SWidth, x * 2 + 1, y * 2);
+            ColorARGB c3 = *getPixel(renderBuffer, gifIn->SWidth, x * 2, y * 2 + 1);
+            ColorARGB c4 = *getPixel(renderBuffer, gifIn->SWidth, x * 2 + 1, y * 2 + 1);
+            dstRow[x] = colorLookup->findBestColor(computeAverage(c1, c2, c3, c4));
+        }
+    }
 }
 
 ColorARGB GifTranscoder::computeAverage(ColorARGB c1, ColorARGB c2, ColorARGB c3, ColorARGB c4) {
@@ -456,37 +560,6 @@ ColorARGB GifTranscoder::computeAverage(ColorARGB c1, ColorARGB c2, ColorARGB c3
     return MAKE_COLOR_ARGB(avgAlpha, avgRed, avgGreen, avgBlue);
 }
 
-GifByteType GifTranscoder::findBestColor(ColorMapObject* colorMap, int transparentColorIndex,
-                                         ColorARGB targetColor) {
-    // Return the transparent color if the average alpha is zero.
-    char alpha = ALPHA(targetColor);
-    if (alpha == 0 && transparentColorIndex != NO_TRANSPARENT_COLOR) {
-        return transparentColorIndex;
-    }
-
-    GifByteType closestColorIndex = 0;
-    int closestColorDistance = MAX_COLOR_DISTANCE;
-    for (int i = 0; i < colorMap->ColorCount; i++) {
-        // Skip the transparent color (we've already eliminated that option).
-        if (i == transparentColorIndex) {
-            continue;
-        }
-        ColorARGB indexedColor = gifColorToColorARGB(colorMap->Colors[i]);
-        int distance = computeDistance(targetColor, indexedColor);
-        if (distance < closestColorDistance) {
-            closestColorIndex = i;
-            closestColorDistance = distance;
-        }
-    }
-    return closestColorIndex;
-}
-
-int GifTranscoder::computeDistance(ColorARGB c1, ColorARGB c2) {
-    return SQUARE(RED(c1) - RED(c2)) +
-           SQUARE(GREEN(c1) - GREEN(c2)) +
-           SQUARE(BLUE(c1) - BLUE(c2));
-}
-
 ColorMapObject* GifTranscoder::getColorMap(GifFileType* gifIn) {
     if (gifIn->Image.ColorMap) {
         return gifIn->Image.ColorMap;
@@ -539,23 +612,31 @@ void GifFilesCloser::releaseGifOut() {
 
 // JNI stuff
 
-jboolean transcode(JNIEnv* env, jobject clazz, jstring filePath, jstring outFilePath) {
+jboolean transcode(JNIEnv* env, jobject clazz, jstring filePath, jstring outFilePath,
+                   jintArray statsOut) {
     const char* pathIn = env->GetStringUTFChars(filePath, JNI_FALSE);
     const char* pathOut = env->GetStringUTFChars(outFilePath, JNI_FALSE);
 
     GifTranscoder transcoder;
-    int gifCode = transcoder.transcode(pathIn, pathOut);
+    TranscodeStats stats;
+    int gifCode = transcoder.transcode(pathIn, pathOut, &stats);
 
     env->ReleaseStringUTFChars(filePath, pathIn);
     env->ReleaseStringUTFChars(outFilePath, pathOut);
 
+    // Stats are returned as { frame count, resize time in ms }.
+    if (statsOut != NULL && env->GetArrayLength(statsOut) >= 2) {
+        const jint statsValues[] = { stats.frameCount, (jint) stats.resizeMs };
+        env->SetIntArrayRegion(statsOut, 0, 2, statsValues);
+    }
+
     return (gifCode == GIF_OK);
 }
 
 const char *kClassPathName = "com/android/messaging/util/GifTranscoder";
 
 JNINativeMethod kMethods[] = {
-        { "transcodeInternal", "(Ljava/lang/String;Ljava/lang/String;)Z", (void*)transcode },
+        { "transcodeInternal", "(Ljava/lang/String;Ljava/lang/String;[I)Z", (void*)transcode },
 };
 
 int registerNativeMethods(JNIEnv* env, const char* className,
@@ -25,6 +25,43 @@
 // The internal GIF render buffer stores pixels using this format.
 typedef uint32_t ColorARGB;
 
+// Statistics of a transcode, for logging.
+struct TranscodeStats {
+    // Number of images (frames) in the GIF.
+    int frameCount = 0;
+    // Time spent resizing the GIF, in ms.
+    double resizeMs = 0;
+};
+
+// Finds the closest colors in a color map. The color map is unpacked once, and the results are
+// remembered in a small direct-mapped cache, since the box filter mostly produces the same few
+// colors over and over. Not thread safe; each thread needs its own instance.
+class ColorLookup {
+public:
+    ColorLookup() {}
+    ~ColorLookup() {}
+
+    // Sets the color map and transparent color to search. Keeps the cached results if the colors
+    // and the transparent color are unchanged.
+    void reset(ColorMapObject* colorMap, int transparentColorIndex);
+
+    // Searches the color map for the color closest (Euclidean distance) to the target color.
+    GifByteType findBestColor(ColorARGB targetColor);
+
+private:
+    static const int CACHE_BITS = 12;
+    static const int CACHE_SIZE = 1 << CACHE_BITS;
+
+    int mTransparentColorIndex = NO_TRANSPARENT_COLOR;
+    int mColorCount = 0;
+    uint8_t mRed[256];
+    uint8_t mGreen[256];
+    uint8_t mBlue[256];
+    // RGB color and best color index per cache slot.
+    uint32_t mCacheColors[CACHE_SIZE];
+    GifByteType mCacheIndices[CACHE_SIZE];
+};
+
 // Compresses a GIF (probably animated) so it can be sent via MMS, which generally has a 1 MB limit
 // on attachments. GIF image data is already compressed (LZW), so to achieve further reduction in
 // file size, we reduce the image dimensions.
@@ -44,12 +81,13 @@ public:
     // The image is resized using a box filter, which averages the colors in each 2x2 box of pixels
     // in the source to generate the color of the pixel in the destination.
     //
-    // Returns GIF_OK (1) on success, or GIF_ERROR (0) on failure.
-    int transcode(const char* pathIn, const char* pathOut);
+    // Returns GIF_OK (1) on success, or GIF_ERROR (0) on failure. On success, stats (if not NULL)
+    // is filled in.
+    int transcode(const char* pathIn, const char* pathOut, TranscodeStats* stats);
 
 private:
-    // Implementation of the box filter algorithm.
-    static bool resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut);
+    // Implementation of the box filter algorithm. Sets frameCount to the number of images read.
+    static bool resizeBoxFilter(GifFileType* gifIn, GifFileType* gifOut, int* frameCount);
 
     // Reads the raster data for the current image of the GIF.
     static bool readImage(GifFileType* gifIn, GifByteType* rasterBits);
@@ -74,23 +112,19 @@ private:
                          int height,
                          ColorARGB color);
 
-    // Computes the color for the pixel (x,y) in the current image in the output GIF.
-    static GifByteType computeNewColorIndex(GifFileType* gifIn,
-                                            int transparentColorIndex,
-                                            ColorARGB* renderBuffer,
-                                            int x,
-                                            int y);
+    // Computes the colors for the rows [startRow, endRow) of the current image in the output GIF,
+    // writing them into dstBuffer. Safe to call from multiple threads for disjoint rows.
+    static void computeNewRows(GifFileType* gifIn,
+                               ColorARGB* renderBuffer,
+                               int startRow,
+                               int endRow,
+                               int dstWidth,
+                               ColorLookup* colorLookup,
+                               GifByteType* dstBuffer);
 
     // Computes the average color (by averaging the per-channel (ARGB) values).
     static ColorARGB computeAverage(ColorARGB c1, ColorARGB c2, ColorARGB c3, ColorARGB c4);
 
-    // Searches a color map for the color closest (Euclidean distance) to the target color.
-    static GifByteType findBestColor(ColorMapObject* colorMap, int transparentColorIndex,
-                                     ColorARGB targetColor);
-
-    // Computes distance (squared) between 2 colors, considering each channel a separate dimension.
-    static int computeDistance(ColorARGB c1, ColorARGB c2);
-
     // Returns the local color map of the current image (if any), or else the global color map.
     static ColorMapObject* getColorMap(GifFileType* gifIn);
 
@@ -29,9 +29,6 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Request to download an MMS
@@ -45,23 +42,48 @@ class DownloadRequest extends MmsRequest {
 
     @Override
     protected boolean loadRequest(final Context context, final Bundle mmsConfig) {
-        // No need to load PDU from app. Always true.
-        return true;
+        // No need to load PDU from app, but there has to be somewhere to download it to.
+        return mPduUri != null;
     }
 
     @Override
     protected boolean transferResponse(Context context, Intent fillIn, byte[] response) {
-        return writePduToContentUri(context, mPduUri, response);
+        // The response is streamed to the content uri by doHttp, so there is nothing left to do.
+        return true;
     }
 
     @Override
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettingsLoader.Apn apn,
             Bundle mmsConfig, String userAgent, String uaProfUrl) throws MmsHttpException {
         final MmsHttpClient httpClient = netMgr.getHttpClient();
-        return httpClient.execute(getHttpRequestUrl(apn), null/*pdu*/, MmsHttpClient.METHOD_GET,
-                !TextUtils.isEmpty(apn.getMmsProxy()), apn.getMmsProxy(), apn.getMmsProxyPort(),
-                mmsConfig, userAgent, uaProfUrl);
-
+        ParcelFileDescriptor.AutoCloseOutputStream outStream = null;
+        try {
+            // Write the downloaded pdu straight to the content uri, rather than holding the
+            // whole message in memory first. Opening it for writing truncates anything written
+            // by an attempt with a previous APN.
+            final ContentResolver cr = context.getContentResolver();
+            final ParcelFileDescriptor pduFd = cr.openFileDescriptor(mPduUri, "w");
+            if (pduFd == null) {
+                throw new MmsHttpException(0/*statusCode*/, "Failed to open " + mPduUri);
+            }
+            outStream = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd);
+            httpClient.execute(getHttpRequestUrl(apn), null/*pdu*/, MmsHttpClient.METHOD_GET,
+                    !TextUtils.isEmpty(apn.getMmsProxy()), apn.getMmsProxy(),
+                    apn.getMmsProxyPort(), mmsConfig, userAgent, uaProfUrl, outStream);
+            // There is no response left to transfer to the caller.
+            return null;
+        } catch (IOException e) {
+            Log.e(MmsService.TAG, "Writing PDU to downloader: IO exception", e);
+            throw new MmsHttpException(0/*statusCode*/, e);
+        } finally {
+            if (outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
     }
 
     @Override
@@ -69,52 +91,6 @@ class DownloadRequest extends MmsRequest {
         return mLocationUrl;
     }
 
-    /**
-     * Write pdu bytes to content provider uri
-     *
-     * @param contentUri content provider uri to which bytes should be written
-     * @param pdu Bytes to write
-     * @return true if all bytes successfully written else false
-     */
-    public boolean writePduToContentUri(final Context context, final Uri contentUri,
-            final byte[] pdu) {
-        if (contentUri == null || pdu == null) {
-            return false;
-        }
-        final Callable<Boolean> copyDownloadedPduToOutput = new Callable<Boolean>() {
-            public Boolean call() {
-                ParcelFileDescriptor.AutoCloseOutputStream outStream = null;
-                try {
-                    final ContentResolver cr = context.getContentResolver();
-                    final ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "w");
-                    outStream = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd);
-                    outStream.write(pdu);
-                    return true;
-                } catch (IOException e) {
-                    Log.e(MmsService.TAG, "Writing PDU to downloader: IO exception", e);
-                    return false;
-                } finally {
-                    if (outStream != null) {
-                        try {
-                            outStream.close();
-                        } catch (IOException ex) {
-                            // Ignore
-                        }
-                    }
-                }
-            }
-        };
-        final Future<Boolean> pendingResult =
-                mPduTransferExecutor.submit(copyDownloadedPduToOutput);
-        try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
-        }
-        return false;
-    }
-
     public static final Parcelable.Creator<DownloadRequest> CREATOR
             = new Parcelable.Creator<DownloadRequest>() {
         public DownloadRequest createFromParcel(Parcel in) {
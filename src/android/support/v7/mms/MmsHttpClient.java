@@ -112,6 +112,34 @@ public class MmsHttpClient {
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
             String proxyHost, int proxyPort, Bundle mmsConfig, String userAgent, String uaProfUrl)
             throws MmsHttpException {
+        final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort, mmsConfig, userAgent,
+                uaProfUrl, byteOut);
+        return byteOut.toByteArray();
+    }
+
+    /**
+     * Execute an MMS HTTP request, either a POST (sending) or a GET (downloading), writing the
+     * response body to a stream as it is received instead of buffering it in memory. This is
+     * meant for downloads, which can be as large as the carrier's message size limit.
+     *
+     * @param urlString The request URL, for sending it is usually the MMSC, and for downloading
+     *                  it is the message URL
+     * @param pdu For POST (sending) only, the PDU to send
+     * @param method HTTP method, POST for sending and GET for downloading
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param userAgent The user agent header value
+     * @param uaProfUrl The UA Prof URL header value
+     * @param responseOut The stream to write the HTTP response body to. It is not closed.
+     * @return The size of the HTTP response body
+     * @throws MmsHttpException For any failures, including failures to write the response
+     */
+    public long execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, String userAgent, String uaProfUrl,
+            OutputStream responseOut) throws MmsHttpException {
         Log.d(MmsService.TAG, "HTTP: " + method + " " + Utils.redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
                 + ", PDU size=" + (pdu != null ? pdu.length : 0));
@@ -192,17 +220,19 @@ public class MmsHttpClient {
                 throw new MmsHttpException(responseCode, responseMessage);
             }
             final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
             final byte[] buf = new byte[4096];
+            long responseSize = 0;
             int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            try {
+                while ((count = in.read(buf)) > 0) {
+                    responseOut.write(buf, 0, count);
+                    responseSize += count;
+                }
+            } finally {
+                in.close();
             }
-            in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            Log.d(MmsService.TAG, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
-            return responseBody;
+            Log.d(MmsService.TAG, "HTTP: response size=" + responseSize);
+            return responseSize;
         } catch (MalformedURLException e) {
             final String redactedUrl = Utils.redactUrlForNonVerbose(urlString);
             Log.e(MmsService.TAG, "HTTP: invalid URL " + redactedUrl, e);
@@ -73,7 +73,7 @@ abstract class MmsRequest implements Parcelable {
      * @param mmsConfig The carrier configuration values to use
      * @param userAgent The User-Agent header value
      * @param uaProfUrl The UA Prof URL header value
-     * @return The HTTP response data
+     * @return The HTTP response data, or null if the request already delivered it to the caller
      * @throws MmsHttpException If any network error happens
      */
     protected abstract byte[] doHttp(Context context, MmsNetworkManager netMgr,
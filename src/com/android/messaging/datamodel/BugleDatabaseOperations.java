@@ -38,6 +38,7 @@ import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.MessagePartData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaCacheManager;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
@@ -47,6 +48,7 @@ import com.android.messaging.util.ContentType;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
+import com.android.messaging.util.SafeAsyncTask;
 import com.android.messaging.util.UriUtil;
 import com.android.messaging.widget.WidgetConversationProvider;
 import com.google.common.annotations.VisibleForTesting;
@@ -476,15 +478,20 @@ public class BugleDatabaseOperations {
             // Delete existing messages
             if (cutoffTimestamp == Long.MAX_VALUE) {
                 // Delete parts and messages
+                evictMessagePartsFromDiskCache(dbWrapper,
+                        MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 conversationMessagesDeleted = true;
             } else {
                 // Delete all messages prior to the cutoff
-                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
-                        MessageColumns.CONVERSATION_ID + "=? AND "
-                                + MessageColumns.RECEIVED_TIMESTAMP + "<=?",
-                                new String[] { conversationId, Long.toString(cutoffTimestamp) });
+                final String cutoffSelection = MessageColumns.CONVERSATION_ID + "=? AND "
+                        + MessageColumns.RECEIVED_TIMESTAMP + "<=?";
+                final String[] cutoffSelectionArgs =
+                        new String[] { conversationId, Long.toString(cutoffTimestamp) };
+                evictMessagePartsFromDiskCache(dbWrapper, cutoffSelection, cutoffSelectionArgs);
+                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE, cutoffSelection,
+                        cutoffSelectionArgs);
 
                 // Delete any draft message. The delete above may not always include the draft,
                 // because under certain scenarios (e.g. sending messages in progress), the draft
@@ -492,12 +499,15 @@ public class BugleDatabaseOperations {
                 // sort timestamp. Because of how the sms/mms provider works on some newer
                 // devices, it's important that we never delete all the messages in a conversation
                 // without also deleting the conversation itself (see b/20262204 for details).
-                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
-                        MessageColumns.STATUS + "=? AND " + MessageColumns.CONVERSATION_ID + "=?",
-                        new String[] {
-                            Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_DRAFT),
-                            conversationId
-                        });
+                final String draftSelection =
+                        MessageColumns.STATUS + "=? AND " + MessageColumns.CONVERSATION_ID + "=?";
+                final String[] draftSelectionArgs = new String[] {
+                    Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_DRAFT),
+                    conversationId
+                };
+                evictMessagePartsFromDiskCache(dbWrapper, draftSelection, draftSelectionArgs);
+                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE, draftSelection,
+                        draftSelectionArgs);
 
                 // Check to see if there are any messages left in the conversation
                 final long count = dbWrapper.queryNumEntries(DatabaseHelper.MESSAGES_TABLE,
@@ -1222,17 +1232,112 @@ public class BugleDatabaseOperations {
         updateMessageRowIfExists(dbWrapper, message.getMessageId(), values);
     }
 
+    /**
+     * Adds the next {@code maxCount} messages with ids below {@code beforeMessageId} to the
+     * message search table, skipping those that are already in it. New and updated messages are
+     * indexed by triggers as they are written, so this is only needed for messages that existed
+     * before the table did. Paging by id keeps each batch from rescanning the messages that
+     * earlier batches already indexed.
+     *
+     * @return the lowest message id of the batch, to pass as {@code beforeMessageId} for the next
+     *         batch, or -1 once there are no more messages to index
+     */
+    public static long indexMessagesForSearchInTransaction(final DatabaseWrapper dbWrapper,
+            final long beforeMessageId, final int maxCount) {
+        Assert.isTrue(dbWrapper.getDatabase().inTransaction());
+        final Cursor cursor = dbWrapper.rawQuery("SELECT " + MessageColumns._ID + " FROM "
+                + DatabaseHelper.MESSAGES_TABLE + " WHERE " + MessageColumns._ID + "<?"
+                + " ORDER BY " + MessageColumns._ID + " DESC LIMIT " + maxCount,
+                new String[] { Long.toString(beforeMessageId) });
+        final StringBuilder messageIds = new StringBuilder();
+        int count = 0;
+        long lowestMessageId = -1;
+        try {
+            while (cursor.moveToNext()) {
+                if (count++ > 0) {
+                    messageIds.append(',');
+                }
+                lowestMessageId = cursor.getLong(0);
+                messageIds.append(lowestMessageId);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (count > 0) {
+            dbWrapper.execSQL("INSERT INTO " + DatabaseHelper.MESSAGE_SEARCH_TABLE + "(docid, "
+                    + DatabaseHelper.MessageSearchColumns.TEXT + ", "
+                    + DatabaseHelper.MessageSearchColumns.MMS_SUBJECT + ", "
+                    + DatabaseHelper.MessageSearchColumns.SENDER_NAME + ") "
+                    + DatabaseHelper.getMessageSearchRowsSelectSql() + " WHERE "
+                    + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID
+                    + " IN (" + messageIds + ") AND NOT EXISTS (SELECT 1 FROM "
+                    + DatabaseHelper.MESSAGE_SEARCH_TABLE + " WHERE docid="
+                    + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + ")");
+        }
+        return count < maxCount ? -1 : lowestMessageId;
+    }
+
     /**
      * Delete all parts for a message
      */
     static void deletePartsForMessage(final DatabaseWrapper dbWrapper,
             final String messageId) {
+        evictMessagePartsFromDiskCache(dbWrapper, MessageColumns._ID + "=?",
+                new String[] { messageId });
         final int cnt = dbWrapper.delete(DatabaseHelper.PARTS_TABLE,
                 PartColumns.MESSAGE_ID + " =?",
                 new String[] { messageId });
         Assert.inRange(cnt, 0, Integer.MAX_VALUE);
     }
 
+    /**
+     * Evicts the images of all parts of the messages matching the given selection from the media
+     * disk cache. Must be called before the messages or parts are deleted, so that no decoded
+     * copies of their content are left behind in the cache directory. The cache files are only
+     * deleted in the background once the current transaction is committed.
+     */
+    public static void evictMessagePartsFromDiskCache(final DatabaseWrapper dbWrapper,
+            final String messageSelection, final String[] messageSelectionArgs) {
+        final MediaCacheManager mediaCacheManager = MediaCacheManager.get();
+        if (mediaCacheManager == null) {
+            // No media caches to evict from (e.g. in tests)
+            return;
+        }
+        final ArrayList<Uri> contentUris = new ArrayList<Uri>();
+        Cursor cursor = null;
+        try {
+            cursor = dbWrapper.query(DatabaseHelper.PARTS_TABLE,
+                    new String[] { PartColumns.CONTENT_URI },
+                    PartColumns.CONTENT_URI + " NOT NULL AND " + PartColumns.MESSAGE_ID
+                            + " IN (SELECT " + MessageColumns._ID + " FROM "
+                            + DatabaseHelper.MESSAGES_TABLE + " WHERE " + messageSelection + ")",
+                    messageSelectionArgs, null, null, null);
+            while (cursor.moveToNext()) {
+                contentUris.add(Uri.parse(cursor.getString(0)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (contentUris.isEmpty()) {
+            return;
+        }
+        dbWrapper.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                SafeAsyncTask.executeOnThreadPool(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (final Uri contentUri : contentUris) {
+                            mediaCacheManager.evictFromDiskCaches(contentUri);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Delete one message and update the conversation (if necessary).
      *
@@ -1250,6 +1355,8 @@ public class BugleDatabaseOperations {
             if (message != null) {
                 final String conversationId = message.getConversationId();
                 // Delete message
+                evictMessagePartsFromDiskCache(dbWrapper, MessageColumns._ID + "=?",
+                        new String[] { messageId });
                 count = dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns._ID + "=?", new String[] { messageId });
 
@@ -1294,6 +1401,9 @@ public class BugleDatabaseOperations {
                     new String[] { conversationId }, null, null,
                     MessageColumns.RECEIVED_TIMESTAMP + " DESC", "1" /* limit */);
             if (cursor.getCount() == 0) {
+                // Deleting the conversation cascades to its draft
+                evictMessagePartsFromDiskCache(dbWrapper, MessageColumns.CONVERSATION_ID + "=?",
+                        new String[] { conversationId });
                 dbWrapper.delete(DatabaseHelper.CONVERSATIONS_TABLE,
                         ConversationColumns._ID + "=?", new String[] { conversationId });
                 LogUtil.i(TAG,
@@ -1546,12 +1656,14 @@ public class BugleDatabaseOperations {
             }
 
             // Delete existing draft (cascade deletes parts)
-            dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
-                    MessageColumns.STATUS + "=? AND " + MessageColumns.CONVERSATION_ID + "=?",
-                    new String[] {
-                        Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_DRAFT),
-                        conversationId
-                    });
+            final String draftSelection =
+                    MessageColumns.STATUS + "=? AND " + MessageColumns.CONVERSATION_ID + "=?";
+            final String[] draftSelectionArgs = new String[] {
+                Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_DRAFT),
+                conversationId
+            };
+            evictMessagePartsFromDiskCache(dbWrapper, draftSelection, draftSelectionArgs);
+            dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE, draftSelection, draftSelectionArgs);
 
             // Write new draft
             if (updateMode == UPDATE_MODE_ADD_DRAFT && message != null
@@ -29,6 +29,8 @@ import android.graphics.Typeface;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
@@ -80,7 +82,9 @@ import com.android.messaging.util.PhoneUtils;
 import com.android.messaging.util.RingtoneUtil;
 import com.android.messaging.util.ThreadUtil;
 import com.android.messaging.util.UriUtil;
+import com.android.messaging.util.WakeLockHelper;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -137,6 +141,29 @@ public class BugleNotifications {
             new SimpleArrayMap<String, Long>();
     private static int sTimeBetweenDingsMs;
 
+    // All updates run one after the other on the notification handler thread. Updates posted
+    // before the pending one runs are merged into it, and updates for messages received within
+    // the debounce window after the previous one are held back until the end of the window.
+    // Guarded by sPendingUpdateLock.
+    private static final Object sPendingUpdateLock = new Object();
+    private static long sLastReceivedUpdateTime = -1;
+    private static boolean sPendingUpdateScheduled;
+    private static boolean sPendingUpdateDeferred;
+    private static boolean sPendingUpdateReceived;
+    private static boolean sPendingUpdateSilent = true;
+    private static int sPendingUpdateCoverage = UPDATE_NONE;
+    // The conversation which received the latest of the merged messages
+    private static String sPendingUpdateConversationId;
+    // The conversations changed by the merged updates, unless any conversation may have changed
+    private static boolean sPendingUpdateAllConversations;
+    private static final Set<String> sPendingUpdateConversationIds = new HashSet<String>();
+    private static Handler sPendingUpdateHandler;
+
+    private static final String WAKELOCK_ID = "bugle_notification_update_wakelock";
+    private static final int WAKELOCK_OP = 1;
+    private static final WakeLockHelper sWakeLock = new WakeLockHelper(WAKELOCK_ID);
+    private static final Intent sWakeLockIntent = new Intent();
+
     /**
      * This is the volume at which to play the observable-conversation notification sound,
      * expressed as a fraction of the system notification volume.
@@ -158,6 +185,9 @@ public class BugleNotifications {
     /**
      * Entry point for posting notifications.
      * Don't call this on the UI thread.
+     * Updates run in order on the notification handler thread. When messages are received in a
+     * burst, only the update for the first one is posted right away, the ones that follow are
+     * coalesced into one update posted shortly after.
      * @param silent If true, no ring will be played. If false, checks global settings before
      * playing a ringtone
      * @param conversationId Conversation ID where a new message was received
@@ -166,9 +196,37 @@ public class BugleNotifications {
      */
     public static void update(final boolean silent, final String conversationId,
             final int coverage) {
+        if (conversationId == null) {
+            postUpdate(silent, null /* conversationId */, null /* changedConversationIds */,
+                    coverage, false /* received */);
+        } else {
+            postUpdate(silent, conversationId, Collections.singleton(conversationId), coverage,
+                    true /* received */);
+        }
+    }
+
+    /**
+     * Entry point for updating notifications after the messages of a conversation were marked
+     * as seen. Only that conversation is queried again.
+     * Don't call this on the UI thread.
+     * @param conversationId Conversation ID whose messages were marked as seen
+     */
+    public static void updateSeen(final String conversationId) {
+        postUpdate(false /* silent */, null /* conversationId */,
+                TextUtils.isEmpty(conversationId) ? null : Collections.singleton(conversationId),
+                UPDATE_ALL, false /* received */);
+    }
+
+    /**
+     * @param changedConversationIds the conversations whose unseen messages changed, or null if
+     *     any conversation may have changed
+     */
+    private static void update(final boolean silent, final String conversationId,
+            final Set<String> changedConversationIds, final int coverage) {
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "Update: silent = " + silent
                     + " conversationId = " + conversationId
+                    + " changedConversationIds = " + changedConversationIds
                     + " coverage = " + coverage);
         }
     Assert.isNotMainThread();
@@ -182,7 +240,7 @@ public class BugleNotifications {
             return;
         } else {
             if ((coverage & UPDATE_MESSAGES) != 0) {
-                createMessageNotification(silent, conversationId);
+                createMessageNotification(silent, conversationId, changedConversationIds);
             }
         }
         if ((coverage & UPDATE_ERRORS) != 0) {
@@ -190,6 +248,103 @@ public class BugleNotifications {
         }
     }
 
+    /**
+     * Merges an update into the pending one on the notification handler thread, so that updates
+     * never run concurrently or out of order. An update for a received message that comes within
+     * the debounce window after the previous one is deferred to the end of the window. Any other
+     * update runs right away, and takes the deferred work along with it.
+     * @param received whether the update is for a newly received message
+     */
+    private static void postUpdate(final boolean silent, final String conversationId,
+            final Set<String> changedConversationIds, final int coverage,
+            final boolean received) {
+        final long debounceMillis = received ? BugleGservices.get().getLong(
+                BugleGservicesKeys.NOTIFICATION_UPDATE_DEBOUNCE_MILLIS,
+                BugleGservicesKeys.NOTIFICATION_UPDATE_DEBOUNCE_MILLIS_DEFAULT) : 0;
+        synchronized (sPendingUpdateLock) {
+            sPendingUpdateSilent &= silent;
+            sPendingUpdateCoverage |= coverage;
+            sPendingUpdateReceived |= received;
+            if (conversationId != null) {
+                sPendingUpdateConversationId = conversationId;
+            }
+            if (changedConversationIds == null) {
+                sPendingUpdateAllConversations = true;
+                sPendingUpdateConversationIds.clear();
+            } else if (!sPendingUpdateAllConversations) {
+                sPendingUpdateConversationIds.addAll(changedConversationIds);
+            }
+
+            long delayMillis = 0;
+            if (debounceMillis > 0) {
+                final long now = SystemClock.elapsedRealtime();
+                if (sPendingUpdateDeferred || (sLastReceivedUpdateTime >= 0
+                        && now - sLastReceivedUpdateTime < debounceMillis)) {
+                    delayMillis = Math.max(0, sLastReceivedUpdateTime + debounceMillis - now);
+                } else {
+                    sLastReceivedUpdateTime = now;
+                }
+            }
+
+            if (sPendingUpdateHandler == null) {
+                final HandlerThread thread = new HandlerThread("BugleNotifications");
+                thread.start();
+                sPendingUpdateHandler = new Handler(thread.getLooper());
+            }
+            if (!sPendingUpdateScheduled) {
+                // Keep the device awake so that the update isn't held back until it wakes up
+                sWakeLock.acquire(Factory.get().getApplicationContext(), sWakeLockIntent,
+                        WAKELOCK_OP);
+                sPendingUpdateScheduled = true;
+                sPendingUpdateDeferred = delayMillis > 0;
+                sPendingUpdateHandler.postDelayed(sPendingUpdateRunnable, delayMillis);
+            } else if (sPendingUpdateDeferred && delayMillis == 0) {
+                // This update supersedes the deferred one, so run it now in its place
+                sPendingUpdateDeferred = false;
+                sPendingUpdateHandler.removeCallbacks(sPendingUpdateRunnable);
+                sPendingUpdateHandler.post(sPendingUpdateRunnable);
+            }
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "Update posted: conversationId = " + conversationId
+                        + " delay = " + delayMillis);
+            }
+        }
+    }
+
+    private static final Runnable sPendingUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final boolean silent;
+            final String conversationId;
+            final Set<String> changedConversationIds;
+            final int coverage;
+            synchronized (sPendingUpdateLock) {
+                silent = sPendingUpdateSilent;
+                conversationId = sPendingUpdateConversationId;
+                changedConversationIds = sPendingUpdateAllConversations ? null
+                        : new HashSet<String>(sPendingUpdateConversationIds);
+                coverage = sPendingUpdateCoverage;
+                if (sPendingUpdateReceived) {
+                    // Messages received while this update runs start a new window
+                    sLastReceivedUpdateTime = SystemClock.elapsedRealtime();
+                }
+                sPendingUpdateSilent = true;
+                sPendingUpdateCoverage = UPDATE_NONE;
+                sPendingUpdateReceived = false;
+                sPendingUpdateConversationId = null;
+                sPendingUpdateAllConversations = false;
+                sPendingUpdateConversationIds.clear();
+                sPendingUpdateScheduled = false;
+                sPendingUpdateDeferred = false;
+            }
+            try {
+                update(silent, conversationId, changedConversationIds, coverage);
+            } finally {
+                sWakeLock.release(sWakeLockIntent, WAKELOCK_OP);
+            }
+        }
+    };
+
     /**
      * Cancel all notifications of a certain type.
      *
@@ -592,8 +747,9 @@ public class BugleNotifications {
     }
 
     private static void createMessageNotification(final boolean silent,
-            final String conversationId) {
-        final NotificationState state = MessageNotificationState.getNotificationState();
+            final String conversationId, final Set<String> changedConversationIds) {
+        final NotificationState state =
+                MessageNotificationState.getNotificationState(changedConversationIds);
         final boolean softSound = DataModel.get().isNewMessageObservable(conversationId);
         if (state == null) {
             cancel(PendingIntentConstants.SMS_NOTIFICATION_ID);
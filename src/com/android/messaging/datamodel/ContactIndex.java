@@ -0,0 +1,604 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.text.TextUtils;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.ParticipantRefresh.ContactContentObserver;
+import com.android.messaging.sms.MmsSmsUtils;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.ContactUtil.EmailQuery;
+import com.android.messaging.util.ContactUtil.PhoneQuery;
+import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.SafeAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ObjectArrays;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the phones and emails of the personal contacts, used to auto-complete
+ * recipients without querying the contacts provider for every change of the search text. It is
+ * loaded once in the background and then refreshed incrementally: when the
+ * {@link ContactContentObserver} has seen a change, only the contacts updated or deleted since
+ * the last refresh are read again.
+ *
+ * A row matches a query like it would in the contacts provider filters, when a word of the contact
+ * name, or a run of words up to the last one, starts with the letters and digits of the query, or
+ * when its phone number or email address starts with the query. The rows are bucketed by the
+ * first {@link #BUCKET_KEY_LENGTH} characters of these keys so that a query only checks the rows
+ * with a key starting like it. When the search text is extended, only the rows of the previous
+ * {@link Result} are checked.
+ *
+ * Work profile contacts can only be searched through the enterprise filter uris, so they are not
+ * indexed, but the results of these queries can still be narrowed with {@link #narrow}.
+ */
+public class ContactIndex {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    /** Kinds of rows to search, which can be combined */
+    public static final int KIND_PHONES = 1;
+    public static final int KIND_EMAILS = 2;
+
+    private static final int BUCKET_KEY_LENGTH = 2;
+
+    // The contacts provider results are not refreshed on changes, so don't narrow old ones
+    private static final long MAX_PROVIDER_RESULT_AGE_MS = 60 * 1000;
+
+    // Generation of the results wrapping contacts provider queries rather than the index
+    private static final int GENERATION_PROVIDER = -1;
+
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[\\s\\p{Punct}]+");
+
+    // The columns of PhoneQuery, followed by the normalized number
+    private static final String[] PHONE_PROJECTION =
+            ObjectArrays.concat(PhoneQuery.PROJECTION, Phone.NORMALIZED_NUMBER);
+    private static final int INDEX_PHONE_NORMALIZED_NUMBER = PhoneQuery.PROJECTION.length;
+
+    private static final String[] CONTACTS_PROJECTION = new String[] {
+        Contacts._ID,
+        Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+    };
+
+    private static final String[] DELETED_CONTACTS_PROJECTION = new String[] {
+        DeletedContacts.CONTACT_ID,
+        DeletedContacts.CONTACT_DELETED_TIMESTAMP,
+    };
+
+    private static final Comparator<Row> SORT_KEY_COMPARATOR = new Comparator<Row>() {
+        @Override
+        public int compare(final Row lhs, final Row rhs) {
+            final int sortKeyCompare = lhs.mCollationKey.compareTo(rhs.mCollationKey);
+            if (sortKeyCompare != 0) {
+                return sortKeyCompare;
+            }
+            if (lhs.mContactId != rhs.mContactId) {
+                return lhs.mContactId < rhs.mContactId ? -1 : 1;
+            }
+            return lhs.getDataId() < rhs.getDataId() ? -1
+                    : (lhs.getDataId() == rhs.getDataId() ? 0 : 1);
+        }
+    };
+
+    private static final ContactIndex sInstance = new ContactIndex();
+
+    /**
+     * A phone or email of a contact, along with the keys it is found by
+     */
+    private static class Row {
+        public final int mKind;
+        public final long mContactId;
+        // The values of the columns of PhoneQuery
+        public final Object[] mValues;
+        public final String[] mKeys;
+        // The collation key of the contact sort key, which orders the index results; not set for
+        // the rows of contacts provider results, which keep the provider order
+        public CollationKey mCollationKey;
+
+        public Row(final Cursor cursor, final int kind, final String normalizedNumber) {
+            mKind = kind;
+            mContactId = cursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+            mValues = new Object[PhoneQuery.PROJECTION.length];
+            mValues[ContactUtil.INDEX_CONTACT_ID] = mContactId;
+            mValues[ContactUtil.INDEX_DISPLAY_NAME] =
+                    cursor.getString(ContactUtil.INDEX_DISPLAY_NAME);
+            mValues[ContactUtil.INDEX_PHOTO_URI] = cursor.getString(ContactUtil.INDEX_PHOTO_URI);
+            mValues[ContactUtil.INDEX_PHONE_EMAIL] =
+                    cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+            mValues[ContactUtil.INDEX_PHONE_EMAIL_TYPE] =
+                    cursor.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE);
+            mValues[ContactUtil.INDEX_PHONE_EMAIL_LABEL] =
+                    cursor.getString(ContactUtil.INDEX_PHONE_EMAIL_LABEL);
+            mValues[ContactUtil.INDEX_LOOKUP_KEY] = cursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
+            mValues[ContactUtil.INDEX_DATA_ID] = cursor.getLong(ContactUtil.INDEX_DATA_ID);
+            mValues[ContactUtil.INDEX_SORT_KEY] = cursor.getString(ContactUtil.INDEX_SORT_KEY);
+
+            final Set<String> keys = new LinkedHashSet<String>();
+            addNameKeys(getDisplayName(), keys);
+            final String destination = (String) mValues[ContactUtil.INDEX_PHONE_EMAIL];
+            if (!TextUtils.isEmpty(destination)) {
+                if (kind == KIND_EMAILS) {
+                    keys.add(destination.toLowerCase());
+                } else {
+                    keys.add(normalize(destination));
+                    if (!TextUtils.isEmpty(normalizedNumber)) {
+                        keys.add(normalize(normalizedNumber));
+                    }
+                }
+            }
+            keys.remove("");
+            mKeys = keys.toArray(new String[keys.size()]);
+        }
+
+        public String getDisplayName() {
+            return (String) mValues[ContactUtil.INDEX_DISPLAY_NAME];
+        }
+
+        public String getSortKey() {
+            final String sortKey = (String) mValues[ContactUtil.INDEX_SORT_KEY];
+            if (sortKey != null) {
+                return sortKey;
+            }
+            return getDisplayName() != null ? getDisplayName() : "";
+        }
+
+        public long getDataId() {
+            return (Long) mValues[ContactUtil.INDEX_DATA_ID];
+        }
+
+        public boolean matches(final String[] probes) {
+            for (final String key : mKeys) {
+                for (final String probe : probes) {
+                    if (key.startsWith(probe)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The rows matching a query
+     */
+    public static class Result {
+        private final String mQuery;
+        private final int mKinds;
+        private final int mGeneration;
+        private final long mCreatedTime;
+        private final List<Row> mRows;
+
+        private Result(final String query, final int kinds, final int generation,
+                final long createdTime, final List<Row> rows) {
+            mQuery = query;
+            mKinds = kinds;
+            mGeneration = generation;
+            mCreatedTime = createdTime;
+            mRows = rows;
+        }
+
+        public int getCount() {
+            return mRows.size();
+        }
+
+        /**
+         * @return a new cursor over the rows, with the columns of {@link PhoneQuery}
+         */
+        public Cursor toCursor() {
+            final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION, mRows.size());
+            for (final Row row : mRows) {
+                cursor.addRow(row.mValues);
+            }
+            return cursor;
+        }
+    }
+
+    // The rows of each contact, the buckets of rows by key prefix, and the generation of the
+    // index, which changes when rows are updated and invalidates the previous results
+    private final Map<Long, List<Row>> mRowsByContactId = new HashMap<Long, List<Row>>();
+    private final Map<String, Set<Row>> mBuckets = new HashMap<String, Set<Row>>();
+    private int mGeneration;
+
+    // The last contact update or deletion time read, the contact observer change count at that
+    // time, and whether the index was loaded
+    private long mLastUpdatedTimestamp = -1;
+    private int mObservedChangeCount;
+    private volatile boolean mLoaded;
+    private final AtomicBoolean mLoadScheduled = new AtomicBoolean(false);
+
+    public static ContactIndex get() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ContactIndex() {
+    }
+
+    public static boolean isEnabled() {
+        return BugleGservices.get().getBoolean(BugleGservicesKeys.USE_CONTACT_INDEX,
+                BugleGservicesKeys.USE_CONTACT_INDEX_DEFAULT);
+    }
+
+    /**
+     * Starts loading the index in the background, unless it is loaded already
+     */
+    public void prepare() {
+        if (!isEnabled() || mLoaded || !mLoadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        SafeAsyncTask.executeOnThreadPool(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshIfNeeded();
+                } finally {
+                    mLoadScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds the rows matching a query, after reading the contacts changed since the last query.
+     *
+     * @param query the search text
+     * @param kinds the kinds of rows to find, e.g. {@link #KIND_PHONES}
+     * @param previous the previous result of the caller if any, whose rows are the only ones
+     *     checked if the query extends its query and the index didn't change since
+     * @return the matching rows in the order of the contact sort key, or null if the index isn't
+     *     loaded yet, in which case the caller should query the contacts provider
+     */
+    @DoesNotRunOnMainThread
+    public Result query(final String query, final int kinds, final Result previous) {
+        Assert.isNotMainThread();
+        if (!isEnabled()) {
+            return null;
+        }
+        if (!mLoaded) {
+            prepare();
+            return null;
+        }
+        refreshIfNeeded();
+        return search(query, kinds, previous);
+    }
+
+    @VisibleForTesting
+    synchronized Result search(final String query, final int kinds, final Result previous) {
+        if (previous != null && previous.mGeneration == mGeneration) {
+            final Result result = narrow(query, kinds, previous);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        final String[] probes = getProbes(query);
+        final Set<Row> candidates = Collections.newSetFromMap(new IdentityHashMap<Row, Boolean>());
+        for (final String probe : probes) {
+            if (probe.length() >= BUCKET_KEY_LENGTH) {
+                final Set<Row> bucket = mBuckets.get(probe.substring(0, BUCKET_KEY_LENGTH));
+                if (bucket != null) {
+                    candidates.addAll(bucket);
+                }
+            } else {
+                for (final Map.Entry<String, Set<Row>> bucket : mBuckets.entrySet()) {
+                    if (bucket.getKey().startsWith(probe)) {
+                        candidates.addAll(bucket.getValue());
+                    }
+                }
+            }
+        }
+        final ArrayList<Row> rows = new ArrayList<Row>();
+        for (final Row row : candidates) {
+            if ((row.mKind & kinds) != 0 && row.matches(probes)) {
+                rows.add(row);
+            }
+        }
+        Collections.sort(rows, SORT_KEY_COMPARATOR);
+        return new Result(query, kinds, mGeneration, SystemClock.elapsedRealtime(), rows);
+    }
+
+    /**
+     * Wraps the rows of a contacts provider filter query, e.g. of the work profile, so that the
+     * following queries extending its query can be answered by {@link #narrow}. Closes the cursor.
+     *
+     * @param cursor a cursor with the columns of {@link PhoneQuery} or {@link EmailQuery}, or
+     *     null if the query failed
+     */
+    public static Result fromCursor(final String query, final int kinds, final Cursor cursor) {
+        final ArrayList<Row> rows = new ArrayList<Row>();
+        if (cursor == null) {
+            return new Result(query, kinds, GENERATION_PROVIDER, SystemClock.elapsedRealtime(),
+                    rows);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final String destination = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+                final int kind = destination != null && MmsSmsUtils.isEmailAddress(destination)
+                        ? KIND_EMAILS : KIND_PHONES;
+                rows.add(new Row(cursor, kind, null /* normalizedNumber */));
+            }
+        } finally {
+            cursor.close();
+        }
+        return new Result(query, kinds, GENERATION_PROVIDER, SystemClock.elapsedRealtime(), rows);
+    }
+
+    /**
+     * Finds the rows matching a query among the rows of a previous result, which is only
+     * possible when the query extends the previous query, since the rows matching it are then a
+     * subset of the previous rows.
+     *
+     * @return the matching rows in the order of the previous result, or null if the previous
+     *     result can't be narrowed to the query
+     */
+    public static Result narrow(final String query, final int kinds, final Result previous) {
+        if (previous == null || previous.mKinds != kinds || !query.startsWith(previous.mQuery)) {
+            return null;
+        }
+        if (previous.mGeneration == GENERATION_PROVIDER && SystemClock.elapsedRealtime()
+                - previous.mCreatedTime > MAX_PROVIDER_RESULT_AGE_MS) {
+            return null;
+        }
+        final String[] probes = getProbes(query);
+        final ArrayList<Row> rows = new ArrayList<Row>();
+        for (final Row row : previous.mRows) {
+            if (row.matches(probes)) {
+                rows.add(row);
+            }
+        }
+        return new Result(query, kinds, previous.mGeneration, previous.mCreatedTime, rows);
+    }
+
+    /**
+     * Loads the index, or reads the contacts updated or deleted since the last refresh if the
+     * contact observer has seen changes since.
+     */
+    private synchronized void refreshIfNeeded() {
+        final ContactContentObserver observer =
+                ParticipantRefresh.getInitializedContactContentObserver();
+        if (observer == null || !ContactUtil.hasReadContactsPermission()) {
+            // Without the observer the index can't be kept up to date
+            return;
+        }
+        // Read before querying so that a change made during the refresh triggers another one
+        final int changeCount = observer.getChangeCount();
+        if (mLoaded && changeCount == mObservedChangeCount) {
+            return;
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+        final ContentResolver resolver =
+                Factory.get().getApplicationContext().getContentResolver();
+        final String[] selectionArgs = new String[] { Long.toString(mLastUpdatedTimestamp) };
+        final Set<Long> removedContactIds = new HashSet<Long>();
+        long lastUpdatedTimestamp = mLastUpdatedTimestamp;
+        Cursor phones = null;
+        Cursor emails = null;
+        try {
+            // The phones and emails of the updated contacts are all read again, so remove these
+            // contacts first in case they have none left. The timestamps of the contacts are read
+            // before their rows, so that a contact updated meanwhile is read again next time.
+            Cursor cursor = resolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                    Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", selectionArgs, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    removedContactIds.add(cursor.getLong(0));
+                    lastUpdatedTimestamp = Math.max(lastUpdatedTimestamp, cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (mLoaded) {
+                cursor = resolver.query(DeletedContacts.CONTENT_URI,
+                        DELETED_CONTACTS_PROJECTION,
+                        DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?", selectionArgs, null);
+                if (cursor == null) {
+                    return;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        removedContactIds.add(cursor.getLong(0));
+                        lastUpdatedTimestamp = Math.max(lastUpdatedTimestamp, cursor.getLong(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            phones = resolver.query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                    Phone.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", selectionArgs, null);
+            emails = resolver.query(Email.CONTENT_URI, EmailQuery.PROJECTION,
+                    Email.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", selectionArgs, null);
+            if (phones == null || emails == null) {
+                return;
+            }
+            updateRows(removedContactIds, phones, emails);
+        } finally {
+            if (phones != null) {
+                phones.close();
+            }
+            if (emails != null) {
+                emails.close();
+            }
+        }
+
+        if (mLoaded) {
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "ContactIndex: Refreshed " + removedContactIds.size()
+                        + " contacts in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+            }
+        } else {
+            LogUtil.i(TAG, "ContactIndex: Loaded " + mRowsByContactId.size() + " contacts in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+        mLastUpdatedTimestamp = lastUpdatedTimestamp;
+        mObservedChangeCount = changeCount;
+        mLoaded = true;
+    }
+
+    /**
+     * Replaces the rows of the contacts which have rows in the cursors, and removes the rows of
+     * the other given contacts. Only the buckets of these rows are updated; the results are
+     * sorted when searching, so the other rows are left as they are.
+     *
+     * @param phones a cursor with the columns of {@link PhoneQuery} and the normalized number
+     * @param emails a cursor with the columns of {@link EmailQuery}
+     */
+    @VisibleForTesting
+    synchronized void updateRows(final Collection<Long> removedContactIds, final Cursor phones,
+            final Cursor emails) {
+        for (final Long contactId : removedContactIds) {
+            removeContact(contactId);
+        }
+        final Collator collator = Collator.getInstance();
+        // The contacts of the rows may have changed since they were removed above
+        final Set<Long> replacedContactIds = new HashSet<Long>();
+        while (phones.moveToNext()) {
+            addRow(new Row(phones, KIND_PHONES, phones.getString(INDEX_PHONE_NORMALIZED_NUMBER)),
+                    replacedContactIds, collator);
+        }
+        while (emails.moveToNext()) {
+            addRow(new Row(emails, KIND_EMAILS, null /* normalizedNumber */),
+                    replacedContactIds, collator);
+        }
+        mGeneration++;
+    }
+
+    private void addRow(final Row row, final Set<Long> replacedContactIds,
+            final Collator collator) {
+        if (replacedContactIds.add(row.mContactId)) {
+            removeContact(row.mContactId);
+            mRowsByContactId.put(row.mContactId, new ArrayList<Row>(1));
+        }
+        mRowsByContactId.get(row.mContactId).add(row);
+        row.mCollationKey = collator.getCollationKey(row.getSortKey());
+        for (final String key : row.mKeys) {
+            final String bucketKey = getBucketKey(key);
+            Set<Row> bucket = mBuckets.get(bucketKey);
+            if (bucket == null) {
+                bucket = Collections.newSetFromMap(new IdentityHashMap<Row, Boolean>());
+                mBuckets.put(bucketKey, bucket);
+            }
+            bucket.add(row);
+        }
+    }
+
+    /**
+     * Removes the rows of a contact from the index and from their buckets
+     */
+    private void removeContact(final long contactId) {
+        final List<Row> rows = mRowsByContactId.remove(contactId);
+        if (rows == null) {
+            return;
+        }
+        for (final Row row : rows) {
+            for (final String key : row.mKeys) {
+                final String bucketKey = getBucketKey(key);
+                final Set<Row> bucket = mBuckets.get(bucketKey);
+                if (bucket != null) {
+                    bucket.remove(row);
+                    if (bucket.isEmpty()) {
+                        mBuckets.remove(bucketKey);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String getBucketKey(final String key) {
+        return key.length() > BUCKET_KEY_LENGTH ? key.substring(0, BUCKET_KEY_LENGTH) : key;
+    }
+
+    /**
+     * Adds the name keys of a contact, which are the runs of normalized words from each word of
+     * the name to the last one, so that "john sm" finds "John Smith" as well as "smi" does.
+     */
+    private static void addNameKeys(final String name, final Collection<String> keys) {
+        if (TextUtils.isEmpty(name)) {
+            return;
+        }
+        final String[] words = WORD_SEPARATORS.split(name);
+        String key = "";
+        for (int i = words.length - 1; i >= 0; i--) {
+            final String word = normalize(words[i]);
+            if (!word.isEmpty()) {
+                key = word + key;
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * @return the strings a key must start with to match the query, its normalized letters and
+     *     digits and, for emails, the lower case query
+     */
+    private static String[] getProbes(final String query) {
+        final Set<String> probes = new LinkedHashSet<String>();
+        probes.add(normalize(query));
+        probes.add(query.trim().toLowerCase());
+        probes.remove("");
+        return probes.toArray(new String[probes.size()]);
+    }
+
+    /**
+     * @return the letters and digits of the text in lower case, without accents
+     */
+    @VisibleForTesting
+    static String normalize(final String text) {
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        final StringBuilder normalized = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+}
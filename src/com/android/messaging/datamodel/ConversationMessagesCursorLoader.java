@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.util.LinkifiedTextCache;
+
+/**
+ * A BoundCursorLoader that reads the messages of a conversation, and finds the links in their
+ * text while still in the background so that the message views don't have to.
+ */
+public class ConversationMessagesCursorLoader extends BoundCursorLoader {
+    public ConversationMessagesCursorLoader(final String bindingId, final Context context,
+            final Uri uri) {
+        super(bindingId, context, uri, ConversationMessageData.getProjection(), null, null, null);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final Cursor cursor = super.loadInBackground();
+        if (cursor != null) {
+            final ConversationMessageData data = new ConversationMessageData();
+            final LinkifiedTextCache linkifiedTextCache = LinkifiedTextCache.get();
+            // The messages come newest first. Only precompute as many of them as the cache holds,
+            // oldest first, so that the newest messages, which are shown first, are the last ones
+            // to be evicted rather than the first.
+            final int count = Math.min(cursor.getCount(), linkifiedTextCache.getMaxEntries());
+            for (int position = count - 1;
+                    position >= 0 && !isLoadInBackgroundCanceled(); position--) {
+                cursor.moveToPosition(position);
+                data.bind(cursor);
+                linkifiedTextCache.precompute(data.getMessageId(), data.getText());
+            }
+            cursor.moveToPosition(-1);
+        }
+        return cursor;
+    }
+}
@@ -22,6 +22,7 @@ import android.net.Uri;
 import android.telephony.SubscriptionManager;
 
 import com.android.messaging.datamodel.action.ActionService;
+import com.android.messaging.datamodel.action.BackfillMessageSearchIndexAction;
 import com.android.messaging.datamodel.action.BackgroundWorker;
 import com.android.messaging.datamodel.action.FixupMessageStatusOnStartupAction;
 import com.android.messaging.datamodel.action.ProcessPendingMessagesAction;
@@ -221,6 +222,7 @@ public class DataModelImpl extends DataModel {
         }
 
         FixupMessageStatusOnStartupAction.fixupMessageStatus();
+        BackfillMessageSearchIndexAction.backfillMessageSearchIndexIfNeeded();
         ProcessPendingMessagesAction.processFirstPendingMessage();
         SyncManager.immediateSync();
 
@@ -63,6 +63,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static final String PARTS_TABLE = "parts";
     public static final String PARTICIPANTS_TABLE = "participants";
     public static final String CONVERSATION_PARTICIPANTS_TABLE = "conversation_participants";
+    public static final String MESSAGE_SEARCH_TABLE = "message_search";
 
     // Views
     static final String DRAFT_PARTS_VIEW = "draft_parts_view";
@@ -306,6 +307,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + MessageColumns.STATUS + ", "
                     + MessageColumns.RECEIVED_TIMESTAMP + ")";
 
+    // Paging index for messages table : by conversation id, received timestamp and id, the order
+    // in which the conversation view reads its messages.
+    static final String MESSAGES_TABLE_CONVERSATION_TIMESTAMP_INDEX_SQL =
+            "CREATE INDEX index_" + MESSAGES_TABLE + "_conversation_timestamp ON "
+                    + MESSAGES_TABLE + "("
+                    + MessageColumns.CONVERSATION_ID + ", "
+                    + MessageColumns.RECEIVED_TIMESTAMP + ", "
+                    + MessageColumns._ID + ")";
+
     private static final String MESSAGES_TABLE_STATUS_SEEN_INDEX_SQL =
             "CREATE INDEX index_" + MESSAGES_TABLE + "_status_seen ON " +  MESSAGES_TABLE + "("
                     + MessageColumns.STATUS + ", "
@@ -505,6 +515,131 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + " ON " +  CONVERSATION_PARTICIPANTS_TABLE
                     + "(" + ConversationParticipantsColumns.CONVERSATION_ID + ")";
 
+    // Message search (full-text index) table schema. The docid of each row is the id of the
+    // message it indexes.
+    public static class MessageSearchColumns {
+        /* text of all the parts of the message */
+        public static final String TEXT = "text";
+
+        /* de-normalized copy of the mms subject from the messages table */
+        public static final String MMS_SUBJECT = "mms_subject";
+
+        /* de-normalized copy of the full name of the sender from the participants table */
+        public static final String SENDER_NAME = "sender_name";
+    }
+
+    // Message search table SQL. This is an FTS4 virtual table, kept in sync with the messages,
+    // parts and participants tables by the triggers below. Every message has a row, indexed when
+    // the message is inserted; the text of its parts is then added as they are inserted.
+    private static final String CREATE_MESSAGE_SEARCH_TABLE_SQL =
+            "CREATE VIRTUAL TABLE " + MESSAGE_SEARCH_TABLE + " USING fts4("
+                    + MessageSearchColumns.TEXT + ", "
+                    + MessageSearchColumns.MMS_SUBJECT + ", "
+                    + MessageSearchColumns.SENDER_NAME + ", "
+                    + "tokenize=unicode61)";
+
+    /**
+     * Generates the statements that (re)index the message with the given id.
+     */
+    private static String makeIndexMessageForSearchSql(final String messageId) {
+        return "DELETE FROM " + MESSAGE_SEARCH_TABLE + " WHERE docid=" + messageId + "; "
+                + "INSERT INTO " + MESSAGE_SEARCH_TABLE + "(docid, "
+                + MessageSearchColumns.TEXT + ", " + MessageSearchColumns.MMS_SUBJECT + ", "
+                + MessageSearchColumns.SENDER_NAME + ") "
+                + getMessageSearchRowsSelectSql() + " WHERE " + MESSAGES_TABLE + "."
+                + MessageColumns._ID + "=" + messageId + ";";
+    }
+
+    /**
+     * Generates the statement that recomputes the indexed text of the message with the given id,
+     * after one of its text parts changed.
+     */
+    private static String makeIndexMessageTextForSearchSql(final String messageId) {
+        return "UPDATE " + MESSAGE_SEARCH_TABLE + " SET " + MessageSearchColumns.TEXT
+                + "=(SELECT group_concat(" + PartColumns.TEXT + ", ' ') FROM " + PARTS_TABLE
+                + " WHERE " + PartColumns.MESSAGE_ID + "=" + messageId + ") WHERE docid="
+                + messageId + ";";
+    }
+
+    /**
+     * Returns a SELECT that computes the message search table rows of the messages matched by
+     * the WHERE clause appended to it.
+     */
+    static String getMessageSearchRowsSelectSql() {
+        return "SELECT " + MESSAGES_TABLE + "." + MessageColumns._ID + ", "
+                + "(SELECT group_concat(" + PartColumns.TEXT + ", ' ') FROM " + PARTS_TABLE
+                + " WHERE " + PARTS_TABLE + "." + PartColumns.MESSAGE_ID + "="
+                + MESSAGES_TABLE + "." + MessageColumns._ID + "), "
+                + MESSAGES_TABLE + "." + MessageColumns.MMS_SUBJECT + ", "
+                + PARTICIPANTS_TABLE + "." + ParticipantColumns.FULL_NAME
+                + " FROM " + MESSAGES_TABLE + " LEFT JOIN " + PARTICIPANTS_TABLE + " ON ("
+                + MESSAGES_TABLE + "." + MessageColumns.SENDER_PARTICIPANT_ID + "="
+                + PARTICIPANTS_TABLE + "." + ParticipantColumns._ID + ")";
+    }
+
+    private static final String MESSAGES_INSERT_SEARCH_TRIGGER =
+            MESSAGES_TABLE + "_insert_search_TRIGGER";
+    private static final String MESSAGES_UPDATE_SEARCH_TRIGGER =
+            MESSAGES_TABLE + "_update_search_TRIGGER";
+    private static final String MESSAGES_DELETE_SEARCH_TRIGGER =
+            MESSAGES_TABLE + "_delete_search_TRIGGER";
+    private static final String PARTS_INSERT_SEARCH_TRIGGER =
+            PARTS_TABLE + "_insert_search_TRIGGER";
+    private static final String PARTS_UPDATE_SEARCH_TRIGGER =
+            PARTS_TABLE + "_update_search_TRIGGER";
+    private static final String PARTS_DELETE_SEARCH_TRIGGER =
+            PARTS_TABLE + "_delete_search_TRIGGER";
+    private static final String PARTICIPANTS_UPDATE_SEARCH_TRIGGER =
+            PARTICIPANTS_TABLE + "_update_search_TRIGGER";
+
+    // Indexes the message without any text; messages without text parts are still found by their
+    // subject and sender.
+    private static final String CREATE_MESSAGES_INSERT_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + MESSAGES_INSERT_SEARCH_TRIGGER + " AFTER INSERT ON "
+            + MESSAGES_TABLE + " FOR EACH ROW BEGIN "
+            + makeIndexMessageForSearchSql("NEW." + MessageColumns._ID) + " END";
+
+    // Only text parts change the index, and their text is appended to the message row rather than
+    // indexing the whole message again for every part.
+    private static final String CREATE_PARTS_INSERT_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTS_INSERT_SEARCH_TRIGGER + " AFTER INSERT ON "
+            + PARTS_TABLE + " FOR EACH ROW WHEN NEW." + PartColumns.TEXT + " IS NOT NULL BEGIN "
+            + "UPDATE " + MESSAGE_SEARCH_TABLE + " SET " + MessageSearchColumns.TEXT
+            + "=ifnull(" + MessageSearchColumns.TEXT + " || ' ', '') || NEW." + PartColumns.TEXT
+            + " WHERE docid=NEW." + PartColumns.MESSAGE_ID + "; END";
+
+    private static final String CREATE_PARTS_UPDATE_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTS_UPDATE_SEARCH_TRIGGER + " AFTER UPDATE OF "
+            + PartColumns.TEXT + " ON " + PARTS_TABLE + " FOR EACH ROW WHEN NEW."
+            + PartColumns.TEXT + " IS NOT OLD." + PartColumns.TEXT + " BEGIN "
+            + makeIndexMessageTextForSearchSql("NEW." + PartColumns.MESSAGE_ID) + " END";
+
+    // Also covers parts that are removed because their message was deleted, in which case the
+    // message is no longer in the index to update.
+    private static final String CREATE_PARTS_DELETE_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTS_DELETE_SEARCH_TRIGGER + " AFTER DELETE ON "
+            + PARTS_TABLE + " FOR EACH ROW WHEN OLD." + PartColumns.TEXT + " IS NOT NULL BEGIN "
+            + makeIndexMessageTextForSearchSql("OLD." + PartColumns.MESSAGE_ID) + " END";
+
+    private static final String CREATE_MESSAGES_UPDATE_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + MESSAGES_UPDATE_SEARCH_TRIGGER + " AFTER UPDATE OF "
+            + MessageColumns.MMS_SUBJECT + ", " + MessageColumns.SENDER_PARTICIPANT_ID + " ON "
+            + MESSAGES_TABLE + " FOR EACH ROW BEGIN "
+            + makeIndexMessageForSearchSql("NEW." + MessageColumns._ID) + " END";
+
+    private static final String CREATE_MESSAGES_DELETE_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + MESSAGES_DELETE_SEARCH_TRIGGER + " AFTER DELETE ON "
+            + MESSAGES_TABLE + " FOR EACH ROW BEGIN DELETE FROM " + MESSAGE_SEARCH_TABLE
+            + " WHERE docid=OLD." + MessageColumns._ID + "; END";
+
+    private static final String CREATE_PARTICIPANTS_UPDATE_SEARCH_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTICIPANTS_UPDATE_SEARCH_TRIGGER + " AFTER UPDATE OF "
+            + ParticipantColumns.FULL_NAME + " ON " + PARTICIPANTS_TABLE + " FOR EACH ROW BEGIN "
+            + "UPDATE " + MESSAGE_SEARCH_TABLE + " SET " + MessageSearchColumns.SENDER_NAME
+            + "=NEW." + ParticipantColumns.FULL_NAME + " WHERE docid IN (SELECT "
+            + MessageColumns._ID + " FROM " + MESSAGES_TABLE + " WHERE "
+            + MessageColumns.SENDER_PARTICIPANT_ID + "=NEW." + ParticipantColumns._ID + "); END";
+
     // View for getting parts which are for draft messages.
     static final String DRAFT_PARTS_VIEW_SQL = "CREATE VIEW " +
             DRAFT_PARTS_VIEW + " AS SELECT "
@@ -546,6 +681,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         CONVERSATIONS_TABLE_ARCHIVE_STATUS_INDEX_SQL,
         CONVERSATIONS_TABLE_SORT_TIMESTAMP_INDEX_SQL,
         MESSAGES_TABLE_SORT_INDEX_SQL,
+        MESSAGES_TABLE_CONVERSATION_TIMESTAMP_INDEX_SQL,
         MESSAGES_TABLE_STATUS_SEEN_INDEX_SQL,
         PARTS_TABLE_MESSAGE_INDEX_SQL,
         CONVERSATION_PARTICIPANTS_TABLE_CONVERSATION_ID_INDEX_SQL,
@@ -557,6 +693,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             CREATE_MESSAGES_TRIGGER_SQL,
     };
 
+    // The triggers that keep the message search table up to date
+    private static final String[] MESSAGE_SEARCH_TRIGGERS = new String[] {
+            MESSAGES_INSERT_SEARCH_TRIGGER,
+            MESSAGES_UPDATE_SEARCH_TRIGGER,
+            MESSAGES_DELETE_SEARCH_TRIGGER,
+            PARTS_INSERT_SEARCH_TRIGGER,
+            PARTS_UPDATE_SEARCH_TRIGGER,
+            PARTS_DELETE_SEARCH_TRIGGER,
+            PARTICIPANTS_UPDATE_SEARCH_TRIGGER,
+    };
+    private static final String[] CREATE_MESSAGE_SEARCH_TRIGGER_SQLS = new String[] {
+            CREATE_MESSAGES_INSERT_SEARCH_TRIGGER_SQL,
+            CREATE_PARTS_INSERT_SEARCH_TRIGGER_SQL,
+            CREATE_PARTS_UPDATE_SEARCH_TRIGGER_SQL,
+            CREATE_PARTS_DELETE_SEARCH_TRIGGER_SQL,
+            CREATE_MESSAGES_UPDATE_SEARCH_TRIGGER_SQL,
+            CREATE_MESSAGES_DELETE_SEARCH_TRIGGER_SQL,
+            CREATE_PARTICIPANTS_UPDATE_SEARCH_TRIGGER_SQL,
+    };
+
     // List of all our views
     private static final String[] CREATE_VIEW_SQLS = new String[] {
         ConversationListItemData.getConversationListViewSql(),
@@ -692,8 +848,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 while (tableCursor.moveToNext()) {
                     final String tableName = tableCursor.getString(0);
 
-                    // Skip special tables
-                    if (tableName.startsWith("android_") || tableName.startsWith("sqlite_")) {
+                    // Skip special tables, and the shadow tables of the message search table which
+                    // are dropped along with it
+                    if (tableName.startsWith("android_") || tableName.startsWith("sqlite_") ||
+                            tableName.startsWith(MESSAGE_SEARCH_TABLE + "_")) {
                         continue;
                     }
                     try {
@@ -803,6 +961,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.execSQL(sql);
         }
 
+        createMessageSearchTable(db);
+
         // Enable foreign key constraints
         db.execSQL("PRAGMA foreign_keys=ON;");
 
@@ -813,6 +973,28 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         DataModel.get().onCreateTables(db);
     }
 
+    /**
+     * Creates the message search table and the triggers that keep it up to date. The table
+     * starts out empty; existing messages are indexed by
+     * {@link BugleDatabaseOperations#indexMessagesForSearchInTransaction}.
+     */
+    static void createMessageSearchTable(final SQLiteDatabase db) {
+        db.execSQL(CREATE_MESSAGE_SEARCH_TABLE_SQL);
+        recreateMessageSearchTriggers(db);
+    }
+
+    /**
+     * Replaces the triggers that keep the message search table up to date with the current ones.
+     */
+    static void recreateMessageSearchTriggers(final SQLiteDatabase db) {
+        for (final String trigger : MESSAGE_SEARCH_TRIGGERS) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        }
+        for (final String sql : CREATE_MESSAGE_SEARCH_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         createDatabase(db);
@@ -20,6 +20,8 @@ import android.database.sqlite.SQLiteDatabase;
 
 import com.android.messaging.Factory;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.LogUtil;
 
 public class DatabaseUpgradeHelper {
@@ -48,6 +50,15 @@ public class DatabaseUpgradeHelper {
         if (currentVersion < 2) {
             currentVersion = upgradeToVersion2(db);
         }
+        if (currentVersion < 3) {
+            currentVersion = upgradeToVersion3(db);
+        }
+        if (currentVersion < 4) {
+            currentVersion = upgradeToVersion4(db);
+        }
+        if (currentVersion < 5) {
+            currentVersion = upgradeToVersion5(db);
+        }
         // Rebuild all the views
         final Context context = Factory.get().getApplicationContext();
         DatabaseHelper.dropAllViews(db);
@@ -63,6 +74,34 @@ public class DatabaseUpgradeHelper {
         return 2;
     }
 
+    private int upgradeToVersion3(final SQLiteDatabase db) {
+        DatabaseHelper.createMessageSearchTable(db);
+        // Indexing all the existing messages here could take long enough to stall app start, so
+        // have it done in the background in small batches instead.
+        final BuglePrefs prefs = BuglePrefs.getApplicationPrefs();
+        prefs.remove(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID);
+        prefs.putBoolean(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_PENDING, true);
+        LogUtil.i(TAG, "Ugraded database to version 3");
+        return 3;
+    }
+
+    private int upgradeToVersion4(final SQLiteDatabase db) {
+        db.execSQL(DatabaseHelper.MESSAGES_TABLE_CONVERSATION_TIMESTAMP_INDEX_SQL);
+        LogUtil.i(TAG, "Ugraded database to version 4");
+        return 4;
+    }
+
+    private int upgradeToVersion5(final SQLiteDatabase db) {
+        DatabaseHelper.recreateMessageSearchTriggers(db);
+        // Messages without text parts were not indexed by the previous triggers, so go over all
+        // the messages again in the background; the ones already indexed are skipped.
+        final BuglePrefs prefs = BuglePrefs.getApplicationPrefs();
+        prefs.remove(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID);
+        prefs.putBoolean(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_PENDING, true);
+        LogUtil.i(TAG, "Ugraded database to version 5");
+        return 5;
+    }
+
     /**
      * Checks db version correctness at the end of each milestone release. If target database
      * version lies beyond the version range that the current release may handle, we snap the
@@ -24,6 +24,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.SparseArray;
 
 import com.android.messaging.Factory;
@@ -34,6 +35,8 @@ import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.UiUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.Stack;
 import java.util.regex.Pattern;
@@ -50,6 +53,9 @@ public class DatabaseWrapper {
      */
     // See
     private final String mExplainQueryPlanRegexp;
+    // Set (via {@link BugleGservicesKeys#SQL_PROFILER_ENABLED} or the database perf log tag) to
+    // aggregate statement timings for dumpsys
+    private final SqlProfiler mProfiler;
     private static final int sTimingThreshold = 50;        // in milliseconds
 
     public static final int INDEX_INSERT_MESSAGE_PART = 0;
@@ -62,6 +68,11 @@ public class DatabaseWrapper {
     static class TransactionData {
         long time;
         boolean transactionSuccessful;
+        // Whether a transaction nested in this one ended without success, which rolls back
+        // this one too
+        boolean nestedTransactionFailed;
+        // Work to run once this transaction is committed; only set on the outermost one
+        ArrayList<Runnable> afterCommitRunnables;
     }
 
     // track transaction on a per thread basis
@@ -83,6 +94,10 @@ public class DatabaseWrapper {
         mLog = LogUtil.isLoggable(LogUtil.BUGLE_DATABASE_PERF_TAG, LogUtil.VERBOSE);
         mExplainQueryPlanRegexp = Factory.get().getBugleGservices().getString(
                 BugleGservicesKeys.EXPLAIN_QUERY_PLAN_REGEXP, null);
+        final boolean profile = mLog || Factory.get().getBugleGservices().getBoolean(
+                BugleGservicesKeys.SQL_PROFILER_ENABLED,
+                BugleGservicesKeys.SQL_PROFILER_ENABLED_DEFAULT);
+        mProfiler = profile ? SqlProfiler.get() : null;
         mDatabase = db;
         mContext = context;
         mCompiledStatements = new SparseArray<SQLiteStatement>();
@@ -137,10 +152,29 @@ public class DatabaseWrapper {
         mDatabase.setTransactionSuccessful();
     }
 
+    /**
+     * Runs the given work once the current transaction, including the ones it's nested in, is
+     * committed, on the thread that commits it. The work is dropped if the transaction is rolled
+     * back. Outside of a transaction it runs right away.
+     */
+    public void runAfterCommit(final Runnable runnable) {
+        final Stack<TransactionData> transactions = sTransactionDepth.get();
+        if (transactions.isEmpty()) {
+            runnable.run();
+            return;
+        }
+        final TransactionData outermost = transactions.firstElement();
+        if (outermost.afterCommitRunnables == null) {
+            outermost.afterCommitRunnables = new ArrayList<Runnable>();
+        }
+        outermost.afterCommitRunnables.add(runnable);
+    }
+
     public void endTransaction() {
         long t1 = 0;
         long transactionStartTime = 0;
-        final TransactionData f = sTransactionDepth.get().pop();
+        final Stack<TransactionData> transactions = sTransactionDepth.get();
+        final TransactionData f = transactions.pop();
         if (f.transactionSuccessful == false) {
             LogUtil.w(TAG, "endTransaction without setting successful");
             for (final StackTraceElement st : (new Exception()).getStackTrace()) {
@@ -151,17 +185,27 @@ public class DatabaseWrapper {
             transactionStartTime = f.time;
             t1 = System.currentTimeMillis();
         }
+        boolean committed = f.transactionSuccessful && !f.nestedTransactionFailed;
+        if (!transactions.isEmpty()) {
+            transactions.peek().nestedTransactionFailed |= !committed;
+        }
         try {
             mDatabase.endTransaction();
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to endTransaction", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
+            committed = false;
         }
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
                     ">>> endTransaction (total for this transaction: %d)",
                     (System.currentTimeMillis() - transactionStartTime)));
         }
+        if (committed && f.afterCommitRunnables != null) {
+            for (final Runnable runnable : f.afterCommitRunnables) {
+                runnable.run();
+            }
+        }
     }
 
     public void yieldTransaction() {
@@ -178,7 +222,7 @@ public class DatabaseWrapper {
     public void insertWithOnConflict(final String searchTable, final String nullColumnHack,
             final ContentValues initialValues, final int conflictAlgorithm) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         try {
@@ -188,6 +232,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to insertWithOnConflict", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile("INSERT INTO " + searchTable, t1, 1, null, null);
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
                     "insertWithOnConflict with %s", searchTable));
@@ -217,8 +264,20 @@ public class DatabaseWrapper {
         if (!Pattern.matches(mExplainQueryPlanRegexp, sql)) {
             return;
         }
-        final Cursor planCursor = db.rawQuery("explain query plan " + sql, queryArgs);
+        final String queryPlan = getQueryPlan(db, sql, queryArgs);
+        if (queryPlan != null) {
+            LogUtil.v(TAG, "for query " + sql + "\nplan is: " + queryPlan);
+        }
+    }
+
+    /**
+     * @return the detail lines of the query plan of the statement, or null if it failed
+     */
+    private static String getQueryPlan(final SQLiteDatabase db, final String sql,
+            final String[] queryArgs) {
+        Cursor planCursor = null;
         try {
+            planCursor = db.rawQuery("explain query plan " + sql, queryArgs);
             if (planCursor != null && planCursor.moveToFirst()) {
                 final int detailColumn = planCursor.getColumnIndex("detail");
                 final StringBuilder sb = new StringBuilder();
@@ -229,8 +288,7 @@ public class DatabaseWrapper {
                 if (sb.length() > 0) {
                     sb.setLength(sb.length() - 1);
                 }
-                LogUtil.v(TAG, "for query " + sql + "\nplan is: "
-                        + sb.toString());
+                return sb.toString();
             }
         } catch (final Exception e) {
             LogUtil.w(TAG, "Query plan failed ", e);
@@ -239,6 +297,31 @@ public class DatabaseWrapper {
                 planCursor.close();
             }
         }
+        return null;
+    }
+
+    /**
+     * Records a statement in the SQL profiler, checking its query plan the first time it's seen.
+     * @param sql the statement, or a description of it for statements built by SQLiteDatabase
+     * @param startTime the start time of the statement, from System.currentTimeMillis()
+     * @param rows number of rows returned or changed, or -1 if unknown
+     * @param explainSql the statement to explain (with the same reads), or null for none
+     * @param explainArgs the arguments of explainSql
+     */
+    private void profile(final String sql, final long startTime, final long rows,
+            final String explainSql, final String[] explainArgs) {
+        final long durationMillis = System.currentTimeMillis() - startTime;
+        if (mProfiler.record(sql, durationMillis, rows) && explainSql != null) {
+            mProfiler.onQueryPlan(sql, getQueryPlan(mDatabase, explainSql, explainArgs));
+        }
+    }
+
+    /**
+     * @return a statement reading the same rows as an update or delete with the given selection
+     */
+    private static String buildSelectRowIds(final String table, final String selection) {
+        return "SELECT rowid FROM " + table
+                + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection);
     }
 
     public Cursor query(final String searchTable, final String[] projection,
@@ -253,11 +336,17 @@ public class DatabaseWrapper {
 
         maybePlayDebugNoise();
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         final Cursor cursor = mDatabase.query(searchTable, projection, selection, selectionArgs,
                 groupBy, having, orderBy, limit);
+        if (mProfiler != null) {
+            // Counting the rows runs the query, so that it gets timed
+            final String sql = SQLiteQueryBuilder.buildQueryString(false /* distinct */,
+                    searchTable, projection, selection, groupBy, having, orderBy, limit);
+            profile(sql, t1, cursor.getCount(), sql, selectionArgs);
+        }
         if (mLog) {
             printTiming(
                     t1,
@@ -284,11 +373,16 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         final Cursor cursor = qb.query(mDatabase, projection, selection, queryArgs, groupBy,
                 having, sortOrder, limit);
+        if (mProfiler != null) {
+            final String sql = qb.buildQuery(projection, selection, groupBy, having, sortOrder,
+                    limit);
+            profile(sql, t1, cursor.getCount(), sql, queryArgs);
+        }
         if (mLog) {
             printTiming(
                     t1,
@@ -301,12 +395,17 @@ public class DatabaseWrapper {
     public long queryNumEntries(final String table, final String selection,
             final String[] selectionArgs) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
         final long retval =
                 DatabaseUtils.queryNumEntries(mDatabase, table, selection, selectionArgs);
+        if (mProfiler != null) {
+            final String sql = "SELECT count(*) FROM " + table
+                    + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection);
+            profile(sql, t1, 1, sql, selectionArgs);
+        }
         if (mLog){
             printTiming(
                     t1,
@@ -321,11 +420,14 @@ public class DatabaseWrapper {
             explainQueryPlan(mDatabase, sql, args);
         }
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
         final Cursor cursor = mDatabase.rawQuery(sql, args);
+        if (mProfiler != null) {
+            profile(sql, t1, cursor.getCount(), sql, args);
+        }
         if (mLog) {
             printTiming(
                     t1,
@@ -337,7 +439,7 @@ public class DatabaseWrapper {
     public int update(final String table, final ContentValues values,
             final String selection, final String[] selectionArgs) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -348,6 +450,13 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to update", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            final ArrayList<String> columns = new ArrayList<String>(values.keySet());
+            Collections.sort(columns);
+            profile("UPDATE " + table + " SET " + TextUtils.join(", ", columns)
+                    + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection), t1, count,
+                    buildSelectRowIds(table, selection), selectionArgs);
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "update %s with %s ==> %d",
                     table, selection, count));
@@ -357,7 +466,7 @@ public class DatabaseWrapper {
 
     public int delete(final String table, final String whereClause, final String[] whereArgs) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -368,6 +477,11 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to delete", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile("DELETE FROM " + table
+                    + (TextUtils.isEmpty(whereClause) ? "" : " WHERE " + whereClause), t1, count,
+                    buildSelectRowIds(table, whereClause), whereArgs);
+        }
         if (mLog) {
             printTiming(t1,
                     String.format(Locale.US, "delete from %s with %s ==> %d", table,
@@ -379,7 +493,7 @@ public class DatabaseWrapper {
     public long insert(final String table, final String nullColumnHack,
             final ContentValues values) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -390,6 +504,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to insert", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile("INSERT INTO " + table, t1, rowId >= 0 ? 1 : 0, null, null);
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "insert to %s", table));
         }
@@ -399,7 +516,7 @@ public class DatabaseWrapper {
     public long replace(final String table, final String nullColumnHack,
             final ContentValues values) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -410,6 +527,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to replace", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile("REPLACE INTO " + table, t1, rowId >= 0 ? 1 : 0, null, null);
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "replace to %s", table));
         }
@@ -422,7 +542,7 @@ public class DatabaseWrapper {
 
     public void execSQL(final String sql, final String[] bindArgs) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -432,6 +552,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to execSQL", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile(sql, t1, -1, SqlProfiler.isExplainable(sql) ? sql : null, bindArgs);
+        }
 
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "execSQL %s", sql));
@@ -440,7 +563,7 @@ public class DatabaseWrapper {
 
     public void execSQL(final String sql) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -450,6 +573,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to execSQL", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile(sql, t1, -1, SqlProfiler.isExplainable(sql) ? sql : null, null);
+        }
 
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "execSQL %s", sql));
@@ -458,7 +584,7 @@ public class DatabaseWrapper {
 
     public int execSQLUpdateDelete(final String sql) {
         long t1 = 0;
-        if (mLog) {
+        if (mLog || mProfiler != null) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
@@ -470,6 +596,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to execSQLUpdateDelete", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (mProfiler != null) {
+            profile(sql, t1, rowsUpdated, SqlProfiler.isExplainable(sql) ? sql : null, null);
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "execSQLUpdateDelete %s", sql));
         }
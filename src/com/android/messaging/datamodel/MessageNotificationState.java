@@ -22,6 +22,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Typeface;
 import android.net.Uri;
+import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationCompat.Builder;
 import androidx.core.app.NotificationCompat.WearableExtender;
@@ -57,15 +58,20 @@ import com.android.messaging.util.ConversationIdSet;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PendingIntentConstants;
 import com.android.messaging.util.UriUtil;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Notification building class for conversation messages.
@@ -83,7 +89,9 @@ import java.util.Map;
  *  2) ConversationLineInfo - A list of NotificationLineInfo in a single conversation.
  *  3) ConversationInfoList - A list of ConversationLineInfo and the total number of messages.
  *
- *  The createConversationInfoList function performs the query and creates the data structure.
+ *  The queryConversationLineInfos function performs the query and creates the data structure.
+ *  The conversations are kept in memory between notification updates so that an update for new
+ *  or seen messages in one conversation only has to query that conversation.
  */
 public abstract class MessageNotificationState extends NotificationState {
     // Logging
@@ -92,6 +100,10 @@ public abstract class MessageNotificationState extends NotificationState {
 
     private static final int MAX_CHARACTERS_IN_GROUP_NAME = 30;
 
+    // How long the in-memory model may go without a full query. Bounds how long changes that
+    // neither update the notifications nor invalidate the model go unnoticed.
+    private static final long MODEL_MAX_AGE_MILLIS = 60 * 1000;
+
     private static final int REPLY_INTENT_REQUEST_CODE_OFFSET = 0;
     private static final int NUM_EXTRA_REQUEST_CODES_NEEDED = 1;
     protected String mTickerSender = null;
@@ -293,6 +305,18 @@ public abstract class MessageNotificationState extends NotificationState {
         }
     }
 
+    // The conversations with unseen messages by id, as of the last update; null until the first
+    // full query. Guarded by sModelLock.
+    private static LinkedHashMap<String, ConversationLineInfo> sConvLineInfos;
+    private static long sModelQueryTimeMillis;
+    private static final Object sModelLock = new Object();
+
+    // The conversations changed since the last update by anything other than a notification
+    // update, e.g. a message delete or a settings change. Guarded by sInvalidationLock.
+    private static boolean sModelInvalidated;
+    private static final Set<String> sInvalidatedConversationIds = new HashSet<String>();
+    private static final Object sInvalidationLock = new Object();
+
     final ConversationInfoList mConvList;
     private long mLatestReceivedTimestamp;
 
@@ -814,24 +838,120 @@ public abstract class MessageNotificationState extends NotificationState {
         }
     }
 
+    /**
+     * Marks the notification model out of date for a conversation, so that the next update
+     * queries it again whichever conversations that update is for.
+     * @param conversationId the changed conversation, or null if any conversation may have changed
+     */
+    public static void invalidateModel(final String conversationId) {
+        synchronized (sInvalidationLock) {
+            if (conversationId == null) {
+                sModelInvalidated = true;
+            } else {
+                sInvalidatedConversationIds.add(conversationId);
+            }
+        }
+    }
+
+    /**
+     * Brings the notification model up to date and returns its content.
+     * @param updatedConversationIds the conversations whose unseen messages changed since the
+     *     last call, or null if any conversation may have changed
+     */
+    private static ConversationInfoList updateConversationInfoList(
+            final Set<String> updatedConversationIds) {
+        synchronized (sModelLock) {
+            // Take the invalidations before querying, so that none made after the query started
+            // get lost
+            Set<String> changedConversationIds = null;
+            synchronized (sInvalidationLock) {
+                if (updatedConversationIds != null && !sModelInvalidated) {
+                    changedConversationIds = new HashSet<String>(updatedConversationIds);
+                    changedConversationIds.addAll(sInvalidatedConversationIds);
+                }
+                sModelInvalidated = false;
+                sInvalidatedConversationIds.clear();
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            if (changedConversationIds == null || sConvLineInfos == null
+                    || now - sModelQueryTimeMillis > MODEL_MAX_AGE_MILLIS) {
+                // Clear the model first so that it isn't left half updated if the query fails
+                sConvLineInfos = null;
+                sConvLineInfos = queryConversationLineInfos(null /* conversationId */);
+                sModelQueryTimeMillis = now;
+            } else {
+                final LinkedHashMap<String, ConversationLineInfo> model = sConvLineInfos;
+                // Drop the model while it is updated, so that a failed query leads to a full one
+                sConvLineInfos = null;
+                for (final String conversationId : changedConversationIds) {
+                    final Map<String, ConversationLineInfo> convLineInfos =
+                            queryConversationLineInfos(conversationId);
+                    model.remove(conversationId);
+                    model.putAll(convLineInfos);
+                }
+                sConvLineInfos = model;
+                if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                    LogUtil.v(TAG, "MessageNotificationState: Updated "
+                            + changedConversationIds.size() + " of " + sConvLineInfos.size()
+                            + " conversations");
+                }
+            }
+            return createConversationInfoList(sConvLineInfos.values());
+        }
+    }
+
+    /**
+     * @return the conversations of the model, latest first, or null if there are none
+     */
+    @VisibleForTesting
+    static ConversationInfoList createConversationInfoList(
+            final Collection<ConversationLineInfo> convLineInfos) {
+        if (convLineInfos.isEmpty()) {
+            return null;
+        }
+        final List<ConversationLineInfo> sortedConvLineInfos =
+                Lists.newLinkedList(convLineInfos);
+        // The sort is stable, so conversations from a full query stay in the query order
+        Collections.sort(sortedConvLineInfos, new Comparator<ConversationLineInfo>() {
+            @Override
+            public int compare(final ConversationLineInfo lhs, final ConversationLineInfo rhs) {
+                return Long.compare(rhs.mReceivedTimestamp, lhs.mReceivedTimestamp);
+            }
+        });
+        int messageCount = 0;
+        for (final ConversationLineInfo convLineInfo : sortedConvLineInfos) {
+            messageCount += convLineInfo.mTotalMessageCount;
+        }
+        return new ConversationInfoList(messageCount, sortedConvLineInfos);
+    }
+
     /**
      * Performs a query on the database.
+     * @param conversationId the conversation to query, or null to query all the conversations
+     * @return the conversations with unseen messages by id, latest first
      */
-    private static ConversationInfoList createConversationInfoList() {
+    private static LinkedHashMap<String, ConversationLineInfo> queryConversationLineInfos(
+            final String conversationId) {
         // Map key is conversation id. We use LinkedHashMap to ensure that entries are iterated in
         // the same order they were originally added. We scan unseen messages from newest to oldest,
         // so the corresponding conversations are added in that order, too.
-        final Map<String, ConversationLineInfo> convLineInfos = new LinkedHashMap<>();
-        int messageCount = 0;
+        final LinkedHashMap<String, ConversationLineInfo> convLineInfos = new LinkedHashMap<>();
 
         Cursor convMessageCursor = null;
         try {
             final Context context = Factory.get().getApplicationContext();
             final DatabaseWrapper db = DataModel.get().getDatabase();
 
-            convMessageCursor = db.rawQuery(
-                    ConversationMessageData.getNotificationQuerySql(),
-                    null);
+            if (conversationId == null) {
+                convMessageCursor = db.rawQuery(
+                        ConversationMessageData.getNotificationQuerySql(),
+                        null);
+            } else {
+                convMessageCursor = db.rawQuery(
+                        ConversationMessageData.getConversationNotificationQuerySql(),
+                        new String[] { conversationId });
+            }
 
             if (convMessageCursor != null && convMessageCursor.moveToFirst()) {
                 if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
@@ -962,7 +1082,6 @@ public abstract class MessageNotificationState extends NotificationState {
                                 authorFullName, authorFirstName, text,
                                 attachmentUri, attachmentType, isManualDownloadNeeded, messageId));
                     }
-                    messageCount++;
                     currConvInfo.mTotalMessageCount++;
                 } while (convMessageCursor.moveToNext());
             }
@@ -971,12 +1090,7 @@ public abstract class MessageNotificationState extends NotificationState {
                 convMessageCursor.close();
             }
         }
-        if (convLineInfos.isEmpty()) {
-            return null;
-        } else {
-            return new ConversationInfoList(messageCount,
-                    Lists.newLinkedList(convLineInfos.values()));
-        }
+        return convLineInfos;
     }
 
     /**
@@ -1045,8 +1159,19 @@ public abstract class MessageNotificationState extends NotificationState {
      * @return NotificationState for the notification created.
      */
     public static NotificationState getNotificationState() {
+        return getNotificationState(null /* changedConversationIds */);
+    }
+
+    /**
+     * Same as {@link #getNotificationState()}, but only queries the messages of the given
+     * conversations, reusing what is known of the other ones from the previous call.
+     * @param changedConversationIds the conversations whose unseen messages changed (messages were
+     *     received or seen) since the last call, or null to query all the conversations
+     */
+    public static NotificationState getNotificationState(
+            final Set<String> changedConversationIds) {
         MessageNotificationState state = null;
-        final ConversationInfoList convList = createConversationInfoList();
+        final ConversationInfoList convList = updateConversationInfoList(changedConversationIds);
 
         if (convList == null || convList.mConvInfos.size() == 0) {
             if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
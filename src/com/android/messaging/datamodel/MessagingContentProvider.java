@@ -21,16 +21,22 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 
 import com.android.messaging.BugleApplication;
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.action.ActionMetrics;
 import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.ConversationMessageData;
 import com.android.messaging.datamodel.data.MessageData;
@@ -53,6 +59,9 @@ import java.io.PrintWriter;
 public class MessagingContentProvider extends ContentProvider {
     private static final String TAG = LogUtil.BUGLE_TAG;
 
+    // Number of statements of the SQL profile to include in dumpsys
+    private static final int SQL_PROFILE_DUMP_COUNT = 20;
+
     @VisibleForTesting
     public static final String AUTHORITY =
             "com.android.messaging.datamodel.MessagingContentProvider";
@@ -72,6 +81,38 @@ public class MessagingContentProvider extends ContentProvider {
     public static final Uri CONVERSATION_MESSAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             MESSAGES_QUERY + "/conversation");
 
+    // Query parameters for loading a window of the newest messages of a conversation
+    private static final String MESSAGES_QUERY_PARAM_LIMIT = "limit";
+    private static final String MESSAGES_QUERY_PARAM_MIN_RECEIVED_TIMESTAMP =
+            "min_received_timestamp";
+    private static final String MESSAGES_QUERY_PARAM_MIN_MESSAGE_ID = "min_message_id";
+
+    /**
+     * Extra of conversation message window cursors holding the number of messages in the
+     * conversation that are older than the window.
+     */
+    public static final String EXTRA_OLDER_MESSAGE_COUNT = "older_message_count";
+
+    // Message search query
+    private static final String SEARCH_MESSAGES_QUERY = "search_messages";
+
+    public static final Uri SEARCH_MESSAGES_URI = Uri.parse(CONTENT_AUTHORITY +
+            SEARCH_MESSAGES_QUERY);
+
+    private static final String SEARCH_MESSAGES_QUERY_PARAM_QUERY = "q";
+
+    // The maximum number of search results returned
+    private static final int SEARCH_MESSAGES_LIMIT = 200;
+
+    public static class SearchMessagesQueryColumns implements BaseColumns {
+        public static final String CONVERSATION_ID = MessageColumns.CONVERSATION_ID;
+        public static final String CONVERSATION_NAME = "conversation_name";
+        public static final String RECEIVED_TIMESTAMP = MessageColumns.RECEIVED_TIMESTAMP;
+        public static final String SENDER_NAME = DatabaseHelper.MessageSearchColumns.SENDER_NAME;
+        // The matched part of the message text, with some context around it
+        public static final String SNIPPET = "snippet";
+    }
+
     // Conversation participants query
     private static final String PARTICIPANTS_QUERY = "participants";
 
@@ -103,6 +144,7 @@ public class MessagingContentProvider extends ContentProvider {
      * different tables at once.
      */
     public static void notifyEverythingChanged() {
+        MessageNotificationState.invalidateModel(null /* conversationId */);
         final Uri uri = Uri.parse(CONTENT_AUTHORITY);
         final Context context = Factory.get().getApplicationContext();
         final ContentResolver cr = context.getContentResolver();
@@ -125,17 +167,20 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyParticipantsChanged(final String conversationId) {
+        MessageNotificationState.invalidateModel(conversationId);
         final Uri uri = buildConversationParticipantsUri(conversationId);
         final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
         cr.notifyChange(uri, null);
     }
 
     public static void notifyAllMessagesChanged() {
+        MessageNotificationState.invalidateModel(null /* conversationId */);
         final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
         cr.notifyChange(CONVERSATION_MESSAGES_URI, null);
     }
 
     public static void notifyAllParticipantsChanged() {
+        MessageNotificationState.invalidateModel(null /* conversationId */);
         final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
         cr.notifyChange(CONVERSATION_PARTICIPANTS_URI, null);
     }
@@ -152,6 +197,7 @@ public class MessagingContentProvider extends ContentProvider {
     private static final int CONVERSATION_IMAGES_QUERY_CODE = 50;
     private static final int DRAFT_IMAGES_QUERY_CODE = 60;
     private static final int PARTICIPANTS_QUERY_CODE = 70;
+    private static final int SEARCH_MESSAGES_QUERY_CODE = 80;
 
     // TODO: Move to a better structured URI namespace.
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -167,6 +213,7 @@ public class MessagingContentProvider extends ContentProvider {
                 CONVERSATION_IMAGES_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, DRAFT_IMAGES_QUERY + "/*",
                 DRAFT_IMAGES_QUERY_CODE);
+        sURIMatcher.addURI(AUTHORITY, SEARCH_MESSAGES_QUERY, SEARCH_MESSAGES_QUERY_CODE);
     }
 
     /**
@@ -178,7 +225,31 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
+    /**
+     * Build a messages uri that only loads the newest {@code limit} messages of a conversation.
+     */
+    public static Uri buildConversationMessagesUri(final String conversationId,
+            final int limit) {
+        return buildConversationMessagesUri(conversationId).buildUpon()
+                .appendQueryParameter(MESSAGES_QUERY_PARAM_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Build a messages uri that loads all messages of a conversation from the given one, as
+     * identified by its received timestamp and id, to the newest.
+     */
+    public static Uri buildConversationMessagesUri(final String conversationId,
+            final long minReceivedTimestamp, final String minMessageId) {
+        return buildConversationMessagesUri(conversationId).buildUpon()
+                .appendQueryParameter(MESSAGES_QUERY_PARAM_MIN_RECEIVED_TIMESTAMP,
+                        String.valueOf(minReceivedTimestamp))
+                .appendQueryParameter(MESSAGES_QUERY_PARAM_MIN_MESSAGE_ID, minMessageId)
+                .build();
+    }
+
     public static void notifyMessagesChanged(final String conversationId) {
+        MessageNotificationState.invalidateModel(conversationId);
         final Uri uri = buildConversationMessagesUri(conversationId);
         final Context context = Factory.get().getApplicationContext();
         final ContentResolver cr = context.getContentResolver();
@@ -189,6 +260,16 @@ public class MessagingContentProvider extends ContentProvider {
         WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
     }
 
+    /**
+     * Build a uri that searches the text, subject and sender name of all messages for the words
+     * of the given query. Each word also matches words that it is a prefix of.
+     */
+    public static Uri buildSearchMessagesUri(final String query) {
+        return SEARCH_MESSAGES_URI.buildUpon()
+                .appendQueryParameter(SEARCH_MESSAGES_QUERY_PARAM_QUERY, query)
+                .build();
+    }
+
     /**
      * Build a conversation metadata uri from a conversation id.
      */
@@ -199,6 +280,7 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyConversationMetadataChanged(final String conversationId) {
+        MessageNotificationState.invalidateModel(conversationId);
         final Uri uri = buildConversationMetadataUri(conversationId);
         final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
         cr.notifyChange(uri, null);
@@ -350,6 +432,15 @@ public class MessagingContentProvider extends ContentProvider {
                     throw new IllegalArgumentException("Malformed URI " + uri);
                 }
                 break;
+            case SEARCH_MESSAGES_QUERY_CODE:
+                // Like the conversation messages query, this is executed as a raw query.
+                if (selection == null && selectionArgs == null && sortOrder == null) {
+                    return querySearchMessages(
+                            uri.getQueryParameter(SEARCH_MESSAGES_QUERY_PARAM_QUERY));
+                } else {
+                    throw new IllegalArgumentException(
+                            "Cannot set selection or sort order with this query");
+                }
             case DRAFT_IMAGES_QUERY_CODE:
                 queryBuilder.setTables(ConversationImagePartsView.getViewName());
                 if (uri.getPathSegments().size() == 2) {
@@ -376,13 +467,158 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     private Cursor queryConversationMessages(final String conversationId, final Uri notifyUri) {
-        final String[] queryArgs = { conversationId };
-        final Cursor cursor = getDatabaseWrapper().rawQuery(
-                ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
-        cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
+        final String limit = notifyUri.getQueryParameter(MESSAGES_QUERY_PARAM_LIMIT);
+        final String minMessageId =
+                notifyUri.getQueryParameter(MESSAGES_QUERY_PARAM_MIN_MESSAGE_ID);
+        if (limit == null && minMessageId == null) {
+            final String[] queryArgs = { conversationId };
+            final Cursor cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+            cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
+            return cursor;
+        }
+
+        final Cursor cursor;
+        if (minMessageId != null) {
+            final String minReceivedTimestamp =
+                    notifyUri.getQueryParameter(MESSAGES_QUERY_PARAM_MIN_RECEIVED_TIMESTAMP);
+            final String[] queryArgs =
+                    { conversationId, minReceivedTimestamp, minReceivedTimestamp, minMessageId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesPageQuerySql(
+                            true /* hasLowerBound */, -1 /* limit */), queryArgs);
+        } else {
+            final String[] queryArgs = { conversationId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesPageQuerySql(
+                            false /* hasLowerBound */, Integer.parseInt(limit)), queryArgs);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                buildConversationMessagesUri(conversationId));
+        return new MessagesWindowCursor(cursor, countOlderMessages(conversationId, cursor));
+    }
+
+    private Cursor querySearchMessages(final String query) {
+        final String matchQuery = getSearchMatchQuery(query);
+        final Cursor cursor;
+        if (matchQuery == null) {
+            cursor = new MatrixCursor(SEARCH_MESSAGES_PROJECTION);
+        } else {
+            cursor = getDatabaseWrapper().rawQuery(SEARCH_MESSAGES_QUERY_SQL,
+                    new String[] { matchQuery });
+        }
+        // Results change whenever the messages of any conversation change.
+        cursor.setNotificationUri(getContext().getContentResolver(), CONVERSATION_MESSAGES_URI);
         return cursor;
     }
 
+    /**
+     * Turns the words of a user-entered query into a full-text query that matches messages
+     * containing all of them, each as a prefix. Quoting every word keeps FTS operators out.
+     * @return the full-text query, or null if the query has no words
+     */
+    @VisibleForTesting
+    static String getSearchMatchQuery(final String query) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder matchQuery = new StringBuilder();
+        for (final String word : query.trim().split("\\s+")) {
+            final String term = word.replace("\"", "");
+            if (!term.isEmpty()) {
+                if (matchQuery.length() > 0) {
+                    matchQuery.append(' ');
+                }
+                matchQuery.append('"').append(term).append("\"*");
+            }
+        }
+        return matchQuery.length() > 0 ? matchQuery.toString() : null;
+    }
+
+    private static final String[] SEARCH_MESSAGES_PROJECTION = new String[] {
+            SearchMessagesQueryColumns._ID,
+            SearchMessagesQueryColumns.CONVERSATION_ID,
+            SearchMessagesQueryColumns.CONVERSATION_NAME,
+            SearchMessagesQueryColumns.RECEIVED_TIMESTAMP,
+            SearchMessagesQueryColumns.SENDER_NAME,
+            SearchMessagesQueryColumns.SNIPPET,
+    };
+
+    // Matches are returned newest first. Message ids can't be used for this, since sync inserts
+    // messages newest to oldest, so the matches are sorted by their received timestamp.
+    private static final String SEARCH_MESSAGES_QUERY_SQL = "SELECT "
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID
+            + " AS " + SearchMessagesQueryColumns._ID + ", "
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID
+            + " AS " + SearchMessagesQueryColumns.CONVERSATION_ID + ", "
+            + DatabaseHelper.CONVERSATIONS_TABLE + "." + ConversationColumns.NAME
+            + " AS " + SearchMessagesQueryColumns.CONVERSATION_NAME + ", "
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.RECEIVED_TIMESTAMP
+            + " AS " + SearchMessagesQueryColumns.RECEIVED_TIMESTAMP + ", "
+            + DatabaseHelper.MESSAGE_SEARCH_TABLE + "."
+            + DatabaseHelper.MessageSearchColumns.SENDER_NAME
+            + " AS " + SearchMessagesQueryColumns.SENDER_NAME + ", "
+            + "snippet(" + DatabaseHelper.MESSAGE_SEARCH_TABLE + ", '', '', '\u2026', -1, 10)"
+            + " AS " + SearchMessagesQueryColumns.SNIPPET
+            + " FROM " + DatabaseHelper.MESSAGE_SEARCH_TABLE
+            + " JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + "="
+            + DatabaseHelper.MESSAGE_SEARCH_TABLE + ".docid)"
+            + " JOIN " + DatabaseHelper.CONVERSATIONS_TABLE + " ON ("
+            + DatabaseHelper.CONVERSATIONS_TABLE + "." + ConversationColumns._ID + "="
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + ")"
+            + " WHERE " + DatabaseHelper.MESSAGE_SEARCH_TABLE + " MATCH ?"
+            // Exclude drafts
+            + " AND " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.STATUS + "<>"
+            + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " ORDER BY " + DatabaseHelper.MESSAGES_TABLE + "."
+            + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + " DESC"
+            + " LIMIT " + SEARCH_MESSAGES_LIMIT;
+
+    /**
+     * Counts the messages of the conversation that are older than the oldest one in the cursor,
+     * which is sorted newest first.
+     */
+    private int countOlderMessages(final String conversationId, final Cursor cursor) {
+        if (!cursor.moveToLast()) {
+            return 0;
+        }
+        final String oldestReceivedTimestamp = cursor.getString(
+                cursor.getColumnIndexOrThrow(MessageColumns.RECEIVED_TIMESTAMP));
+        final String oldestMessageId =
+                cursor.getString(cursor.getColumnIndexOrThrow(MessageColumns._ID));
+        cursor.moveToPosition(-1);
+        final String[] queryArgs = { conversationId, oldestReceivedTimestamp,
+                oldestReceivedTimestamp, oldestMessageId };
+        final Cursor countCursor = getDatabaseWrapper().rawQuery(
+                ConversationMessageData.getOlderMessageCountQuerySql(), queryArgs);
+        try {
+            return countCursor.moveToFirst() ? countCursor.getInt(0) : 0;
+        } finally {
+            countCursor.close();
+        }
+    }
+
+    /**
+     * A window of the messages of a conversation, which also reports how many older messages
+     * there are through its extras.
+     */
+    private static class MessagesWindowCursor extends CursorWrapper {
+        private final Bundle mExtras;
+
+        MessagesWindowCursor(final Cursor cursor, final int olderMessageCount) {
+            super(cursor);
+            mExtras = new Bundle();
+            mExtras.putInt(EXTRA_OLDER_MESSAGE_COUNT, olderMessageCount);
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+
     @Override
     public String getType(final Uri uri) {
         final StringBuilder sb = new
@@ -462,6 +698,8 @@ public class MessagingContentProvider extends ContentProvider {
             }
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        ActionMetrics.get().dump(writer);
+        SqlProfiler.get().dump(writer, SQL_PROFILE_DUMP_COUNT);
         // Now dump logs
         LogUtil.dump(writer);
     }
@@ -17,6 +17,7 @@
 package com.android.messaging.datamodel;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -32,6 +33,7 @@ import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsCo
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.datamodel.data.ParticipantData.ParticipantsQuery;
+import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.ContactUtil;
@@ -43,12 +45,15 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class for refreshing participant information based on matching contact. This updates
@@ -116,6 +121,7 @@ public class ParticipantRefresh {
      */
     public static class ContactContentObserver extends ContentObserver {
         private volatile boolean mContactChanged = false;
+        private final AtomicInteger mChangeCount = new AtomicInteger();
 
         public ContactContentObserver() {
             super(null);
@@ -128,6 +134,7 @@ public class ParticipantRefresh {
                 LogUtil.v(TAG, "Contacts changed");
             }
             mContactChanged = true;
+            mChangeCount.incrementAndGet();
         }
 
         public boolean getContactChanged() {
@@ -138,6 +145,14 @@ public class ParticipantRefresh {
             mContactChanged = false;
         }
 
+        /**
+         * @return the number of changes seen so far, which unlike {@link #getContactChanged} isn't
+         *     reset by the participant refresh, so that other caches can tell if they are stale
+         */
+        public int getChangeCount() {
+            return mChangeCount.get();
+        }
+
         public void initialize() {
             // TODO: Handle enterprise contacts post M once contacts provider supports it
             Factory.get().getApplicationContext().getContentResolver().registerContentObserver(
@@ -169,13 +184,21 @@ public class ParticipantRefresh {
     }
 
     private static boolean getNeedFullRefresh() {
-        final ContactContentObserver observer = Factory.get().getContactContentObserver();
+        final ContactContentObserver observer = getInitializedContactContentObserver();
         if (observer == null) {
             // If there is no observer (for unittest cases), we don't need to refresh participants.
             return false;
         }
+        return observer.getContactChanged();
+    }
 
-        if (!sObserverInitialized) {
+    /**
+     * @return the contact observer, registered for contact changes if it wasn't yet, or null if
+     *     there is none (for unittest cases)
+     */
+    public static ContactContentObserver getInitializedContactContentObserver() {
+        final ContactContentObserver observer = Factory.get().getContactContentObserver();
+        if (observer != null && !sObserverInitialized) {
             synchronized (sLock) {
                 if (!sObserverInitialized) {
                     observer.initialize();
@@ -183,8 +206,7 @@ public class ParticipantRefresh {
                 }
             }
         }
-
-        return observer.getContactChanged();
+        return observer;
     }
 
     private static void resetNeedFullRefresh() {
@@ -258,31 +280,15 @@ public class ParticipantRefresh {
         }
 
         final DatabaseWrapper db = DataModel.get().getDatabase();
+        final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
         Cursor cursor = null;
-        boolean selfUpdated = false;
         try {
             cursor = db.query(DatabaseHelper.PARTICIPANTS_TABLE,
                     ParticipantsQuery.PROJECTION, selection, selectionArgs, null, null, null);
 
             if (cursor != null) {
                 while (cursor.moveToNext()) {
-                    try {
-                        final ParticipantData participantData =
-                                ParticipantData.getFromCursor(cursor);
-                        if (refreshParticipant(db, participantData)) {
-                            if (participantData.isSelf()) {
-                                selfUpdated = true;
-                            }
-                            updateParticipant(db, participantData);
-                            final String id = participantData.getId();
-                            changedParticipants.add(id);
-                        }
-                    } catch (final Exception exception) {
-                        // Failure to update one participant shouldn't cancel the entire refresh.
-                        // Log the failure so we know what's going on and resume the loop.
-                        LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
-                                "update participant", exception);
-                    }
+                    participants.add(ParticipantData.getFromCursor(cursor));
                 }
             }
         } finally {
@@ -291,6 +297,42 @@ public class ParticipantRefresh {
             }
         }
 
+        // A full refresh looks at every participant, so look up their contacts in batches
+        // rather than with one contacts provider query per participant.
+        final ContactLookupBatch contactLookupBatch = (refreshMode == REFRESH_MODE_FULL) ?
+                ContactLookupBatch.lookup(db.getContext(), participants) : null;
+
+        final ArrayList<ParticipantData> updatedParticipants = new ArrayList<ParticipantData>();
+        boolean selfUpdated = false;
+        for (final ParticipantData participantData : participants) {
+            try {
+                if (refreshParticipant(db, participantData, contactLookupBatch)) {
+                    if (participantData.isSelf()) {
+                        selfUpdated = true;
+                    }
+                    updatedParticipants.add(participantData);
+                }
+            } catch (final Exception exception) {
+                // Failure to update one participant shouldn't cancel the entire refresh.
+                // Log the failure so we know what's going on and resume the loop.
+                LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
+                        "update participant", exception);
+            }
+        }
+
+        if (updatedParticipants.size() > 0) {
+            db.beginTransaction();
+            try {
+                for (final ParticipantData participantData : updatedParticipants) {
+                    updateParticipant(db, participantData);
+                    changedParticipants.add(participantData.getId());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "Number of participants refreshed:" + changedParticipants.size());
         }
@@ -416,6 +458,11 @@ public class ParticipantRefresh {
      */
     public static boolean refreshParticipant(final DatabaseWrapper db,
             final ParticipantData participantData) {
+        return refreshParticipant(db, participantData, null /* contactLookupBatch */);
+    }
+
+    private static boolean refreshParticipant(final DatabaseWrapper db,
+            final ParticipantData participantData, final ContactLookupBatch contactLookupBatch) {
         boolean updated = false;
 
         if (participantData.isSelf()) {
@@ -431,7 +478,7 @@ public class ParticipantRefresh {
             // Fall-through and try to update based on Contacts data
         }
 
-        updated |= refreshFromContacts(db, participantData);
+        updated |= refreshFromContacts(db, participantData, contactLookupBatch);
         return updated;
     }
 
@@ -489,7 +536,7 @@ public class ParticipantRefresh {
     }
 
     private static boolean refreshFromContacts(final DatabaseWrapper db,
-            final ParticipantData participantData) {
+            final ParticipantData participantData, final ContactLookupBatch contactLookupBatch) {
         final String normalizedDestination = participantData.getNormalizedDestination();
         final long currentContactId = participantData.getContactId();
         final String currentDisplayName = participantData.getFullName();
@@ -497,13 +544,8 @@ public class ParticipantRefresh {
         final String currentPhotoUri = participantData.getProfilePhotoUri();
         final String currentContactDestination = participantData.getContactDestination();
 
-        Cursor matchingContactCursor = null;
-        long matchingContactId = -1;
-        String matchingDisplayName = null;
+        ContactMatch matchingContact = null;
         String matchingFirstName = null;
-        String matchingPhotoUri = null;
-        String matchingLookupKey = null;
-        String matchingDestination = null;
         boolean updated = false;
 
         if (TextUtils.isEmpty(normalizedDestination)) {
@@ -514,9 +556,13 @@ public class ParticipantRefresh {
         }
 
         try {
-            matchingContactCursor = ContactUtil.lookupDestination(db.getContext(),
-                    normalizedDestination).performSynchronousQuery();
-            if (matchingContactCursor == null || matchingContactCursor.getCount() == 0) {
+            List<ContactMatch> matchingContacts = (contactLookupBatch != null) ?
+                    contactLookupBatch.getMatchingContacts(normalizedDestination) : null;
+            if (matchingContacts == null) {
+                // Not covered by the batch lookup (if any), so look the destination up by itself.
+                matchingContacts = lookupMatchingContacts(db.getContext(), normalizedDestination);
+            }
+            if (matchingContacts.isEmpty()) {
                 // If there is no match, mark the participant as contact not found.
                 if (currentContactId != ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND) {
                     participantData.setContactId(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND);
@@ -529,42 +575,42 @@ public class ParticipantRefresh {
                 return updated;
             }
 
-            while (matchingContactCursor.moveToNext()) {
-                final long contactId = matchingContactCursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+            for (final ContactMatch contact : matchingContacts) {
                 // Pick either the first contact or the contact with same id as previous matched
                 // contact id.
-                if (matchingContactId == -1 || currentContactId == contactId) {
-                    matchingContactId = contactId;
-                    matchingDisplayName = matchingContactCursor.getString(
-                            ContactUtil.INDEX_DISPLAY_NAME);
-                    matchingFirstName = ContactUtil.lookupFirstName(db.getContext(), contactId);
-                    matchingPhotoUri = matchingContactCursor.getString(
-                            ContactUtil.INDEX_PHOTO_URI);
-                    matchingLookupKey = matchingContactCursor.getString(
-                            ContactUtil.INDEX_LOOKUP_KEY);
-                    matchingDestination = matchingContactCursor.getString(
-                            ContactUtil.INDEX_PHONE_EMAIL);
+                if (matchingContact == null || currentContactId == contact.contactId) {
+                    matchingContact = contact;
                 }
 
                 // There is no need to try other contacts if the current contactId was not filled...
                 if (currentContactId < 0
                         // or we found the matching contact id
-                        || currentContactId == contactId) {
+                        || currentContactId == contact.contactId) {
                     break;
                 }
             }
+
+            if (contactLookupBatch != null &&
+                    contactLookupBatch.hasFirstName(matchingContact.contactId)) {
+                matchingFirstName = contactLookupBatch.getFirstName(matchingContact.contactId);
+            } else {
+                matchingFirstName =
+                        ContactUtil.lookupFirstName(db.getContext(), matchingContact.contactId);
+            }
         } catch (final Exception exception) {
             // It's possible for contact query to fail and we don't want that to crash our app.
             // However, we need to at least log the exception so we know something was wrong.
             LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "Participant refresh: failed to refresh " +
                     "participant. exception=" + exception);
             return false;
-        } finally {
-            if (matchingContactCursor != null) {
-                matchingContactCursor.close();
-            }
         }
 
+        final long matchingContactId = matchingContact.contactId;
+        final String matchingDisplayName = matchingContact.displayName;
+        final String matchingPhotoUri = matchingContact.photoUri;
+        final String matchingLookupKey = matchingContact.lookupKey;
+        final String matchingDestination = matchingContact.destination;
+
         // Update participant only if something changed.
         final boolean isContactIdChanged = (matchingContactId != currentContactId);
         final boolean isDisplayNameChanged =
@@ -593,7 +639,205 @@ public class ParticipantRefresh {
     }
 
     /**
-     * Update participant with matching contact's contactId, displayName and photoUri.
+     * Looks up the contacts matching one destination.
+     * @return the matching contacts, possibly empty
+     */
+    private static List<ContactMatch> lookupMatchingContacts(final Context context,
+            final String normalizedDestination) {
+        final ArrayList<ContactMatch> matchingContacts = new ArrayList<ContactMatch>();
+        Cursor matchingContactCursor = null;
+        try {
+            matchingContactCursor = ContactUtil.lookupDestination(context,
+                    normalizedDestination).performSynchronousQuery();
+            if (matchingContactCursor != null) {
+                while (matchingContactCursor.moveToNext()) {
+                    matchingContacts.add(new ContactMatch(matchingContactCursor));
+                }
+            }
+        } finally {
+            if (matchingContactCursor != null) {
+                matchingContactCursor.close();
+            }
+        }
+        return matchingContacts;
+    }
+
+    /**
+     * A contact matching a participant's destination, as read from a phone or email lookup.
+     */
+    private static class ContactMatch {
+        final long contactId;
+        final String displayName;
+        final String photoUri;
+        final String lookupKey;
+        final String destination;
+
+        ContactMatch(final Cursor cursor) {
+            contactId = cursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+            displayName = cursor.getString(ContactUtil.INDEX_DISPLAY_NAME);
+            photoUri = cursor.getString(ContactUtil.INDEX_PHOTO_URI);
+            lookupKey = cursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
+            destination = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+        }
+    }
+
+    /**
+     * The contacts matching the phone destinations of many participants, and their first names,
+     * looked up with a few chunked queries instead of a few queries per participant.
+     *
+     * The batch lookup matches normalized numbers exactly, whereas a lookup of a single
+     * destination matches loosely and also covers enterprise contacts. So a destination the batch
+     * finds no contact for is left to a lookup of its own, as are destinations whose batch query
+     * failed.
+     */
+    private static class ContactLookupBatch {
+        // Maximum number of values bound to a single IN (...) clause, well below SQLite's limit
+        // on the number of arguments of a statement.
+        private static final int MAX_VALUES_PER_QUERY = 500;
+
+        private final HashMap<String, List<ContactMatch>> mMatchingContacts =
+                new HashMap<String, List<ContactMatch>>();
+        private final HashMap<Long, String> mFirstNames = new HashMap<Long, String>();
+
+        static ContactLookupBatch lookup(final Context context,
+                final List<ParticipantData> participants) {
+            final ContactLookupBatch batch = new ContactLookupBatch();
+            final LinkedHashSet<String> destinations = new LinkedHashSet<String>();
+            for (final ParticipantData participant : participants) {
+                final String destination = participant.getNormalizedDestination();
+                if (participant.isSelf() || TextUtils.isEmpty(destination) ||
+                        MmsSmsUtils.isEmailAddress(destination)) {
+                    continue;
+                }
+                destinations.add(destination);
+            }
+
+            final ArrayList<String> chunk = new ArrayList<String>();
+            for (final String destination : destinations) {
+                chunk.add(destination);
+                if (chunk.size() == MAX_VALUES_PER_QUERY) {
+                    batch.lookupPhones(context, chunk);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                batch.lookupPhones(context, chunk);
+            }
+
+            final LinkedHashSet<Long> contactIds = new LinkedHashSet<Long>();
+            for (final List<ContactMatch> matchingContacts : batch.mMatchingContacts.values()) {
+                for (final ContactMatch contact : matchingContacts) {
+                    if (!ContactUtil.isEnterpriseContactId(contact.contactId)) {
+                        contactIds.add(contact.contactId);
+                    }
+                }
+            }
+            final ArrayList<Long> contactIdChunk = new ArrayList<Long>();
+            for (final Long contactId : contactIds) {
+                contactIdChunk.add(contactId);
+                if (contactIdChunk.size() == MAX_VALUES_PER_QUERY) {
+                    batch.lookupFirstNames(context, contactIdChunk);
+                    contactIdChunk.clear();
+                }
+            }
+            if (!contactIdChunk.isEmpty()) {
+                batch.lookupFirstNames(context, contactIdChunk);
+            }
+
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "ParticipantRefresh: batch lookup resolved "
+                        + batch.mMatchingContacts.size() + " of " + destinations.size()
+                        + " destinations");
+            }
+            return batch;
+        }
+
+        private void lookupPhones(final Context context, final List<String> destinations) {
+            final HashMap<String, List<ContactMatch>> matchingContacts =
+                    new HashMap<String, List<ContactMatch>>();
+            Cursor cursor = null;
+            try {
+                cursor = ContactUtil.lookupPhones(context, destinations)
+                        .performSynchronousQuery();
+                if (cursor == null) {
+                    // Leave these destinations to lookups of their own.
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    final String destination =
+                            cursor.getString(ContactUtil.INDEX_BATCH_LOOKUP_NORMALIZED_NUMBER);
+                    List<ContactMatch> contacts = matchingContacts.get(destination);
+                    if (contacts == null) {
+                        contacts = new ArrayList<ContactMatch>();
+                        matchingContacts.put(destination, contacts);
+                    }
+                    contacts.add(new ContactMatch(cursor));
+                }
+            } catch (final Exception exception) {
+                LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: batch phone " +
+                        "lookup failed. exception=" + exception);
+                return;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            // Destinations without an exact match are left to lookups of their own.
+            mMatchingContacts.putAll(matchingContacts);
+        }
+
+        private void lookupFirstNames(final Context context, final List<Long> contactIds) {
+            final HashMap<Long, String> firstNames = new HashMap<Long, String>();
+            Cursor cursor = null;
+            try {
+                cursor = ContactUtil.lookupFirstNames(context, contactIds)
+                        .performSynchronousQuery();
+                if (cursor == null) {
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(ContactUtil.INDEX_FIRST_NAME_CONTACT_ID);
+                    if (!firstNames.containsKey(contactId)) {
+                        firstNames.put(contactId,
+                                cursor.getString(ContactUtil.INDEX_FIRST_NAME_GIVEN_NAME));
+                    }
+                }
+            } catch (final Exception exception) {
+                LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: batch first name " +
+                        "lookup failed. exception=" + exception);
+                return;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            for (final Long contactId : contactIds) {
+                // Contacts without a structured name have no first name.
+                mFirstNames.put(contactId, firstNames.get(contactId));
+            }
+        }
+
+        /**
+         * @return the contacts matching a destination, or null if it wasn't covered by the batch
+         */
+        List<ContactMatch> getMatchingContacts(final String normalizedDestination) {
+            return mMatchingContacts.get(normalizedDestination);
+        }
+
+        boolean hasFirstName(final long contactId) {
+            return mFirstNames.containsKey(contactId);
+        }
+
+        String getFirstName(final long contactId) {
+            return mFirstNames.get(contactId);
+        }
+    }
+
+    /**
+     * Update participant with matching contact's contactId, displayName and photoUri. Must be
+     * called in a transaction.
      */
     private static void updateParticipant(final DatabaseWrapper db,
             final ParticipantData participantData) {
@@ -613,14 +857,8 @@ public class ParticipantRefresh {
         values.put(ParticipantColumns.CONTACT_DESTINATION, participantData.getContactDestination());
         values.put(ParticipantColumns.SEND_DESTINATION, participantData.getSendDestination());
 
-        db.beginTransaction();
-        try {
-            db.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
-                    new String[] { participantData.getId() });
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-        }
+        db.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
+                new String[] { participantData.getId() });
     }
 
     /**
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.os.Looper;
+
+import com.android.messaging.util.Assert.RunsOnAnyThread;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates the latency and row counts of the SQL statements run through
+ * {@link DatabaseWrapper}, per statement with its literal values stripped, so that the statement
+ * shapes costing the most time can be found. The query plan of each statement is checked for full
+ * table scans the first time it is seen. Enabled through
+ * {@link com.android.messaging.util.BugleGservicesKeys#SQL_PROFILER_ENABLED}.
+ */
+public class SqlProfiler {
+    // Max number of distinct statements to track; the rest are counted together
+    private static final int MAX_STATEMENTS = 500;
+    @VisibleForTesting
+    static final String OTHER_STATEMENTS = "<other statements>";
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL =
+            Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private static final Pattern IN_LIST =
+            Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern EXPLAINABLE_STATEMENT =
+            Pattern.compile("(?is)\\s*(?:SELECT|UPDATE|DELETE|WITH)\\b.*");
+
+    /**
+     * Stats of one normalized statement
+     */
+    @VisibleForTesting
+    static class StatementStats {
+        final String mSql;
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalMillis = new AtomicLong();
+        final AtomicLong mMaxMillis = new AtomicLong();
+        final AtomicLong mTotalRows = new AtomicLong();
+        final AtomicLong mMainThreadCount = new AtomicLong();
+        // Tables read without an index according to the query plan, or null if none (or unknown)
+        volatile String mFullScans;
+
+        StatementStats(final String sql) {
+            mSql = sql;
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getTotalMillis() {
+            return mTotalMillis.get();
+        }
+
+        long getTotalRows() {
+            return mTotalRows.get();
+        }
+
+        String getFullScans() {
+            return mFullScans;
+        }
+    }
+
+    private static final SqlProfiler sInstance = new SqlProfiler();
+
+    private final ConcurrentHashMap<String, StatementStats> mStats =
+            new ConcurrentHashMap<String, StatementStats>();
+
+    public static SqlProfiler get() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SqlProfiler() {
+    }
+
+    /**
+     * Records a run of a statement.
+     * @param sql the statement, possibly with literal values in it
+     * @param durationMillis how long the statement took
+     * @param rows number of rows returned or changed, or -1 if unknown
+     * @return true if this statement hadn't been seen before, in which case the caller should
+     *     check its query plan with {@link #onQueryPlan}
+     */
+    @RunsOnAnyThread
+    boolean record(final String sql, final long durationMillis, final long rows) {
+        final String key = normalize(sql);
+        StatementStats stats = mStats.get(key);
+        boolean firstSight = false;
+        if (stats == null) {
+            if (mStats.size() < MAX_STATEMENTS) {
+                final StatementStats newStats = new StatementStats(key);
+                stats = mStats.putIfAbsent(key, newStats);
+                if (stats == null) {
+                    stats = newStats;
+                    firstSight = true;
+                }
+            } else {
+                stats = mStats.get(OTHER_STATEMENTS);
+                if (stats == null) {
+                    final StatementStats newStats = new StatementStats(OTHER_STATEMENTS);
+                    stats = mStats.putIfAbsent(OTHER_STATEMENTS, newStats);
+                    if (stats == null) {
+                        stats = newStats;
+                    }
+                }
+            }
+        }
+
+        stats.mCount.incrementAndGet();
+        stats.mTotalMillis.addAndGet(durationMillis);
+        long max = stats.mMaxMillis.get();
+        while (durationMillis > max && !stats.mMaxMillis.compareAndSet(max, durationMillis)) {
+            max = stats.mMaxMillis.get();
+        }
+        if (rows > 0) {
+            stats.mTotalRows.addAndGet(rows);
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            stats.mMainThreadCount.incrementAndGet();
+        }
+        return firstSight;
+    }
+
+    /**
+     * Records the query plan of a statement, as the detail lines of EXPLAIN QUERY PLAN.
+     */
+    @RunsOnAnyThread
+    void onQueryPlan(final String sql, final String queryPlan) {
+        final StatementStats stats = mStats.get(normalize(sql));
+        if (stats != null && queryPlan != null) {
+            stats.mFullScans = findFullScans(queryPlan);
+        }
+    }
+
+    /**
+     * @return whether EXPLAIN QUERY PLAN can be run on the statement
+     */
+    static boolean isExplainable(final String sql) {
+        return EXPLAINABLE_STATEMENT.matcher(sql).matches();
+    }
+
+    @VisibleForTesting
+    StatementStats getStats(final String sql) {
+        return mStats.get(normalize(sql));
+    }
+
+    /**
+     * Strips the literal values out of a statement so that runs with different values are
+     * aggregated together.
+     */
+    @VisibleForTesting
+    static String normalize(final String sql) {
+        String result = STRING_LITERAL.matcher(sql).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        result = IN_LIST.matcher(result).replaceAll("IN (?)");
+        return WHITESPACE.matcher(result).replaceAll(" ").trim();
+    }
+
+    /**
+     * @return the tables scanned without an index in the query plan, or null if there are none
+     */
+    @VisibleForTesting
+    static String findFullScans(final String queryPlan) {
+        StringBuilder fullScans = null;
+        for (final String line : queryPlan.split("\n")) {
+            // e.g. "SCAN TABLE messages" (or "SCAN messages" in newer SQLite versions), as
+            // opposed to "SCAN TABLE messages USING INDEX ..." or "SEARCH ..."
+            final String detail = line.trim();
+            if (!detail.startsWith("SCAN ") || detail.contains(" INDEX")) {
+                continue;
+            }
+            String table = detail.substring("SCAN ".length());
+            if (table.startsWith("TABLE ")) {
+                table = table.substring("TABLE ".length());
+            }
+            if (table.startsWith("SUBQUERY") || table.startsWith("CONSTANT ROW")) {
+                continue;
+            }
+            if (fullScans == null) {
+                fullScans = new StringBuilder(table);
+            } else {
+                fullScans.append(", ").append(table);
+            }
+        }
+        return fullScans == null ? null : fullScans.toString();
+    }
+
+    /**
+     * Prints the statements that took the most time in total, with their run count, total,
+     * mean and max time in ms, rows, runs on the main thread and full table scans.
+     */
+    @RunsOnAnyThread
+    public void dump(final PrintWriter writer, final int maxStatements) {
+        final ArrayList<StatementStats> allStats = new ArrayList<StatementStats>();
+        for (final Map.Entry<String, StatementStats> entry : mStats.entrySet()) {
+            allStats.add(entry.getValue());
+        }
+        if (allStats.isEmpty()) {
+            return;
+        }
+        Collections.sort(allStats, new Comparator<StatementStats>() {
+            @Override
+            public int compare(final StatementStats lhs, final StatementStats rhs) {
+                return Long.compare(rhs.getTotalMillis(), lhs.getTotalMillis());
+            }
+        });
+        writer.println("SQL profile (top " + maxStatements + " statements by total time):");
+        for (int i = 0; i < Math.min(maxStatements, allStats.size()); i++) {
+            final StatementStats stats = allStats.get(i);
+            final long count = stats.getCount();
+            writer.println(String.format(Locale.US,
+                    "  count=%d total=%dms mean=%dms max=%dms rows=%d main=%d%s: %s",
+                    count, stats.getTotalMillis(),
+                    count == 0 ? 0 : stats.getTotalMillis() / count,
+                    stats.mMaxMillis.get(), stats.getTotalRows(), stats.mMainThreadCount.get(),
+                    stats.mFullScans == null ? "" : " FULL SCAN of " + stats.mFullScans,
+                    stats.mSql));
+        }
+    }
+}
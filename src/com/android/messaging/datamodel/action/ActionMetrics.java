@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import com.android.messaging.util.Assert.RunsOnAnyThread;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects timings of the actions run by {@link ActionServiceImpl} and
+ * {@link BackgroundWorkerService}, per Action subclass, to tell time spent waiting in the job
+ * queues from time spent doing the work. Recording never blocks: the per action stats are looked
+ * up in a concurrent map and the histograms are made of atomic counters.
+ */
+public class ActionMetrics {
+    /**
+     * The timed stages of an action
+     */
+    public enum Stage {
+        // From queueing an action to the ActionService to the start of executeAction
+        QUEUE_WAIT("queue"),
+        EXECUTE("execute"),
+        // From queueing background work to the start of doBackgroundWork
+        BACKGROUND_QUEUE_WAIT("bg queue"),
+        BACKGROUND_WORK("bg work"),
+        // From the end of background work to the start of processing its response or failure
+        RESPONSE_QUEUE_WAIT("resp queue"),
+        PROCESS_RESPONSE("process");
+
+        private final String mLabel;
+
+        Stage(final String label) {
+            mLabel = label;
+        }
+    }
+
+    /**
+     * Histogram of durations in power of 2 buckets: bucket 0 counts durations under 1 ms,
+     * bucket i durations in [2^(i-1), 2^i) ms, and the last bucket everything longer.
+     */
+    @VisibleForTesting
+    static class Histogram {
+        @VisibleForTesting
+        static final int BUCKET_COUNT = 18; // Last bucket starts at 65 s
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalMillis = new AtomicLong();
+        private final AtomicLong mMaxMillis = new AtomicLong();
+
+        void record(final long durationMillis) {
+            final long duration = Math.max(0, durationMillis);
+            final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(duration));
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotalMillis.addAndGet(duration);
+            long max = mMaxMillis.get();
+            while (duration > max && !mMaxMillis.compareAndSet(max, duration)) {
+                max = mMaxMillis.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getMaxMillis() {
+            return mMaxMillis.get();
+        }
+
+        long getMeanMillis() {
+            final long count = mCount.get();
+            return count == 0 ? 0 : mTotalMillis.get() / count;
+        }
+
+        /**
+         * @return an upper bound of the given percentile (0-100) of the recorded durations
+         */
+        long getPercentileMillis(final int percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (count * percentile + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, mMaxMillis.get());
+                }
+            }
+            return mMaxMillis.get();
+        }
+    }
+
+    /**
+     * Stats of one Action subclass
+     */
+    private static class ActionStats {
+        final Histogram[] mHistograms = new Histogram[Stage.values().length];
+        final AtomicLong mRetryCount = new AtomicLong();
+        final AtomicLong mFailureCount = new AtomicLong();
+
+        ActionStats() {
+            for (int i = 0; i < mHistograms.length; i++) {
+                mHistograms[i] = new Histogram();
+            }
+        }
+    }
+
+    private static final ActionMetrics sInstance = new ActionMetrics();
+
+    private final ConcurrentHashMap<String, ActionStats> mStats =
+            new ConcurrentHashMap<String, ActionStats>();
+
+    public static ActionMetrics get() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ActionMetrics() {
+    }
+
+    /**
+     * Records how long a stage of an action took
+     */
+    @RunsOnAnyThread
+    void record(final Action action, final Stage stage, final long durationMillis) {
+        getStats(action).mHistograms[stage.ordinal()].record(durationMillis);
+    }
+
+    /**
+     * Records that the background work of an action is being retried
+     */
+    @RunsOnAnyThread
+    void recordRetry(final Action action) {
+        getStats(action).mRetryCount.incrementAndGet();
+    }
+
+    /**
+     * Records that the background work of an action failed
+     */
+    @RunsOnAnyThread
+    void recordFailure(final Action action) {
+        getStats(action).mFailureCount.incrementAndGet();
+    }
+
+    @VisibleForTesting
+    Histogram getHistogram(final Class<? extends Action> actionClass, final Stage stage) {
+        final ActionStats stats = mStats.get(actionClass.getSimpleName());
+        return stats == null ? null : stats.mHistograms[stage.ordinal()];
+    }
+
+    private ActionStats getStats(final Action action) {
+        final String name = action.getClass().getSimpleName();
+        ActionStats stats = mStats.get(name);
+        if (stats == null) {
+            final ActionStats newStats = new ActionStats();
+            stats = mStats.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Prints the stats of each action that ran in this process: count, mean, p50, p90, p99 and
+     * max of each stage in ms, plus background work retries and failures.
+     */
+    @RunsOnAnyThread
+    public void dump(final PrintWriter writer) {
+        writer.println("Action metrics (count mean/p50/p90/p99/max ms):");
+        final ArrayList<String> names = new ArrayList<String>(mStats.keySet());
+        Collections.sort(names);
+        for (final String name : names) {
+            final ActionStats stats = mStats.get(name);
+            final StringBuilder line = new StringBuilder("  ").append(name).append(':');
+            for (final Stage stage : Stage.values()) {
+                final Histogram histogram = stats.mHistograms[stage.ordinal()];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                line.append(' ').append(stage.mLabel).append('=').append(histogram.getCount())
+                        .append(' ').append(histogram.getMeanMillis())
+                        .append('/').append(histogram.getPercentileMillis(50))
+                        .append('/').append(histogram.getPercentileMillis(90))
+                        .append('/').append(histogram.getPercentileMillis(99))
+                        .append('/').append(histogram.getMaxMillis()).append(';');
+            }
+            final long retries = stats.mRetryCount.get();
+            final long failures = stats.mFailureCount.get();
+            if (retries > 0 || failures > 0) {
+                line.append(" retries=").append(retries).append(" failures=").append(failures);
+            }
+            writer.println(line);
+        }
+    }
+}
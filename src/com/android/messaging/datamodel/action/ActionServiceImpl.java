@@ -28,8 +28,10 @@ import androidx.core.app.JobIntentService;
 
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.action.ActionMetrics.Stage;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.LoggingTimer;
+import com.android.messaging.util.Trace;
 import com.google.common.annotations.VisibleForTesting;
 
 /**
@@ -131,6 +133,8 @@ public class ActionServiceImpl extends JobIntentService {
     protected static final String EXTRA_WORKER_UPDATE = "worker_update";
     @VisibleForTesting
     protected static final String BUNDLE_ACTION = "bundle_action";
+    // Time (elapsed realtime) the intent was queued at, to measure the time spent in the queue
+    private static final String EXTRA_QUEUED_TIME = "queued_time";
 
     private BackgroundWorker mBackgroundWorker;
 
@@ -225,6 +229,7 @@ public class ActionServiceImpl extends JobIntentService {
         final Context context = Factory.get().getApplicationContext();
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
         intent.setClass(context, ActionServiceImpl.class);
+        intent.putExtra(EXTRA_QUEUED_TIME, SystemClock.elapsedRealtime());
         enqueueWork(context, intent);
     }
 
@@ -243,6 +248,7 @@ public class ActionServiceImpl extends JobIntentService {
             return;
         }
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
+        final long queuedTime = intent.getLongExtra(EXTRA_QUEUED_TIME, 0);
 
         Action action;
         final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
@@ -250,12 +256,14 @@ public class ActionServiceImpl extends JobIntentService {
         switch(opcode) {
             case OP_START_ACTION: {
                 action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+                recordQueueWait(action, Stage.QUEUE_WAIT, queuedTime);
                 executeAction(action);
                 break;
             }
 
             case OP_RECEIVE_BACKGROUND_RESPONSE: {
                 action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+                recordQueueWait(action, Stage.RESPONSE_QUEUE_WAIT, queuedTime);
                 final Bundle response = intent.getBundleExtra(EXTRA_WORKER_RESPONSE);
                 processBackgroundResponse(action, response);
                 break;
@@ -263,6 +271,7 @@ public class ActionServiceImpl extends JobIntentService {
 
             case OP_RECEIVE_BACKGROUND_FAILURE: {
                 action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+                recordQueueWait(action, Stage.RESPONSE_QUEUE_WAIT, queuedTime);
                 processBackgroundFailure(action);
                 break;
             }
@@ -283,9 +292,18 @@ public class ActionServiceImpl extends JobIntentService {
 
         final LoggingTimer timer = createLoggingTimer(action, "#executeAction");
         timer.start();
+        final long startTime = SystemClock.elapsedRealtime();
+        Trace.beginSection(action.getClass().getSimpleName() + "#executeAction");
+
+        final Object result;
+        try {
+            result = action.executeAction();
+        } finally {
+            Trace.endSection();
+        }
 
-        final Object result = action.executeAction();
-
+        ActionMetrics.get().record(action, Stage.EXECUTE,
+                SystemClock.elapsedRealtime() - startTime);
         timer.stopAndLog();
 
         action.markEndExecute(result);
@@ -297,9 +315,17 @@ public class ActionServiceImpl extends JobIntentService {
     private void processBackgroundResponse(final Action action, final Bundle response) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundResponse");
         timer.start();
+        final long startTime = SystemClock.elapsedRealtime();
+        Trace.beginSection(action.getClass().getSimpleName() + "#processBackgroundResponse");
 
-        action.processBackgroundWorkResponse(response);
+        try {
+            action.processBackgroundWorkResponse(response);
+        } finally {
+            Trace.endSection();
+        }
 
+        ActionMetrics.get().record(action, Stage.PROCESS_RESPONSE,
+                SystemClock.elapsedRealtime() - startTime);
         timer.stopAndLog();
     }
 
@@ -309,12 +335,27 @@ public class ActionServiceImpl extends JobIntentService {
     private void processBackgroundFailure(final Action action) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundFailure");
         timer.start();
+        final long startTime = SystemClock.elapsedRealtime();
+        Trace.beginSection(action.getClass().getSimpleName() + "#processBackgroundFailure");
 
-        action.processBackgroundWorkFailure();
+        try {
+            action.processBackgroundWorkFailure();
+        } finally {
+            Trace.endSection();
+        }
 
+        ActionMetrics.get().record(action, Stage.PROCESS_RESPONSE,
+                SystemClock.elapsedRealtime() - startTime);
         timer.stopAndLog();
     }
 
+    private static void recordQueueWait(final Action action, final Stage stage,
+            final long queuedTime) {
+        if (queuedTime > 0) {
+            ActionMetrics.get().record(action, stage, SystemClock.elapsedRealtime() - queuedTime);
+        }
+    }
+
     private static LoggingTimer createLoggingTimer(
             final Action action, final String methodName) {
         return new LoggingTimer(TAG, action.getClass().getSimpleName() + methodName,
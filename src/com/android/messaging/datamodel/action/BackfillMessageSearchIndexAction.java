@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.android.messaging.datamodel.BugleDatabaseOperations;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Action used to add the messages that predate the message search table to it after a database
+ * upgrade. Each run indexes one batch of messages, newest first, and then queues another run
+ * until all messages are indexed, so that other actions don't have to wait for it. The id below
+ * which the next batch starts is kept in the prefs, so the backfill resumes where it left off
+ * after a restart.
+ */
+public class BackfillMessageSearchIndexAction extends Action implements Parcelable {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // Number of messages to index per transaction
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * Starts indexing the remaining messages for search, if there are any.
+     */
+    public static void backfillMessageSearchIndexIfNeeded() {
+        if (BuglePrefs.getApplicationPrefs().getBoolean(
+                BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_PENDING,
+                BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_PENDING_DEFAULT)) {
+            final BackfillMessageSearchIndexAction action = new BackfillMessageSearchIndexAction();
+            action.start();
+        }
+    }
+
+    private BackfillMessageSearchIndexAction() {
+    }
+
+    @Override
+    protected Object executeAction() {
+        final BuglePrefs prefs = BuglePrefs.getApplicationPrefs();
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        final long beforeMessageId = prefs.getLong(
+                BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID,
+                BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID_DEFAULT);
+        long nextBeforeMessageId;
+        db.beginTransaction();
+        try {
+            nextBeforeMessageId = BugleDatabaseOperations.indexMessagesForSearchInTransaction(db,
+                    beforeMessageId, BATCH_SIZE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (nextBeforeMessageId < 0) {
+            prefs.remove(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID);
+            prefs.putBoolean(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_PENDING, false);
+            LogUtil.i(TAG, "BackfillMessageSearchIndexAction: done");
+        } else {
+            prefs.putLong(BuglePrefsKeys.MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID,
+                    nextBeforeMessageId);
+            backfillMessageSearchIndexIfNeeded();
+        }
+        return null;
+    }
+
+    private BackfillMessageSearchIndexAction(final Parcel in) {
+        super(in);
+    }
+
+    public static final Parcelable.Creator<BackfillMessageSearchIndexAction> CREATOR
+            = new Parcelable.Creator<BackfillMessageSearchIndexAction>() {
+        @Override
+        public BackfillMessageSearchIndexAction createFromParcel(final Parcel in) {
+            return new BackfillMessageSearchIndexAction(in);
+        }
+
+        @Override
+        public BackfillMessageSearchIndexAction[] newArray(final int size) {
+            return new BackfillMessageSearchIndexAction[size];
+        }
+    };
+
+    @Override
+    public void writeToParcel(final Parcel parcel, final int flags) {
+        writeActionToParcel(parcel, flags);
+    }
+}
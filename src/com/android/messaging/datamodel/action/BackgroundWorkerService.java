@@ -19,15 +19,18 @@ package com.android.messaging.datamodel.action;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import androidx.core.app.JobIntentService;
 
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DataModelException;
+import com.android.messaging.datamodel.action.ActionMetrics.Stage;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.LoggingTimer;
+import com.android.messaging.util.Trace;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.List;
@@ -73,6 +76,8 @@ public class BackgroundWorkerService extends JobIntentService {
     protected static final String EXTRA_ACTION = "action";
     @VisibleForTesting
     protected static final String EXTRA_ATTEMPT = "retry_attempt";
+    // Time (elapsed realtime) the intent was queued at, to measure the time spent in the queue
+    private static final String EXTRA_QUEUED_TIME = "queued_time";
 
     /**
      * Queue action intent to the BackgroundWorkerService.
@@ -93,6 +98,7 @@ public class BackgroundWorkerService extends JobIntentService {
 
         intent.setClass(context, BackgroundWorkerService.class);
         intent.putExtra(EXTRA_OP_CODE, opcode);
+        intent.putExtra(EXTRA_QUEUED_TIME, SystemClock.elapsedRealtime());
 
         enqueueWork(context, intent);
     }
@@ -114,6 +120,11 @@ public class BackgroundWorkerService extends JobIntentService {
             case OP_PROCESS_REQUEST: {
                 final Action action = intent.getParcelableExtra(EXTRA_ACTION);
                 final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
+                final long queuedTime = intent.getLongExtra(EXTRA_QUEUED_TIME, 0);
+                if (queuedTime > 0) {
+                    ActionMetrics.get().record(action, Stage.BACKGROUND_QUEUE_WAIT,
+                            SystemClock.elapsedRealtime() - queuedTime);
+                }
                 doBackgroundWork(action, attempt);
                 break;
             }
@@ -130,12 +141,20 @@ public class BackgroundWorkerService extends JobIntentService {
     private void doBackgroundWork(final Action action, final int attempt) {
         action.markBackgroundWorkStarting();
         Bundle response = null;
+        final long startTime = SystemClock.elapsedRealtime();
         try {
             final LoggingTimer timer = new LoggingTimer(
                     TAG, action.getClass().getSimpleName() + "#doBackgroundWork");
             timer.start();
-
-            response = action.doBackgroundWork();
+            Trace.beginSection(action.getClass().getSimpleName() + "#doBackgroundWork");
+
+            try {
+                response = action.doBackgroundWork();
+            } finally {
+                Trace.endSection();
+                ActionMetrics.get().record(action, Stage.BACKGROUND_WORK,
+                        SystemClock.elapsedRealtime() - startTime);
+            }
 
             timer.stopAndLog();
             action.markBackgroundCompletionQueued();
@@ -149,9 +168,11 @@ public class BackgroundWorkerService extends JobIntentService {
                 Assert.fail("Unexpected error in background worker - abort");
             }
             if (retry) {
+                ActionMetrics.get().recordRetry(action);
                 action.markBackgroundWorkQueued();
                 startServiceWithAction(action, attempt + 1);
             } else {
+                ActionMetrics.get().recordFailure(action);
                 action.markBackgroundCompletionQueued();
                 mHost.handleFailureFromBackgroundWorker(action, exception);
             }
@@ -30,11 +30,14 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 public class DumpDatabaseAction extends Action implements Parcelable {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
     public static final String DUMP_NAME = "db_copy.db";
+    public static final String METRICS_DUMP_NAME = "action_metrics.txt";
     private static final int BUFFER_SIZE = 16384;
 
     /**
@@ -97,9 +100,32 @@ public class DumpDatabaseAction extends Action implements Parcelable {
                         ", copy size: " + totalBytes);
             }
         }
+        dumpActionMetrics();
         return null;
     }
 
+    /**
+     * Write the action metrics next to the database copy, to go with it in bug reports
+     */
+    private static void dumpActionMetrics() {
+        final File outFile = DebugUtils.getDebugFile(METRICS_DUMP_NAME, true);
+        if (outFile == null) {
+            return;
+        }
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(outFile));
+            ActionMetrics.get().dump(writer);
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "Exception writing the action metrics", e);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            DebugUtils.ensureReadable(outFile);
+        }
+    }
+
     private DumpDatabaseAction(final Parcel in) {
         super(in);
     }
@@ -50,8 +50,8 @@ public class FixupMessageStatusOnStartupAction extends Action implements Parcela
         int sendFailedCnt = 0;
         try {
             // For both sending and downloading messages, let's assume they failed.
-            // For MMS sent/downloaded via platform, the sent/downloaded pending intent
-            // may come back. That will update the message. User may see the message
+            // For SMS sent and MMS sent/downloaded via platform, the sent/downloaded pending
+            // intent may come back. That will update the message. User may see the message
             // in wrong status within a short window if that happens. But this should
             // rarely happen. This is a simple solution to situations like app gets killed
             // while the pending intent is still in the fly. Alternatively, we could
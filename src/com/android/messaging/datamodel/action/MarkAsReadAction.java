@@ -85,7 +85,7 @@ public class MarkAsReadAction extends Action implements Parcelable {
         }
         // After marking messages as read, update the notifications. This will
         // clear the now stale notifications.
-        BugleNotifications.update(false/*silent*/, BugleNotifications.UPDATE_ALL);
+        BugleNotifications.updateSeen(conversationId);
         return null;
     }
 
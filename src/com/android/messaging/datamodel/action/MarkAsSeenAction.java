@@ -98,7 +98,11 @@ public class MarkAsSeenAction extends Action implements Parcelable {
         }
         // After marking messages as seen, update the notifications. This will
         // clear the now stale notifications.
-        BugleNotifications.update(false/*silent*/, BugleNotifications.UPDATE_ALL);
+        if (hasSpecificConversation) {
+            BugleNotifications.updateSeen(conversationId);
+        } else {
+            BugleNotifications.update(false/*silent*/, BugleNotifications.UPDATE_ALL);
+        }
         return null;
     }
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.provider.Telephony.Mms;
+import androidx.collection.LongSparseArray;
+
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.MmsUtils;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.SafeAsyncTask;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Finds the senders of the MMS messages of a sync batch. The sender of a one-to-one message is
+ * the other participant of its thread, which is already in the thread info cache. The sender of
+ * a group message has to be read from the telephony addr table, which can only be queried one
+ * message at a time, so these lookups are spread over the thread pool and run while the caller
+ * does other work for the batch (e.g. loading the MMS parts).
+ */
+class MmsSenderResolver {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Max number of thread pool tasks looking up group message senders at the same time
+    private static final int MAX_PARALLEL_LOOKUPS = 4;
+
+    private final ThreadInfoCache mCache;
+    private final ArrayList<FutureTask<Void>> mLookups = new ArrayList<FutureTask<Void>>();
+
+    MmsSenderResolver(final ThreadInfoCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets the senders of the one-to-one messages and starts looking up those of the group
+     * messages. Call {@link #finish} before using the senders.
+     */
+    void start(final LongSparseArray<MmsMessage> mmses) {
+        final ArrayList<MmsMessage> groupMmses = new ArrayList<MmsMessage>();
+        for (int i = 0; i < mmses.size(); i++) {
+            final MmsMessage mms = mmses.valueAt(i);
+            if (mms.mType != Mms.MESSAGE_BOX_INBOX) {
+                // We only need to find out sender phone number for received message
+                mms.setSender(null);
+                continue;
+            }
+            final List<String> recipients = mCache.getThreadRecipients(mms.mThreadId);
+            Assert.notNull(recipients);
+            Assert.isTrue(recipients.size() > 0);
+            if (recipients.size() == 1) {
+                if (recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
+                    LogUtil.w(TAG, "MmsSenderResolver: MMS message " + mms.mUri + " has unknown "
+                            + "sender (thread id = " + mms.mThreadId + ")");
+                }
+                setSender(mms, recipients.get(0));
+            } else {
+                groupMmses.add(mms);
+            }
+        }
+        if (groupMmses.isEmpty()) {
+            return;
+        }
+
+        final int lookupSize = (groupMmses.size() + MAX_PARALLEL_LOOKUPS - 1)
+                / MAX_PARALLEL_LOOKUPS;
+        for (final List<MmsMessage> lookupMmses : Lists.partition(groupMmses, lookupSize)) {
+            final FutureTask<Void> lookup = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    for (final MmsMessage mms : lookupMmses) {
+                        setSender(mms, MmsUtils.getMmsSender(null /* recipients */, mms.mUri));
+                    }
+                }
+            }, null);
+            SafeAsyncTask.executeOnThreadPool(lookup);
+            mLookups.add(lookup);
+        }
+    }
+
+    /**
+     * Waits for the lookups started by {@link #start} to complete
+     */
+    void finish() {
+        try {
+            for (final FutureTask<Void> lookup : mLookups) {
+                Uninterruptibles.getUninterruptibly(lookup);
+            }
+        } catch (final ExecutionException e) {
+            // Surface query failures to the caller as if it had made the query itself
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            mLookups.clear();
+        }
+    }
+
+    private static void setSender(final MmsMessage mms, final String senderId) {
+        if (senderId == null) {
+            LogUtil.w(TAG, "MmsSenderResolver: Could not find sender of incoming MMS message "
+                    + mms.getUri() + "; using 'unknown sender' instead");
+            mms.setSender(ParticipantData.getUnknownSenderDestination());
+        } else {
+            mms.setSender(senderId);
+        }
+    }
+}
@@ -51,6 +51,7 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -245,9 +246,11 @@ public class ProcessDownloadedMmsAction extends Action {
             if (resultCode == Activity.RESULT_OK) {
                 final Uri contentUri = actionParameters.getParcelable(KEY_CONTENT_URI);
                 final File downloadedFile = MmsFileProvider.getFile(contentUri);
-                byte[] downloadedData = null;
+                ByteBuffer downloadedData = null;
                 try {
-                    downloadedData = Files.toByteArray(downloadedFile);
+                    // Map the pdu instead of reading it onto the heap: the parsed parts are
+                    // views of the mapping, which stays valid once the file is deleted.
+                    downloadedData = Files.map(downloadedFile);
                 } catch (final FileNotFoundException e) {
                     LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
                             + downloadedFile.getAbsolutePath());
@@ -269,7 +272,9 @@ public class ProcessDownloadedMmsAction extends Action {
                     final RetrieveConf retrieveConf =
                             MmsSender.parseRetrieveConf(downloadedData, subId);
                     if (MmsUtils.isDumpMmsEnabled()) {
-                        MmsUtils.dumpPdu(downloadedData, retrieveConf);
+                        final byte[] rawPdu = new byte[downloadedData.remaining()];
+                        downloadedData.duplicate().get(rawPdu);
+                        MmsUtils.dumpPdu(rawPdu, retrieveConf);
                     }
                     if (retrieveConf != null) {
                         // Insert the downloaded MMS into telephony
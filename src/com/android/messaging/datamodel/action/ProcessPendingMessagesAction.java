@@ -42,14 +42,18 @@ import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Action used to lookup any messages in the pending send/download state and either fail them or
- * retry their action based on subscriptions. This action only initiates one retry at a time for
- * both sending/downloading. Further retries should be triggered by successful sending/downloading
- * of a message, network status change or exponential backoff timer.
+ * retry their action based on subscriptions. This action keeps up to
+ * {@link BugleGservicesKeys#MAX_MESSAGES_SENDING_PER_SUBSCRIPTION} messages sending per
+ * subscription, no more than one per conversation so that each conversation is still sent in
+ * order, and initiates one download at a time. Further retries should be triggered by successful
+ * sending/downloading of a message, network status change or exponential backoff timer.
  */
 public class ProcessPendingMessagesAction extends Action implements Parcelable {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
@@ -226,8 +230,9 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             return false;
         }
 
-        final String toSendMessageId = findNextMessageToSend(db, now, selfId);
-        if (toSendMessageId != null) {
+        final List<String> toSendMessageIds =
+                findNextMessagesToSend(db, now, selfId, getMaxMessagesSending());
+        if (!toSendMessageIds.isEmpty()) {
             return true;
         } else {
             final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
@@ -262,12 +267,14 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             return false;
         }
 
-        // Will queue no more than one message to send plus one message to download
-        // This keeps outgoing messages "in order" but allow downloads to happen even if sending
-        // gets blocked until messages time out. Manual resend bumps messages to head of queue.
-        final String toSendMessageId = findNextMessageToSend(db, now, selfId);
+        // Will queue enough messages to send to fill the sending window plus one message to
+        // download. Sending one message per conversation at a time keeps the outgoing messages of
+        // each conversation "in order" but allows downloads to happen even if sending gets
+        // blocked until messages time out. Manual resend bumps messages to head of queue.
+        final List<String> toSendMessageIds =
+                findNextMessagesToSend(db, now, selfId, getMaxMessagesSending());
         final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
-        if (toSendMessageId != null) {
+        for (final String toSendMessageId : toSendMessageIds) {
             LogUtil.i(TAG, "ProcessPendingMessagesAction: Queueing message " + toSendMessageId
                     + " for sending");
             // This could queue nothing
@@ -288,7 +295,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                 succeeded = false;
             }
         }
-        if (toSendMessageId == null && toDownloadMessageId == null) {
+        if (toSendMessageIds.isEmpty() && toDownloadMessageId == null) {
             LogUtil.i(TAG, "ProcessPendingMessagesAction: No messages to send or download");
         }
         return succeeded;
@@ -316,31 +323,37 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         return null;
     }
 
-    private static String findNextMessageToSend(final DatabaseWrapper db, final long now,
-            final String selfId) {
-        String toSendMessageId = null;
+    private static int getMaxMessagesSending() {
+        return Math.max(1, BugleGservices.get().getInt(
+                BugleGservicesKeys.MAX_MESSAGES_SENDING_PER_SUBSCRIPTION,
+                BugleGservicesKeys.MAX_MESSAGES_SENDING_PER_SUBSCRIPTION_DEFAULT));
+    }
+
+    /**
+     * Looks up the outgoing messages of a subscription with a single query, marking the ones
+     * which can no longer be sent as failed, and picks the oldest ones to send next. Picks no
+     * message from a conversation which already has one sending, and no more messages than
+     * needed to have maxSending messages sending.
+     *
+     * @return the ids of the messages to send, oldest first
+     */
+    private static List<String> findNextMessagesToSend(final DatabaseWrapper db, final long now,
+            final String selfId, final int maxSending) {
+        final List<String> toSendMessageIds = new ArrayList<String>();
         Cursor cursor = null;
         int sendingCnt = 0;
         int pendingCnt = 0;
         int failedCnt = 0;
         db.beginTransaction();
         try {
-            // First check to see if we have any messages already sending
-            sendingCnt = (int) db.queryNumEntries(DatabaseHelper.MESSAGES_TABLE,
-                    DatabaseHelper.MessageColumns.STATUS + " IN (?, ?) AND "
-                    + DatabaseHelper.MessageColumns.SELF_PARTICIPANT_ID + " =? ",
-                    new String[] {
-                        Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_SENDING),
-                        Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_RESENDING),
-                        selfId}
-                    );
-
-            // Look for messages we could send
+            // Look for messages already sending and messages we could send
             cursor = db.query(DatabaseHelper.MESSAGES_TABLE,
                     MessageData.getProjection(),
-                    DatabaseHelper.MessageColumns.STATUS + " IN (?, ?) AND "
+                    DatabaseHelper.MessageColumns.STATUS + " IN (?, ?, ?, ?) AND "
                     + DatabaseHelper.MessageColumns.SELF_PARTICIPANT_ID + " =? ",
                     new String[] {
+                        Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_SENDING),
+                        Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_RESENDING),
                         Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND),
                         Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_AWAITING_RETRY),
                         selfId
@@ -348,7 +361,23 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     null,
                     null,
                     DatabaseHelper.MessageColumns.RECEIVED_TIMESTAMP + " ASC");
-            pendingCnt = cursor.getCount();
+
+            // Conversations with a message sending can't send another one yet
+            final Set<String> sendingConversationIds = new HashSet<String>();
+            final List<MessageData> pendingMessages = new ArrayList<MessageData>();
+            while (cursor.moveToNext()) {
+                final MessageData message = new MessageData();
+                message.bind(cursor);
+                final int status = message.getStatus();
+                if (status == MessageData.BUGLE_STATUS_OUTGOING_SENDING
+                        || status == MessageData.BUGLE_STATUS_OUTGOING_RESENDING) {
+                    sendingCnt++;
+                    sendingConversationIds.add(message.getConversationId());
+                } else {
+                    pendingMessages.add(message);
+                }
+            }
+            pendingCnt = pendingMessages.size();
 
             final ContentValues values = new ContentValues();
             values.put(DatabaseHelper.MessageColumns.STATUS,
@@ -363,10 +392,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     isActiveSubscription = false;
                 }
             }
-            while (cursor.moveToNext()) {
-                final MessageData message = new MessageData();
-                message.bind(cursor);
-
+            for (final MessageData message : pendingMessages) {
                 // Mark this message as failed if the message's self is inactive or the message is
                 // outside of resend window
                 if (!isActiveSubscription || !message.getInResendWindow(now)) {
@@ -375,13 +401,12 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     // Mark message as failed
                     BugleDatabaseOperations.updateMessageRow(db, message.getMessageId(), values);
                     MessagingContentProvider.notifyMessagesChanged(message.getConversationId());
-                } else {
-                    // If no messages currently sending
-                    if (sendingCnt == 0) {
-                        // Send this message
-                        toSendMessageId = message.getMessageId();
-                    }
+                } else if (sendingCnt + toSendMessageIds.size() >= maxSending) {
+                    // Sending window is full
                     break;
+                } else if (sendingConversationIds.add(message.getConversationId())) {
+                    // Send this message, later messages of its conversation wait for it
+                    toSendMessageIds.add(message.getMessageId());
                 }
             }
             db.setTransactionSuccessful();
@@ -396,10 +421,11 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             LogUtil.d(TAG, "ProcessPendingMessagesAction: "
                     + sendingCnt + " messages already sending, "
                     + pendingCnt + " messages to send, "
-                    + failedCnt + " failed messages");
+                    + failedCnt + " failed messages, "
+                    + toSendMessageIds.size() + " messages queued");
         }
 
-        return toSendMessageId;
+        return toSendMessageIds;
     }
 
     private static String findNextMessageToDownload(final DatabaseWrapper db, final long now,
@@ -96,6 +96,19 @@ public class ProcessSentMessageAction extends Action {
         action.start();
     }
 
+    // This is called when the sent status of an SMS comes back with no send in progress waiting
+    // for it, e.g. because the process was restarted since the message was sent
+    public static void processSmsSent(final int resultCode, final Uri messageUri,
+            final int subId, final Bundle extras) {
+        final String messageId = extras.getString(SendMessageAction.EXTRA_MESSAGE_ID);
+        if (messageId == null) {
+            return;
+        }
+        processMessageSentFastFailed(messageId, messageUri, null /* updatedMessageUri */, subId,
+                true /* isSms */, MmsUtils.getSmsSendStatus(resultCode),
+                MessageData.RAW_TELEPHONY_STATUS_UNDEFINED, resultCode);
+    }
+
     public static void processMessageSentFastFailed(final String messageId,
             final Uri messageUri, final Uri updatedMessageUri, final int subId, final boolean isSms,
             final int status, final int rawStatus, final int resultCode) {
@@ -210,9 +210,26 @@ public class SendMessageAction extends Action implements Parcelable {
             final String messageText = message.getMessageText();
             final String smsServiceCenter = actionParameters.getString(KEY_SMS_SERVICE_CENTER);
             final boolean deliveryReportRequired = MmsUtils.isDeliveryReportRequired(subId);
-
-            status = MmsUtils.sendSmsMessage(recipient, messageText, messageUri, subId,
-                    smsServiceCenter, deliveryReportRequired);
+            final Uri smsMessageUri = messageUri;
+            // Lets the status be processed even if it comes back after the process was restarted
+            final Bundle extras = new Bundle();
+            extras.putString(EXTRA_MESSAGE_ID, messageId);
+
+            // Don't hold the worker thread while the message is being sent, the status is
+            // processed when it comes back
+            MmsUtils.sendSmsMessage(recipient, messageText, messageUri, subId,
+                    smsServiceCenter, deliveryReportRequired, extras,
+                    new MmsUtils.SmsSendCallback() {
+                        @Override
+                        public void onSmsSent(final int status) {
+                            ProcessSentMessageAction.processMessageSentFastFailed(messageId,
+                                    smsMessageUri, null /* updatedMessageUri */, subId,
+                                    true /* isSms */, status,
+                                    MessageData.RAW_TELEPHONY_STATUS_UNDEFINED,
+                                    MessageData.UNKNOWN_RESULT_CODE);
+                        }
+                    });
+            return null;
         } else {
             final Context context = Factory.get().getApplicationContext();
             final ArrayList<String> recipients =
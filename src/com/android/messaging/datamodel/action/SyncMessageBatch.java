@@ -372,6 +372,10 @@ class SyncMessageBatch {
                     column,
                     MmsUtils.getSqlInOperand(count));
             final String[] batchSelectionArgs = Arrays.copyOfRange(ids, start, end);
+            if (DatabaseHelper.MESSAGES_TABLE.equals(table)) {
+                BugleDatabaseOperations.evictMessagePartsFromDiskCache(db, batchSelection,
+                        batchSelectionArgs);
+            }
             final int deleted = db.delete(
                     table,
                     batchSelection,
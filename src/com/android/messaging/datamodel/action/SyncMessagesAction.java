@@ -32,7 +32,6 @@ import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
-import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.mmslib.SqliteWrapper;
 import com.android.messaging.sms.DatabaseMessages;
 import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
@@ -49,7 +48,6 @@ import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 
 /**
@@ -314,10 +312,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
                         + remoteTotal + ")");
             }
 
-            // Batch loading the parts of the MMS messages in this batch
-            loadMmsParts(mmsToAdd);
-            // Lookup senders for incoming mms messages
-            setMmsSenders(mmsToAdd, cache);
+            // Batch loading the parts and senders of the MMS messages in this batch
+            loadMmsPartsAndSenders(mmsToAdd, cache);
         } catch (final SQLiteException e) {
             LogUtil.e(TAG, "SyncMessagesAction: Database exception", e);
             // Let's abort
@@ -403,13 +399,12 @@ public class SyncMessagesAction extends Action implements Parcelable {
                 final int messagesUpdated = smsToAdd.size() + mmsToAdd.size()
                         + messagesToDelete.size();
 
-                // Perform local database changes in one transaction
+                // Perform local database changes in transactions of limited size
                 long txnTimeMillis = 0;
                 if (messagesUpdated > 0) {
                     final long startTimeMillis = SystemClock.elapsedRealtime();
-                    final SyncMessageBatch batch = new SyncMessageBatch(smsToAdd, mmsToAdd,
-                            messagesToDelete, syncManager.getThreadInfoCache());
-                    batch.updateLocalDatabase();
+                    updateLocalDatabase(smsToAdd, mmsToAdd, messagesToDelete,
+                            syncManager.getThreadInfoCache());
                     final long endTimeMillis = SystemClock.elapsedRealtime();
                     txnTimeMillis = endTimeMillis - startTimeMillis;
 
@@ -524,10 +519,68 @@ public class SyncMessagesAction extends Action implements Parcelable {
                         * smsSyncSubsequentBatchTimeLimitMillis);
     }
 
+    /**
+     * Write the changes of a sync batch to the local database, in transactions of at most
+     * {@link BugleGservicesKeys#SMS_SYNC_TRANSACTION_SIZE_MAX} changes each so that a large batch
+     * doesn't hold the database lock for its whole duration. All messages are added before any
+     * are deleted, as in a single transaction, so that a conversation whose messages are replaced
+     * is never deleted as empty in between.
+     */
+    private static void updateLocalDatabase(final ArrayList<SmsMessage> smsToAdd,
+            final ArrayList<MmsMessage> mmsToAdd,
+            final ArrayList<LocalDatabaseMessage> messagesToDelete,
+            final ThreadInfoCache cache) {
+        final int maxTransactionSize = BugleGservices.get().getInt(
+                BugleGservicesKeys.SMS_SYNC_TRANSACTION_SIZE_MAX,
+                BugleGservicesKeys.SMS_SYNC_TRANSACTION_SIZE_MAX_DEFAULT);
+        final int messagesUpdated = smsToAdd.size() + mmsToAdd.size() + messagesToDelete.size();
+        if (maxTransactionSize <= 0 || messagesUpdated <= maxTransactionSize) {
+            new SyncMessageBatch(smsToAdd, mmsToAdd, messagesToDelete, cache)
+                    .updateLocalDatabase();
+            return;
+        }
+
+        int sms = 0;
+        int mms = 0;
+        int deleted = 0;
+        while (sms < smsToAdd.size() || mms < mmsToAdd.size()
+                || deleted < messagesToDelete.size()) {
+            int remaining = maxTransactionSize;
+            final int smsEnd = Math.min(smsToAdd.size(), sms + remaining);
+            remaining -= smsEnd - sms;
+            final int mmsEnd = Math.min(mmsToAdd.size(), mms + remaining);
+            remaining -= mmsEnd - mms;
+            // Only start on the deletes in the transaction with the last adds
+            final int deletedEnd = (mmsEnd < mmsToAdd.size()) ? deleted
+                    : Math.min(messagesToDelete.size(), deleted + remaining);
+
+            new SyncMessageBatch(new ArrayList<SmsMessage>(smsToAdd.subList(sms, smsEnd)),
+                    new ArrayList<MmsMessage>(mmsToAdd.subList(mms, mmsEnd)),
+                    new ArrayList<LocalDatabaseMessage>(
+                            messagesToDelete.subList(deleted, deletedEnd)),
+                    cache).updateLocalDatabase();
+            sms = smsEnd;
+            mms = mmsEnd;
+            deleted = deletedEnd;
+        }
+    }
+
+    /**
+     * Batch loading MMS parts and senders for the messages in current batch. Senders are looked
+     * up in the background while the parts are loaded.
+     */
+    private static void loadMmsPartsAndSenders(final LongSparseArray<MmsMessage> mmses,
+            final ThreadInfoCache cache) {
+        final MmsSenderResolver senderResolver = new MmsSenderResolver(cache);
+        senderResolver.start(mmses);
+        loadMmsParts(mmses);
+        senderResolver.finish();
+    }
+
     /**
      * Batch loading MMS parts for the messages in current batch
      */
-    private void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
+    private static void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
         final Context context = Factory.get().getApplicationContext();
         final int totalIds = mmses.size();
         for (int start = 0; start < totalIds; start += MmsUtils.MAX_IDS_PER_QUERY) {
@@ -572,47 +625,6 @@ public class SyncMessagesAction extends Action implements Parcelable {
         }
     }
 
-    /**
-     * Batch loading MMS sender for the messages in current batch
-     */
-    private void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
-            final ThreadInfoCache cache) {
-        // Store all the MMS messages
-        for (int i = 0; i < mmses.size(); i++) {
-            final MmsMessage mms = mmses.valueAt(i);
-
-            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
-            String senderId = null;
-            if (!isOutgoing) {
-                // We only need to find out sender phone number for received message
-                senderId = getMmsSender(mms, cache);
-                if (senderId == null) {
-                    LogUtil.w(TAG, "SyncMessagesAction: Could not find sender of incoming MMS "
-                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
-                    senderId = ParticipantData.getUnknownSenderDestination();
-                }
-            }
-            mms.setSender(senderId);
-        }
-    }
-
-    /**
-     * Find out the sender of an MMS message
-     */
-    private String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
-        final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
-        Assert.notNull(recipients);
-        Assert.isTrue(recipients.size() > 0);
-
-        if (recipients.size() == 1
-                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
-            LogUtil.w(TAG, "SyncMessagesAction: MMS message " + mms.mUri + " has unknown sender "
-                    + "(thread id = " + mms.mThreadId + ")");
-        }
-
-        return MmsUtils.getMmsSender(recipients, mms.mUri);
-    }
-
     private SyncMessagesAction(final Parcel in) {
         super(in);
     }
@@ -31,6 +31,7 @@ import com.android.common.contacts.DataUsageStatUpdater;
 import com.android.messaging.Factory;
 import com.android.messaging.R;
 import com.android.messaging.datamodel.BoundCursorLoader;
+import com.android.messaging.datamodel.ConversationMessagesCursorLoader;
 import com.android.messaging.datamodel.BugleNotifications;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
@@ -69,6 +70,10 @@ public class ConversationData extends BindableData {
     private static final long LAST_MESSAGE_TIMESTAMP_NaN = -1;
     private static final int MESSAGE_COUNT_NaN = -1;
 
+    // The number of messages loaded when the conversation is opened, and each time the user
+    // scrolls up to the oldest loaded message.
+    private static final int MESSAGES_PAGE_SIZE = 100;
+
     /**
      * Takes a conversation id and a list of message ids and computes the positions
      * for each message.
@@ -254,10 +259,14 @@ public class ConversationData extends BindableData {
             final String bindingId = args.getString(BINDING_ID);
             // Check if data still bound to the requesting ui element
             if (isBound(bindingId)) {
-                final Uri uri =
-                        MessagingContentProvider.buildConversationMessagesUri(mConversationId);
-                loader = new BoundCursorLoader(bindingId, mContext, uri,
-                        ConversationMessageData.getProjection(), null, null, null);
+                // Start out with the newest page of messages. Once older pages are requested,
+                // load everything from the oldest requested message on.
+                final Uri uri = mMinMessageId == null ?
+                        MessagingContentProvider.buildConversationMessagesUri(mConversationId,
+                                MESSAGES_PAGE_SIZE) :
+                        MessagingContentProvider.buildConversationMessagesUri(mConversationId,
+                                mMinReceivedTimestamp, mMinMessageId);
+                loader = new ConversationMessagesCursorLoader(bindingId, mContext, uri);
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
             } else {
@@ -303,9 +312,18 @@ public class ConversationData extends BindableData {
                     } else {
                         mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                     }
+                    mOlderMessageCount = rawData.getExtras().getInt(
+                            MessagingContentProvider.EXTRA_OLDER_MESSAGE_COUNT, 0);
+                    final ConversationMessageData oldestMessage = getOldestMessage(data);
+                    mOldestMessageId = oldestMessage != null ?
+                            oldestMessage.getMessageId() : null;
+                    mOldestMessageTimestamp = oldestMessage != null ?
+                            oldestMessage.getReceivedTimeStamp() : LAST_MESSAGE_TIMESTAMP_NaN;
                 } else {
                     mMessageCount = MESSAGE_COUNT_NaN;
+                    mOlderMessageCount = 0;
                 }
+                mLoadingOlderMessages = false;
 
                 mListeners.onConversationMessagesCursorUpdated(ConversationData.this, data,
                         newMessage, isSync);
@@ -325,6 +343,8 @@ public class ConversationData extends BindableData {
                         false);
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
+                mOlderMessageCount = 0;
+                mOldestMessageId = null;
             } else {
                 LogUtil.w(TAG, "Messages loader reset after unbinding mConversationId = " +
                         mConversationId);
@@ -343,6 +363,17 @@ public class ConversationData extends BindableData {
             }
             return null;
         }
+
+        private ConversationMessageData getOldestMessage(final Cursor cursor) {
+            final int position = cursor.getPosition();
+            if (cursor.moveToFirst()) {
+                final ConversationMessageData messageData = new ConversationMessageData();
+                messageData.bind(cursor);
+                cursor.moveToPosition(position);
+                return messageData;
+            }
+            return null;
+        }
     }
 
     /**
@@ -465,6 +496,15 @@ public class ConversationData extends BindableData {
     private long mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
     private int mMessageCount = MESSAGE_COUNT_NaN;
     private String mLastMessageId;
+    // Key of the oldest message to load, once the user has scrolled past the newest page.
+    private long mMinReceivedTimestamp;
+    private String mMinMessageId;
+    // Key of the oldest message in the current messages cursor.
+    private long mOldestMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
+    private String mOldestMessageId;
+    // The number of messages that are older than the ones in the current messages cursor.
+    private int mOlderMessageCount;
+    private boolean mLoadingOlderMessages;
 
     public ConversationData(final Context context, final ConversationDataListener listener,
             final String conversationId) {
@@ -539,6 +579,71 @@ public class ConversationData extends BindableData {
         mLoaderManager.initLoader(SELF_PARTICIPANT_LOADER, args, mSelfParticipantLoaderCallbacks);
     }
 
+    /**
+     * @return the number of messages in the conversation that are older than the ones in the
+     *         messages cursor, and that {@link #loadOlderMessages} can page in
+     */
+    public int getOlderMessageCount() {
+        return mOlderMessageCount;
+    }
+
+    /**
+     * Extends the messages cursor with the next page of older messages, if there are any and
+     * they aren't being loaded already. The listeners are notified through
+     * {@link ConversationDataListener#onConversationMessagesCursorUpdated} once they are loaded;
+     * since the newest message stays the same, the update looks like a message sync.
+     */
+    @RunsOnMainThread
+    public void loadOlderMessages(final BindingBase<ConversationData> binding) {
+        Assert.isMainThread();
+        Assert.isTrue(binding.getData() == this);
+        if (mLoadingOlderMessages || mOlderMessageCount <= 0 || mOldestMessageId == null ||
+                mLoaderManager == null) {
+            return;
+        }
+        mLoadingOlderMessages = true;
+        final String bindingId = binding.getBindingId();
+        final String[] queryArgs = { mConversationId, String.valueOf(mOldestMessageTimestamp),
+                String.valueOf(mOldestMessageTimestamp), mOldestMessageId };
+        new SafeAsyncTask<Void, Void, String[]>() {
+            @Override
+            protected String[] doInBackgroundTimed(final Void... params) {
+                // Find the oldest message of the next page by walking the index, rather than
+                // skipping over all the newer messages with an offset.
+                final Cursor cursor = DataModel.get().getDatabase().rawQuery(
+                        ConversationMessageData.getOlderMessageKeysQuerySql(MESSAGES_PAGE_SIZE),
+                        queryArgs);
+                try {
+                    if (cursor.moveToLast()) {
+                        return new String[] { cursor.getString(0), cursor.getString(1) };
+                    }
+                    return null;
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(final String[] oldestKey) {
+                if (!isBound(bindingId) || mLoaderManager == null) {
+                    return;
+                }
+                if (oldestKey == null) {
+                    // The older messages are gone.
+                    mLoadingOlderMessages = false;
+                    mOlderMessageCount = 0;
+                    return;
+                }
+                mMinReceivedTimestamp = Long.parseLong(oldestKey[0]);
+                mMinMessageId = oldestKey[1];
+                final Bundle args = new Bundle();
+                args.putString(BINDING_ID, bindingId);
+                mLoaderManager.restartLoader(CONVERSATION_MESSAGES_LOADER, args,
+                        mMessagesLoaderCallbacks);
+            }
+        }.executeOnThreadPool();
+    }
+
     @Override
     protected void unregisterListeners() {
         mListeners.clear();
@@ -628,6 +628,54 @@ public class ConversationMessageData {
                 + CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Like {@link #getConversationMessagesQuerySql()}, but only returns the newest messages of
+     * the conversation. Takes the conversation id as its first argument and, when
+     * {@code hasLowerBound} is set, the received timestamp (twice) and the message id of the oldest
+     * message to return. The ids of the page's messages are picked first by walking the
+     * (conversation id, received timestamp, message id) index, and only these messages are joined
+     * with their parts and sender, so the cost of a page doesn't grow with the conversation.
+     * @param limit the maximum number of messages to return, or -1 for no limit
+     */
+    public static final String getConversationMessagesPageQuerySql(final boolean hasLowerBound,
+            final int limit) {
+        return "SELECT " + CONVERSATION_MESSAGES_QUERY_PROJECTION_SQL
+                + " FROM (SELECT " + MessageColumns._ID + " AS " + PAGE_MESSAGE_ID
+                + " FROM " + DatabaseHelper.MESSAGES_TABLE
+                + " WHERE " + MessageColumns.CONVERSATION_ID + "=?"
+                + " AND " + MessageColumns.STATUS + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+                + (hasLowerBound ? " AND " + makeMessageKeyComparisonString(">", ">=") : "")
+                + " ORDER BY " + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+                + MessageColumns._ID + " DESC"
+                + " LIMIT " + limit + ")"
+                + " JOIN " + DatabaseHelper.MESSAGES_TABLE
+                + " ON (" + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID
+                + "=" + PAGE_MESSAGE_ID + ")"
+                + CONVERSATION_MESSAGES_QUERY_JOINS_SQL
+                + CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY;
+    }
+
+    /**
+     * Returns the (received timestamp, message id) keys of the messages immediately older than a
+     * given message, newest first. Takes the conversation id followed by the received timestamp
+     * (twice) and the message id of the given message.
+     */
+    static final String getOlderMessageKeysQuerySql(final int limit) {
+        return "SELECT " + MessageColumns.RECEIVED_TIMESTAMP + ", " + MessageColumns._ID
+                + CONVERSATION_MESSAGE_KEYS_FROM_WHERE_SQL
+                + " ORDER BY " + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+                + MessageColumns._ID + " DESC"
+                + " LIMIT " + limit;
+    }
+
+    /**
+     * Counts the messages older than a given message. Takes the same arguments as
+     * {@link #getOlderMessageKeysQuerySql(int)}.
+     */
+    public static final String getOlderMessageCountQuerySql() {
+        return "SELECT COUNT(*)" + CONVERSATION_MESSAGE_KEYS_FROM_WHERE_SQL;
+    }
+
     static final String getConversationMessageIdsQuerySql() {
         return CONVERSATION_MESSAGES_IDS_QUERY_SQL
                 + " AND "
@@ -648,6 +696,24 @@ public class ConversationMessageData {
                 + NOTIFICATION_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Same as {@link #getNotificationQuerySql} but for the conversation passed as the only
+     * selection argument.
+     */
+    public static final String getConversationNotificationQuerySql() {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+                + " AND "
+                + "(" + DatabaseHelper.MessageColumns.STATUS + " in ("
+                + MessageData.BUGLE_STATUS_INCOMING_COMPLETE + ", "
+                + MessageData.BUGLE_STATUS_INCOMING_YET_TO_MANUAL_DOWNLOAD + ")"
+                + " AND "
+                + DatabaseHelper.MessageColumns.SEEN + " = 0)"
+                + ")"
+                + NOTIFICATION_QUERY_SQL_GROUP_BY;
+    }
+
     public static final String getWearableQuerySql() {
         return CONVERSATION_MESSAGES_QUERY_SQL
                 + " AND "
@@ -679,6 +745,18 @@ public class ConversationMessageData {
         return "group_concat(" + column + ", '" + DIVIDER + "')";
     }
 
+    /**
+     * Generates a sqlite snippet that compares the (received timestamp, message id) key of a
+     * message with the key given by the next three query arguments.
+     */
+    private static String makeMessageKeyComparisonString(final String timestampOperator,
+            final String idOperator) {
+        final String timestamp =
+                DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP;
+        return "(" + timestamp + timestampOperator + "? OR (" + timestamp + "=? AND "
+                + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + idOperator + "?))";
+    }
+
     private static String makeIfNullString(final String column) {
         return "ifnull(" + column + "," + "''" + ")";
     }
@@ -768,14 +846,20 @@ public class ConversationMessageData {
             + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.LOOKUP_KEY
             + " as " + ConversationMessageViewColumns.SENDER_CONTACT_LOOKUP_KEY + " ";
 
-    private static final String CONVERSATION_MESSAGES_QUERY_FROM_WHERE_SQL =
-            " FROM " + DatabaseHelper.MESSAGES_TABLE
-            + " LEFT JOIN " + DatabaseHelper.PARTS_TABLE
+    // Alias of the message ids picked by the inner query of a page
+    private static final String PAGE_MESSAGE_ID = "page_message_id";
+
+    private static final String CONVERSATION_MESSAGES_QUERY_JOINS_SQL =
+            " LEFT JOIN " + DatabaseHelper.PARTS_TABLE
             + " ON (" + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID
             + "=" + DatabaseHelper.PARTS_TABLE + "." + PartColumns.MESSAGE_ID + ") "
             + " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE
             + " ON (" + DatabaseHelper.MESSAGES_TABLE + '.' +  MessageColumns.SENDER_PARTICIPANT_ID
-            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")"
+            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")";
+
+    private static final String CONVERSATION_MESSAGES_QUERY_FROM_WHERE_SQL =
+            " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + CONVERSATION_MESSAGES_QUERY_JOINS_SQL
             // Exclude draft messages from main view
             + " WHERE (" + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.STATUS
             + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT;
@@ -795,12 +879,20 @@ public class ConversationMessageData {
             + CONVERSATION_MESSAGE_IDS_PROJECTION_SQL
             + CONVERSATION_MESSAGES_QUERY_FROM_WHERE_SQL;
 
+    private static final String CONVERSATION_MESSAGE_KEYS_FROM_WHERE_SQL =
+            " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=?"
+            + " AND " + MessageColumns.STATUS + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " AND " + makeMessageKeyComparisonString("<", "<");
+
     // Note that we sort DESC and ConversationData reverses the cursor.  This is a performance
-    // issue (improvement) for large cursors.
+    // issue (improvement) for large cursors. The message id breaks ties between messages received
+    // at the same time, so that the order is stable across pages.
     private static final String CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY =
             " GROUP BY " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
           + " ORDER BY "
-          + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC";
+          + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+          + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + " DESC";
 
     private static final String NOTIFICATION_QUERY_SQL_GROUP_BY =
             " GROUP BY " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
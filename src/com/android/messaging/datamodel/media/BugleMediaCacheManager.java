@@ -15,8 +15,11 @@
  */
 package com.android.messaging.datamodel.media;
 
+import com.android.messaging.Factory;
 import com.android.messaging.util.Assert;
 
+import java.io.File;
+
 /**
  * An implementation of {@link MediaCacheManager} that creates caches specific to Bugle's needs.
  *
@@ -32,6 +35,8 @@ public class BugleMediaCacheManager extends MediaCacheManager {
     // VCard cache size - we compute the size by count, not by bytes.
     private static final int VCARD_CACHE_SIZE = 5;
     private static final int SHARED_IMAGE_CACHE_SIZE = 1024 * 10;   // 10MB
+    private static final long SHARED_IMAGE_DISK_CACHE_SIZE = 1024 * 1024 * 20;   // 20MB
+    private static final String SHARED_IMAGE_DISK_CACHE_DIR = "imagecache";
 
     @Override
     protected MediaCache<?> createMediaCacheById(final int id) {
@@ -51,4 +56,22 @@ public class BugleMediaCacheManager extends MediaCacheManager {
         }
         return null;
     }
+
+    @Override
+    protected ImageDiskCache createDiskCacheById(final int id) {
+        // Only the shared image cache holds encoded images (message attachments) worth keeping
+        // across process restarts. Avatars are cropped to circles with alpha and never encoded.
+        if (id == DEFAULT_IMAGE_CACHE) {
+            final File directory = new File(
+                    Factory.get().getApplicationContext().getCacheDir(),
+                    SHARED_IMAGE_DISK_CACHE_DIR);
+            return new ImageDiskCache(directory, SHARED_IMAGE_DISK_CACHE_SIZE);
+        }
+        return null;
+    }
+
+    @Override
+    protected int[] getDiskCacheIds() {
+        return new int[] { DEFAULT_IMAGE_CACHE };
+    }
 }
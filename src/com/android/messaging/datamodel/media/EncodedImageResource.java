@@ -23,6 +23,8 @@ import android.graphics.drawable.Drawable;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.List;
 
@@ -70,6 +72,18 @@ public class EncodedImageResource extends ImageResource {
         }
     }
 
+    /**
+     * Writes the encoded image bytes to the given stream without making a copy of them.
+     */
+    void writeImageBytes(final OutputStream outputStream) throws IOException {
+        acquireLock();
+        try {
+            outputStream.write(mImageBytes);
+        } finally {
+            releaseLock();
+        }
+    }
+
     @Override
     public Bitmap reuseBitmap() {
         return null;
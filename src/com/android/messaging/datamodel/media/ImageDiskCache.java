@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import android.provider.MediaStore;
+
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A size-bounded, LRU-evicting disk tier below the in-memory {@link MediaCache} for
+ * {@link EncodedImageResource}s. Unlike the memory caches, its content survives process death,
+ * so images that were already encoded once don't need to be loaded and decoded from their
+ * content provider again after a cold start.
+ *
+ * Each entry is stored in its own file named after a hash of the request key, prefixed with a hash
+ * of the source content uri the key starts with (see {@link UriImageRequestDescriptor#getKey}), so
+ * that all entries of a deleted message part can be evicted together. The key itself is stored in
+ * the file too and checked on read, so a hash collision is treated as a miss. The LRU order is
+ * persisted through file modification times, which are refreshed on every hit.
+ *
+ * Images from the media store are not written to disk: they are not deleted along with a message
+ * part, and may change under the same uri.
+ */
+public class ImageDiskCache {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    // Bump this whenever the entry file layout changes; entries of other versions are dropped.
+    // Version 3 drops the entries of media store images written by earlier versions.
+    private static final int ENTRY_FORMAT_VERSION = 3;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    // Separates the source uri hash from the request key hash in entry file names.
+    private static final char FILE_NAME_SEPARATOR = '_';
+    // Request keys are made of parts separated by this, the first one being the source uri.
+    private static final char KEY_PART_DELIMITER = '|';
+    private static final String MEDIA_STORE_URI_PREFIX =
+            "content://" + MediaStore.AUTHORITY + "/";
+
+    private final File mDirectory;
+    private final long mMaxSizeInBytes;
+
+    // Entry file name -> entry size in bytes, in access order (least recently used first).
+    // Guarded by this.
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true /* accessOrder */);
+    // Source uri hash -> names of the entry files loaded from that source. Guarded by this.
+    private final HashMap<String, Set<String>> mSourceEntries = new HashMap<String, Set<String>>();
+    private long mSizeInBytes;
+    private boolean mIndexLoaded;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public ImageDiskCache(final File directory, final long maxSizeInBytes) {
+        mDirectory = directory;
+        mMaxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Reads an encoded image from the disk cache.
+     * @return the cached resource, or null on cache miss. The returned resource holds no refs.
+     */
+    @DoesNotRunOnMainThread
+    public EncodedImageResource fetchResource(final String key) {
+        final String fileName = getFileName(key);
+        synchronized (this) {
+            ensureIndexLoaded();
+            if (mEntries.get(fileName) == null) {
+                mMissCount++;
+                return null;
+            }
+        }
+        final File file = new File(mDirectory, fileName);
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (inputStream.readInt() == ENTRY_FORMAT_VERSION &&
+                    key.equals(inputStream.readUTF())) {
+                final int orientation = inputStream.readInt();
+                final byte[] imageBytes = new byte[inputStream.readInt()];
+                inputStream.readFully(imageBytes);
+                // Record the access so the LRU order is preserved across restarts.
+                file.setLastModified(System.currentTimeMillis());
+                synchronized (this) {
+                    mHitCount++;
+                }
+                return new EncodedImageResource(key, imageBytes, orientation);
+            }
+        } catch (final IOException e) {
+            // The entry may have been evicted while we were reading it, or is corrupt.
+            LogUtil.w(TAG, "ImageDiskCache: failed to read entry " + fileName, e);
+        } finally {
+            closeQuietly(inputStream);
+        }
+        synchronized (this) {
+            mMissCount++;
+            removeEntry(fileName);
+        }
+        return null;
+    }
+
+    /**
+     * Writes an encoded image to the disk cache, evicting the least recently used entries as
+     * needed to stay within budget.
+     */
+    @DoesNotRunOnMainThread
+    public void putResource(final String key, final EncodedImageResource resource) {
+        if (getSourceUri(key).startsWith(MEDIA_STORE_URI_PREFIX)) {
+            return;
+        }
+        final String fileName = getFileName(key);
+        final File tempFile = new File(mDirectory, fileName + TEMP_FILE_SUFFIX);
+        final File file = new File(mDirectory, fileName);
+        DataOutputStream outputStream = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                LogUtil.w(TAG, "ImageDiskCache: failed to create " + mDirectory);
+                return;
+            }
+            outputStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            outputStream.writeInt(ENTRY_FORMAT_VERSION);
+            outputStream.writeUTF(key);
+            outputStream.writeInt(resource.getOrientation());
+            outputStream.writeInt(resource.getMediaSize());
+            resource.writeImageBytes(outputStream);
+            outputStream.close();
+            outputStream = null;
+            synchronized (this) {
+                ensureIndexLoaded();
+                // Rename under the lock so the index always matches what's on disk.
+                if (!tempFile.renameTo(file)) {
+                    LogUtil.w(TAG, "ImageDiskCache: failed to commit entry " + fileName);
+                    tempFile.delete();
+                    return;
+                }
+                final Long oldSize = mEntries.put(fileName, file.length());
+                if (oldSize != null) {
+                    mSizeInBytes -= oldSize;
+                } else {
+                    addSourceEntry(fileName);
+                }
+                mSizeInBytes += file.length();
+                trimToSize();
+            }
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "ImageDiskCache: failed to write entry " + fileName, e);
+            tempFile.delete();
+        } finally {
+            closeQuietly(outputStream);
+        }
+    }
+
+    /**
+     * Removes all entries that were loaded from the given source content uri, e.g. because the
+     * message part it belongs to was deleted.
+     */
+    @DoesNotRunOnMainThread
+    public synchronized void evictSource(final String sourceUri) {
+        ensureIndexLoaded();
+        final Set<String> fileNames = mSourceEntries.remove(getHash(sourceUri));
+        if (fileNames == null) {
+            return;
+        }
+        for (final String fileName : fileNames) {
+            final Long size = mEntries.remove(fileName);
+            if (size != null) {
+                mSizeInBytes -= size;
+                new File(mDirectory, fileName).delete();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from the disk cache.
+     */
+    @DoesNotRunOnMainThread
+    public synchronized void clear() {
+        ensureIndexLoaded();
+        for (final String fileName : mEntries.keySet()) {
+            new File(mDirectory, fileName).delete();
+        }
+        mEntries.clear();
+        mSourceEntries.clear();
+        mSizeInBytes = 0;
+    }
+
+    public synchronized long getSizeInBytes() {
+        ensureIndexLoaded();
+        return mSizeInBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Builds the in-memory index from the cache directory on first use, oldest entry first.
+     */
+    private void ensureIndexLoaded() {
+        if (mIndexLoaded) {
+            return;
+        }
+        mIndexLoaded = true;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX) ||
+                    file.getName().indexOf(FILE_NAME_SEPARATOR) < 0) {
+                // Left over from a write that never completed, or from an older version that
+                // didn't group entries by source uri (and thus couldn't evict them by source).
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            addSourceEntry(file.getName());
+            mSizeInBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSizeInBytes > mMaxSizeInBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSizeInBytes -= eldest.getValue();
+            iterator.remove();
+            removeSourceEntry(eldest.getKey());
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "ImageDiskCache: evicted " + eldest.getKey());
+            }
+        }
+    }
+
+    private void removeEntry(final String fileName) {
+        final Long size = mEntries.remove(fileName);
+        if (size != null) {
+            mSizeInBytes -= size;
+            new File(mDirectory, fileName).delete();
+            removeSourceEntry(fileName);
+        }
+    }
+
+    private void addSourceEntry(final String fileName) {
+        final String sourceHash = getSourceHash(fileName);
+        Set<String> fileNames = mSourceEntries.get(sourceHash);
+        if (fileNames == null) {
+            fileNames = new HashSet<String>();
+            mSourceEntries.put(sourceHash, fileNames);
+        }
+        fileNames.add(fileName);
+    }
+
+    private void removeSourceEntry(final String fileName) {
+        final String sourceHash = getSourceHash(fileName);
+        final Set<String> fileNames = mSourceEntries.get(sourceHash);
+        if (fileNames != null && fileNames.remove(fileName) && fileNames.isEmpty()) {
+            mSourceEntries.remove(sourceHash);
+        }
+    }
+
+    private static String getSourceHash(final String fileName) {
+        return fileName.substring(0, fileName.indexOf(FILE_NAME_SEPARATOR));
+    }
+
+    private static void closeQuietly(final Closeable stream) {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (final IOException e) {
+            LogUtil.e(TAG, "ImageDiskCache: error closing stream", e);
+        }
+    }
+
+    @VisibleForTesting
+    static String getFileName(final String key) {
+        return getHash(getSourceUri(key)) + FILE_NAME_SEPARATOR + getHash(key);
+    }
+
+    private static String getSourceUri(final String key) {
+        final int delimiterIndex = key.indexOf(KEY_PART_DELIMITER);
+        return delimiterIndex < 0 ? key : key.substring(0, delimiterIndex);
+    }
+
+    private static String getHash(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(value.getBytes());
+            final StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // SHA-1 is always available on Android.
+            throw new IllegalStateException(e);
+        }
+    }
+}
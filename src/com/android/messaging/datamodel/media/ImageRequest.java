@@ -27,6 +27,7 @@ import com.android.messaging.datamodel.media.PoolableImageCache.ReusableImageRes
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.ImageUtils;
 import com.android.messaging.util.exif.ExifInterface;
+import com.android.messaging.util.exif.JpegHeaderScanner;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -95,6 +96,14 @@ public abstract class ImageRequest<D extends ImageRequestDescriptor>
      */
     protected abstract InputStream getInputStreamForResource() throws FileNotFoundException;
 
+    /**
+     * Reads the orientation and (for JPEGs) the dimensions of the image from its headers.
+     */
+    protected JpegHeaderScanner.Result getImageHeaderInfoForResource()
+            throws FileNotFoundException {
+        return ImageUtils.getImageHeaderInfo(getInputStreamForResource());
+    }
+
     /**
      * Loads the image resource. This method is final; to override the media loading behavior
      * the subclass should override {@link #loadMediaInternal(List)}
@@ -147,12 +156,22 @@ public abstract class ImageRequest<D extends ImageRequestDescriptor>
             return bitmap;
         }
 
-        mOrientation = ImageUtils.getOrientation(getInputStreamForResource());
+        final JpegHeaderScanner.Result headerInfo = getImageHeaderInfoForResource();
+        mOrientation = headerInfo.orientation;
 
         final BitmapFactory.Options options = PoolableImageCache.getBitmapOptionsForPool(
                 false /* scaled */, 0 /* inputDensity */, 0 /* targetDensity */);
         // First, check dimensions of the bitmap if not already known.
-        if (unknownSize) {
+        if (unknownSize && headerInfo.hasDimensions()) {
+            // The header scan already found them, no need to decode the bounds
+            options.outWidth = headerInfo.width;
+            options.outHeight = headerInfo.height;
+            if (ExifInterface.getOrientationParams(mOrientation).invertDimensions) {
+                mDescriptor.updateSourceDimensions(options.outHeight, options.outWidth);
+            } else {
+                mDescriptor.updateSourceDimensions(options.outWidth, options.outHeight);
+            }
+        } else if (unknownSize) {
             final InputStream inputStream = getInputStreamForResource();
             if (inputStream != null) {
                 try {
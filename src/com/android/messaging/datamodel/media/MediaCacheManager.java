@@ -15,6 +15,7 @@
  */
 package com.android.messaging.datamodel.media;
 
+import android.net.Uri;
 import android.util.SparseArray;
 
 import com.android.messaging.Factory;
@@ -31,9 +32,12 @@ public abstract class MediaCacheManager implements MemoryCache {
     }
 
     protected final SparseArray<MediaCache<?>> mCaches;
+    // Disk caches are not affected by memory reclaiming, so they're kept separately.
+    protected final SparseArray<ImageDiskCache> mDiskCaches;
 
     public MediaCacheManager() {
         mCaches = new SparseArray<MediaCache<?>>();
+        mDiskCaches = new SparseArray<ImageDiskCache>();
         MemoryCacheManager.get().registerMemoryCache(this);
     }
 
@@ -57,6 +61,32 @@ public abstract class MediaCacheManager implements MemoryCache {
         return cache;
     }
 
+    /**
+     * Returns the disk tier for the given memory cache id, or null if the cache has none.
+     */
+    public synchronized ImageDiskCache getOrCreateDiskCacheById(final int id) {
+        ImageDiskCache diskCache = mDiskCaches.get(id);
+        if (diskCache == null) {
+            diskCache = createDiskCacheById(id);
+            if (diskCache != null) {
+                mDiskCaches.put(id, diskCache);
+            }
+        }
+        return diskCache;
+    }
+
+    /**
+     * Evicts all entries loaded from the given content uri from the disk caches.
+     */
+    public void evictFromDiskCaches(final Uri contentUri) {
+        for (final int id : getDiskCacheIds()) {
+            final ImageDiskCache diskCache = getOrCreateDiskCacheById(id);
+            if (diskCache != null) {
+                diskCache.evictSource(contentUri.toString());
+            }
+        }
+    }
+
     public ReusableImageResourcePool getOrCreateBitmapPoolForCache(final int cacheId) {
         final MediaCache<?> cache = getOrCreateMediaCacheById(cacheId);
         if (cache != null && cache instanceof PoolableImageCache) {
@@ -66,4 +96,19 @@ public abstract class MediaCacheManager implements MemoryCache {
     }
 
     protected abstract MediaCache<?> createMediaCacheById(final int id);
+
+    /**
+     * Creates the disk tier for the given memory cache id. By default caches have no disk tier.
+     */
+    protected ImageDiskCache createDiskCacheById(final int id) {
+        return null;
+    }
+
+    /**
+     * Returns the ids of the caches that have a disk tier. Unlike the memory caches, disk caches
+     * may hold entries before they're first created in this process.
+     */
+    protected int[] getDiskCacheIds() {
+        return new int[0];
+    }
 }
\ No newline at end of file
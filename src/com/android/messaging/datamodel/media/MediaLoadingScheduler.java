@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size thread pool for media loading tasks that, instead of plain FIFO order, always
+ * picks the queued task with the most urgent priority (lowest value) next, and among tasks of
+ * equal priority the one that was scheduled last. When the user flings through a list, the views
+ * bound last are the ones on screen, so serving them first keeps stale requests from delaying the
+ * visible content.
+ *
+ * Tasks that haven't started yet can be cancelled or re-prioritized through the handle returned
+ * by {@link #schedule(Runnable, int)}.
+ */
+class MediaLoadingScheduler {
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    MediaLoadingScheduler(final int threadCount) {
+        // With an unbounded queue the pool never grows past the core size, so every task beyond
+        // the first threadCount ones goes through the priority queue.
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Schedules the given command to run with the given priority.
+     * @return a handle for the scheduled task, to be used with {@link #cancel(ScheduledTask)}
+     * and {@link #promote(ScheduledTask, int)}
+     */
+    ScheduledTask schedule(final Runnable command, final int priority) {
+        final ScheduledTask task = new ScheduledTask(command, priority,
+                mSequence.incrementAndGet());
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Removes the task from the queue if it hasn't started running yet.
+     * @return true if the task was removed and will never run
+     */
+    boolean cancel(final ScheduledTask task) {
+        return mExecutor.remove(task);
+    }
+
+    /**
+     * Requeues a task that hasn't started yet with a more urgent priority. The task keeps its
+     * place among equal-priority tasks as if it had been scheduled just now.
+     * @return the handle of the requeued task, or the given handle if nothing was changed
+     */
+    ScheduledTask promote(final ScheduledTask task, final int priority) {
+        if (priority < task.mPriority && cancel(task)) {
+            return schedule(task.mCommand, priority);
+        }
+        return task;
+    }
+
+    static final class ScheduledTask implements Runnable, Comparable<ScheduledTask> {
+        private final Runnable mCommand;
+        private final int mPriority;
+        private final long mSequence;
+
+        private ScheduledTask(final Runnable command, final int priority, final long sequence) {
+            mCommand = command;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void run() {
+            mCommand.run();
+        }
+
+        @Override
+        public int compareTo(final ScheduledTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            // Newest first.
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
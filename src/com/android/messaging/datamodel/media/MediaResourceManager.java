@@ -16,6 +16,7 @@
 package com.android.messaging.datamodel.media;
 
 import android.os.AsyncTask;
+import android.text.TextUtils;
 
 import com.android.messaging.Factory;
 import com.android.messaging.util.Assert;
@@ -24,6 +25,7 @@ import com.android.messaging.util.LogUtil;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -31,8 +33,9 @@ import java.util.concurrent.ThreadFactory;
 
 /**
  * <p>Loads and maintains a set of in-memory LRU caches for different types of media resources.
- * Right now we don't utilize any disk cache as all media urls are expected to be resolved to
- * local content.<p/>
+ * Caches may additionally have a disk tier ({@link ImageDiskCache}) that persists encoded images
+ * across process restarts, so they don't need to be loaded and decoded from local content
+ * again.<p/>
  *
  * <p>The MediaResourceManager takes media loading requests through one of two ways:</p>
  *
@@ -49,7 +52,8 @@ import java.util.concurrent.ThreadFactory;
  * loading work. As the media resources are loaded, MediaResourceManager notifies the callers
  * (which must implement the MediaResourceLoadListener interface) via onMediaResourceLoaded()
  * callback. Meanwhile, MediaResourceManager also pushes the loaded resource onto its dedicated
- * cache.</p>
+ * cache. Async requests for a key that is already being loaded don't start a task of their own;
+ * they attach to the pending load and are notified with the same resource when it completes.</p>
  *
  * <p>The media resource caches ({@link MediaCache}) are maintained as a set of LRU caches. They are
  * created on demand by the incoming MediaRequest's getCacheId() method. The implementations of
@@ -95,9 +99,17 @@ public class MediaResourceManager {
         void onMediaResourceLoadError(MediaRequest<T> request, Exception exception);
     }
 
+    // Priorities for async media loads, most urgent first. Images that are part of the visible
+    // content are loaded before avatars, and both before speculative prefetches.
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_AVATAR = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+
     // We use a fixed thread pool for handling media loading tasks. Using a cached thread pool
     // allows for unlimited thread creation which can lead to OOMs so we limit the threads here.
-    private static final Executor MEDIA_LOADING_EXECUTOR = Executors.newFixedThreadPool(10);
+    // Queued tasks are picked by priority, and newest first among tasks of the same priority.
+    private static final MediaLoadingScheduler MEDIA_LOADING_SCHEDULER =
+            new MediaLoadingScheduler(10);
 
     // A dedicated single thread executor for performing background task after loading the resource
     // on the media loading executor. This includes work such as encoding loaded media to be cached.
@@ -113,6 +125,14 @@ public class MediaResourceManager {
                 }
             });
 
+    // Async media loads currently in flight on MEDIA_LOADING_SCHEDULER, keyed by request key. A
+    // request for a key that is already being loaded attaches to the pending load and shares its
+    // result instead of loading the same media again. Also guards the load counters below.
+    private final HashMap<String, PendingMediaLoad<?>> mPendingLoads = new HashMap<>();
+    private int mStartedLoadCount;
+    private int mCoalescedLoadCount;
+    private int mCancelledLoadCount;
+
     /**
      * Requests a media resource asynchronously. Upon completion of the media loading task,
      * the listener will be notified of success/failure iff it's still bound. A refcount on the
@@ -125,7 +145,51 @@ public class MediaResourceManager {
      */
     public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
             final MediaRequest<T> mediaRequest) {
-        scheduleAsyncMediaRequest(mediaRequest, MEDIA_LOADING_EXECUTOR);
+        requestMediaResourceAsync(mediaRequest, getDefaultPriority(mediaRequest));
+    }
+
+    /**
+     * Requests a media resource asynchronously with the given priority. Same as
+     * {@link #requestMediaResourceAsync(MediaRequest)} otherwise.
+     * @param priority one of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_AVATAR} or
+     * {@link #PRIORITY_PREFETCH}
+     */
+    public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
+            final MediaRequest<T> mediaRequest, final int priority) {
+        Assert.inRange(priority, PRIORITY_VISIBLE, PRIORITY_PREFETCH);
+        scheduleAsyncMediaRequest(mediaRequest, priority, false /* isChainedRequest */);
+    }
+
+    /**
+     * Cancels an async media request that is no longer needed, e.g. because the view that made
+     * it is being recycled. If no other request is waiting on the same pending load and the load
+     * hasn't started yet, it's dropped from the queue right away instead of lingering until a
+     * loading thread gets to it. The request will not receive any callbacks after this.
+     */
+    public <T extends RefCountedMediaResource> void cancelMediaResourceRequest(
+            final MediaRequest<T> mediaRequest) {
+        if (TextUtils.isEmpty(mediaRequest.getKey())) {
+            return;
+        }
+        synchronized (mPendingLoads) {
+            final PendingMediaLoad<?> pendingLoad = mPendingLoads.get(mediaRequest.getKey());
+            if (pendingLoad != null && pendingLoad.detach(mediaRequest)) {
+                mCancelledLoadCount++;
+                if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                    LogUtil.v(TAG, "pending media load cancelled; key=" +
+                            LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
+                }
+            }
+        }
+    }
+
+    private static int getDefaultPriority(final MediaRequest<?> mediaRequest) {
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        if (descriptor instanceof AvatarRequestDescriptor ||
+                descriptor instanceof AvatarGroupRequestDescriptor) {
+            return PRIORITY_AVATAR;
+        }
+        return PRIORITY_VISIBLE;
     }
 
     /**
@@ -161,9 +225,21 @@ public class MediaResourceManager {
                     throws Exception {
         final List<MediaRequest<T>> chainedRequests = new ArrayList<>();
         T loadedResource = null;
-        // Try fetching from cache first.
+        // Try fetching from cache first, then from its disk tier.
         final T cachedResource = loadMediaFromCache(mediaRequest);
-        if (cachedResource != null) {
+        final EncodedImageResource diskCachedResource =
+                cachedResource == null ? loadMediaFromDiskCache(mediaRequest) : null;
+        if (diskCachedResource != null) {
+            // Images from the disk tier are always encoded, issue a decoding request.
+            final MediaRequest<T> decodeRequest = (MediaRequest<T>) diskCachedResource
+                    .getMediaDecodingRequest(mediaRequest);
+            Assert.notNull(decodeRequest);
+            diskCachedResource.release();
+            loadedResource = loadMediaFromRequest(decodeRequest, chainedRequests);
+            // Decoded resources aren't cached by the decoding request, so promote the result to
+            // the memory cache here so that subsequent requests don't need to go to disk.
+            addResourceToMemoryCache(mediaRequest, loadedResource);
+        } else if (cachedResource != null) {
             if (cachedResource.isEncoded()) {
                 // The resource is encoded, issue a decoding request.
                 final MediaRequest<T> decodeRequest = (MediaRequest<T>) cachedResource
@@ -179,7 +255,8 @@ public class MediaResourceManager {
             // Actually load the media after cache miss.
             loadedResource = loadMediaFromRequest(mediaRequest, chainedRequests);
         }
-        return new MediaLoadingResult<>(loadedResource, cachedResource != null /* fromCache */,
+        return new MediaLoadingResult<>(loadedResource,
+                cachedResource != null || diskCachedResource != null /* fromCache */,
                 chainedRequests);
     }
 
@@ -199,6 +276,25 @@ public class MediaResourceManager {
         return null;
     }
 
+    private EncodedImageResource loadMediaFromDiskCache(
+            final MediaRequest<? extends RefCountedMediaResource> mediaRequest) {
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA ||
+                TextUtils.isEmpty(mediaRequest.getKey())) {
+            return null;
+        }
+        final ImageDiskCache diskCache =
+                MediaCacheManager.get().getOrCreateDiskCacheById(mediaRequest.getCacheId());
+        if (diskCache == null) {
+            return null;
+        }
+        final EncodedImageResource mediaResource = diskCache.fetchResource(mediaRequest.getKey());
+        if (mediaResource != null) {
+            // Reserve a ref for the caller.
+            mediaResource.addRef();
+        }
+        return mediaResource;
+    }
+
     private <T extends RefCountedMediaResource> T loadMediaFromRequest(
             final MediaRequest<T> mediaRequest, final List<MediaRequest<T>> chainedRequests)
                     throws Exception {
@@ -216,6 +312,10 @@ public class MediaResourceManager {
         // Don't cache the media request if it is defined as non-cacheable.
         if (resource.isCacheable()) {
             addResourceToMemoryCache(mediaRequest, resource);
+            if (mediaRequest.getRequestType() == MediaRequest.REQUEST_ENCODE_MEDIA &&
+                    resource instanceof EncodedImageResource) {
+                addResourceToDiskCache(mediaRequest, (EncodedImageResource) resource);
+            }
         }
         return resource;
     }
@@ -225,57 +325,102 @@ public class MediaResourceManager {
      * @param mediaRequest the media request to be processed asynchronously. May be either an
      * {@link AsyncMediaRequestWrapper} for listening for event callbacks, or a regular media
      * request for fire-and-forget type of behavior.
+     * @param priority the priority of the request on the media loading scheduler
+     * @param isChainedRequest whether this request is chained to a completed request, in which
+     * case it runs on the low priority background executor instead
      */
+    @SuppressWarnings("unchecked")
     private <T extends RefCountedMediaResource> void scheduleAsyncMediaRequest(
-            final MediaRequest<T> mediaRequest, final Executor executor) {
-        final BindableMediaRequest<T> bindableRequest =
-                (mediaRequest instanceof BindableMediaRequest<?>) ?
-                        (BindableMediaRequest<T>) mediaRequest : null;
-        if (bindableRequest != null && !bindableRequest.isBound()) {
+            final MediaRequest<T> mediaRequest, final int priority,
+            final boolean isChainedRequest) {
+        if (!isRequestWanted(mediaRequest)) {
             return; // Request is obsolete
         }
+        final PendingMediaLoad<T> pendingLoad = new PendingMediaLoad<T>(mediaRequest, priority);
+        synchronized (mPendingLoads) {
+            if (canCoalesce(mediaRequest, isChainedRequest)) {
+                final PendingMediaLoad<T> existingLoad =
+                        (PendingMediaLoad<T>) mPendingLoads.get(mediaRequest.getKey());
+                if (existingLoad != null) {
+                    // The same media is already being loaded, so piggyback on that load instead
+                    // of loading it all over again.
+                    existingLoad.attach(mediaRequest, priority);
+                    mCoalescedLoadCount++;
+                    if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                        LogUtil.v(TAG, "media request coalesced with pending load; key=" +
+                                LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
+                    }
+                    return;
+                }
+                mPendingLoads.put(mediaRequest.getKey(), pendingLoad);
+                pendingLoad.mRegistered = true;
+            }
+            mStartedLoadCount++;
+        }
         // We don't use SafeAsyncTask here since it enforces the shared thread pool executor
         // whereas we want a dedicated thread pool executor.
         AsyncTask<Void, Void, MediaLoadingResult<T>> mediaLoadingTask =
                 new AsyncTask<Void, Void, MediaLoadingResult<T>>() {
             private Exception mException;
+            // Every request that shares the outcome of this load, snapshotted once it completes.
+            private List<MediaRequest<T>> mRequests;
 
             @Override
             protected MediaLoadingResult<T> doInBackground(Void... params) {
                 // Double check the request is still valid by the time we start processing it
-                if (bindableRequest != null && !bindableRequest.isBound()) {
+                if (!pendingLoad.isStillWanted()) {
                     return null; // Request is obsolete
                 }
+                MediaLoadingResult<T> result = null;
                 try {
-                    return processMediaRequestInternal(mediaRequest);
+                    result = processMediaRequestInternal(mediaRequest);
                 } catch (Exception e) {
                     mException = e;
-                    return null;
+                } finally {
+                    mRequests = pendingLoad.complete();
                 }
+                if (result != null) {
+                    // Reserve a ref for each request sharing the result so every listener is
+                    // guaranteed a ref for the duration of its callback, then drop the one taken
+                    // by the load itself.
+                    for (int i = 0; i < mRequests.size(); i++) {
+                        result.loadedResource.addRef();
+                    }
+                    result.loadedResource.release();
+                }
+                return result;
             }
 
             @Override
             protected void onPostExecute(final MediaLoadingResult<T> result) {
                 if (result != null) {
                     Assert.isNull(mException);
-                    Assert.isTrue(result.loadedResource.getRefCount() > 0);
                     try {
-                        if (bindableRequest != null) {
-                            bindableRequest.onMediaResourceLoaded(
-                                    bindableRequest, result.loadedResource, result.fromCache);
+                        for (final MediaRequest<T> request : mRequests) {
+                            try {
+                                final BindableMediaRequest<T> bindableRequest =
+                                        asBindableRequest(request);
+                                if (bindableRequest != null) {
+                                    bindableRequest.onMediaResourceLoaded(bindableRequest,
+                                            result.loadedResource, result.fromCache);
+                                }
+                            } finally {
+                                result.loadedResource.release();
+                            }
                         }
                     } finally {
-                        result.loadedResource.release();
                         result.scheduleChainedRequests();
                     }
                 } else if (mException != null) {
                     LogUtil.e(LogUtil.BUGLE_TAG, "Asynchronous media loading failed, key=" +
                             mediaRequest.getKey(), mException);
-                    if (bindableRequest != null) {
-                        bindableRequest.onMediaResourceLoadError(bindableRequest, mException);
+                    for (final MediaRequest<T> request : mRequests) {
+                        final BindableMediaRequest<T> bindableRequest = asBindableRequest(request);
+                        if (bindableRequest != null) {
+                            bindableRequest.onMediaResourceLoadError(bindableRequest, mException);
+                        }
                     }
                 } else {
-                    Assert.isTrue(bindableRequest == null || !bindableRequest.isBound());
                     if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
                         LogUtil.v(TAG, "media request not processed, no longer bound; key=" +
                                 LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
@@ -283,9 +428,71 @@ public class MediaResourceManager {
                 }
             }
         };
+        final Executor executor = isChainedRequest ? MEDIA_BACKGROUND_EXECUTOR : new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                pendingLoad.schedule(command);
+            }
+        };
         mediaLoadingTask.executeOnExecutor(executor, (Void) null);
     }
 
+    @SuppressWarnings("unchecked")
+    private static <T extends RefCountedMediaResource> BindableMediaRequest<T> asBindableRequest(
+            final MediaRequest<T> mediaRequest) {
+        return (mediaRequest instanceof BindableMediaRequest<?>) ?
+                (BindableMediaRequest<T>) mediaRequest : null;
+    }
+
+    /**
+     * @return true if anybody still cares about the outcome of the request, i.e. the request is
+     * either fire-and-forget or still bound to its listener.
+     */
+    private static boolean isRequestWanted(final MediaRequest<?> mediaRequest) {
+        final BindableMediaRequest<?> bindableRequest = asBindableRequest(mediaRequest);
+        return bindableRequest == null || bindableRequest.isBound();
+    }
+
+    /**
+     * Only plain media loads on the loading scheduler are coalesced. Chained encode/decode
+     * requests operate on a specific resource instance and must always run.
+     */
+    private static boolean canCoalesce(final MediaRequest<?> mediaRequest,
+            final boolean isChainedRequest) {
+        return !isChainedRequest &&
+                mediaRequest.getRequestType() == MediaRequest.REQUEST_LOAD_MEDIA &&
+                !TextUtils.isEmpty(mediaRequest.getKey());
+    }
+
+    /**
+     * Returns the number of pending async media loads that were dropped from the queue because
+     * all of their requests were cancelled.
+     */
+    public int getCancelledLoadCount() {
+        synchronized (mPendingLoads) {
+            return mCancelledLoadCount;
+        }
+    }
+
+    /**
+     * Returns the number of async media loads that were actually started.
+     */
+    public int getStartedLoadCount() {
+        synchronized (mPendingLoads) {
+            return mStartedLoadCount;
+        }
+    }
+
+    /**
+     * Returns the number of async media requests that were served by attaching to an already
+     * pending load for the same key, rather than starting a load of their own.
+     */
+    public int getCoalescedLoadCount() {
+        synchronized (mPendingLoads) {
+            return mCoalescedLoadCount;
+        }
+    }
+
     @VisibleForTesting
     @RunsOnAnyThread
     <T extends RefCountedMediaResource> void addResourceToMemoryCache(
@@ -301,6 +508,15 @@ public class MediaResourceManager {
         }
     }
 
+    private void addResourceToDiskCache(final MediaRequest<?> mediaRequest,
+            final EncodedImageResource mediaResource) {
+        final ImageDiskCache diskCache =
+                MediaCacheManager.get().getOrCreateDiskCacheById(mediaRequest.getCacheId());
+        if (diskCache != null && !TextUtils.isEmpty(mediaRequest.getKey())) {
+            diskCache.putResource(mediaRequest.getKey(), mediaResource);
+        }
+    }
+
     private class MediaLoadingResult<T extends RefCountedMediaResource> {
         public final T loadedResource;
         public final boolean fromCache;
@@ -318,7 +534,93 @@ public class MediaResourceManager {
          */
         public void scheduleChainedRequests() {
             for (final MediaRequest<T> mediaRequest : mChainedRequests) {
-                scheduleAsyncMediaRequest(mediaRequest, MEDIA_BACKGROUND_EXECUTOR);
+                scheduleAsyncMediaRequest(mediaRequest, PRIORITY_VISIBLE,
+                        true /* isChainedRequest */);
+            }
+        }
+    }
+
+    /**
+     * A single in-flight async media load, shared by all requests for the same key that come in
+     * while it's pending. All state is guarded by {@link #mPendingLoads}.
+     */
+    private class PendingMediaLoad<T extends RefCountedMediaResource> {
+        private final String mKey;
+        private final List<MediaRequest<T>> mRequests = new ArrayList<>();
+        // Whether this load is registered in mPendingLoads and therefore open to coalescing.
+        private boolean mRegistered;
+        // The most urgent priority among the attached requests.
+        private int mPriority;
+        // The task on MEDIA_LOADING_SCHEDULER performing the load, if scheduled there.
+        private MediaLoadingScheduler.ScheduledTask mScheduledTask;
+
+        PendingMediaLoad(final MediaRequest<T> mediaRequest, final int priority) {
+            mKey = mediaRequest.getKey();
+            mRequests.add(mediaRequest);
+            mPriority = priority;
+        }
+
+        void schedule(final Runnable command) {
+            synchronized (mPendingLoads) {
+                mScheduledTask = MEDIA_LOADING_SCHEDULER.schedule(command, mPriority);
+            }
+        }
+
+        void attach(final MediaRequest<T> mediaRequest, final int priority) {
+            Assert.isTrue(mRegistered);
+            mRequests.add(mediaRequest);
+            if (priority < mPriority) {
+                // A more urgent request came in for media that may still be queued.
+                mPriority = priority;
+                if (mScheduledTask != null) {
+                    mScheduledTask = MEDIA_LOADING_SCHEDULER.promote(mScheduledTask, priority);
+                }
+            }
+        }
+
+        /**
+         * Detaches a cancelled request from this load. If nobody else wants the result, the load
+         * is dropped and, if it hasn't started yet, removed from the scheduler queue.
+         * @return true if the load was removed from the queue
+         */
+        boolean detach(final MediaRequest<?> mediaRequest) {
+            if (!mRequests.remove(mediaRequest) || isStillWanted()) {
+                return false;
+            }
+            return mScheduledTask != null && MEDIA_LOADING_SCHEDULER.cancel(mScheduledTask);
+        }
+
+        /**
+         * Checks whether any of the attached requests still wants the result. If not, the load is
+         * dropped so that new requests for the same key start afresh.
+         */
+        boolean isStillWanted() {
+            synchronized (mPendingLoads) {
+                for (final MediaRequest<T> mediaRequest : mRequests) {
+                    if (isRequestWanted(mediaRequest)) {
+                        return true;
+                    }
+                }
+                unregister();
+                return false;
+            }
+        }
+
+        /**
+         * Closes the load to further coalescing and returns all requests that attached to it.
+         */
+        List<MediaRequest<T>> complete() {
+            synchronized (mPendingLoads) {
+                unregister();
+                return new ArrayList<>(mRequests);
+            }
+        }
+
+        private void unregister() {
+            if (mRegistered) {
+                final PendingMediaLoad<?> removed = mPendingLoads.remove(mKey);
+                Assert.isTrue(removed == this);
+                mRegistered = false;
             }
         }
     }
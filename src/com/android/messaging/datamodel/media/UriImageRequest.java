@@ -17,6 +17,9 @@ package com.android.messaging.datamodel.media;
 
 import android.content.Context;
 
+import com.android.messaging.util.ImageUtils;
+import com.android.messaging.util.exif.JpegHeaderScanner;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,6 +38,12 @@ public class UriImageRequest<D extends UriImageRequestDescriptor> extends ImageR
         return mContext.getContentResolver().openInputStream(mDescriptor.uri);
     }
 
+    @Override
+    protected JpegHeaderScanner.Result getImageHeaderInfoForResource() {
+        // Goes through the header info cache for file uris
+        return ImageUtils.getImageHeaderInfo(mContext, mDescriptor.uri);
+    }
+
     @Override
     protected ImageResource loadMediaInternal(List<MediaRequest<ImageResource>> chainedTasks)
             throws IOException {
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading from a {@link ByteBuffer}, with the semantics of
+ * {@link java.io.ByteArrayInputStream}. Unlike a byte array, the buffer may be a slice of a
+ * larger buffer or a memory-mapped file, and {@link #slice} hands out views of the remaining
+ * data without copying it.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    /**
+     * @param buffer the data to read, from its position to its limit. The buffer itself is not
+     *            modified.
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer.duplicate();
+        mBuffer.mark();
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        length = Math.min(length, mBuffer.remaining());
+        mBuffer.get(buffer, offset, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.min(Math.max(count, 0), mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mBuffer.mark();
+    }
+
+    @Override
+    public void reset() {
+        mBuffer.reset();
+    }
+
+    /**
+     * Returns a read-only view of the next length bytes, or of all remaining bytes if fewer are
+     * left, and skips past them.
+     */
+    public ByteBuffer slice(int length) {
+        ByteBuffer slice = mBuffer.slice();
+        slice.limit(Math.min(Math.max(length, 0), slice.remaining()));
+        mBuffer.position(mBuffer.position() + slice.limit());
+        return slice.asReadOnlyBuffer();
+    }
+}
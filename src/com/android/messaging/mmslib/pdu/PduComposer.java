@@ -19,6 +19,8 @@ package com.android.messaging.mmslib.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import androidx.collection.SimpleArrayMap;
 import android.text.TextUtils;
 
@@ -26,6 +28,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class PduComposer {
@@ -89,6 +93,17 @@ public class PduComposer {
      */
     protected ByteArrayOutputStream mMessage = null;
 
+    /**
+     * The stream the composed message is written to. The part data is written to it directly,
+     * the rest goes through mMessage.
+     */
+    private OutputStream mOutput = null;
+
+    /**
+     * Number of bytes written to mOutput.
+     */
+    private long mOutputLength = 0;
+
     /**
      * The PDU.
      */
@@ -151,41 +166,82 @@ public class PduComposer {
      * the PDU is invalid.
      */
     public byte[] make() {
-        // Get Message-type.
-        final int type = mPdu.getMessageType();
-
-        /* make the message */
-        switch (type) {
-            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
-                if (makeNotificationInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
-            default:
-                return null;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            return make(out) < 0 ? null : out.toByteArray();
+        } catch (final IOException e) {
+            // Can't happen when writing to memory
+            return null;
         }
+    }
 
-        return mMessage.toByteArray();
+    /**
+     * Make the message and write it to the given stream. Only the headers are composed in
+     * memory; the data of each part is copied to the stream from the part or its data uri, so
+     * the message is never held in memory as a whole.
+     *
+     * @param out the stream to write the message to. The stream is not closed, and what was
+     *            written to it should be discarded if the PDU is invalid.
+     * @return the length of the message, or -1 if the PDU is invalid.
+     * @throws IOException if writing to the stream fails
+     */
+    public long make(final OutputStream out) throws IOException {
+        mOutput = out;
+        mOutputLength = 0;
+        try {
+            // Get Message-type.
+            final int type = mPdu.getMessageType();
+
+            /* make the message */
+            switch (type) {
+                case PduHeaders.MESSAGE_TYPE_SEND_REQ:
+                    if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
+                        return -1;
+                    }
+                    break;
+                case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+                    if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
+                        return -1;
+                    }
+                    break;
+                case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+                    if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
+                        return -1;
+                    }
+                    break;
+                case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
+                    if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
+                        return -1;
+                    }
+                    break;
+                case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
+                    if (makeNotificationInd() != PDU_COMPOSE_SUCCESS) {
+                        return -1;
+                    }
+                    break;
+                default:
+                    return -1;
+            }
+
+            flushMessage();
+            return mOutputLength;
+        } finally {
+            mOutput = null;
+        }
+    }
+
+    /**
+     * Write what has been composed in mMessage to mOutput. Only done when all the nested
+     * buffers have been copied back into mMessage.
+     */
+    private void flushMessage() throws IOException {
+        if (mStack.stackSize != 0) {
+            throw new RuntimeException("BUG: Invalid flushMessage() in nested buffer");
+        }
+        mMessage.writeTo(mOutput);
+        mOutputLength += mPosition;
+        mMessage.reset();
+        mPosition = 0;
     }
 
     /**
@@ -820,7 +876,7 @@ public class PduComposer {
     /**
      * Make Send.req.
      */
-    private int makeSendReqPdu() {
+    private int makeSendReqPdu() throws IOException {
         if (mMessage == null) {
             mMessage = new ByteArrayOutputStream();
             mPosition = 0;
@@ -904,7 +960,7 @@ public class PduComposer {
     /**
      * Make message body.
      */
-    private int makeMessageBody() {
+    private int makeMessageBody() throws IOException {
         // 1. add body informations
         mStack.newbuf();  // Switching buffer because we need to
 
@@ -1045,51 +1101,148 @@ public class PduComposer {
             // content
             final int headerLength = attachment.getLength();
 
-            int dataLength = 0; // Just for safety...
-            final byte[] partData = part.getData();
+            // The data length goes before the data, so get it without reading the data
+            final ByteBuffer partData = part.hasData() ? part.getDataBuffer() : null;
+            final long dataLength = (partData != null) ? partData.remaining()
+                    : getDataLength(part.getDataUri());
+            if (dataLength < 0) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+
+            mStack.pop();
+            appendUintvarInteger(headerLength);
+            appendUintvarInteger(dataLength);
+            mStack.copy();
 
+            // Then copy the data straight to the output rather than through the buffers
+            flushMessage();
             if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
-            } else {
-                InputStream cr = null;
+                copyData(partData);
+            } else if (copyData(part.getDataUri(), dataLength) != PDU_COMPOSE_SUCCESS) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+        }
+
+        return PDU_COMPOSE_SUCCESS;
+    }
+
+    /**
+     * Copy the part data to mOutput.
+     */
+    private void copyData(final ByteBuffer data) throws IOException {
+        mOutputLength += data.remaining();
+        if (data.hasArray()) {
+            mOutput.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        // Read-only buffers don't expose their array
+        final byte[] buffer = new byte[Math.min(PDU_COMPOSER_BLOCK_SIZE, data.remaining())];
+        while (data.hasRemaining()) {
+            final int len = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, len);
+            mOutput.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Get the length of the data at the uri, from the file it's in if possible, or by reading it.
+     *
+     * @return the length, or -1 if the data can't be read
+     */
+    private long getDataLength(final Uri uri) {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(uri, "r");
+            if (afd != null) {
+                long length = afd.getLength();
+                if (length == AssetFileDescriptor.UNKNOWN_LENGTH && afd.getStartOffset() == 0) {
+                    // Negative as well if it's not a file
+                    length = afd.getParcelFileDescriptor().getStatSize();
+                }
+                if (length >= 0) {
+                    return length;
+                }
+            }
+        } catch (final FileNotFoundException e) {
+            return -1;
+        } catch (final RuntimeException e) {
+            // Try reading it
+        } finally {
+            if (afd != null) {
                 try {
-                    final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
-                    }
-                } catch (final FileNotFoundException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
+                    afd.close();
                 } catch (final IOException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (final RuntimeException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } finally {
-                    if (cr != null) {
-                        try {
-                            cr.close();
-                        } catch (final IOException e) {
-                            // Nothing to do
-                        }
-                    }
+                    // Nothing to do
                 }
             }
+        }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
-                throw new RuntimeException("BUG: Length check failed");
+        InputStream cr = null;
+        try {
+            final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            cr = mResolver.openInputStream(uri);
+            long dataLength = 0;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                dataLength += len;
+            }
+            return dataLength;
+        } catch (final IOException e) {
+            return -1;
+        } catch (final RuntimeException e) {
+            return -1;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
             }
-
-            mStack.pop();
-            appendUintvarInteger(headerLength);
-            appendUintvarInteger(dataLength);
-            mStack.copy();
         }
+    }
 
-        return PDU_COMPOSE_SUCCESS;
+    /**
+     * Copy the data at the uri to mOutput.
+     *
+     * @param dataLength the length of the data, already written to the message
+     * @return PDU_COMPOSE_CONTENT_ERROR if the data can't be read or its length has changed
+     * @throws IOException if writing to mOutput fails
+     */
+    private int copyData(final Uri uri, final long dataLength) throws IOException {
+        final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+        long copiedLength = 0;
+        InputStream cr = null;
+        try {
+            cr = mResolver.openInputStream(uri);
+            while (true) {
+                final int len;
+                try {
+                    len = cr.read(buffer);
+                } catch (final IOException e) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                if (len == -1) {
+                    break;
+                }
+                mOutput.write(buffer, 0, len);
+                copiedLength += len;
+            }
+        } catch (final FileNotFoundException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } catch (final RuntimeException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+        mOutputLength += copiedLength;
+        return (copiedLength == dataLength) ? PDU_COMPOSE_SUCCESS : PDU_COMPOSE_CONTENT_ERROR;
     }
 
     /**
@@ -23,9 +23,9 @@ import android.util.SparseArray;
 import com.android.messaging.mmslib.InvalidHeaderValueException;
 import com.android.messaging.util.ContentType;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class PduParser {
@@ -75,7 +75,7 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private ByteBufferInputStream mPduDataStream = null;
 
     /**
      * Store pdu headers
@@ -109,7 +109,19 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(ByteBuffer.wrap(pduDataStream), parseContentDisposition);
+    }
+
+    /**
+     * Constructor for pdu data in a buffer, e.g. a memory-mapped file. Part data are not copied
+     * out of the buffer but set as views of it (see {@link PduPart#setData(ByteBuffer)}), so the
+     * buffer must not be modified while the parsed pdu is in use.
+     *
+     * @param pduData pdu data to be parsed, from the buffer's position to its limit
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = new ByteBufferInputStream(pduData);
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -255,7 +267,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream) {
+    protected PduHeaders parseHeaders(ByteBufferInputStream pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -863,7 +875,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(ByteBufferInputStream pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -928,34 +940,44 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
+                // A view of the part data within the pdu, rather than a copy of it.
+                ByteBuffer partData = pduDataStream.slice(dataLength);
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MMS_MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(new ByteBufferInputStream(partData));
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
                     // Check Content-Transfer-Encoding.
                     byte[] partDataEncoding = part.getContentTransferEncoding();
+                    byte[] decodedData = null;
                     if (null != partDataEncoding) {
                         String encoding = new String(partDataEncoding);
                         if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
                             // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
+                            decodedData = Base64.decodeBase64(toByteArray(partData));
+                            if (null == decodedData) {
+                                log("Decode part data error!");
+                                return null;
+                            }
                         } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
                             // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            decodedData = QuotedPrintable.decodeQuotedPrintable(
+                                    toByteArray(partData));
+                            if (null == decodedData) {
+                                log("Decode part data error!");
+                                return null;
+                            }
                         } else {
                             // "binary" is the default encoding.
                         }
                     }
-                    if (null == partData) {
-                        log("Decode part data error!");
-                        return null;
+                    if (null != decodedData) {
+                        part.setData(decodedData);
+                    } else {
+                        part.setData(partData);
                     }
-                    part.setData(partData);
                 }
             }
 
@@ -972,6 +994,12 @@ public class PduParser {
         return body;
     }
 
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     /**
      * Log status.
      *
@@ -989,7 +1017,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(ByteBufferInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -1023,7 +1051,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(ByteBufferInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -1053,7 +1081,7 @@ public class PduParser {
      * @return the EncodedStringValue
      */
     protected static EncodedStringValue parseEncodedStringValue(
-            ByteArrayInputStream pduDataStream) {
+            ByteBufferInputStream pduDataStream) {
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -1098,7 +1126,7 @@ public class PduParser {
      * @param stringType    TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(ByteBufferInputStream pduDataStream,
             int stringType) {
         assert (null != pduDataStream);
         /**
@@ -1222,7 +1250,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(ByteBufferInputStream pduDataStream,
             int stringType) {
         assert (null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1257,7 +1285,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(ByteBufferInputStream pduDataStream) {
         assert (null != pduDataStream);
         int temp = pduDataStream.read();
         assert (-1 != temp);
@@ -1270,7 +1298,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(ByteBufferInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1290,7 +1318,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(ByteBufferInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1328,7 +1356,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(ByteBufferInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1352,7 +1380,7 @@ public class PduParser {
      * @param length        area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(ByteBufferInputStream pduDataStream, int length) {
         assert (null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1371,7 +1399,7 @@ public class PduParser {
      * @param map           to store parameters of Content-Type field
      * @param length        length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(ByteBufferInputStream pduDataStream,
             SparseArray<Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1554,7 +1582,7 @@ public class PduParser {
      * @param map           to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(ByteBufferInputStream pduDataStream,
             SparseArray<Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1625,7 +1653,7 @@ public class PduParser {
      * @param length        length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected boolean parsePartHeaders(ByteBufferInputStream pduDataStream,
             PduPart part, int length) {
         assert (null != pduDataStream);
         assert (null != part);
@@ -20,6 +20,8 @@ package com.android.messaging.mmslib.pdu;
 import android.net.Uri;
 import android.util.SparseArray;
 
+import java.nio.ByteBuffer;
+
 /**
  * The pdu part.
  */
@@ -117,6 +119,11 @@ public class PduPart {
      */
     private byte[] mPartData = null;
 
+    /**
+     * Part data, as a view of a larger buffer.
+     */
+    private ByteBuffer mPartDataBuffer = null;
+
     private static final String TAG = "PduPart";
 
     /**
@@ -133,17 +140,63 @@ public class PduPart {
      */
     public void setData(final byte[] data) {
         mPartData = data;
+        mPartDataBuffer = null;
+    }
+
+    /**
+     * Set part data. The data are stored as a view of the buffer, from its position to its
+     * limit, without copying them; e.g. a slice of the pdu the part was parsed from.
+     *
+     * @param data the data
+     */
+    public void setData(final ByteBuffer data) {
+        mPartData = null;
+        mPartDataBuffer = data != null ? data.slice().asReadOnlyBuffer() : null;
     }
 
     /**
      * @return The part data or null if the data wasn't set or
-     * the data is stored as Uri.
+     * the data is stored as Uri. Data set as a buffer are copied into a byte array on the first
+     * call; use {@link #getDataBuffer} to read them without copying.
      * @see #getDataUri
      */
     public byte[] getData() {
+        if (mPartData == null && mPartDataBuffer != null) {
+            mPartData = new byte[mPartDataBuffer.remaining()];
+            mPartDataBuffer.duplicate().get(mPartData);
+        }
         return mPartData;
     }
 
+    /**
+     * @return A read-only buffer over the part data or null if the data wasn't set or
+     * the data is stored as Uri.
+     */
+    public ByteBuffer getDataBuffer() {
+        if (mPartDataBuffer != null) {
+            return mPartDataBuffer.duplicate();
+        }
+        return mPartData != null ? ByteBuffer.wrap(mPartData).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return The length of the part data or 0 if the data wasn't set or
+     * the data is stored as Uri.
+     */
+    public int getDataLength() {
+        if (mPartDataBuffer != null) {
+            return mPartDataBuffer.remaining();
+        }
+        return mPartData != null ? mPartData.length : 0;
+    }
+
+    /**
+     * @return Whether the part data are stored in this part, rather than as Uri.
+     */
+    public boolean hasData() {
+        return mPartData != null || mPartDataBuffer != null;
+    }
+
     /**
      * Set data uri. The data are stored as Uri.
      *
@@ -61,6 +61,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Map;
@@ -778,7 +781,6 @@ public class PduPersister {
         }
 
         String contentType = getPartContentType(part);
-        final byte[] data = part.getData();
 
         if (LOCAL_LOGV) {
             LogUtil.v(TAG, "PduPersister.persistPart part: " + uri + " contentType: " +
@@ -794,12 +796,13 @@ public class PduPersister {
 
             // On somes phones, a vcard comes in as text/plain instead of text/v-card.
             // Fix it if necessary.
-            if (ContentType.TEXT_PLAIN.equals(contentType) && data != null) {
+            if (ContentType.TEXT_PLAIN.equals(contentType) && part.hasData()) {
                 // There might be a more efficient way to just check the beginning of the string
                 // without encoding the whole thing, but we're concerned that with various
                 // characters sets, just comparing the byte data to BEGIN_VCARD would not be
                 // reliable.
-                final String encodedDataString = new EncodedStringValue(charset, data).getString();
+                final String encodedDataString =
+                        new EncodedStringValue(charset, part.getData()).getString();
                 if (encodedDataString != null && encodedDataString.startsWith(BEGIN_VCARD)) {
                     contentType = ContentType.TEXT_VCARD;
                     part.setContentType(contentType.getBytes());
@@ -866,11 +869,11 @@ public class PduPersister {
         String path = null;
 
         try {
-            final byte[] data = part.getData();
             final int charset = part.getCharset();
             if (ContentType.TEXT_PLAIN.equals(contentType)
                     || ContentType.APP_SMIL.equals(contentType)
                     || ContentType.TEXT_HTML.equals(contentType)) {
+                final byte[] data = part.getData();
                 // Some phone could send MMS with a text part having empty data
                 // Let's just skip those parts.
                 // EncodedStringValue() throws NPE if data is empty
@@ -917,7 +920,7 @@ public class PduPersister {
                 if (os == null) {
                     throw new MmsException("Failed to create output stream on " + uri);
                 }
-                if (data == null) {
+                if (!part.hasData()) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri.equals(uri))) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -956,9 +959,16 @@ public class PduPersister {
                         LogUtil.v(TAG, "Saving data to: " + uri);
                     }
                     if (!isDrm) {
-                        os.write(data);
+                        // Write the data straight from its buffer, which may be a view of a
+                        // memory-mapped pdu, rather than copying them into a byte array first.
+                        final ByteBuffer data = part.getDataBuffer();
+                        final WritableByteChannel channel = Channels.newChannel(os);
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
                     } else {
                         dataUri = uri;
+                        final byte[] data = part.getData();
                         final byte[] convertedData = drmConvertSession.convert(data, data.length);
                         if (convertedData != null) {
                             os.write(convertedData, 0, convertedData.length);
@@ -1201,7 +1211,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if (part.hasData()
                 || (!uri.equals(part.getDataUri()))) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
@@ -17,19 +17,61 @@
 
 package com.android.messaging.mmslib.util;
 
-import androidx.collection.SimpleArrayMap;
 import android.util.Log;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache bounded both by its number of entries and by the approximate size of its values in
+ * bytes, as reported by {@link #sizeOf}. When either bound would be exceeded, the least recently
+ * used entries are evicted to make room for new ones.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean LOCAL_LOGV = false;
 
     private static final int MAX_CACHED_ITEMS = 500;
 
-    private final SimpleArrayMap<K, CacheEntry<V>> mCacheMap;
+    private final LinkedHashMap<K, CacheEntry<V>> mCacheMap;
+    private final int mMaxCachedItems;
+    private final long mMaxCachedBytes;
+    private long mCachedBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
 
     protected AbstractCache() {
-        mCacheMap = new SimpleArrayMap<K, CacheEntry<V>>();
+        this(MAX_CACHED_ITEMS, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxCachedItems the maximum number of entries to keep
+     * @param maxCachedBytes the maximum total size of the cached values, in the units returned
+     *            by {@link #sizeOf}
+     */
+    protected AbstractCache(int maxCachedItems, long maxCachedBytes) {
+        // Access order, so that iteration starts at the least recently used entry.
+        mCacheMap = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+        mMaxCachedItems = maxCachedItems;
+        mMaxCachedBytes = maxCachedBytes;
+    }
+
+    /**
+     * Returns the approximate size of a value in bytes. Defaults to 1, which makes the byte
+     * budget an additional bound on the number of entries.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called when an entry is evicted to make room for another one, so that subclasses can
+     * drop any references they keep to its key.
+     */
+    protected void onEntryEvicted(K key, V value) {
     }
 
     public boolean put(K key, V value) {
@@ -37,26 +79,32 @@ public abstract class AbstractCache<K, V> {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO: Should remove the oldest or least hit cached entry
-            // and then cache the new one.
+        if (key == null) {
+            return false;
+        }
+
+        final int size = sizeOf(key, value);
+        if (size > mMaxCachedBytes) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+                Log.v(TAG, "Failed! " + key + " is larger than the whole cache.");
             }
             return false;
         }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
-            cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
+        CacheEntry<V> cacheEntry = new CacheEntry<V>();
+        cacheEntry.value = value;
+        cacheEntry.size = size;
+        CacheEntry<V> oldEntry = mCacheMap.put(key, cacheEntry);
+        if (oldEntry != null) {
+            mCachedBytes -= oldEntry.size;
+        }
+        mCachedBytes += size;
+        trimToSize();
 
-            if (LOCAL_LOGV) {
-                Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
-            }
-            return true;
+        if (LOCAL_LOGV) {
+            Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
         }
-        return false;
+        return true;
     }
 
     public V get(K key) {
@@ -68,12 +116,14 @@ public abstract class AbstractCache<K, V> {
             CacheEntry<V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
                 cacheEntry.hit++;
+                mHitCount++;
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
                 return cacheEntry.value;
             }
         }
+        mMissCount++;
         return null;
     }
 
@@ -83,6 +133,9 @@ public abstract class AbstractCache<K, V> {
         }
 
         CacheEntry<V> v = mCacheMap.remove(key);
+        if (v != null) {
+            mCachedBytes -= v.size;
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -97,16 +150,51 @@ public abstract class AbstractCache<K, V> {
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mCachedBytes = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
+    public long getSizeInBytes() {
+        return mCachedBytes;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    public int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<K, CacheEntry<V>>> iterator = mCacheMap.entrySet().iterator();
+        while ((mCacheMap.size() > mMaxCachedItems || mCachedBytes > mMaxCachedBytes)
+                && iterator.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> eldest = iterator.next();
+            iterator.remove();
+            mCachedBytes -= eldest.getValue().size;
+            mEvictionCount++;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, eldest.getKey() + " evicted after " + eldest.getValue().hit
+                        + " hits.");
+            }
+            onEntryEvicted(eldest.getKey(), eldest.getValue().value);
+        }
+    }
+
     private static class CacheEntry<V> {
 
         int hit;
 
+        int size;
+
         V value;
     }
 }
@@ -25,6 +25,10 @@ import androidx.collection.SimpleArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.messaging.mmslib.pdu.GenericPdu;
+import com.android.messaging.mmslib.pdu.MultimediaMessagePdu;
+import com.android.messaging.mmslib.pdu.PduBody;
+
 import java.util.HashSet;
 
 public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
@@ -44,6 +48,14 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final int MMS_CONVERSATION    = 10;
     private static final int MMS_CONVERSATION_ID = 11;
 
+    // The cache keeps at most this many PDUs, taking up at most MAX_CACHED_BYTES of part data.
+    private static final int MAX_CACHED_ITEMS = 500;
+    private static final long MAX_CACHED_BYTES = 2 * 1024 * 1024;
+
+    // Rough size of a cached PDU besides its part data: the headers and object overhead.
+    private static final int PDU_OVERHEAD_BYTES = 512;
+    private static final int PART_OVERHEAD_BYTES = 128;
+
     private static final UriMatcher URI_MATCHER;
     private static final SparseArray<Integer> MATCH_TO_MSGBOX_ID_MAP;
 
@@ -76,6 +88,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private final HashSet<Uri> mUpdating;
 
     private PduCache() {
+        super(MAX_CACHED_ITEMS, MAX_CACHED_BYTES);
         mMessageBoxes = new SparseArray<HashSet<Uri>>();
         mThreads = new SimpleArrayMap<Long, HashSet<Uri>>();
         mUpdating = new HashSet<Uri>();
@@ -117,6 +130,55 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return result;
     }
 
+    @Override
+    public synchronized PduCacheEntry get(Uri uri) {
+        return super.get(uri);
+    }
+
+    @Override
+    protected int sizeOf(Uri uri, PduCacheEntry entry) {
+        int size = PDU_OVERHEAD_BYTES;
+        GenericPdu pdu = entry.getPdu();
+        if (pdu instanceof MultimediaMessagePdu) {
+            PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            if (body != null) {
+                for (int i = 0; i < body.getPartsNum(); i++) {
+                    size += PART_OVERHEAD_BYTES + body.getPart(i).getDataLength();
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    protected void onEntryEvicted(Uri uri, PduCacheEntry entry) {
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Evicted " + uri);
+        }
+        removeFromThreads(uri, entry);
+        removeFromMessageBoxes(uri, entry);
+    }
+
+    @Override
+    public synchronized int getHitCount() {
+        return super.getHitCount();
+    }
+
+    @Override
+    public synchronized int getMissCount() {
+        return super.getMissCount();
+    }
+
+    @Override
+    public synchronized int getEvictionCount() {
+        return super.getEvictionCount();
+    }
+
+    @Override
+    public synchronized long getSizeInBytes() {
+        return super.getSizeInBytes();
+    }
+
     public synchronized void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
@@ -254,7 +316,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
         }
@@ -16,10 +16,12 @@
 
 package com.android.messaging.receiver;
 
+import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.Telephony.Sms;
 import android.telephony.SmsMessage;
 
@@ -31,6 +33,8 @@ import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.sms.SmsSender;
 import com.android.messaging.util.LogUtil;
 
+import java.util.HashMap;
+
 /**
  * The SMS sent and delivery intent receiver.
  *
@@ -50,11 +54,24 @@ public class SendStatusReceiver extends BroadcastReceiver {
     public static final String EXTRA_ERROR_CODE = "errorCode";
 
     public static final String EXTRA_PART_ID = "partId";
+    public static final String EXTRA_PART_COUNT = "partCount";
     public static final String EXTRA_SUB_ID = "subId";
 
     public static final int NO_ERROR_CODE = -1;
     public static final int NO_PART_ID = -1;
 
+    /**
+     * The parts of a message seen so far whose sent status nothing was waiting for
+     */
+    private static class UnattendedSend {
+        int mSentPartCount;
+        int mFailedPartCount;
+    }
+
+    // Sends whose sent status is processed here, by message uri. Only accessed on the main thread.
+    private static final HashMap<Uri, UnattendedSend> sUnattendedSends =
+            new HashMap<Uri, UnattendedSend>();
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
         // This will be called on the main thread (so it should exit quickly)
@@ -62,12 +79,20 @@ public class SendStatusReceiver extends BroadcastReceiver {
         final int resultCode = getResultCode();
         if (MESSAGE_SENT_ACTION.equals(action)) {
             final Uri requestId = intent.getData();
-            SmsSender.setResult(
+            final int partId = intent.getIntExtra(EXTRA_PART_ID, NO_PART_ID);
+            final int subId = intent.getIntExtra(EXTRA_SUB_ID, ParticipantData.DEFAULT_SELF_SUB_ID);
+            final boolean pending = SmsSender.setResult(
                     requestId,
                     resultCode,
                     intent.getIntExtra(EXTRA_ERROR_CODE, NO_ERROR_CODE),
-                    intent.getIntExtra(EXTRA_PART_ID, NO_PART_ID),
-                    intent.getIntExtra(EXTRA_SUB_ID, ParticipantData.DEFAULT_SELF_SUB_ID));
+                    partId,
+                    subId);
+            if (!pending && requestId != null) {
+                // Nothing is waiting for the status, e.g. the process was restarted while the
+                // message was being sent, so process it as the MMS sent status is.
+                processUnattendedPartSent(resultCode, requestId,
+                        intent.getIntExtra(EXTRA_PART_COUNT, 1), subId, intent.getExtras());
+            }
         } else if (MMS_SENT_ACTION.equals(action)) {
             final Uri messageUri = intent.getData();
             ProcessSentMessageAction.processMmsSent(resultCode, messageUri,
@@ -117,4 +142,30 @@ public class SendStatusReceiver extends BroadcastReceiver {
             ProcessDeliveryReportAction.deliveryReportReceived(smsMessageUri, status);
         }
     }
+
+    /**
+     * Each part of a multipart message reports its own status. The message failed as soon as
+     * one of its parts failed, but was only sent once all of its parts were seen sent here. Parts
+     * whose status went to a process that has since died are never seen, so such a message is
+     * left as it is, i.e. failed by FixupMessageStatusOnStartupAction.
+     */
+    private static void processUnattendedPartSent(final int resultCode, final Uri messageUri,
+            final int partCount, final int subId, final Bundle extras) {
+        UnattendedSend send = sUnattendedSends.get(messageUri);
+        if (send == null) {
+            send = new UnattendedSend();
+            sUnattendedSends.put(messageUri, send);
+        }
+        if (resultCode == Activity.RESULT_OK) {
+            send.mSentPartCount++;
+        } else if (send.mFailedPartCount++ == 0) {
+            ProcessSentMessageAction.processSmsSent(resultCode, messageUri, subId, extras);
+        }
+        if (send.mSentPartCount + send.mFailedPartCount >= partCount) {
+            sUnattendedSends.remove(messageUri);
+            if (send.mFailedPartCount == 0) {
+                ProcessSentMessageAction.processSmsSent(resultCode, messageUri, subId, extras);
+            }
+        }
+    }
 }
@@ -44,9 +44,12 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Class that sends chat message via MMS.
@@ -174,33 +177,31 @@ public class MmsSender {
             throws MmsFailureException {
         final Uri contentUri = MmsFileProvider.buildRawMmsUri();
         final File tempFile = MmsFileProvider.getFile(contentUri);
-        FileOutputStream writer = null;
+        OutputStream writer = null;
+        boolean written = false;
         try {
             // Ensure rawmms directory exists
             tempFile.getParentFile().mkdirs();
-            writer = new FileOutputStream(tempFile);
-            final byte[] pduBytes = new PduComposer(context, pdu).make();
-            if (pduBytes == null) {
+            writer = new BufferedOutputStream(new FileOutputStream(tempFile));
+            // Compose straight into the file, so the attachments are never all in memory at once
+            final long pduLength = new PduComposer(context, pdu).make(writer);
+            if (pduLength < 0) {
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY, "Failed to compose PDU");
             }
-            if (pduBytes.length > MmsConfig.get(subId).getMaxMessageSize()) {
+            if (pduLength > MmsConfig.get(subId).getMaxMessageSize()) {
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY,
                         MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
             }
-            writer.write(pduBytes);
+            writer.close();
+            writer = null;
+            written = true;
         } catch (final IOException e) {
-            if (tempFile != null) {
-                tempFile.delete();
-            }
             LogUtil.e(TAG, "Cannot create temporary file " + tempFile.getAbsolutePath(), e);
             throw new MmsFailureException(
                     MmsUtils.MMS_REQUEST_AUTO_RETRY, "Cannot create raw mms file");
         } catch (final OutOfMemoryError e) {
-            if (tempFile != null) {
-                tempFile.delete();
-            }
             LogUtil.e(TAG, "Out of memory in composing PDU", e);
             throw new MmsFailureException(
                     MmsUtils.MMS_REQUEST_MANUAL_RETRY,
@@ -213,6 +214,10 @@ public class MmsSender {
                     // no action we can take here
                 }
             }
+            if (!written) {
+                // Don't leave a partly written message behind
+                tempFile.delete();
+            }
         }
         return contentUri;
     }
@@ -268,7 +273,7 @@ public class MmsSender {
                 downloadedPendingIntent);
     }
 
-    public static RetrieveConf parseRetrieveConf(byte[] data, int subId) {
+    public static RetrieveConf parseRetrieveConf(ByteBuffer data, int subId) {
         if (data != null) {
             final GenericPdu pdu = new PduParser(
                     data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse();
@@ -16,6 +16,7 @@
 
 package com.android.messaging.sms;
 
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -79,6 +80,7 @@ import com.android.messaging.util.MediaMetadataRetrieverWrapper;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -95,6 +97,15 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utils for sending sms/mms messages.
@@ -147,6 +158,12 @@ public class MmsUtils {
 
     // amount of space to leave in a MMS for text and overhead.
     private static final int MMS_MAX_SIZE_SLOP = 1024;
+
+    // Memory class needed per thread preparing the attachments of an outgoing MMS concurrently
+    private static final int MEMORY_CLASS_MB_PER_ATTACHMENT_THREAD = 64;
+    private static final long ATTACHMENT_THREAD_KEEP_ALIVE_SECONDS = 10;
+    private static ExecutorService sAttachmentExecutor;
+
     public static final long INVALID_TIMESTAMP = 0L;
     private static String[] sNoSubjectStrings;
 
@@ -299,8 +316,10 @@ public class MmsUtils {
         // non-image attachments.
         int totalLength = 0;
         int countImage = 0;
+        final List<MessagePartData> attachments = new ArrayList<MessagePartData>();
         for (final MessagePartData part : message.getParts()) {
             if (part.isAttachment()) {
+                attachments.add(part);
                 final String contentType = part.getContentType();
                 if (ContentType.isImageType(contentType)) {
                     countImage++;
@@ -320,69 +339,33 @@ public class MmsUtils {
         final int widthLimit = MmsConfig.get(subId).getMaxImageWidth();
         final int heightLimit = MmsConfig.get(subId).getMaxImageHeight();
 
-        // Actually add the attachments, shrinking images appropriately.
-        int index = 0;
+        // Actually add the attachments, shrinking images appropriately. Each image gets its
+        // share of the byte budget up front, so they can be prepared concurrently and then be
+        // added in their original order.
+        final List<PreparedAttachment> preparedAttachments = prepareAttachments(context,
+                attachments, widthLimit, heightLimit, bytesPerImage);
         totalLength = 0;
         boolean hasVisualAttachment = false;
         boolean hasNonVisualAttachment = false;
         boolean hasText = false;
         final StringBuilder smilBody = new StringBuilder();
-        for (final MessagePartData part : message.getParts()) {
-            String srcName;
-            if (part.isAttachment()) {
-                String contentType = part.getContentType();
-                final String extension = ContentType.getExtensionFromMimeType(contentType);
-                if (ContentType.isImageType(contentType)) {
-                    if (extension != null) {
-                        srcName = String.format("image%06d.%s", index, extension);
-                    } else {
-                        // There's a good chance that if we selected the image from our media picker
-                        // the content type is image/*. Fix the content type here for gifs so that
-                        // we only need to open the input stream once. All other gif vs static image
-                        // checks will only have to do a string comparison which is much cheaper.
-                        final boolean isGif = ImageUtils.isGif(contentType, part.getContentUri());
-                        contentType = isGif ? ContentType.IMAGE_GIF : contentType;
-                        srcName = String.format(isGif ? "image%06d.gif" : "image%06d.jpg", index);
-                    }
-                    smilBody.append(String.format(sSmilImagePart, srcName));
-                    totalLength += addPicturePart(context, pb, index, part,
-                            widthLimit, heightLimit, bytesPerImage, srcName, contentType);
-                    hasVisualAttachment = true;
-                } else if (ContentType.isVideoType(contentType)) {
-                    srcName = String.format("video%06d.%s", index,
-                            extension != null ? extension : "mp4");
-                    final int length = addVideoPart(context, pb, part, srcName);
-                    totalLength += length;
-                    smilBody.append(String.format(sSmilVideoPart, srcName,
-                            getMediaDurationMs(context, part, DEFAULT_DURATION)));
-                    hasVisualAttachment = true;
-                } else if (ContentType.isVCardType(contentType)) {
-                    srcName = String.format("contact%06d.vcf", index);
-                    totalLength += addVCardPart(context, pb, part, srcName);
-                    smilBody.append(String.format(sSmilPart, srcName));
-                    hasNonVisualAttachment = true;
-                } else if (ContentType.isAudioType(contentType)) {
-                    srcName = String.format("recording%06d.%s",
-                            index, extension != null ? extension : "amr");
-                    totalLength += addOtherPart(context, pb, part, srcName);
-                    final int duration = getMediaDurationMs(context, part, -1);
-                    Assert.isTrue(duration != -1);
-                    smilBody.append(String.format(sSmilAudioPart, srcName, duration));
-                    hasNonVisualAttachment = true;
-                } else {
-                    srcName = String.format("other%06d.dat", index);
-                    totalLength += addOtherPart(context, pb, part, srcName);
-                    smilBody.append(String.format(sSmilPart, srcName));
-                }
-                index++;
+        for (final PreparedAttachment attachment : preparedAttachments) {
+            for (int i = 0; i < attachment.mBody.getPartsNum(); i++) {
+                pb.addPart(attachment.mBody.getPart(i));
             }
+            totalLength += attachment.mLength;
+            smilBody.append(attachment.mSmil);
+            hasVisualAttachment |= attachment.mIsVisual;
+            hasNonVisualAttachment |= attachment.mIsNonVisual;
+        }
+        for (final MessagePartData part : message.getParts()) {
             if (!TextUtils.isEmpty(part.getText())) {
                 hasText = true;
             }
         }
 
         if (hasText) {
-            final String srcName = String.format("text.%06d.txt", index);
+            final String srcName = String.format("text.%06d.txt", attachments.size());
             final String text = message.getMessageText();
             totalLength += addTextPart(context, pb, text, srcName);
 
@@ -401,6 +384,157 @@ public class MmsUtils {
         return mmsInfo;
     }
 
+    /**
+     * An attachment made ready for the PDU body, in a body of its own which holds its part unless
+     * it couldn't be read
+     */
+    private static class PreparedAttachment {
+        final PduBody mBody = new PduBody();
+        int mLength;
+        String mSmil;
+        boolean mIsVisual;
+        boolean mIsNonVisual;
+    }
+
+    /**
+     * Prepares the attachments of a message, which for images means resizing them, concurrently
+     * when there are several of them.
+     * @return the prepared attachments in the order of the given ones
+     */
+    private static List<PreparedAttachment> prepareAttachments(final Context context,
+            final List<MessagePartData> attachments, final int widthLimit, final int heightLimit,
+            final int bytesPerImage) {
+        final List<PreparedAttachment> preparedAttachments =
+                new ArrayList<PreparedAttachment>(attachments.size());
+        final ExecutorService executor = attachments.size() > 1 ?
+                getAttachmentExecutor(context) : null;
+        if (executor == null) {
+            for (int index = 0; index < attachments.size(); index++) {
+                preparedAttachments.add(prepareAttachment(context, attachments.get(index), index,
+                        widthLimit, heightLimit, bytesPerImage));
+            }
+            return preparedAttachments;
+        }
+
+        final List<Future<PreparedAttachment>> futures =
+                new ArrayList<Future<PreparedAttachment>>(attachments.size());
+        try {
+            for (int index = 0; index < attachments.size(); index++) {
+                final MessagePartData attachment = attachments.get(index);
+                final int attachmentIndex = index;
+                futures.add(executor.submit(new Callable<PreparedAttachment>() {
+                    @Override
+                    public PreparedAttachment call() {
+                        return prepareAttachment(context, attachment, attachmentIndex,
+                                widthLimit, heightLimit, bytesPerImage);
+                    }
+                }));
+            }
+            for (final Future<PreparedAttachment> future : futures) {
+                preparedAttachments.add(Uninterruptibles.getUninterruptibly(future));
+            }
+        } catch (final ExecutionException e) {
+            // Fail the same way as when preparing the attachments on the calling thread
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            // Don't start preparing the remaining attachments after a failure
+            for (final Future<PreparedAttachment> future : futures) {
+                future.cancel(false /* mayInterruptIfRunning */);
+            }
+        }
+        return preparedAttachments;
+    }
+
+    /**
+     * @return the executor to prepare attachments on, or null if there should be no more than one
+     *     attachment prepared at a time
+     */
+    private static synchronized ExecutorService getAttachmentExecutor(final Context context) {
+        if (sAttachmentExecutor == null) {
+            // Resizing an image takes a core, and decodes a bitmap of up to several megapixels
+            final ActivityManager am =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            final int threadCount = Math.min(Runtime.getRuntime().availableProcessors(),
+                    am.getMemoryClass() / MEMORY_CLASS_MB_PER_ATTACHMENT_THREAD);
+            if (threadCount <= 1) {
+                return null;
+            }
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                    ATTACHMENT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(runnable,
+                                    "MmsAttachment-" + mCount.incrementAndGet());
+                        }
+                    });
+            // Only keep threads around while a message is being sent
+            executor.allowCoreThreadTimeOut(true);
+            sAttachmentExecutor = executor;
+        }
+        return sAttachmentExecutor;
+    }
+
+    private static PreparedAttachment prepareAttachment(final Context context,
+            final MessagePartData part, final int index, final int widthLimit,
+            final int heightLimit, final int bytesPerImage) {
+        final PreparedAttachment attachment = new PreparedAttachment();
+        final PduBody pb = attachment.mBody;
+        String srcName;
+        String contentType = part.getContentType();
+        final String extension = ContentType.getExtensionFromMimeType(contentType);
+        if (ContentType.isImageType(contentType)) {
+            if (extension != null) {
+                srcName = String.format("image%06d.%s", index, extension);
+            } else {
+                // There's a good chance that if we selected the image from our media picker
+                // the content type is image/*. Fix the content type here for gifs so that
+                // we only need to open the input stream once. All other gif vs static image
+                // checks will only have to do a string comparison which is much cheaper.
+                final boolean isGif = ImageUtils.isGif(contentType, part.getContentUri());
+                contentType = isGif ? ContentType.IMAGE_GIF : contentType;
+                srcName = String.format(isGif ? "image%06d.gif" : "image%06d.jpg", index);
+            }
+            attachment.mSmil = String.format(sSmilImagePart, srcName);
+            attachment.mLength = addPicturePart(context, pb, 0 /* index */, part,
+                    widthLimit, heightLimit, bytesPerImage, srcName, contentType);
+            attachment.mIsVisual = true;
+        } else if (ContentType.isVideoType(contentType)) {
+            srcName = String.format("video%06d.%s", index,
+                    extension != null ? extension : "mp4");
+            attachment.mLength = addVideoPart(context, pb, part, srcName);
+            attachment.mSmil = String.format(sSmilVideoPart, srcName,
+                    getMediaDurationMs(context, part, DEFAULT_DURATION));
+            attachment.mIsVisual = true;
+        } else if (ContentType.isVCardType(contentType)) {
+            srcName = String.format("contact%06d.vcf", index);
+            attachment.mLength = addVCardPart(context, pb, part, srcName);
+            attachment.mSmil = String.format(sSmilPart, srcName);
+            attachment.mIsNonVisual = true;
+        } else if (ContentType.isAudioType(contentType)) {
+            srcName = String.format("recording%06d.%s",
+                    index, extension != null ? extension : "amr");
+            attachment.mLength = addOtherPart(context, pb, part, srcName);
+            final int duration = getMediaDurationMs(context, part, -1);
+            Assert.isTrue(duration != -1);
+            attachment.mSmil = String.format(sSmilAudioPart, srcName, duration);
+            attachment.mIsNonVisual = true;
+        } else {
+            srcName = String.format("other%06d.dat", index);
+            attachment.mLength = addOtherPart(context, pb, part, srcName);
+            attachment.mSmil = String.format(sSmilPart, srcName);
+        }
+        return attachment;
+    }
+
     private static int getMediaDurationMs(final Context context, final MessagePartData part,
             final int defaultDurationMs) {
         Assert.notNull(context);
@@ -2457,46 +2591,84 @@ public class MmsUtils {
         return prefs.getBoolean(deliveryReportKey, defaultValue);
     }
 
-    public static int sendSmsMessage(final String recipient, final String messageText,
+    /**
+     * Callback for the status of an SMS sent with {@link #sendSmsMessage}
+     */
+    public interface SmsSendCallback {
+        /**
+         * @param status the MMS_REQUEST_* status of the send
+         */
+        void onSmsSent(int status);
+    }
+
+    /**
+     * Sends an SMS without waiting for it to be sent. The callback gets the status once it is
+     * known; it's called on the calling thread if the message can't be sent at all, and otherwise
+     * on the main thread or the send timeout thread. The extras come back with the sent status
+     * intents.
+     */
+    public static void sendSmsMessage(final String recipient, final String messageText,
             final Uri requestUri, final int subId,
-            final String smsServiceCenter, final boolean requireDeliveryReport) {
+            final String smsServiceCenter, final boolean requireDeliveryReport,
+            final Bundle extras, final SmsSendCallback callback) {
         if (!isSmsDataAvailable(subId)) {
             LogUtil.w(TAG, "MmsUtils: can't send SMS without radio");
-            return MMS_REQUEST_MANUAL_RETRY;
+            callback.onSmsSent(MMS_REQUEST_MANUAL_RETRY);
+            return;
         }
         final Context context = Factory.get().getApplicationContext();
-        int status = MMS_REQUEST_MANUAL_RETRY;
         try {
             // Send a single message
-            final SendResult result = SmsSender.sendMessage(
+            SmsSender.sendMessage(
                     context,
                     subId,
                     recipient,
                     messageText,
                     smsServiceCenter,
                     requireDeliveryReport,
-                    requestUri);
-            if (!result.hasPending()) {
-                // not timed out, check failures
-                final int failureLevel = result.getHighestFailureLevel();
-                switch (failureLevel) {
-                    case SendResult.FAILURE_LEVEL_NONE:
-                        status = MMS_REQUEST_SUCCEEDED;
-                        break;
-                    case SendResult.FAILURE_LEVEL_TEMPORARY:
-                        status = MMS_REQUEST_AUTO_RETRY;
-                        LogUtil.e(TAG, "MmsUtils: SMS temporary failure");
-                        break;
-                    case SendResult.FAILURE_LEVEL_PERMANENT:
-                        LogUtil.e(TAG, "MmsUtils: SMS permanent failure");
-                        break;
-                }
-            } else {
-                // Timed out
-                LogUtil.e(TAG, "MmsUtils: sending SMS timed out");
-            }
+                    requestUri,
+                    extras,
+                    new SmsSender.SendCallback() {
+                        @Override
+                        public void onSendComplete(final SendResult result) {
+                            callback.onSmsSent(getSmsSendStatus(result));
+                        }
+                    });
         } catch (final Exception e) {
             LogUtil.e(TAG, "MmsUtils: failed to send SMS " + e, e);
+            callback.onSmsSent(MMS_REQUEST_MANUAL_RETRY);
+        }
+    }
+
+    /**
+     * Gets the MMS_REQUEST_* status of an SMS from a single sent result code
+     */
+    public static int getSmsSendStatus(final int resultCode) {
+        final SendResult result = new SendResult(1 /* numOfParts */);
+        result.setPartResult(resultCode);
+        return getSmsSendStatus(result);
+    }
+
+    private static int getSmsSendStatus(final SendResult result) {
+        int status = MMS_REQUEST_MANUAL_RETRY;
+        if (!result.hasPending()) {
+            // not timed out, check failures
+            final int failureLevel = result.getHighestFailureLevel();
+            switch (failureLevel) {
+                case SendResult.FAILURE_LEVEL_NONE:
+                    status = MMS_REQUEST_SUCCEEDED;
+                    break;
+                case SendResult.FAILURE_LEVEL_TEMPORARY:
+                    status = MMS_REQUEST_AUTO_RETRY;
+                    LogUtil.e(TAG, "MmsUtils: SMS temporary failure");
+                    break;
+                case SendResult.FAILURE_LEVEL_PERMANENT:
+                    LogUtil.e(TAG, "MmsUtils: SMS permanent failure");
+                    break;
+            }
+        } else {
+            // Timed out
+            LogUtil.e(TAG, "MmsUtils: sending SMS timed out");
         }
         return status;
     }
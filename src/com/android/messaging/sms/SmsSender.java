@@ -21,7 +21,9 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.SystemClock;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
 import android.text.TextUtils;
@@ -43,11 +45,11 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Class that sends chat message via SMS.
  *
- * The interface emulates a blocking sending similar to making an HTTP request.
- * It calls the SmsManager to send a (potentially multipart) message and waits
- * on the sent status on each part. The waiting has a timeout so it won't wait
- * forever. Once the sent status of all parts received, the call returns.
- * A successful sending requires success status for all parts. Otherwise, we
+ * It calls the SmsManager to send a (potentially multipart) message and collects
+ * the sent status of each part, then calls back the caller. The send has a timeout so
+ * the callback comes even if some sent status never does; the timeouts of all the
+ * messages in flight are handled on one shared thread, so no thread is held while
+ * waiting. A successful sending requires success status for all parts. Otherwise, we
  * pick the highest level of failure as the error for the whole message, which
  * is used to determine if we need to retry the sending.
  */
@@ -64,6 +66,21 @@ public class SmsSender {
 
     private static final Random RANDOM = new Random();
 
+    // Handler of the thread timing out the sends, created on first use
+    private static Handler sTimeoutHandler;
+
+    /**
+     * Callback for the completion of a send
+     */
+    public interface SendCallback {
+        /**
+         * Called once when the sent status of all the parts has been received, or when the send
+         * timed out, in which case the result still has pending parts. This is called on the
+         * main thread or on the timeout thread, so it should exit quickly.
+         */
+        void onSendComplete(SendResult result);
+    }
+
     /**
      * Class that holds the sent status for all parts of a multipart message sending
      */
@@ -80,6 +97,17 @@ public class SmsSender {
         // Tracking the highest level of failure among all parts
         private int mHighestFailureLevel;
 
+        private SendCallback mCallback;
+        private Uri mRequestId;
+        private boolean mCompleted;
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                LogUtil.w(TAG, "SmsSender: sending timed out. requestId=" + mRequestId);
+                complete();
+            }
+        };
+
         public SendResult(final int numOfParts) {
             Assert.isTrue(numOfParts > 0);
             mPendingParts = numOfParts;
@@ -100,6 +128,26 @@ public class SmsSender {
             return mHighestFailureLevel;
         }
 
+        /**
+         * Calls back the sender unless that's already been done
+         */
+        private void complete() {
+            // The last part's status and the timeout may race to complete the send
+            synchronized (this) {
+                if (mCompleted) {
+                    return;
+                }
+                mCompleted = true;
+            }
+            sPendingMessageMap.remove(mRequestId, this);
+            getTimeoutHandler().removeCallbacks(mTimeoutRunnable);
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "SmsSender: sending completed. requestId=" + mRequestId
+                        + " result=" + this);
+            }
+            mCallback.onSendComplete(this);
+        }
+
         private int getFailureLevel(final int resultCode) {
             switch (resultCode) {
                 case Activity.RESULT_OK:
@@ -134,7 +182,12 @@ public class SmsSender {
         }
     }
 
-    public static void setResult(final Uri requestId, final int resultCode,
+    /**
+     * Records the sent status of one part of a message
+     * @return false if no send in progress was waiting for it, because the send timed out or the
+     *     process was restarted since the message was sent
+     */
+    public static boolean setResult(final Uri requestId, final int resultCode,
             final int errorCode, final int partId, int subId) {
         if (resultCode != Activity.RESULT_OK) {
             LogUtil.e(TAG, "SmsSender: failure in sending message part. "
@@ -153,17 +206,22 @@ public class SmsSender {
         if (requestId != null) {
             final SendResult result = sPendingMessageMap.get(requestId);
             if (result != null) {
+                final boolean hasPending;
                 synchronized (result) {
                     result.setPartResult(resultCode);
-                    if (!result.hasPending()) {
-                        result.notifyAll();
-                    }
+                    hasPending = result.hasPending();
                 }
+                if (!hasPending) {
+                    result.complete();
+                }
+                return true;
             } else {
-                LogUtil.e(TAG, "SmsSender: ignoring sent result. " + " requestId=" + requestId
-                        + " partId=" + partId + " resultCode=" + resultCode);
+                LogUtil.w(TAG, "SmsSender: no pending send for sent result. "
+                        + " requestId=" + requestId + " partId=" + partId
+                        + " resultCode=" + resultCode);
             }
         }
+        return false;
     }
 
     private static String getSendErrorToastMessage(final Context context, final int subId,
@@ -176,10 +234,19 @@ public class SmsSender {
         }
     }
 
-    // This should be called from a RequestWriter queue thread
-    public static SendResult sendMessage(final Context context, final int subId, String dest,
+    /**
+     * Sends a message and returns without waiting for it to be sent.
+     *
+     * @param extras added to the sent status intents, for processing the status if it comes back
+     *     after the process was restarted
+     * @param callback called once the message has been sent or the send timed out. Not called
+     *     if this throws.
+     * @throws SmsException if the message can't be sent at all
+     */
+    public static void sendMessage(final Context context, final int subId, String dest,
             String message, final String serviceCenter, final boolean requireDeliveryReport,
-            final Uri messageUri) throws SmsException {
+            final Uri messageUri, final Bundle extras, final SendCallback callback)
+            throws SmsException {
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "SmsSender: sending message. " +
                     "dest=" + dest + " message=" + message +
@@ -215,42 +282,47 @@ public class SmsSender {
         }
         // Prepare the send result, which collects the send status for each part
         final SendResult pendingResult = new SendResult(messages.size());
+        pendingResult.mRequestId = messageUri;
+        pendingResult.mCallback = callback;
         sPendingMessageMap.put(messageUri, pendingResult);
+        // Start the timeout before sending, so that it can be cancelled by the sent status
+        final long smsSendTimeoutInMillis = BugleGservices.get().getLong(
+                BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS,
+                BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT);
+        final Handler timeoutHandler = getTimeoutHandler();
+        timeoutHandler.postDelayed(pendingResult.mTimeoutRunnable, smsSendTimeoutInMillis);
         // Actually send the sms
-        sendInternal(
-                context, subId, dest, messages, serviceCenter, requireDeliveryReport, messageUri);
-        // Wait for pending intent to come back
-        synchronized (pendingResult) {
-            final long smsSendTimeoutInMillis = BugleGservices.get().getLong(
-                    BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS,
-                    BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT);
-            final long beginTime = SystemClock.elapsedRealtime();
-            long waitTime = smsSendTimeoutInMillis;
-            // We could possibly be woken up while still pending
-            // so make sure we wait the full timeout period unless
-            // we have the send results of all parts.
-            while (pendingResult.hasPending() && waitTime > 0) {
-                try {
-                    pendingResult.wait(waitTime);
-                } catch (final InterruptedException e) {
-                    LogUtil.e(TAG, "SmsSender: sending wait interrupted");
+        try {
+            sendInternal(context, subId, dest, messages, serviceCenter, requireDeliveryReport,
+                    messageUri, extras);
+        } catch (final SmsException e) {
+            synchronized (pendingResult) {
+                if (pendingResult.mCompleted) {
+                    // The status of every part came back anyway, and the callback has it
+                    return;
                 }
-                waitTime = smsSendTimeoutInMillis - (SystemClock.elapsedRealtime() - beginTime);
+                pendingResult.mCompleted = true;
             }
+            sPendingMessageMap.remove(messageUri, pendingResult);
+            timeoutHandler.removeCallbacks(pendingResult.mTimeoutRunnable);
+            throw e;
         }
-        // Either we timed out or have all the results (success or failure)
-        sPendingMessageMap.remove(messageUri);
-        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "SmsSender: sending completed. " +
-                    "dest=" + dest + " message=" + message + " result=" + pendingResult);
+    }
+
+    private static synchronized Handler getTimeoutHandler() {
+        if (sTimeoutHandler == null) {
+            final HandlerThread thread = new HandlerThread("SmsSender");
+            thread.start();
+            sTimeoutHandler = new Handler(thread.getLooper());
         }
-        return pendingResult;
+        return sTimeoutHandler;
     }
 
     // Actually sending the message using SmsManager
     private static void sendInternal(final Context context, final int subId, String dest,
             final ArrayList<String> messages, final String serviceCenter,
-            final boolean requireDeliveryReport, final Uri messageUri) throws SmsException {
+            final boolean requireDeliveryReport, final Uri messageUri, final Bundle extras)
+            throws SmsException {
         Assert.notNull(context);
         final SmsManager smsManager = PhoneUtils.get(subId).getSmsManager();
         final int messageCount = messages.size();
@@ -266,7 +338,7 @@ public class SmsSender {
                         context,
                         partId,
                         getSendStatusIntent(context, SendStatusReceiver.MESSAGE_DELIVERED_ACTION,
-                                messageUri, partId, subId),
+                                messageUri, partId, subId, null /* extras */),
                         0/*flag*/));
             } else {
                 deliveryIntents.add(null);
@@ -275,7 +347,8 @@ public class SmsSender {
                     context,
                     partId,
                     getSendStatusIntent(context, SendStatusReceiver.MESSAGE_SENT_ACTION,
-                            messageUri, partId, subId),
+                            messageUri, partId, subId, extras)
+                            .putExtra(SendStatusReceiver.EXTRA_PART_COUNT, messageCount),
                     0/*flag*/));
         }
         try {
@@ -298,9 +371,12 @@ public class SmsSender {
     }
 
     private static Intent getSendStatusIntent(final Context context, final String action,
-            final Uri requestUri, final int partId, final int subId) {
+            final Uri requestUri, final int partId, final int subId, final Bundle extras) {
         // Encode requestId in intent data
         final Intent intent = new Intent(action, requestUri, context, SendStatusReceiver.class);
+        if (extras != null) {
+            intent.putExtras(extras);
+        }
         intent.putExtra(SendStatusReceiver.EXTRA_PART_ID, partId);
         intent.putExtra(SendStatusReceiver.EXTRA_SUB_ID, subId);
         return intent;
@@ -398,6 +398,9 @@ public class AsyncImageView extends ImageView implements MediaResourceLoadListen
 
     private void unbindView() {
         if (mImageRequestBinding.isBound()) {
+            // Drop the request from the loading queue right away if we were the only one waiting
+            // on it, rather than leaving it there to be discarded when it reaches the front.
+            MediaResourceManager.get().cancelMediaResourceRequest(mImageRequestBinding.getData());
             mImageRequestBinding.unbind();
             if (mDelayLoader != null) {
                 mDelayLoader.unregisterView(this);
@@ -33,6 +33,7 @@ import com.android.ex.chips.RecipientAlternatesAdapter;
 import com.android.ex.chips.RecipientAlternatesAdapter.RecipientMatchCallback;
 import com.android.ex.chips.RecipientEntry;
 import com.android.messaging.R;
+import com.android.messaging.datamodel.ContactIndex;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.BugleGservices;
@@ -81,6 +82,8 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
         super(context, preferredMaxResultCount, queryMode);
         setPhotoManager(new ContactRecipientPhotoManager(context, clivHost));
         mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        // Load the contact index while the user starts typing
+        ContactIndex.get().prepare();
     }
 
     @Override
@@ -104,11 +107,18 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
         // Used to sort filtered contacts when it has combined results from email and phone.
         private final RecipientEntryComparator mComparator = new RecipientEntryComparator();
 
+        // Results of the previous search, narrowed down when the search text is extended
+        private ContactIndex.Result mPersonalResult;
+        private ContactIndex.Result mEnterpriseResult;
+
         /**
          * Returns a cursor containing the filtered results in contacts given the search text,
          * and a boolean indicating whether the results are sorted.
          *
-         * The queries are synchronously performed since this is not run on the main thread.
+         * The personal contacts are searched in the {@link ContactIndex} once it is loaded, and
+         * the results of the previous search are narrowed down when the search text extends its
+         * search text. Other queries are synchronously performed since this is not run on the
+         * main thread. When the index is disabled, every search queries the contacts provider.
          *
          * Some locales (e.g. JPN) expect email addresses to be auto-completed for MMS.
          * If this is the case, perform two queries on phone number followed by email and
@@ -117,43 +127,91 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
         @DoesNotRunOnMainThread
         private CursorResult getFilteredResultsCursor(final String searchText) {
             Assert.isNotMainThread();
-            if (BugleGservices.get().getBoolean(
+            final boolean alwaysAutocompleteEmail = BugleGservices.get().getBoolean(
                     BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS,
-                    BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS_DEFAULT)) {
+                    BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS_DEFAULT);
+            final int kinds;
+            if (alwaysAutocompleteEmail) {
+                kinds = ContactIndex.KIND_PHONES | ContactIndex.KIND_EMAILS;
+            } else {
+                kinds = ContactUtil.shouldFilterForEmail(searchText)
+                        ? ContactIndex.KIND_EMAILS : ContactIndex.KIND_PHONES;
+            }
+            final boolean useContactIndex = ContactIndex.isEnabled();
+
+            final Cursor personalCursor;
+            if (useContactIndex) {
+                mPersonalResult = queryContactIndex(searchText, kinds);
+                if (mPersonalResult == null) {
+                    mPersonalResult = ContactIndex.fromCursor(searchText, kinds,
+                            queryPersonalContacts(searchText, alwaysAutocompleteEmail));
+                }
+                personalCursor = mPersonalResult.toCursor();
+            } else {
+                mPersonalResult = null;
+                personalCursor = queryPersonalContacts(searchText, alwaysAutocompleteEmail);
+            }
+            final CursorResult cursorResult =
+                    new CursorResult(personalCursor, !alwaysAutocompleteEmail /* sorted */);
+
+            if (OsUtil.isAtLeastN()) {
+                // Including enterprise result starting from N.
+                if (useContactIndex) {
+                    mEnterpriseResult = ContactIndex.narrow(searchText, kinds, mEnterpriseResult);
+                    if (mEnterpriseResult == null) {
+                        mEnterpriseResult = ContactIndex.fromCursor(searchText, kinds,
+                                queryEnterpriseContacts(searchText, alwaysAutocompleteEmail));
+                    }
+                    cursorResult.enterpriseCursor = mEnterpriseResult.toCursor();
+                } else {
+                    mEnterpriseResult = null;
+                    cursorResult.enterpriseCursor =
+                            queryEnterpriseContacts(searchText, alwaysAutocompleteEmail);
+                }
+            }
+            return cursorResult;
+        }
 
+        /**
+         * Searches the personal contacts in the {@link ContactIndex}, or, until it is loaded,
+         * narrows down the previous results.
+         *
+         * @return the results, or null if the contacts provider has to be queried
+         */
+        private ContactIndex.Result queryContactIndex(final String searchText, final int kinds) {
+            final ContactIndex.Result result =
+                    ContactIndex.get().query(searchText, kinds, mPersonalResult);
+            return result != null ? result
+                    : ContactIndex.narrow(searchText, kinds, mPersonalResult);
+        }
+
+        private Cursor queryPersonalContacts(final String searchText,
+                final boolean alwaysAutocompleteEmail) {
+            if (alwaysAutocompleteEmail) {
                 final Cursor personalFilterPhonesCursor = ContactUtil
                         .filterPhones(getContext(), searchText).performSynchronousQuery();
                 final Cursor personalFilterEmailsCursor = ContactUtil
                         .filterEmails(getContext(), searchText).performSynchronousQuery();
-                final Cursor personalCursor = new MergeCursor(
+                return new MergeCursor(
                         new Cursor[]{personalFilterEmailsCursor, personalFilterPhonesCursor});
-                final CursorResult cursorResult =
-                        new CursorResult(personalCursor, false /* sorted */);
-                if (OsUtil.isAtLeastN()) {
-                    // Including enterprise result starting from N.
-                    final Cursor enterpriseFilterPhonesCursor = ContactUtil.filterPhonesEnterprise(
-                            getContext(), searchText).performSynchronousQuery();
-                    final Cursor enterpriseFilterEmailsCursor = ContactUtil.filterEmailsEnterprise(
-                            getContext(), searchText).performSynchronousQuery();
-                    final Cursor enterpriseCursor = new MergeCursor(
-                            new Cursor[]{enterpriseFilterEmailsCursor,
-                                    enterpriseFilterPhonesCursor});
-                    cursorResult.enterpriseCursor = enterpriseCursor;
-                }
-                return cursorResult;
             } else {
-                final Cursor personalFilterDestinationCursor = ContactUtil
-                        .filterDestination(getContext(), searchText).performSynchronousQuery();
-                final CursorResult cursorResult = new CursorResult(personalFilterDestinationCursor,
-                        true);
-                if (OsUtil.isAtLeastN()) {
-                    // Including enterprise result starting from N.
-                    final Cursor enterpriseFilterDestinationCursor = ContactUtil
-                            .filterDestinationEnterprise(getContext(), searchText)
-                            .performSynchronousQuery();
-                    cursorResult.enterpriseCursor = enterpriseFilterDestinationCursor;
-                }
-                return cursorResult;
+                return ContactUtil.filterDestination(getContext(), searchText)
+                        .performSynchronousQuery();
+            }
+        }
+
+        private Cursor queryEnterpriseContacts(final String searchText,
+                final boolean alwaysAutocompleteEmail) {
+            if (alwaysAutocompleteEmail) {
+                final Cursor enterpriseFilterPhonesCursor = ContactUtil.filterPhonesEnterprise(
+                        getContext(), searchText).performSynchronousQuery();
+                final Cursor enterpriseFilterEmailsCursor = ContactUtil.filterEmailsEnterprise(
+                        getContext(), searchText).performSynchronousQuery();
+                return new MergeCursor(
+                        new Cursor[]{enterpriseFilterEmailsCursor, enterpriseFilterPhonesCursor});
+            } else {
+                return ContactUtil.filterDestinationEnterprise(getContext(), searchText)
+                        .performSynchronousQuery();
             }
         }
 
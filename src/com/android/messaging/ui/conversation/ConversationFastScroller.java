@@ -69,6 +69,14 @@ public class ConversationFastScroller extends RecyclerView.OnScrollListener impl
         return null;
     }
 
+    /**
+     * Reports how many older messages the conversation has beyond the ones in the list, when only
+     * the newest messages are loaded. The scrollbar then covers the whole conversation.
+     */
+    public interface OlderItemCountProvider {
+        int getOlderItemCount();
+    }
+
     public static final int POSITION_RIGHT_SIDE = 0;
     public static final int POSITION_LEFT_SIDE = 1;
 
@@ -107,6 +115,9 @@ public class ConversationFastScroller extends RecyclerView.OnScrollListener impl
     // Whether the user is currently dragging the thumb up or down.
     private boolean mDragging = false;
 
+    // Provides the number of messages not loaded into the list yet. May be null.
+    private OlderItemCountProvider mOlderItemCountProvider;
+
     // Animations responsible for hiding the scrollbar & preview. May be null.
     private AnimatorSet mHideAnimation;
     private ObjectAnimator mHidePreviewAnimation;
@@ -180,6 +191,14 @@ public class ConversationFastScroller extends RecyclerView.OnScrollListener impl
         }
     }
 
+    public void setOlderItemCountProvider(final OlderItemCountProvider provider) {
+        mOlderItemCountProvider = provider;
+    }
+
+    private int getOlderItemCount() {
+        return mOlderItemCountProvider == null ? 0 : mOlderItemCountProvider.getOlderItemCount();
+    }
+
     @Override
     public void onScrollStateChanged(final RecyclerView view, final int newState) {
         if (newState == RecyclerView.SCROLL_STATE_DRAGGING) {
@@ -202,8 +221,10 @@ public class ConversationFastScroller extends RecyclerView.OnScrollListener impl
             return false; // Conversation isn't long enough to scroll
         }
         // Only enable scrollbars for conversations long enough that they would require several
-        // flings to scroll through.
-        final float pages = (float) range / extent;
+        // flings to scroll through. Assume messages that aren't loaded yet are of average size.
+        final int itemCount = mRv.getAdapter().getItemCount();
+        final float pages = (float) range / extent *
+                (itemCount + getOlderItemCount()) / Math.max(itemCount, 1);
         return (pages > MIN_PAGES_TO_ENABLE);
     }
 
@@ -305,7 +326,15 @@ public class ConversationFastScroller extends RecyclerView.OnScrollListener impl
         }
         final int scrollRange = range - extent;
         offset = Math.min(offset, scrollRange);
-        return offset / (float) scrollRange;
+        final float loadedScrollRatio = offset / (float) scrollRange;
+        final int olderItemCount = getOlderItemCount();
+        if (olderItemCount == 0) {
+            return loadedScrollRatio;
+        }
+        // Map the position within the loaded messages onto the whole conversation.
+        final int itemCount = mRv.getAdapter().getItemCount();
+        return (olderItemCount + loadedScrollRatio * (itemCount - 1)) /
+                (olderItemCount + itemCount - 1);
     }
 
     private void updatePreviewText() {
@@ -406,10 +435,12 @@ public class ConversationFastScroller extends RecyclerView.OnScrollListener impl
         dragScrollRatio = Math.max(dragScrollRatio, 0.0f);
         dragScrollRatio = Math.min(dragScrollRatio, 1.0f);
 
-        // Scroll the RecyclerView to a new position.
+        // Scroll the RecyclerView to a new position. Positions among the messages that aren't
+        // loaded yet take us to the oldest loaded one, which pages in more.
         final int itemCount = mRv.getAdapter().getItemCount();
-        final int itemPos = (int)((itemCount - 1) * dragScrollRatio);
-        mRv.scrollToPosition(itemPos);
+        final int olderItemCount = getOlderItemCount();
+        final int itemPos = (int)((olderItemCount + itemCount - 1) * dragScrollRatio);
+        mRv.scrollToPosition(Math.max(itemPos - olderItemCount, 0));
     }
 
     private void cancelDrag() {
@@ -136,6 +136,8 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
 
     static final int REQUEST_CHOOSE_ATTACHMENTS = 2;
     private static final int JUMP_SCROLL_THRESHOLD = 15;
+    // Start loading older messages once the user scrolls this close to the oldest loaded one.
+    private static final int LOAD_OLDER_MESSAGES_THRESHOLD = 20;
     // We animate the message from draft to message list, if we the message doesn't show up in the
     // list within this time limit, then we just do a fade in animation instead
     public static final int MESSAGE_ANIMATION_MAX_WAIT = 500;
@@ -271,6 +273,16 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
                     mConversationComposeDivider.animate().alpha(isScrolledToBottom() ? 0 : 1);
                     mWasScrolledToBottom = isScrolledToBottom();
                 }
+                final LinearLayoutManager layoutManager =
+                        (LinearLayoutManager) mRecyclerView.getLayoutManager();
+                final int firstVisiblePosition = layoutManager.findFirstVisibleItemPosition();
+                mAdapter.prefetchAttachments(firstVisiblePosition,
+                        layoutManager.findLastVisibleItemPosition(), dy);
+                if (firstVisiblePosition != RecyclerView.NO_POSITION &&
+                        firstVisiblePosition < LOAD_OLDER_MESSAGES_THRESHOLD &&
+                        mBinding.isBound()) {
+                    mBinding.getData().loadOlderMessages(mBinding);
+                }
             }
     };
 
@@ -609,6 +621,16 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
         mFastScroller = ConversationFastScroller.addTo(mRecyclerView,
                 UiUtils.isRtlMode() ? ConversationFastScroller.POSITION_LEFT_SIDE :
                     ConversationFastScroller.POSITION_RIGHT_SIDE);
+        if (mFastScroller != null) {
+            mFastScroller.setOlderItemCountProvider(
+                    new ConversationFastScroller.OlderItemCountProvider() {
+                        @Override
+                        public int getOlderItemCount() {
+                            return mBinding.isBound() ?
+                                    mBinding.getData().getOlderMessageCount() : 0;
+                        }
+                    });
+        }
 
         mComposeMessageView = (ComposeMessageView)
                 view.findViewById(R.id.message_compose_view_container);
@@ -915,7 +937,9 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
             mHost.onConversationMessagesUpdated(cursor.getCount());
 
             // Are we coming from a widget click where we're told to scroll to a particular item?
-            final int scrollToPos = getScrollToMessagePosition();
+            // The widget counts positions from the oldest message of the whole conversation.
+            final int scrollToPos = getScrollToMessagePosition() < 0 ? -1 :
+                    Math.max(getScrollToMessagePosition() - data.getOlderMessageCount(), 0);
             if (scrollToPos >= 0) {
                 if (LogUtil.isLoggable(LogUtil.BUGLE_TAG, LogUtil.VERBOSE)) {
                     LogUtil.v(LogUtil.BUGLE_TAG, "onConversationMessagesCursorUpdated " +
@@ -976,6 +1000,7 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
         if (mComposeMessageView != null) {
             mComposeMessageView.unbind();
         }
+        mAdapter.cancelAttachmentPrefetches();
 
         // And unbind this fragment from its data
         mBinding.unbind();
@@ -43,6 +43,7 @@ public class ConversationMessageAdapter extends
     private final AsyncImageViewDelayLoader mImageViewDelayLoader;
     private final View.OnClickListener mViewClickListener;
     private final View.OnLongClickListener mViewLongClickListener;
+    private final ConversationMessagePrefetcher mPrefetcher;
     private boolean mOneOnOne;
     private String mSelectedMessageId;
 
@@ -56,6 +57,13 @@ public class ConversationMessageAdapter extends
         mViewClickListener = viewClickListener;
         mViewLongClickListener = longClickListener;
         mImageViewDelayLoader = imageViewDelayLoader;
+        mPrefetcher = new ConversationMessagePrefetcher(context,
+                new ConversationMessagePrefetcher.CursorProvider() {
+                    @Override
+                    public Cursor getCursor() {
+                        return ConversationMessageAdapter.this.getCursor();
+                    }
+                });
         setHasStableIds(true);
     }
 
@@ -94,6 +102,19 @@ public class ConversationMessageAdapter extends
         }
     }
 
+    /**
+     * Prefetches the attachments of the messages just beyond the visible range, in the direction
+     * of scrolling.
+     */
+    public void prefetchAttachments(final int firstVisiblePosition,
+            final int lastVisiblePosition, final int dy) {
+        mPrefetcher.onScrolled(firstVisiblePosition, lastVisiblePosition, dy);
+    }
+
+    public void cancelAttachmentPrefetches() {
+        mPrefetcher.cancelAll();
+    }
+
     /**
     * ViewHolder that holds a ConversationMessageView.
     */
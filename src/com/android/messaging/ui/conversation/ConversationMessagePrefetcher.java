@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.ui.conversation;
+
+import android.content.Context;
+import android.database.Cursor;
+import androidx.recyclerview.widget.RecyclerView;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.data.MessagePartData;
+import com.android.messaging.datamodel.media.BindableMediaRequest;
+import com.android.messaging.datamodel.media.ImageRequestDescriptor;
+import com.android.messaging.datamodel.media.ImageResource;
+import com.android.messaging.datamodel.media.MediaRequest;
+import com.android.messaging.datamodel.media.MediaResourceManager;
+import com.android.messaging.datamodel.media.MediaResourceManager.MediaResourceLoadListener;
+import com.android.messaging.datamodel.media.MessagePartVideoThumbnailRequestDescriptor;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Speculatively loads the attachment thumbnails of the messages just beyond the visible window
+ * of the conversation, in the direction the user is scrolling, so that they are already in the
+ * media cache by the time {@link ConversationMessageView} binds them.
+ *
+ * Prefetches are issued with {@link MediaResourceManager#PRIORITY_PREFETCH} so they never delay
+ * what is on screen, and are cancelled as soon as the window moves past them.
+ */
+class ConversationMessagePrefetcher implements MediaResourceLoadListener<ImageResource> {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // The number of messages beyond the visible window to prefetch attachments for.
+    private static final int PREFETCH_MESSAGE_COUNT = 6;
+
+    private static final String PREFETCH_BINDING_ID = "ConversationMessagePrefetcher";
+
+    private final Context mContext;
+    private final CursorProvider mCursorProvider;
+
+    // Scratch data object used to read the attachments of a cursor row.
+    private final ConversationMessageData mMessageData = new ConversationMessageData();
+
+    // Prefetch requests for the current prefetch window, by request key. Completed requests are
+    // unbound but kept around so they aren't issued again while the window stays put.
+    private final HashMap<String, BindableMediaRequest<ImageResource>> mPrefetchRequests =
+            new HashMap<String, BindableMediaRequest<ImageResource>>();
+
+    private int mFirstVisiblePosition = RecyclerView.NO_POSITION;
+    private int mLastVisiblePosition = RecyclerView.NO_POSITION;
+    private int mDesiredImageWidth;
+
+    interface CursorProvider {
+        Cursor getCursor();
+    }
+
+    ConversationMessagePrefetcher(final Context context, final CursorProvider cursorProvider) {
+        mContext = context;
+        mCursorProvider = cursorProvider;
+    }
+
+    /**
+     * Called whenever the list scrolls. Prefetches attachments for the messages following the
+     * visible window in the direction of scrolling.
+     * @param dy the vertical scroll delta; positive when scrolling towards newer messages
+     */
+    void onScrolled(final int firstVisiblePosition, final int lastVisiblePosition,
+            final int dy) {
+        Assert.isMainThread();
+        if (firstVisiblePosition == RecyclerView.NO_POSITION ||
+                (firstVisiblePosition == mFirstVisiblePosition &&
+                lastVisiblePosition == mLastVisiblePosition)) {
+            // Nothing has changed since the last time we looked.
+            return;
+        }
+        // The list is stacked from the bottom, with the newest message last. Without a scroll
+        // delta (e.g. on first layout) assume the user is about to look into the past.
+        final boolean towardsNewer = dy > 0 || (dy == 0 &&
+                mFirstVisiblePosition != RecyclerView.NO_POSITION &&
+                firstVisiblePosition > mFirstVisiblePosition);
+        mFirstVisiblePosition = firstVisiblePosition;
+        mLastVisiblePosition = lastVisiblePosition;
+
+        final Cursor cursor = mCursorProvider.getCursor();
+        if (cursor == null || cursor.isClosed()) {
+            return;
+        }
+        final int start;
+        final int end;
+        if (towardsNewer) {
+            start = lastVisiblePosition + 1;
+            end = Math.min(lastVisiblePosition + PREFETCH_MESSAGE_COUNT, cursor.getCount() - 1);
+        } else {
+            start = Math.max(firstVisiblePosition - PREFETCH_MESSAGE_COUNT, 0);
+            end = firstVisiblePosition - 1;
+        }
+
+        final LinkedHashMap<String, ImageRequestDescriptor> descriptors =
+                new LinkedHashMap<String, ImageRequestDescriptor>();
+        for (int position = start; position <= end; position++) {
+            if (cursor.moveToPosition(position)) {
+                collectAttachmentDescriptors(cursor, descriptors);
+            }
+        }
+        updatePendingRequests(descriptors);
+    }
+
+    /**
+     * Cancels all outstanding prefetches, e.g. when the conversation is closed.
+     */
+    void cancelAll() {
+        updatePendingRequests(new LinkedHashMap<String, ImageRequestDescriptor>());
+        mFirstVisiblePosition = RecyclerView.NO_POSITION;
+        mLastVisiblePosition = RecyclerView.NO_POSITION;
+    }
+
+    private void collectAttachmentDescriptors(final Cursor cursor,
+            final Map<String, ImageRequestDescriptor> descriptors) {
+        mMessageData.bind(cursor);
+        // Mirror what ConversationMessageView binds. Multi-image collages are laid out based on
+        // the view size, so we can't predict their request keys here.
+        final List<MessagePartData> imageParts =
+                mMessageData.getAttachments(ConversationMessageView.sImageFilter);
+        if (imageParts.size() == 1) {
+            if (mDesiredImageWidth == 0) {
+                mDesiredImageWidth = ConversationMessageView.getMessageImageDesiredWidth(mContext);
+            }
+            addDescriptor(descriptors, ConversationMessageView.createMessageImageRequestDescriptor(
+                    imageParts.get(0), mDesiredImageWidth));
+        }
+        for (final MessagePartData videoPart :
+                mMessageData.getAttachments(ConversationMessageView.sVideoFilter)) {
+            addDescriptor(descriptors, new MessagePartVideoThumbnailRequestDescriptor(videoPart));
+        }
+    }
+
+    private static void addDescriptor(final Map<String, ImageRequestDescriptor> descriptors,
+            final ImageRequestDescriptor descriptor) {
+        final String key = descriptor.getKey();
+        if (!TextUtils.isEmpty(key)) {
+            descriptors.put(key, descriptor);
+        }
+    }
+
+    private void updatePendingRequests(final Map<String, ImageRequestDescriptor> descriptors) {
+        // Cancel prefetches that have fallen out of the prefetch window.
+        final Iterator<Map.Entry<String, BindableMediaRequest<ImageResource>>> iterator =
+                mPrefetchRequests.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, BindableMediaRequest<ImageResource>> entry = iterator.next();
+            if (!descriptors.containsKey(entry.getKey())) {
+                cancelRequest(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        final List<BindableMediaRequest<ImageResource>> newRequests =
+                new ArrayList<BindableMediaRequest<ImageResource>>();
+        for (final Map.Entry<String, ImageRequestDescriptor> entry : descriptors.entrySet()) {
+            if (!mPrefetchRequests.containsKey(entry.getKey())) {
+                final BindableMediaRequest<ImageResource> request =
+                        entry.getValue().buildAsyncMediaRequest(mContext, this);
+                request.bind(PREFETCH_BINDING_ID);
+                mPrefetchRequests.put(entry.getKey(), request);
+                newRequests.add(request);
+            }
+        }
+        // The scheduler runs the newest requests first, so issue the farthest ones first to
+        // have the messages closest to the visible window loaded first.
+        for (int i = newRequests.size() - 1; i >= 0; i--) {
+            MediaResourceManager.get().requestMediaResourceAsync(newRequests.get(i),
+                    MediaResourceManager.PRIORITY_PREFETCH);
+        }
+        if (!newRequests.isEmpty() && LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "ConversationMessagePrefetcher: prefetching " + newRequests.size() +
+                    " attachments");
+        }
+    }
+
+    private static void cancelRequest(final BindableMediaRequest<ImageResource> request) {
+        if (request.isBound()) {
+            MediaResourceManager.get().cancelMediaResourceRequest(request);
+            request.unbind(PREFETCH_BINDING_ID);
+        }
+    }
+
+    @Override
+    public void onMediaResourceLoaded(final MediaRequest<ImageResource> request,
+            final ImageResource resource, final boolean cached) {
+        // The resource is now in the media cache; there's nothing else to do with it here.
+        onRequestCompleted(request);
+    }
+
+    @Override
+    public void onMediaResourceLoadError(final MediaRequest<ImageResource> request,
+            final Exception exception) {
+        onRequestCompleted(request);
+    }
+
+    private void onRequestCompleted(final MediaRequest<ImageResource> request) {
+        final BindableMediaRequest<ImageResource> prefetchRequest =
+                mPrefetchRequests.get(request.getKey());
+        if (prefetchRequest == request && prefetchRequest.isBound()) {
+            prefetchRequest.unbind(PREFETCH_BINDING_ID);
+        }
+    }
+}
@@ -26,8 +26,8 @@ import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
+import android.text.method.LinkMovementMethod;
 import android.text.style.URLSpan;
-import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.Gravity;
@@ -66,6 +66,7 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.AvatarUriUtil;
 import com.android.messaging.util.ContentType;
 import com.android.messaging.util.ImageUtils;
+import com.android.messaging.util.LinkifiedTextCache;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 import com.android.messaging.util.UiUtils;
@@ -543,25 +544,12 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
 
         // We will show the message image view if there is one attachment or one youtube link
         if (imageParts.size() == 1 || mMessageHasYouTubeLink) {
-            // Get the display metrics for a hint for how large to pull the image data into
-            final WindowManager windowManager = (WindowManager) getContext().
-                    getSystemService(Context.WINDOW_SERVICE);
-            final DisplayMetrics displayMetrics = new DisplayMetrics();
-            windowManager.getDefaultDisplay().getMetrics(displayMetrics);
-
-            final int iconSize = getResources()
-                    .getDimensionPixelSize(R.dimen.conversation_message_contact_icon_size);
-            final int desiredWidth = displayMetrics.widthPixels - iconSize - iconSize;
+            final int desiredWidth = getMessageImageDesiredWidth(getContext());
 
             if (imageParts.size() == 1) {
                 final MessagePartData imagePart = imageParts.get(0);
-                // If the image is big, we want to scale it down to save memory since we're going to
-                // scale it down to fit into the bubble width. We don't constrain the height.
                 final ImageRequestDescriptor imageRequest =
-                        new MessagePartImageRequestDescriptor(imagePart,
-                                desiredWidth,
-                                MessagePartData.UNSPECIFIED_SIZE,
-                                false);
+                        createMessageImageRequestDescriptor(imagePart, desiredWidth);
                 adjustImageViewBounds(imagePart);
                 mMessageImageView.setImageResourceId(imageRequest);
                 mMessageImageView.setTag(imagePart);
@@ -594,6 +582,36 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
         mMessageAttachmentsView.setVisibility(attachmentsVisible ? View.VISIBLE : View.GONE);
     }
 
+    /**
+     * Returns the width to load the image of a single-image message at: the screen width minus
+     * room for the contact icons on both sides.
+     */
+    static int getMessageImageDesiredWidth(final Context context) {
+        // Get the display metrics for a hint for how large to pull the image data into
+        final WindowManager windowManager = (WindowManager) context.
+                getSystemService(Context.WINDOW_SERVICE);
+        final DisplayMetrics displayMetrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getMetrics(displayMetrics);
+
+        final int iconSize = context.getResources()
+                .getDimensionPixelSize(R.dimen.conversation_message_contact_icon_size);
+        return displayMetrics.widthPixels - iconSize - iconSize;
+    }
+
+    /**
+     * Creates the request descriptor for the image of a single-image message. Anything that
+     * wants to hit the same cache entry (e.g. prefetching) must build its request through here.
+     */
+    static ImageRequestDescriptor createMessageImageRequestDescriptor(
+            final MessagePartData imagePart, final int desiredWidth) {
+        // If the image is big, we want to scale it down to save memory since we're going to
+        // scale it down to fit into the bubble width. We don't constrain the height.
+        return new MessagePartImageRequestDescriptor(imagePart,
+                desiredWidth,
+                MessagePartData.UNSPECIFIED_SIZE,
+                false);
+    }
+
     private void bindAttachmentsOfSameType(final Predicate<MessagePartData> attachmentTypeFilter,
             final int attachmentViewLayoutRes, final AttachmentViewBinder viewBinder,
             final Class<?> attachmentViewClass) {
@@ -650,10 +668,17 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
     private void updateMessageText() {
         final String text = mData.getText();
         if (!TextUtils.isEmpty(text)) {
-            mMessageTextView.setText(text);
             // Linkify phone numbers, web urls, emails, and map addresses to allow users to
-            // click on them and take the default intent.
-            mMessageTextHasLinks = Linkify.addLinks(mMessageTextView, Linkify.ALL);
+            // click on them and take the default intent. The links are normally found by the
+            // messages loader already.
+            final CharSequence linkifiedText =
+                    LinkifiedTextCache.get().getLinkifiedText(mData.getMessageId(), text);
+            mMessageTextView.setText(linkifiedText);
+            mMessageTextHasLinks = linkifiedText instanceof Spanned;
+            if (mMessageTextHasLinks && mMessageTextView.getLinksClickable() &&
+                    !(mMessageTextView.getMovementMethod() instanceof LinkMovementMethod)) {
+                mMessageTextView.setMovementMethod(LinkMovementMethod.getInstance());
+            }
             mMessageTextView.setVisibility(View.VISIBLE);
         } else {
             mMessageTextView.setVisibility(View.GONE);
@@ -56,6 +56,14 @@ public final class BugleGservicesKeys {
     public static final String MESSAGE_RESEND_TIMEOUT_MS = "bugle_resend_timeout_in_millis";
     public static final long MESSAGE_RESEND_TIMEOUT_MS_DEFAULT = 20 * 60 * 1000L;
 
+    /**
+     * Max number of outgoing messages of a subscription sent at once, at most one per
+     * conversation. 1 to send the pending messages one after the other.
+     */
+    public static final String MAX_MESSAGES_SENDING_PER_SUBSCRIPTION
+            = "bugle_max_messages_sending_per_subscription";
+    public static final int MAX_MESSAGES_SENDING_PER_SUBSCRIPTION_DEFAULT = 4;
+
     /**
      * Time in milliseconds of download window for new mms notifications
      */
@@ -100,6 +108,14 @@ public final class BugleGservicesKeys {
     public static final int SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN_DEFAULT =
             SMS_SYNC_BATCH_SIZE_MAX_DEFAULT * 4;
 
+    /**
+     * Max number of changes of a sync batch written to the local database in one transaction,
+     * or 0 to write each batch in a single transaction.
+     */
+    public static final String SMS_SYNC_TRANSACTION_SIZE_MAX =
+            "bugle_sms_sync_transaction_size_max";
+    public static final int SMS_SYNC_TRANSACTION_SIZE_MAX_DEFAULT = 250;
+
     /**
      * Time in ms for sync to backoff from "now" to the latest message that will be sync'd.
      *
@@ -202,6 +218,14 @@ public final class BugleGservicesKeys {
             = "bugle_notification_time_between_rings_seconds";
     public static final int NOTIFICATION_TIME_BETWEEN_RINGS_SECONDS_DEFAULT = 10;
 
+    /**
+     * Time (in milliseconds) after a notification update for an incoming message during which the
+     * updates for further incoming messages are coalesced into one. 0 to update for every message.
+     */
+    public static final String NOTIFICATION_UPDATE_DEBOUNCE_MILLIS
+            = "bugle_notification_update_debounce_millis";
+    public static final long NOTIFICATION_UPDATE_DEBOUNCE_MILLIS_DEFAULT = 1000;
+
     /**
      * The max number of messages to show in a single conversation notification, when a wearable
      * device (i.e. smartwatch) is paired with the phone. Watches have a different UX model and
@@ -218,6 +242,14 @@ public final class BugleGservicesKeys {
      */
     public static final String EXPLAIN_QUERY_PLAN_REGEXP = "bugle_query_plan_regexp";
 
+    /**
+     * Whether to aggregate the latency and row counts of database statements, and check their
+     * query plans for full table scans. The statements taking the most time are listed in the
+     * dumpsys output of the messaging content provider.
+     */
+    public static final String SQL_PROFILER_ENABLED = "bugle_sql_profiler_enabled";
+    public static final boolean SQL_PROFILER_ENABLED_DEFAULT = false;
+
     /**
      * Whether asserts are fatal on user/userdebug builds.
      * Default is {@value #ASSERTS_FATAL_DEFAULT}.
@@ -241,6 +273,13 @@ public final class BugleGservicesKeys {
             "bugle_always_autocomplete_email_address";
     public static final boolean ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS_DEFAULT = false;
 
+    /**
+     * Whether to autocomplete recipients from an in-memory index of the contacts rather than
+     * querying the contacts provider for every change of the search text.
+     */
+    public static final String USE_CONTACT_INDEX = "bugle_use_contact_index";
+    public static final boolean USE_CONTACT_INDEX_DEFAULT = true;
+
     // We typically request an aspect ratio close the the screen size, but some cameras can be
     // flaky and not work well in certain aspect ratios.  This allows us to guide the CameraManager
     // to pick a more reliable aspect ratio.  The value is a float like 1.333f or 1.777f.  There is
@@ -62,6 +62,22 @@ public final class BuglePrefsKeys {
     public static final int SELECTED_MEDIA_PICKER_CHOOSER_INDEX_DEFAULT
             = -1;
 
+    /**
+     * Whether messages that predate the message search table still need to be indexed
+     */
+    public static final String MESSAGE_SEARCH_INDEX_BACKFILL_PENDING
+            = "message_search_index_backfill_pending";
+    public static final boolean MESSAGE_SEARCH_INDEX_BACKFILL_PENDING_DEFAULT
+            = false;
+
+    /**
+     * The message id below which the message search index backfill continues
+     */
+    public static final String MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID
+            = "message_search_index_backfill_before_id";
+    public static final long MESSAGE_SEARCH_INDEX_BACKFILL_BEFORE_ID_DEFAULT
+            = Long.MAX_VALUE;
+
     /**
      * The attempt number when retrying ProcessPendingMessagesAction
      */
@@ -41,6 +41,10 @@ import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.ui.contact.AddContactsConfirmationDialog;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Utility class including logic to list, filter, and lookup phone and emails in CP2.
@@ -113,6 +117,24 @@ public class ContactUtil {
         };
     }
 
+    public static final int INDEX_BATCH_LOOKUP_NORMALIZED_NUMBER = 7;
+
+    /**
+     * Constants for looking up many phone numbers at once by their normalized (E164) form.
+     */
+    public static class PhoneBatchLookupQuery {
+        public static final String[] PROJECTION = new String[] {
+            Phone.CONTACT_ID,                   // 0
+            Phone.DISPLAY_NAME_PRIMARY,         // 1
+            Phone.PHOTO_THUMBNAIL_URI,          // 2
+            Phone.NUMBER,                       // 3
+            Phone.TYPE,                         // 4
+            Phone.LABEL,                        // 5
+            Phone.LOOKUP_KEY,                   // 6
+            Phone.NORMALIZED_NUMBER,            // 7
+        };
+    }
+
     public static class FrequentContactQuery {
         public static final String[] PROJECTION = new String[] {
             Contacts._ID,                       // 0
@@ -169,6 +191,19 @@ public class ContactUtil {
         };
     }
 
+    public static final int INDEX_FIRST_NAME_CONTACT_ID = 0;
+    public static final int INDEX_FIRST_NAME_GIVEN_NAME = 1;
+
+    /**
+     * Constants for looking up the first names of many contacts at once.
+     */
+    public static class FirstNameQuery {
+        public static final String[] PROJECTION = new String[] {
+            StructuredName.CONTACT_ID,
+            StructuredName.GIVEN_NAME
+        };
+    }
+
     public static final int INDEX_STRUCTURED_NAME_DISPLAY_NAME = 0;
     public static final int INDEX_STRUCTURED_NAME_GIVEN_NAME = 1;
     public static final int INDEX_STRUCTURED_NAME_FAMILY_NAME = 2;
@@ -257,7 +292,7 @@ public class ContactUtil {
     /**
      * Returns whether the search text indicates an email based search or a phone number based one.
      */
-    private static boolean shouldFilterForEmail(final String searchText) {
+    public static boolean shouldFilterForEmail(final String searchText) {
         return searchText != null && searchText.contains("@");
     }
 
@@ -336,6 +371,25 @@ public class ContactUtil {
         return new CursorQueryData(context, uri, PhoneLookupQuery.PROJECTION, null, null, null);
     }
 
+    /**
+     * Lookup many phones at once based on their normalized (E164) phone numbers. Unlike
+     * {@link #lookupPhone}, this is an exact match on the number as normalized by the contacts
+     * provider, so a phone without a normalized number is not found. Each row of the result
+     * includes the normalized number it matched at
+     * {@link #INDEX_BATCH_LOOKUP_NORMALIZED_NUMBER}.
+     */
+    public static CursorQueryData lookupPhones(final Context context,
+            final Collection<String> normalizedPhones) {
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final String selection = Phone.NORMALIZED_NUMBER + " IN ("
+                + Joiner.on(',').join(Collections.nCopies(normalizedPhones.size(), "?")) + ")";
+        return new CursorQueryData(context, Phone.CONTENT_URI, PhoneBatchLookupQuery.PROJECTION,
+                selection, normalizedPhones.toArray(new String[normalizedPhones.size()]), null);
+    }
+
     /**
      * Get frequently contacted people. This queries for Contacts.CONTENT_STREQUENT_URI, which
      * includes both starred or frequently contacted people.
@@ -460,6 +514,27 @@ public class ContactUtil {
         return firstName;
     }
 
+    /**
+     * Looks up the first names of many contacts at once, like {@link #lookupFirstName}. Contacts
+     * without a structured name have no row in the result.
+     */
+    public static CursorQueryData lookupFirstNames(final Context context,
+            final Collection<Long> contactIds) {
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        // TODO: Handle enterprise contacts
+        final String selection = ContactsContract.Data.MIMETYPE + "=? AND "
+                + Contacts.DISPLAY_NAME_PRIMARY + "=" + StructuredName.DISPLAY_NAME + " AND "
+                + StructuredName.CONTACT_ID + " IN (" + Joiner.on(',').join(contactIds) + ")";
+        final String[] selectionArgs = {
+                StructuredName.CONTENT_ITEM_TYPE
+        };
+        return new CursorQueryData(context, ContactsContract.Data.CONTENT_URI,
+                FirstNameQuery.PROJECTION, selection, selectionArgs, null);
+    }
+
     /**
      * Creates a RecipientEntry from the provided data fields (from the contacts cursor).
      * @param firstLevel whether this item is the first entry of this contact in the list.
@@ -40,30 +40,85 @@ public class GifTranscoder {
         System.loadLibrary("giftranscode");
     }
 
+    /**
+     * Timing and size stats of a successful transcode.
+     */
+    public static class TranscodeStats {
+        private int mFrameCount;
+        private long mResizeMs;
+        private long mElapsedMs;
+        private long mInputSize;
+        private long mOutputSize;
+
+        /** @return the number of frames (images) in the GIF */
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        /** @return the time spent resizing the frames, in ms */
+        public long getResizeMs() {
+            return mResizeMs;
+        }
+
+        /** @return the total time of the transcode, including reading and writing, in ms */
+        public long getElapsedMs() {
+            return mElapsedMs;
+        }
+
+        public long getInputSize() {
+            return mInputSize;
+        }
+
+        public long getOutputSize() {
+            return mOutputSize;
+        }
+    }
+
     public static boolean transcode(Context context, String filePath, String outFilePath) {
+        return transcode(context, filePath, outFilePath, null /* stats */);
+    }
+
+    /**
+     * Transcodes a GIF, filling in stats (if not null) on success.
+     */
+    public static boolean transcode(Context context, String filePath, String outFilePath,
+            TranscodeStats stats) {
         if (!isEnabled()) {
             return false;
         }
         final long inputSize = new File(filePath).length();
+        // Filled in by the native code as { frame count, resize time in ms }
+        final int[] nativeStats = new int[2];
         Stopwatch stopwatch = Stopwatch.createStarted();
-        final boolean success = transcodeInternal(filePath, outFilePath);
+        final boolean success = transcodeInternal(filePath, outFilePath, nativeStats);
         stopwatch.stop();
         final long elapsedMs = stopwatch.elapsed(TimeUnit.MILLISECONDS);
         final long outputSize = new File(outFilePath).length();
         final float compression = (inputSize > 0) ? ((float) outputSize / inputSize) : 0;
 
         if (success) {
-            LogUtil.i(TAG, String.format("Resized GIF (%s) in %d ms, %s => %s (%.0f%%)",
+            LogUtil.i(TAG, String.format(
+                    "Resized GIF (%s) of %d frames in %d ms (%d ms resizing), %s => %s (%.0f%%)",
                     LogUtil.sanitizePII(filePath),
+                    nativeStats[0],
                     elapsedMs,
+                    nativeStats[1],
                     Formatter.formatShortFileSize(context, inputSize),
                     Formatter.formatShortFileSize(context, outputSize),
                     compression * 100.0f));
+            if (stats != null) {
+                stats.mFrameCount = nativeStats[0];
+                stats.mResizeMs = nativeStats[1];
+                stats.mElapsedMs = elapsedMs;
+                stats.mInputSize = inputSize;
+                stats.mOutputSize = outputSize;
+            }
         }
         return success;
     }
 
-    private static native boolean transcodeInternal(String filePath, String outFilePath);
+    private static native boolean transcodeInternal(String filePath, String outFilePath,
+            int[] stats);
 
     /**
      * Estimates the size of a GIF transcoded from a GIF with the specified size.
@@ -34,6 +34,7 @@ import android.net.Uri;
 import android.provider.MediaStore;
 import androidx.annotation.Nullable;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.view.View;
 
 import com.android.messaging.Factory;
@@ -42,9 +43,11 @@ import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.media.ImageRequest;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.exif.ExifInterface;
+import com.android.messaging.util.exif.JpegHeaderScanner;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.Files;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -64,6 +67,20 @@ public class ImageUtils {
     public static final int DEFAULT_CIRCLE_BACKGROUND_COLOR = 0;
     public static final int DEFAULT_CIRCLE_STROKE_COLOR = 0;
 
+    // Number of image header scan results to keep; about as many as gallery images one scrolls
+    // through in a session
+    private static final int IMAGE_HEADER_INFO_CACHE_SIZE = 1000;
+
+    // Buffers the single byte reads of the header scan; segments are skipped past the buffer
+    private static final int HEADER_READ_BUFFER_SIZE = 1024;
+
+    // Files modified more recently than this aren't cached: the modification time may only have
+    // a resolution of a second (or two), so a rewrite within it would go unnoticed
+    private static final long MODIFICATION_TIME_RESOLUTION_MS = 2000;
+
+    private static final LruCache<String, JpegHeaderScanner.Result> sImageHeaderInfoCache =
+            new LruCache<String, JpegHeaderScanner.Result>(IMAGE_HEADER_INFO_CACHE_SIZE);
+
     private static volatile ImageUtils sInstance;
 
     public static ImageUtils get() {
@@ -253,42 +270,75 @@ public class ImageUtils {
      * @return The exif orientation value for the image in the specified uri
      */
     public static int getOrientation(final Context context, final Uri uri) {
+        return getImageHeaderInfo(context, uri).orientation;
+    }
+
+    /**
+     * @param inputStream The stream to the image file.  Closed on completion
+     * @return The exif orientation value for the image in the specified stream
+     */
+    public static int getOrientation(final InputStream inputStream) {
+        return getImageHeaderInfo(inputStream).orientation;
+    }
+
+    /**
+     * Reads the exif orientation and the dimensions of an image from its headers. Results for
+     * files are cached by path, modification time and length, since gallery images get bound over
+     * and over; recently modified files are scanned every time.
+     * @param context Android context
+     * @param uri Uri to the image data
+     * @return What was found in the image headers; the dimensions are only known for JPEGs
+     */
+    @DoesNotRunOnMainThread
+    public static JpegHeaderScanner.Result getImageHeaderInfo(final Context context,
+            final Uri uri) {
+        String cacheKey = null;
+        if (UriUtil.isFileUri(uri) && uri.getPath() != null) {
+            final File file = new File(uri.getPath());
+            final long lastModified = file.lastModified();
+            if (lastModified > 0 && System.currentTimeMillis() - lastModified
+                    >= MODIFICATION_TIME_RESOLUTION_MS) {
+                cacheKey = uri.getPath() + '@' + lastModified + ':' + file.length();
+                final JpegHeaderScanner.Result cachedResult = sImageHeaderInfoCache.get(cacheKey);
+                if (cachedResult != null) {
+                    return cachedResult;
+                }
+            }
+        }
+        final JpegHeaderScanner.Result result;
         try {
-            return getOrientation(context.getContentResolver().openInputStream(uri));
+            result = getImageHeaderInfo(context.getContentResolver().openInputStream(uri));
         } catch (FileNotFoundException e) {
-            LogUtil.e(TAG, "getOrientation couldn't open: " + uri, e);
+            LogUtil.e(TAG, "getImageHeaderInfo couldn't open: " + uri, e);
+            return JpegHeaderScanner.Result.UNKNOWN;
+        }
+        if (cacheKey != null) {
+            sImageHeaderInfoCache.put(cacheKey, result);
         }
-        return android.media.ExifInterface.ORIENTATION_UNDEFINED;
+        return result;
     }
 
     /**
      * @param inputStream The stream to the image file.  Closed on completion
-     * @return The exif orientation value for the image in the specified stream
+     * @return What was found in the image headers; the dimensions are only known for JPEGs
      */
-    public static int getOrientation(final InputStream inputStream) {
-        int orientation = android.media.ExifInterface.ORIENTATION_UNDEFINED;
+    public static JpegHeaderScanner.Result getImageHeaderInfo(final InputStream inputStream) {
+        JpegHeaderScanner.Result result = JpegHeaderScanner.Result.UNKNOWN;
         if (inputStream != null) {
             try {
-                final ExifInterface exifInterface = new ExifInterface();
-                exifInterface.readExif(inputStream);
-                final Integer orientationValue =
-                        exifInterface.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-                if (orientationValue != null) {
-                    orientation = orientationValue.intValue();
-                }
+                result = JpegHeaderScanner.scan(
+                        new BufferedInputStream(inputStream, HEADER_READ_BUFFER_SIZE));
             } catch (IOException e) {
                 // If the image if GIF, PNG, or missing exif header, just use the defaults
             } finally {
                 try {
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
+                    inputStream.close();
                 } catch (IOException e) {
-                    LogUtil.e(TAG, "getOrientation error closing input stream", e);
+                    LogUtil.e(TAG, "getImageHeaderInfo error closing input stream", e);
                 }
             }
         }
-        return orientation;
+        return result;
     }
 
     /**
@@ -349,16 +399,32 @@ public class ImageUtils {
         /**
          * The quality parameter which is used to compress JPEG images.
          */
-        private static final int IMAGE_COMPRESSION_QUALITY = 95;
+        @VisibleForTesting
+        static final int IMAGE_COMPRESSION_QUALITY = 95;
         /**
          * The minimum quality parameter which is used to compress JPEG images.
          */
-        private static final int MINIMUM_IMAGE_COMPRESSION_QUALITY = 50;
+        @VisibleForTesting
+        static final int MINIMUM_IMAGE_COMPRESSION_QUALITY = 50;
 
         /**
-         * Minimum factor to reduce quality value
+         * The quality search stops once the highest fitting and lowest failing quality are this
+         * close
          */
-        private static final double QUALITY_SCALE_DOWN_RATIO = 0.85f;
+        @VisibleForTesting
+        static final int QUALITY_SEARCH_PRECISION = 4;
+
+        /**
+         * Max number of full size encodes used to confirm the quality estimated from the probe,
+         * before falling back to the minimum quality
+         */
+        private static final int MAX_QUALITY_CONFIRMATION_ENCODES = 2;
+
+        /**
+         * Max number of pixels in the downscaled copy of the image used to probe the compressed
+         * size at different qualities
+         */
+        private static final int PROBE_MAX_PIXELS = 160 * 1000;
 
         /**
          * Maximum passes through the resize loop before failing permanently
@@ -366,9 +432,11 @@ public class ImageUtils {
         private static final int NUMBER_OF_RESIZE_ATTEMPTS = 6;
 
         /**
-         * Amount to scale down the picture when it doesn't fit
+         * Minimum factor to scale down the picture by when it doesn't fit, on top of the
+         * estimated factor needed; covers the estimation error
          */
-        private static final float MIN_SCALE_DOWN_RATIO = 0.75f;
+        @VisibleForTesting
+        static final float MIN_SCALE_DOWN_STEP = 1.05f;
 
         /**
          * When computing sampleSize target scaling of no more than this ratio
@@ -388,6 +456,10 @@ public class ImageUtils {
         private float mScaleFactor;
         // Flag keeping track of whether cache memory has been reclaimed
         private boolean mHasReclaimedMemory;
+        // Buffer reused by all the encodes of the image
+        private ByteArrayOutputStream mEncodeBuffer;
+        // (Estimated) size of the image encoded at the minimum quality in the last attempt
+        private int mMinimumQualitySize;
 
         // Initial size of the image (typically provided but can be UNSPECIFIED_SIZE)
         private int mWidth;
@@ -436,7 +508,8 @@ public class ImageUtils {
         /**
          * Create and initialize an image resizer
          */
-        private ImageResizer(final int width, final int height, final int orientation,
+        @VisibleForTesting
+        ImageResizer(final int width, final int height, final int orientation,
                 final int widthLimit, final int heightLimit, final int byteLimit, final Uri uri,
                 final Context context, final String contentType) {
             mWidth = width;
@@ -533,14 +606,14 @@ public class ImageUtils {
             //  Decode image - if out of memory - reclaim memory and retry
             try {
                 for (int attempts = 0; attempts < NUMBER_OF_RESIZE_ATTEMPTS; attempts++) {
+                    mMinimumQualitySize = 0;
                     final byte[] encoded = recodeImage(attempts);
 
                     // Only return data within the limit
                     if (encoded != null && encoded.length <= mByteLimit) {
                         return encoded;
                     } else {
-                        final int currentSize = (encoded == null ? 0 : encoded.length);
-                        updateRecodeParameters(currentSize);
+                        updateRecodeParameters(mMinimumQualitySize);
                     }
                 }
             } catch (final FileNotFoundException e) {
@@ -665,9 +738,10 @@ public class ImageUtils {
         }
 
         /**
-         * Recode the image from initial Uri to encoded JPEG
+         * Recode the image from initial Uri to encoded JPEG, at the highest quality that fits
+         * the byte limit at the current scale
          * @param attempt Attempt number
-         * @return encoded image
+         * @return encoded image, or null if it doesn't fit even at the minimum quality
          */
         private byte[] recodeImage(final int attempt) throws FileNotFoundException {
             byte[] encoded = null;
@@ -734,8 +808,8 @@ public class ImageUtils {
                         mScaled = mDecoded;
                     }
                 }
-                // Now encode it at current quality
-                encoded = ImageUtils.bitmapToBytes(mScaled, mQuality);
+                // Now encode it at the best quality that fits
+                encoded = encodeWithinLimit(mScaled, logv);
                 if (encoded != null && logv) {
                     LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
                             "getResizedImageData: Encoded down to " + encoded.length + "@"
@@ -751,33 +825,140 @@ public class ImageUtils {
             return encoded;
         }
 
+        /**
+         * Encode the scaled image at the highest quality (up to the current one) that fits the byte
+         * limit. Rather than encoding the full image over and over, the quality is found by
+         * bisection on a small downscaled probe of the image, whose encoded sizes are calibrated
+         * against a single full size encode.
+         * @return encoded image, or null if it doesn't fit even at the minimum quality, in which
+         *     case mMinimumQualitySize holds the (estimated) size at the minimum quality
+         */
+        @VisibleForTesting
+        byte[] encodeWithinLimit(final Bitmap scaled, final boolean logv) {
+            final int fullSize = encode(scaled, mQuality);
+            if (fullSize <= mByteLimit) {
+                return mEncodeBuffer.toByteArray();
+            }
+
+            final Bitmap probe = createProbe(scaled);
+            int quality;
+            try {
+                final double calibration = (double) fullSize / encode(probe, mQuality);
+                // Bisect between the highest quality known to fit and the lowest known not to
+                int low = MINIMUM_IMAGE_COMPRESSION_QUALITY;
+                int high = mQuality;
+                final int lowSize = (int) (encode(probe, low) * calibration);
+                if (lowSize > mByteLimit) {
+                    mMinimumQualitySize = lowSize;
+                    if (logv) {
+                        LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: Estimated "
+                                + lowSize + " bytes at minimum quality; needs scaling");
+                    }
+                    return null;
+                }
+                while (high - low > QUALITY_SEARCH_PRECISION) {
+                    final int mid = (low + high) / 2;
+                    if (encode(probe, mid) * calibration <= mByteLimit) {
+                        low = mid;
+                    } else {
+                        high = mid;
+                    }
+                }
+                quality = low;
+            } finally {
+                if (probe != scaled) {
+                    probe.recycle();
+                }
+            }
+
+            // Confirm the estimate on the full image, backing off if it was optimistic. Once the
+            // confirmation encodes are used up, go straight to the minimum quality, so that the
+            // image is only scaled down if it really doesn't fit at any quality.
+            int confirmationEncodes = 0;
+            while (true) {
+                final int size = encode(scaled, quality);
+                if (logv) {
+                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: Encoded " + size
+                            + " bytes at estimated quality " + quality);
+                }
+                if (size <= mByteLimit) {
+                    mQuality = quality;
+                    return mEncodeBuffer.toByteArray();
+                }
+                if (quality == MINIMUM_IMAGE_COMPRESSION_QUALITY) {
+                    // Only the size at the minimum quality tells how much to scale down by
+                    mMinimumQualitySize = size;
+                    return null;
+                }
+                confirmationEncodes++;
+                quality = (confirmationEncodes < MAX_QUALITY_CONFIRMATION_ENCODES) ?
+                        Math.max(MINIMUM_IMAGE_COMPRESSION_QUALITY,
+                                quality - QUALITY_SEARCH_PRECISION) :
+                        MINIMUM_IMAGE_COMPRESSION_QUALITY;
+            }
+        }
+
+        @VisibleForTesting
+        int getQuality() {
+            return mQuality;
+        }
+
+        @VisibleForTesting
+        int getMinimumQualitySize() {
+            return mMinimumQualitySize;
+        }
+
+        @VisibleForTesting
+        float getScaleFactor() {
+            return mScaleFactor;
+        }
+
+        /**
+         * Encode the bitmap as JPEG into the reused encode buffer
+         * @return encoded size in bytes
+         */
+        @VisibleForTesting
+        int encode(final Bitmap bitmap, final int quality) {
+            if (mEncodeBuffer == null) {
+                mEncodeBuffer = new ByteArrayOutputStream(mByteLimit);
+            }
+            mEncodeBuffer.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, mEncodeBuffer);
+            return mEncodeBuffer.size();
+        }
+
+        /**
+         * @return a copy of the bitmap downscaled to at most PROBE_MAX_PIXELS, or the bitmap
+         *     itself if it is already that small
+         */
+        private static Bitmap createProbe(final Bitmap bitmap) {
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            if (width * height <= PROBE_MAX_PIXELS) {
+                return bitmap;
+            }
+            final double scale = Math.sqrt((double) PROBE_MAX_PIXELS / (width * height));
+            return Bitmap.createScaledBitmap(bitmap, Math.max(1, (int) (width * scale)),
+                    Math.max(1, (int) (height * scale)), true /* filter */);
+        }
+
         /**
          * When image recode fails this method updates compression parameters for the next attempt
-         * @param currentSize encoded image size (will be 0 if OOM)
+         * @param currentSize (estimated) encoded image size at the minimum quality (will be 0 if
+         *     OOM)
          */
-        private void updateRecodeParameters(final int currentSize) {
+        @VisibleForTesting
+        void updateRecodeParameters(final int currentSize) {
             final boolean logv = LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE);
-            // Only return data within the limit
-            if (currentSize > 0 &&
-                    mQuality > MINIMUM_IMAGE_COMPRESSION_QUALITY) {
-                // First if everything succeeded but failed to hit target size
-                // Try quality proportioned to sqrt of size over size limit
-                mQuality = Math.max(MINIMUM_IMAGE_COMPRESSION_QUALITY,
-                        Math.min((int) (mQuality * Math.sqrt((1.0 * mByteLimit) / currentSize)),
-                                (int) (mQuality * QUALITY_SCALE_DOWN_RATIO)));
-                if (logv) {
-                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                            "getResizedImageData: Retrying at quality " + mQuality);
-                }
-            } else if (currentSize > 0 &&
-                    mScaleFactor < 2.0 * MIN_SCALE_DOWN_RATIO * MIN_SCALE_DOWN_RATIO) {
-                // JPEG compression failed to hit target size - need smaller image
-                // First try scaling by a little (< factor of 2) just so long resulting scale down
-                // ratio is still significantly bigger than next subsampling step
-                // i.e. mScaleFactor/MIN_SCALE_DOWN_RATIO (new scaling factor) <
-                //       2.0 / MIN_SCALE_DOWN_RATIO (arbitrary limit)
+            if (currentSize > 0) {
+                // The image doesn't fit even at the minimum quality - need smaller image
+                // The encoded size is roughly proportional to the number of pixels, so scale
+                // each dimension by the square root of the size over the size limit. The
+                // decoded bitmap is kept and only rescaled.
                 mQuality = IMAGE_COMPRESSION_QUALITY;
-                mScaleFactor = mScaleFactor / MIN_SCALE_DOWN_RATIO;
+                mScaleFactor = mScaleFactor * Math.max(MIN_SCALE_DOWN_STEP,
+                        (float) Math.sqrt((double) currentSize / mByteLimit)
+                                * MIN_SCALE_DOWN_STEP);
                 if (logv) {
                     LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
                             "getResizedImageData: Retrying at scale " + mScaleFactor);
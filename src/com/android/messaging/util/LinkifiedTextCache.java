@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.util.Linkify;
+import android.util.LruCache;
+
+import com.android.messaging.util.Assert.RunsOnAnyThread;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Caches the message texts with link spans for phone numbers, web urls, emails and map addresses
+ * added, by message id. Finding the links is regex heavy, so the conversation messages loader
+ * precomputes them in the background and the message views only apply the result.
+ */
+public class LinkifiedTextCache {
+    // Number of message texts to keep around; a few screens worth of messages
+    private static final int MAX_ENTRIES = 500;
+
+    private static final LinkifiedTextCache sInstance = new LinkifiedTextCache(MAX_ENTRIES);
+
+    private static class Entry {
+        // The text the links were found in, to detect edited messages (e.g. drafts)
+        final String mText;
+        // The text with link spans, or just the text if it has no links
+        final CharSequence mLinkifiedText;
+
+        Entry(final String text, final CharSequence linkifiedText) {
+            mText = text;
+            mLinkifiedText = linkifiedText;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries;
+
+    public static LinkifiedTextCache get() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    LinkifiedTextCache(final int maxEntries) {
+        mEntries = new LruCache<String, Entry>(maxEntries);
+    }
+
+    /**
+     * @return the number of message texts kept in the cache
+     */
+    @RunsOnAnyThread
+    public int getMaxEntries() {
+        return mEntries.maxSize();
+    }
+
+    /**
+     * Finds the links in the text of a message if they aren't cached yet.
+     */
+    @RunsOnAnyThread
+    public void precompute(final String messageId, final String text) {
+        getLinkifiedText(messageId, text);
+    }
+
+    /**
+     * @return the message text with link spans, or just the text if it has no links. Links are
+     *     found on the calling thread when they aren't cached yet.
+     */
+    @RunsOnAnyThread
+    public CharSequence getLinkifiedText(final String messageId, final String text) {
+        if (TextUtils.isEmpty(text)) {
+            return text;
+        }
+        if (messageId == null) {
+            return linkify(text);
+        }
+        final Entry entry = mEntries.get(messageId);
+        if (entry != null && entry.mText.equals(text)) {
+            return entry.mLinkifiedText;
+        }
+        final CharSequence linkifiedText = linkify(text);
+        mEntries.put(messageId, new Entry(text, linkifiedText));
+        return linkifiedText;
+    }
+
+    private static CharSequence linkify(final String text) {
+        final SpannableString spannable = new SpannableString(text);
+        return Linkify.addLinks(spannable, Linkify.ALL) ? spannable : text;
+    }
+}
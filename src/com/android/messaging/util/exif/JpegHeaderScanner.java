@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util.exif;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the orientation and dimensions of a JPEG image from its headers, without parsing the
+ * whole EXIF data like {@link ExifInterface} does. The scan walks the JPEG markers, reads the
+ * Orientation tag out of the first IFD of the APP1 segment and the dimensions out of the start of
+ * frame segment, and stops there, so it never reads more than the headers of the image.
+ */
+public class JpegHeaderScanner {
+    /**
+     * What was found in the headers of an image
+     */
+    public static class Result {
+        /** Result for images that aren't JPEGs or have broken headers */
+        public static final Result UNKNOWN =
+                new Result(android.media.ExifInterface.ORIENTATION_UNDEFINED, 0, 0);
+
+        /** The EXIF orientation, or 0 (undefined) if the image has none */
+        public final int orientation;
+        /** The width of the image as stored (not rotated), or 0 if unknown */
+        public final int width;
+        /** The height of the image as stored (not rotated), or 0 if unknown */
+        public final int height;
+
+        Result(final int orientation, final int width, final int height) {
+            this.orientation = orientation;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean hasDimensions() {
+            return width > 0 && height > 0;
+        }
+    }
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int SOI = JpegHeader.SOI & 0xFFFF;
+    private static final int APP1 = JpegHeader.APP1 & 0xFF;
+    private static final int EOI = JpegHeader.EOI & 0xFF;
+    private static final int SOS = 0xDA;
+    private static final int TEM = 0x01;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+
+    private static final byte[] EXIF_IDENTIFIER = { 'E', 'x', 'i', 'f', 0, 0 };
+    private static final int TIFF_HEADER_OFFSET = EXIF_IDENTIFIER.length;
+    private static final short LITTLE_ENDIAN_TAG = (short) 0x4949; // "II"
+    private static final short BIG_ENDIAN_TAG = (short) 0x4d4d; // "MM"
+    private static final short TIFF_MAGIC = 0x002A;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final int TAG_ORIENTATION = ExifInterface.getTrueTagKey(
+            ExifInterface.TAG_ORIENTATION);
+    private static final short TYPE_UNSIGNED_SHORT = ExifTag.TYPE_UNSIGNED_SHORT;
+
+    private final InputStream mInputStream;
+    private int mOrientation = Result.UNKNOWN.orientation;
+
+    // The APP1 segment being parsed, read from the stream only as far as it's needed
+    private byte[] mSegment;
+    private int mSegmentRead;
+    private ByteOrder mByteOrder;
+
+    /**
+     * Scans the headers of an image. The stream is left somewhere in the image data and not
+     * closed.
+     */
+    public static Result scan(final InputStream inputStream) throws IOException {
+        return new JpegHeaderScanner(inputStream).scan();
+    }
+
+    private JpegHeaderScanner(final InputStream inputStream) {
+        mInputStream = inputStream;
+    }
+
+    private Result scan() throws IOException {
+        if (readUnsignedShort() != SOI) {
+            return Result.UNKNOWN;
+        }
+        boolean exifSeen = false;
+        while (true) {
+            if (readUnsignedByte() != MARKER_PREFIX) {
+                return Result.UNKNOWN;
+            }
+            int marker = readUnsignedByte();
+            // Any number of fill bytes may precede the marker
+            while (marker == MARKER_PREFIX) {
+                marker = readUnsignedByte();
+            }
+            if (marker == SOS || marker == EOI) {
+                // The image data starts without a frame header; keep what we found
+                return new Result(mOrientation, 0, 0);
+            }
+            if (marker == TEM || (marker >= RST0 && marker <= RST7)) {
+                // Markers without a segment
+                continue;
+            }
+            final int length = readUnsignedShort() - 2;
+            if (length < 0) {
+                return Result.UNKNOWN;
+            }
+            if (marker == APP1 && !exifSeen) {
+                exifSeen = readExifOrientation(length);
+            } else if (JpegHeader.isSofMarker((short) (MARKER_PREFIX << 8 | marker))) {
+                // Sample precision, then the dimensions; the frame header follows the APPn
+                // segments, so there is nothing left to look for.
+                readUnsignedByte();
+                final int height = readUnsignedShort();
+                final int width = readUnsignedShort();
+                return new Result(mOrientation, width, height);
+            } else {
+                skipFully(length);
+            }
+        }
+    }
+
+    /**
+     * Reads the orientation out of the APP1 segment of the given length, if it is an EXIF one,
+     * and skips the rest of the segment.
+     * @return true if the segment was an EXIF segment
+     */
+    private boolean readExifOrientation(final int length) throws IOException {
+        mSegment = new byte[length];
+        mSegmentRead = 0;
+        try {
+            if (!fillSegment(TIFF_HEADER_OFFSET + 8)) {
+                return false;
+            }
+            for (int i = 0; i < EXIF_IDENTIFIER.length; i++) {
+                if (mSegment[i] != EXIF_IDENTIFIER[i]) {
+                    return false;
+                }
+            }
+            final short byteOrderTag =
+                    (short) getSegmentShort(TIFF_HEADER_OFFSET, ByteOrder.BIG_ENDIAN);
+            if (byteOrderTag == LITTLE_ENDIAN_TAG) {
+                mByteOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (byteOrderTag == BIG_ENDIAN_TAG) {
+                mByteOrder = ByteOrder.BIG_ENDIAN;
+            } else {
+                return true;
+            }
+            if ((short) getSegmentShort(TIFF_HEADER_OFFSET + 2, mByteOrder) != TIFF_MAGIC) {
+                return true;
+            }
+            final long ifd0Offset = getSegmentInt(TIFF_HEADER_OFFSET + 4) & 0xFFFFFFFFL;
+            if (ifd0Offset > length) {
+                return true;
+            }
+            final int ifd0Start = TIFF_HEADER_OFFSET + (int) ifd0Offset;
+            if (!fillSegment(ifd0Start + 2)) {
+                return true;
+            }
+            final int entryCount = getSegmentShort(ifd0Start, mByteOrder);
+            for (int i = 0; i < entryCount; i++) {
+                final int entryStart = ifd0Start + 2 + i * IFD_ENTRY_SIZE;
+                if (!fillSegment(entryStart + IFD_ENTRY_SIZE)) {
+                    return true;
+                }
+                // Entries should be sorted by tag, but writers don't all sort them, so check
+                // every one
+                final int tag = getSegmentShort(entryStart, mByteOrder);
+                if (tag == TAG_ORIENTATION) {
+                    if ((short) getSegmentShort(entryStart + 2, mByteOrder)
+                            == TYPE_UNSIGNED_SHORT) {
+                        // The value fits in the entry, in its first 2 bytes
+                        mOrientation = getSegmentShort(entryStart + 8, mByteOrder);
+                    }
+                    return true;
+                }
+            }
+            return true;
+        } finally {
+            skipFully(length - mSegmentRead);
+            mSegment = null;
+        }
+    }
+
+    /**
+     * Reads the segment up to the given offset.
+     * @return false if the segment is shorter than that
+     */
+    private boolean fillSegment(final int end) throws IOException {
+        if (end > mSegment.length) {
+            return false;
+        }
+        while (mSegmentRead < end) {
+            final int read = mInputStream.read(mSegment, mSegmentRead,
+                    mSegment.length - mSegmentRead);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            mSegmentRead += read;
+        }
+        return true;
+    }
+
+    private int getSegmentShort(final int offset, final ByteOrder byteOrder) {
+        final int b0 = mSegment[offset] & 0xFF;
+        final int b1 = mSegment[offset + 1] & 0xFF;
+        return byteOrder == ByteOrder.BIG_ENDIAN ? (b0 << 8 | b1) : (b1 << 8 | b0);
+    }
+
+    private int getSegmentInt(final int offset) {
+        final int high = getSegmentShort(offset, mByteOrder);
+        final int low = getSegmentShort(offset + 2, mByteOrder);
+        return mByteOrder == ByteOrder.BIG_ENDIAN ? (high << 16 | low) : (low << 16 | high);
+    }
+
+    private int readUnsignedByte() throws IOException {
+        final int value = mInputStream.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return readUnsignedByte() << 8 | readUnsignedByte();
+    }
+
+    private void skipFully(int count) throws IOException {
+        while (count > 0) {
+            final long skipped = mInputStream.skip(count);
+            if (skipped > 0) {
+                count -= skipped;
+            } else {
+                // skip() may give up before the end of the stream; read() tells us for sure
+                readUnsignedByte();
+                count--;
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.benchmark;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.text.TextUtils;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.TestUtil;
+import com.android.messaging.util.LogUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Base class of the benchmarks. Times an operation over a number of runs after warming it up and
+ * reports the per operation time as a JSON object, both in the instrumentation status (under
+ * {@link #RESULT_KEY}) and as a line of {@link #RESULTS_FILE_NAME} in the external files dir of
+ * the app.
+ *
+ * Instrumentation arguments:
+ *   messageCounts - comma separated sizes of the synthetic databases (default 1000,100000)
+ *   runs - number of timed runs of each operation (default 10)
+ */
+public abstract class BenchmarkTestCase extends InstrumentationTestCase {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    public static final String RESULT_KEY = "benchmark_result";
+    public static final String RESULTS_FILE_NAME = "messaging_benchmarks.json";
+
+    private static final String ARG_MESSAGE_COUNTS = "messageCounts";
+    private static final String ARG_RUNS = "runs";
+    private static final int[] DEFAULT_MESSAGE_COUNTS = { 1000, 100000 };
+    private static final int DEFAULT_RUNS = 10;
+
+    // The operation is run until it has been warmed up for this long, and at least twice
+    private static final long WARMUP_NANOS = 500 * 1000 * 1000L;
+    private static final int MIN_WARMUP_RUNS = 2;
+
+    static {
+        // Prevent application initialization, as for the tests
+        BugleTestCase.setTestsRunning();
+    }
+
+    /**
+     * An operation to time
+     */
+    protected abstract static class Operation {
+        /**
+         * Prepares a run of the operation; not timed
+         */
+        public void prepare() throws Exception {
+        }
+
+        /**
+         * Runs the operation
+         */
+        public abstract void run() throws Exception;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtil.testSetup(getInstrumentation().getTargetContext(), this);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtil.testTeardown(this);
+        super.tearDown();
+    }
+
+    /**
+     * @return the sizes of the synthetic databases to run the benchmarks on
+     */
+    protected int[] getMessageCounts() {
+        final String arg = getArgument(ARG_MESSAGE_COUNTS);
+        if (TextUtils.isEmpty(arg)) {
+            return DEFAULT_MESSAGE_COUNTS;
+        }
+        final String[] counts = arg.split(",");
+        final int[] messageCounts = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            messageCounts[i] = Integer.parseInt(counts[i].trim());
+        }
+        Arrays.sort(messageCounts);
+        return messageCounts;
+    }
+
+    private int getRuns() {
+        final String arg = getArgument(ARG_RUNS);
+        return TextUtils.isEmpty(arg) ? DEFAULT_RUNS : Integer.parseInt(arg);
+    }
+
+    private String getArgument(final String name) {
+        if (getInstrumentation() instanceof InstrumentationTestRunner) {
+            final Bundle arguments =
+                    ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+            return arguments == null ? null : arguments.getString(name);
+        }
+        return null;
+    }
+
+    /**
+     * Times an operation and reports the result.
+     * @param name name of the benchmark
+     * @param messageCount size of the database the operation runs on, or -1 if it doesn't use
+     *     the database
+     * @param opsPerRun number of times the operation does the benchmarked work in each run, e.g.
+     *     rows bound or messages inserted
+     */
+    protected void measure(final String name, final int messageCount, final int opsPerRun,
+            final Operation operation) throws Exception {
+        assertTrue(opsPerRun > 0);
+        final long warmupStart = System.nanoTime();
+        for (int i = 0; i < MIN_WARMUP_RUNS || System.nanoTime() - warmupStart < WARMUP_NANOS;
+                i++) {
+            operation.prepare();
+            operation.run();
+        }
+
+        final int runs = getRuns();
+        final long[] runNanos = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            operation.prepare();
+            final long start = System.nanoTime();
+            operation.run();
+            runNanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(runNanos);
+
+        final long medianNanosPerOp = runNanos[runs / 2] / opsPerRun;
+        final JSONObject result = new JSONObject();
+        try {
+            result.put("benchmark", getClass().getSimpleName() + "." + name);
+            if (messageCount >= 0) {
+                result.put("messageCount", messageCount);
+            }
+            result.put("runs", runs);
+            result.put("opsPerRun", opsPerRun);
+            result.put("minNanosPerOp", runNanos[0] / opsPerRun);
+            result.put("medianNanosPerOp", medianNanosPerOp);
+            result.put("p90NanosPerOp", runNanos[Math.min(runs - 1, runs * 9 / 10)] / opsPerRun);
+            result.put("maxNanosPerOp", runNanos[runs - 1] / opsPerRun);
+            result.put("opsPerSecond", runNanos[runs / 2] == 0 ? 0
+                    : opsPerRun * 1000L * 1000 * 1000 / runNanos[runs / 2]);
+            result.put("device", Build.MODEL);
+            result.put("build", Build.FINGERPRINT);
+        } catch (final JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        report(result.toString());
+    }
+
+    private void report(final String result) {
+        LogUtil.i(TAG, "Benchmark: " + result);
+        final Bundle status = new Bundle();
+        status.putString(RESULT_KEY, result);
+        getInstrumentation().sendStatus(0, status);
+
+        final File dir = getInstrumentation().getTargetContext().getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(dir, RESULTS_FILE_NAME), true /* append */);
+            writer.write(result);
+            writer.write('\n');
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "Benchmark: failed to write result", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+}
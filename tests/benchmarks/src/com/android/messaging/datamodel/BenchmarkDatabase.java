@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.datamodel.data.MessagePartData;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic local database for the benchmarks. The messages are spread evenly over one
+ * conversation per 100 messages (at least {@link #MIN_CONVERSATIONS}, at most
+ * {@link #MAX_CONVERSATIONS}), with texts of random words drawn from a fixed seed so that every
+ * run benchmarks the same data. Seeding the bigger sizes takes minutes, so the database is kept
+ * around for the next benchmark that asks for the same size, unless {@link #invalidate} is called
+ * by a benchmark which changed it.
+ */
+public class BenchmarkDatabase {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    public static final int MIN_CONVERSATIONS = 10;
+    public static final int MAX_CONVERSATIONS = 1000;
+    private static final int MESSAGES_PER_CONVERSATION = 100;
+
+    // Every Nth message has an image attachment, and every Mth one is outgoing
+    private static final int IMAGE_MESSAGE_INTERVAL = 20;
+    private static final int OUTGOING_MESSAGE_INTERVAL = 3;
+
+    private static final int MESSAGES_PER_TRANSACTION = 1000;
+    private static final long RANDOM_SEED = 20150101;
+    private static final long FIRST_MESSAGE_TIMESTAMP = 1420070400000L; // 2015-01-01
+    private static final long MESSAGE_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final String[] WORDS = {
+        "the", "meeting", "is", "at", "noon", "see", "you", "there", "call", "me", "when", "you",
+        "get", "home", "lunch", "tomorrow", "running", "late", "sorry", "ok", "thanks", "great",
+        "where", "are", "we", "going", "tonight", "pick", "up", "milk", "on", "the", "way",
+        "happy", "birthday", "love", "it", "check", "this", "out", "http://www.example.com",
+    };
+
+    // The size of the database seeded in this process, -1 if none
+    private static int sSeededMessageCount = -1;
+    private static ArrayList<String> sConversationIds;
+
+    /**
+     * Registers a fake factory with a data model whose database has the given number of messages,
+     * seeding it unless the previous call seeded the same size.
+     * @param context the instrumentation target context
+     */
+    public static FakeFactory setUp(final Context context, final int messageCount) {
+        final FakeContext fakeContext = new FakeContext(context);
+        if (messageCount != sSeededMessageCount) {
+            // Start over from an empty database (which may be left from another process)
+            fakeContext.deleteDatabase(DatabaseHelper.DATABASE_NAME);
+            sSeededMessageCount = -1;
+        }
+        final FakeFactory factory = FakeFactory.registerWithFakeContext(context, fakeContext)
+                .withDataModel(new FakeDataModel(fakeContext).withSyncManager(new SyncManager()));
+        if (messageCount != sSeededMessageCount) {
+            sConversationIds = seed(DataModel.get().getDatabase(), messageCount);
+            sSeededMessageCount = messageCount;
+        }
+        return factory;
+    }
+
+    /**
+     * Makes the next call to {@link #setUp} seed a fresh database
+     */
+    public static void invalidate() {
+        sSeededMessageCount = -1;
+    }
+
+    /**
+     * @return the ids of the conversations of the database set up last, in thread id order
+     */
+    public static List<String> getConversationIds() {
+        return sConversationIds;
+    }
+
+    private static ArrayList<String> seed(final DatabaseWrapper db, final int messageCount) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final int conversationCount = Math.max(MIN_CONVERSATIONS,
+                Math.min(MAX_CONVERSATIONS, messageCount / MESSAGES_PER_CONVERSATION));
+        final ArrayList<String> conversationIds = new ArrayList<String>(conversationCount);
+        final ArrayList<String> participantIds = new ArrayList<String>(conversationCount);
+        final String selfId;
+
+        db.beginTransaction();
+        try {
+            selfId = BugleDatabaseOperations.getOrCreateParticipantInTransaction(db,
+                    ParticipantData.getSelfParticipant(ParticipantData.DEFAULT_SELF_SUB_ID));
+            for (int i = 0; i < conversationCount; i++) {
+                final ParticipantData participant = ParticipantData.getFromRawPhoneBySystemLocale(
+                        String.format(Locale.US, "+1555%07d", i));
+                final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
+                participants.add(participant);
+                conversationIds.add(BugleDatabaseOperations.getOrCreateConversation(db,
+                        i + 1 /* threadId */, false /* senderBlocked */, participants,
+                        false /* noNotification */, false /* noVibrate */, null /* soundUri */));
+                participantIds.add(BugleDatabaseOperations.getOrCreateParticipantInTransaction(db,
+                        participant));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        final Random random = new Random(RANDOM_SEED);
+        for (int first = 0; first < messageCount; first += MESSAGES_PER_TRANSACTION) {
+            db.beginTransaction();
+            try {
+                final int last = Math.min(messageCount, first + MESSAGES_PER_TRANSACTION);
+                for (int i = first; i < last; i++) {
+                    final int conversation = i % conversationCount;
+                    BugleDatabaseOperations.insertNewMessageInTransaction(db, createMessage(i,
+                            conversationIds.get(conversation), participantIds.get(conversation),
+                            selfId, random));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            for (final String conversationId : conversationIds) {
+                BugleDatabaseOperations.refreshConversationMetadataInTransaction(db,
+                        conversationId, false /* shouldAutoSwitchSelfId */,
+                        false /* keepArchived */);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        LogUtil.i(TAG, "BenchmarkDatabase: Seeded " + messageCount + " messages in "
+                + conversationCount + " conversations in "
+                + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return conversationIds;
+    }
+
+    private static MessageData createMessage(final int index, final String conversationId,
+            final String participantId, final String selfId, final Random random) {
+        final long timestamp = FIRST_MESSAGE_TIMESTAMP + index * MESSAGE_INTERVAL_MILLIS;
+        final String text = createText(random);
+        final MessageData message;
+        if (index % OUTGOING_MESSAGE_INTERVAL == 0) {
+            message = MessageData.createSmsMessage(null /* messageUri */, selfId, selfId,
+                    conversationId, MessageData.BUGLE_STATUS_OUTGOING_COMPLETE, true /* seen */,
+                    true /* read */, timestamp, timestamp, text);
+        } else {
+            message = MessageData.createReceivedSmsMessage(null /* uri */, conversationId,
+                    participantId, selfId, text, null /* subject */, timestamp, timestamp,
+                    true /* seen */, true /* read */);
+        }
+        if (index % IMAGE_MESSAGE_INTERVAL == 0) {
+            message.addPart(MessagePartData.createMediaMessagePart(ContentType.IMAGE_JPEG,
+                    Uri.parse("content://mms/part/" + index), 640, 480));
+        }
+        return message;
+    }
+
+    /**
+     * @return a text of 1 to 40 random words
+     */
+    public static String createText(final Random random) {
+        final int wordCount = 1 + random.nextInt(40);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.FakeFactory;
+import com.android.messaging.benchmark.BenchmarkTestCase;
+
+/**
+ * Measures getting avatar sized bitmaps from a {@link BitmapPool} against allocating them.
+ */
+@LargeTest
+public class BitmapPoolBenchmark extends BenchmarkTestCase {
+    private static final int POOL_SIZE = 16;
+    private static final int BITMAP_SIZE = 256;
+    private static final int BITMAPS_PER_RUN = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getInstrumentation().getTargetContext());
+    }
+
+    public void testCreateOrReuseBitmap() throws Exception {
+        final BitmapPool pool = new BitmapPool(POOL_SIZE, "BitmapPoolBenchmark");
+        try {
+            measure("createOrReuseBitmap", -1 /* messageCount */, BITMAPS_PER_RUN,
+                    new Operation() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < BITMAPS_PER_RUN; i++) {
+                        pool.reclaimBitmap(pool.createOrReuseBitmap(BITMAP_SIZE, BITMAP_SIZE));
+                    }
+                }
+            });
+        } finally {
+            pool.reclaim();
+        }
+    }
+
+    public void testCreateBitmap() throws Exception {
+        measure("createBitmap", -1 /* messageCount */, BITMAPS_PER_RUN, new Operation() {
+            @Override
+            public void run() {
+                for (int i = 0; i < BITMAPS_PER_RUN; i++) {
+                    Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888)
+                            .recycle();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.Telephony.Sms;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.benchmark.BenchmarkTestCase;
+import com.android.messaging.datamodel.BenchmarkDatabase;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.DatabaseMessages.SmsMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link SyncMessageBatch} writing synced SMS into databases of
+ * different sizes.
+ */
+@LargeTest
+public class SyncMessageBatchBenchmark extends BenchmarkTestCase {
+    private static final int BATCH_SIZE = 1000;
+    private static final long RANDOM_SEED = 42;
+
+    // Columns of a telephony SMS row, in the order read by SmsMessage
+    private static final String[] SMS_COLUMNS = {
+        Sms._ID, Sms.TYPE, Sms.ADDRESS, Sms.BODY, Sms.DATE, Sms.THREAD_ID, Sms.STATUS, Sms.READ,
+        Sms.SEEN, Sms.DATE_SENT, Sms.SUBSCRIPTION_ID,
+    };
+
+    /**
+     * Gets the recipients of the synthetic threads without going to telephony
+     */
+    private static class BenchmarkThreadInfoCache extends ThreadInfoCache {
+        @Override
+        public synchronized List<String> getThreadRecipients(final long threadId) {
+            final List<String> recipients = new ArrayList<String>(1);
+            recipients.add(getAddress(threadId));
+            return recipients;
+        }
+    }
+
+    private static String getAddress(final long threadId) {
+        // Same as the participants of the synthetic database
+        return String.format(Locale.US, "+1555%07d", threadId - 1);
+    }
+
+    public void testInsertSms() throws Exception {
+        for (final int messageCount : getMessageCounts()) {
+            BenchmarkDatabase.setUp(getInstrumentation().getTargetContext(), messageCount);
+            final int conversationCount = BenchmarkDatabase.getConversationIds().size();
+            final DatabaseWrapper db = DataModel.get().getDatabase();
+            final long maxSeededMessageId = getMaxMessageId(db);
+            final ThreadInfoCache cache = new BenchmarkThreadInfoCache();
+            final Random random = new Random(RANDOM_SEED);
+
+            measure("insertSms", messageCount, BATCH_SIZE, new Operation() {
+                private ArrayList<SmsMessage> mSmsToAdd;
+                private long mNextSmsId = 1;
+
+                @Override
+                public void prepare() {
+                    // Keep the database at its size
+                    db.delete(DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID + ">?",
+                            new String[] { Long.toString(maxSeededMessageId) });
+                    mSmsToAdd = createSms();
+                }
+
+                @Override
+                public void run() {
+                    new SyncMessageBatch(mSmsToAdd, new ArrayList<MmsMessage>(),
+                            new ArrayList<LocalDatabaseMessage>(), cache).updateLocalDatabase();
+                }
+
+                private ArrayList<SmsMessage> createSms() {
+                    final MatrixCursor cursor = new MatrixCursor(SMS_COLUMNS, BATCH_SIZE);
+                    final long now = System.currentTimeMillis();
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        final long threadId = 1 + random.nextInt(conversationCount);
+                        final int type = (i % 3 == 0) ? Sms.MESSAGE_TYPE_SENT
+                                : Sms.MESSAGE_TYPE_INBOX;
+                        cursor.addRow(new Object[] {
+                                mNextSmsId++, type, getAddress(threadId),
+                                BenchmarkDatabase.createText(random), now + i, threadId,
+                                Sms.STATUS_NONE, 1 /* read */, 1 /* seen */, now + i,
+                                -1 /* subId */ });
+                    }
+                    final ArrayList<SmsMessage> smsToAdd = new ArrayList<SmsMessage>(BATCH_SIZE);
+                    while (cursor.moveToNext()) {
+                        smsToAdd.add(SmsMessage.get(cursor));
+                    }
+                    cursor.close();
+                    return smsToAdd;
+                }
+            });
+            // The conversations were updated by the inserts
+            BenchmarkDatabase.invalidate();
+        }
+    }
+
+    private static long getMaxMessageId(final DatabaseWrapper db) {
+        final Cursor cursor = db.rawQuery("SELECT MAX(" + MessageColumns._ID + ") FROM "
+                + DatabaseHelper.MESSAGES_TABLE, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
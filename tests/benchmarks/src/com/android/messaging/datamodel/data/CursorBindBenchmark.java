@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.database.Cursor;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.benchmark.BenchmarkTestCase;
+import com.android.messaging.datamodel.BenchmarkDatabase;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseWrapper;
+
+/**
+ * Measures binding the rows of the conversation and conversation list queries, which the UI does
+ * for every message and conversation shown, and running the queries themselves.
+ */
+@LargeTest
+public class CursorBindBenchmark extends BenchmarkTestCase {
+    public void testConversationMessageData() throws Exception {
+        for (final int messageCount : getMessageCounts()) {
+            BenchmarkDatabase.setUp(getInstrumentation().getTargetContext(), messageCount);
+            final DatabaseWrapper db = DataModel.get().getDatabase();
+            final String[] selectionArgs =
+                    new String[] { BenchmarkDatabase.getConversationIds().get(0) };
+
+            measure("queryConversationMessages", messageCount, 1, new Operation() {
+                @Override
+                public void run() {
+                    final Cursor cursor = db.rawQuery(
+                            ConversationMessageData.getConversationMessagesQuerySql(),
+                            selectionArgs);
+                    // Fill the cursor window
+                    cursor.getCount();
+                    cursor.close();
+                }
+            });
+
+            final Cursor cursor = db.rawQuery(
+                    ConversationMessageData.getConversationMessagesQuerySql(), selectionArgs);
+            try {
+                final ConversationMessageData data = new ConversationMessageData();
+                measure("bindConversationMessageData", messageCount, cursor.getCount(),
+                        new Operation() {
+                    @Override
+                    public void run() {
+                        cursor.moveToPosition(-1);
+                        while (cursor.moveToNext()) {
+                            data.bind(cursor);
+                        }
+                    }
+                });
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    public void testConversationListItemData() throws Exception {
+        for (final int messageCount : getMessageCounts()) {
+            BenchmarkDatabase.setUp(getInstrumentation().getTargetContext(), messageCount);
+            final DatabaseWrapper db = DataModel.get().getDatabase();
+
+            measure("queryConversationList", messageCount, 1, new Operation() {
+                @Override
+                public void run() {
+                    final Cursor cursor = queryConversationList(db);
+                    cursor.getCount();
+                    cursor.close();
+                }
+            });
+
+            final Cursor cursor = queryConversationList(db);
+            try {
+                final ConversationListItemData data = new ConversationListItemData();
+                measure("bindConversationListItemData", messageCount, cursor.getCount(),
+                        new Operation() {
+                    @Override
+                    public void run() {
+                        cursor.moveToPosition(-1);
+                        while (cursor.moveToNext()) {
+                            data.bind(cursor);
+                        }
+                    }
+                });
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static Cursor queryConversationList(final DatabaseWrapper db) {
+        // Same as the conversation list loader
+        return db.query(ConversationListItemData.getConversationListView(),
+                ConversationListItemData.PROJECTION, ConversationListData.WHERE_NOT_ARCHIVED,
+                null /* selectionArgs */, null /* groupBy */, null /* having */,
+                ConversationListData.SORT_ORDER);
+    }
+}
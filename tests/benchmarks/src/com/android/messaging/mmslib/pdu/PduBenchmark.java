@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.benchmark.BenchmarkTestCase;
+import com.android.messaging.util.ContentType;
+
+import java.util.Random;
+
+/**
+ * Measures composing and parsing synthetic send requests, a text only one and a group one with a
+ * slideshow of images.
+ */
+@LargeTest
+public class PduBenchmark extends BenchmarkTestCase {
+    private static final long RANDOM_SEED = 42;
+    private static final int IMAGE_SIZE = 100 * 1024;
+    private static final int IMAGE_COUNT = 3;
+    private static final int GROUP_SIZE = 10;
+
+    private static final String SMIL = "<smil><head><layout><root-layout/>"
+            + "<region id=\"Image\" top=\"0\" left=\"0\" height=\"80%\" width=\"100%\"/>"
+            + "<region id=\"Text\" top=\"80%\" left=\"0\" height=\"20%\" width=\"100%\"/>"
+            + "</layout></head><body><par dur=\"5000ms\">"
+            + "<img src=\"image0.jpg\" region=\"Image\"/>"
+            + "<text src=\"text.txt\" region=\"Text\"/></par></body></smil>";
+
+    public void testTextMessage() throws Exception {
+        final SendReq sendReq = createSendReq(1 /* recipientCount */, 0 /* imageCount */);
+        measureComposeAndParse("Text", sendReq);
+    }
+
+    public void testImageMessage() throws Exception {
+        final SendReq sendReq = createSendReq(GROUP_SIZE, IMAGE_COUNT);
+        measureComposeAndParse("Images", sendReq);
+    }
+
+    private void measureComposeAndParse(final String name, final SendReq sendReq)
+            throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        measure("make" + name, -1 /* messageCount */, 1, new Operation() {
+            @Override
+            public void run() {
+                assertNotNull(new PduComposer(context, sendReq).make());
+            }
+        });
+
+        final byte[] pdu = new PduComposer(context, sendReq).make();
+        measure("parse" + name, -1 /* messageCount */, 1, new Operation() {
+            @Override
+            public void run() {
+                assertNotNull(new PduParser(pdu, true /* parseContentDisposition */).parse());
+            }
+        });
+    }
+
+    private static SendReq createSendReq(final int recipientCount, final int imageCount) {
+        final Random random = new Random(RANDOM_SEED);
+        final SendReq sendReq = new SendReq();
+        for (int i = 0; i < recipientCount; i++) {
+            sendReq.addTo(new EncodedStringValue(String.format("+1555%07d", i)));
+        }
+        sendReq.setSubject(new EncodedStringValue("Benchmark"));
+        final PduBody body = new PduBody();
+        if (imageCount > 0) {
+            body.addPart(createPart(ContentType.APP_SMIL, "smil.xml", SMIL.getBytes()));
+        }
+        body.addPart(createPart(ContentType.TEXT_PLAIN, "text.txt",
+                "See you at noon tomorrow, the meeting moved".getBytes()));
+        for (int i = 0; i < imageCount; i++) {
+            final byte[] image = new byte[IMAGE_SIZE];
+            random.nextBytes(image);
+            body.addPart(createPart(ContentType.IMAGE_JPEG, "image" + i + ".jpg", image));
+        }
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    private static PduPart createPart(final String contentType, final String location,
+            final byte[] data) {
+        final PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(location.getBytes());
+        part.setData(data);
+        return part;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.FakeFactory;
+import com.android.messaging.benchmark.BenchmarkTestCase;
+import com.android.messaging.util.exif.ExifInterface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Measures shrinking a camera sized JPEG to fit an MMS, as done for every image attachment sent.
+ */
+@LargeTest
+public class ImageResizerBenchmark extends BenchmarkTestCase {
+    private static final int WIDTH = 2592;
+    private static final int HEIGHT = 1944;
+    private static final int WIDTH_LIMIT = 640;
+    private static final int HEIGHT_LIMIT = 480;
+    private static final int BYTE_LIMIT = 300 * 1024;
+    private static final long RANDOM_SEED = 42;
+
+    private File mImageFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getInstrumentation().getTargetContext();
+        FakeFactory.register(context);
+        mImageFile = new File(context.getCacheDir(), "benchmark_image.jpg");
+        writeJpeg(mImageFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mImageFile.delete();
+        super.tearDown();
+    }
+
+    public void testResizeJpeg() throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        final Uri uri = Uri.fromFile(mImageFile);
+        measure("resizeJpeg", -1 /* messageCount */, 1, new Operation() {
+            @Override
+            public void run() {
+                final byte[] data = ImageUtils.ImageResizer.getResizedImageData(WIDTH, HEIGHT,
+                        ExifInterface.Orientation.TOP_LEFT, WIDTH_LIMIT, HEIGHT_LIMIT, BYTE_LIMIT,
+                        uri, context, ContentType.IMAGE_JPEG);
+                assertNotNull(data);
+                assertTrue(data.length <= BYTE_LIMIT);
+            }
+        });
+    }
+
+    /**
+     * Writes a gradient with noise, which compresses about as well as a photo
+     */
+    private static void writeJpeg(final File file) throws Exception {
+        final Random random = new Random(RANDOM_SEED);
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int red = (x * 255 / WIDTH + random.nextInt(32)) & 0xff;
+                final int green = (y * 255 / HEIGHT + random.nextInt(32)) & 0xff;
+                final int blue = random.nextInt(256);
+                pixels[y * WIDTH + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.ContactUtil.EmailQuery;
+import com.android.messaging.util.ContactUtil.PhoneQuery;
+import com.google.common.collect.ObjectArrays;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test the in-memory contact index used for recipient auto-complete
+ */
+@SmallTest
+public class ContactIndexTest extends BugleTestCase {
+    private static final int ALL_KINDS = ContactIndex.KIND_PHONES | ContactIndex.KIND_EMAILS;
+
+    private ContactIndex mIndex;
+    private long mNextDataId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new ContactIndex();
+        mNextDataId = 1;
+        final MatrixCursor phones = createPhonesCursor();
+        addPhone(phones, 1, "John Smith", "(650) 555-1234", "+16505551234");
+        addPhone(phones, 2, "José Álvarez-Díaz", "555-0000", null);
+        addPhone(phones, 3, "Anna Jones", "+44 20 7946 0000", "+442079460000");
+        final MatrixCursor emails = createEmailsCursor();
+        addEmail(emails, 1, "John Smith", "J.Smith@example.com");
+        addEmail(emails, 4, "Bob", "bob@example.com");
+        mIndex.updateRows(Collections.<Long>emptyList(), phones, emails);
+    }
+
+    public void testNormalize() {
+        assertEquals("josealvarezdiaz", ContactIndex.normalize("José Álvarez-Díaz"));
+        assertEquals("16505551234", ContactIndex.normalize("+1 (650) 555-1234"));
+    }
+
+    public void testMatchesNameWordPrefixes() {
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("joh", ContactIndex.KIND_PHONES, null)));
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("Smi", ContactIndex.KIND_PHONES, null)));
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("john sm", ContactIndex.KIND_PHONES, null)));
+        assertEquals(0, mIndex.search("ohn", ContactIndex.KIND_PHONES, null).getCount());
+
+        // Accents and punctuation are ignored, each part of a compound name is a word
+        assertEquals(Arrays.asList("555-0000"),
+                getDestinations(mIndex.search("alvarez", ContactIndex.KIND_PHONES, null)));
+        assertEquals(Arrays.asList("555-0000"),
+                getDestinations(mIndex.search("diaz", ContactIndex.KIND_PHONES, null)));
+    }
+
+    public void testMatchesPhoneNumberPrefixes() {
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("650-55", ContactIndex.KIND_PHONES, null)));
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("+1650", ContactIndex.KIND_PHONES, null)));
+        assertEquals(Arrays.asList("+44 20 7946 0000"),
+                getDestinations(mIndex.search("4420", ContactIndex.KIND_PHONES, null)));
+        // Only prefixes match
+        assertEquals(0, mIndex.search("1234", ContactIndex.KIND_PHONES, null).getCount());
+    }
+
+    public void testMatchesEmailsOfRequestedKinds() {
+        assertEquals(Arrays.asList("J.Smith@example.com"),
+                getDestinations(mIndex.search("j.smith", ContactIndex.KIND_EMAILS, null)));
+        assertEquals(0, mIndex.search("bob", ContactIndex.KIND_PHONES, null).getCount());
+        assertEquals(Arrays.asList("bob@example.com"),
+                getDestinations(mIndex.search("bob", ALL_KINDS, null)));
+        assertEquals(2, mIndex.search("john", ALL_KINDS, null).getCount());
+    }
+
+    public void testSortsByContactSortKey() {
+        assertEquals(Arrays.asList("+44 20 7946 0000", "(650) 555-1234", "J.Smith@example.com",
+                "555-0000"), getDestinations(mIndex.search("j", ALL_KINDS, null)));
+    }
+
+    public void testNarrowsPreviousResult() {
+        final ContactIndex.Result previous = mIndex.search("j", ALL_KINDS, null);
+        assertEquals(4, previous.getCount());
+        final ContactIndex.Result narrowed = mIndex.search("joh", ALL_KINDS, previous);
+        assertEquals(getDestinations(mIndex.search("joh", ALL_KINDS, null)),
+                getDestinations(narrowed));
+        assertEquals(Arrays.asList("(650) 555-1234", "J.Smith@example.com"),
+                getDestinations(narrowed));
+    }
+
+    public void testNarrowsProviderResult() {
+        final MatrixCursor cursor = createPhonesCursor();
+        addPhone(cursor, 10, "Jane Doe", "555-1000", null);
+        addPhone(cursor, 11, "Joe Bloggs", "555-2000", null);
+        final ContactIndex.Result previous =
+                ContactIndex.fromCursor("j", ContactIndex.KIND_PHONES, cursor);
+        assertTrue(cursor.isClosed());
+        assertEquals(Arrays.asList("555-2000"), getDestinations(
+                ContactIndex.narrow("jo", ContactIndex.KIND_PHONES, previous)));
+        // Not narrowed when the query doesn't extend the previous one
+        assertNull(ContactIndex.narrow("a", ContactIndex.KIND_PHONES, previous));
+        assertNull(ContactIndex.narrow("jo", ALL_KINDS, previous));
+    }
+
+    public void testUpdateRowsReplacesContacts() {
+        final ContactIndex.Result previous = mIndex.search("j", ALL_KINDS, null);
+
+        // John Smith is renamed and Bob is deleted
+        final MatrixCursor phones = createPhonesCursor();
+        addPhone(phones, 1, "Jack Smith", "(650) 555-1234", "+16505551234");
+        mIndex.updateRows(Arrays.asList(1L, 4L), phones, createEmailsCursor());
+
+        assertEquals(0, mIndex.search("john", ALL_KINDS, null).getCount());
+        assertEquals(0, mIndex.search("bob", ALL_KINDS, null).getCount());
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("jack", ALL_KINDS, null)));
+        // The results from before the update are not narrowed
+        assertEquals(Arrays.asList("(650) 555-1234"),
+                getDestinations(mIndex.search("jac", ALL_KINDS, previous)));
+    }
+
+    public void testUpdateRowsKeepsSortOrder() {
+        // Anna Jones is renamed without being listed as updated, and a contact is added
+        final MatrixCursor phones = createPhonesCursor();
+        addPhone(phones, 3, "Zoe Jones", "+44 20 7946 0000", "+442079460000");
+        addPhone(phones, 5, "Jill Adams", "555-3000", null);
+        mIndex.updateRows(Collections.<Long>emptyList(), phones, createEmailsCursor());
+
+        assertEquals(0, mIndex.search("anna", ALL_KINDS, null).getCount());
+        assertEquals(Arrays.asList("555-3000", "(650) 555-1234", "J.Smith@example.com",
+                "555-0000", "+44 20 7946 0000"),
+                getDestinations(mIndex.search("j", ALL_KINDS, null)));
+    }
+
+    private static MatrixCursor createPhonesCursor() {
+        return new MatrixCursor(ObjectArrays.concat(PhoneQuery.PROJECTION,
+                Phone.NORMALIZED_NUMBER));
+    }
+
+    private static MatrixCursor createEmailsCursor() {
+        return new MatrixCursor(EmailQuery.PROJECTION);
+    }
+
+    private void addPhone(final MatrixCursor cursor, final long contactId, final String name,
+            final String number, final String normalizedNumber) {
+        cursor.addRow(new Object[] { contactId, name, null, number, Phone.TYPE_MOBILE, null,
+                "lookup" + contactId, mNextDataId++, name, normalizedNumber });
+    }
+
+    private void addEmail(final MatrixCursor cursor, final long contactId, final String name,
+            final String address) {
+        cursor.addRow(new Object[] { contactId, name, null, address, 0, null,
+                "lookup" + contactId, mNextDataId++, name });
+    }
+
+    private static List<String> getDestinations(final ContactIndex.Result result) {
+        final List<String> destinations = new ArrayList<String>();
+        final Cursor cursor = result.toCursor();
+        try {
+            while (cursor.moveToNext()) {
+                destinations.add(cursor.getString(ContactUtil.INDEX_PHONE_EMAIL));
+            }
+        } finally {
+            cursor.close();
+        }
+        return destinations;
+    }
+}
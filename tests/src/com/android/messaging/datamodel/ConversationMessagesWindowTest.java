@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentProvider;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.datamodel.data.ParticipantData;
+
+import java.util.ArrayList;
+
+/**
+ * Tests loading windows of the newest messages of a conversation from
+ * {@link MessagingContentProvider}.
+ */
+@SmallTest
+public class ConversationMessagesWindowTest extends BugleTestCase {
+    private FakeContext mContext;
+    private String mConversationId;
+    private final ArrayList<String> mMessageIds = new ArrayList<String>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mContext = new FakeContext(getTestContext());
+        final ContentProvider bugleProvider = new MessagingContentProvider();
+        final ProviderInfo bugleProviderInfo = new ProviderInfo();
+        bugleProviderInfo.authority = MessagingContentProvider.AUTHORITY;
+        bugleProvider.attachInfo(mContext, bugleProviderInfo);
+        mContext.addContentProvider(MessagingContentProvider.AUTHORITY, bugleProvider);
+        FakeFactory.registerWithFakeContext(getTestContext(), mContext)
+                .withDataModel(new FakeDataModel(mContext));
+
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        db.beginTransaction();
+        try {
+            final String selfId = BugleDatabaseOperations.getOrCreateParticipantInTransaction(db,
+                    ParticipantData.getSelfParticipant(ParticipantData.DEFAULT_SELF_SUB_ID));
+            final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
+            participants.add(ParticipantData.getFromRawPhoneBySystemLocale("5551234567"));
+            mConversationId = BugleDatabaseOperations.getOrCreateConversation(db, 1234567,
+                    false /* senderBlocked */, participants, false, false, null);
+            final String participantId =
+                    BugleDatabaseOperations.getOrCreateParticipantInTransaction(db,
+                            participants.get(0));
+            // Two messages share each timestamp, so the window has to page on the message id too.
+            for (int i = 0; i < 6; i++) {
+                final long timestamp = 1000 + (i / 2);
+                final MessageData message = MessageData.createReceivedSmsMessage(null,
+                        mConversationId, participantId, selfId, "Message " + i, null, timestamp,
+                        timestamp, true /* seen */, true /* read */);
+                BugleDatabaseOperations.insertNewMessageInTransaction(db, message);
+                mMessageIds.add(message.getMessageId());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void testLimitLoadsNewestMessages() {
+        final Cursor cursor = query(
+                MessagingContentProvider.buildConversationMessagesUri(mConversationId, 3));
+        try {
+            assertMessageIds(cursor, 5, 4, 3);
+            assertEquals(3, cursor.getExtras().getInt(
+                    MessagingContentProvider.EXTRA_OLDER_MESSAGE_COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testLowerBoundLoadsMessagesFromOldestOn() {
+        // Messages 2 and 3 share a timestamp, so only the message id excludes message 2.
+        final Cursor cursor = query(MessagingContentProvider.buildConversationMessagesUri(
+                mConversationId, 1001, mMessageIds.get(3)));
+        try {
+            assertMessageIds(cursor, 5, 4, 3);
+            assertEquals(3, cursor.getExtras().getInt(
+                    MessagingContentProvider.EXTRA_OLDER_MESSAGE_COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testWholeConversationLoaded() {
+        final Cursor cursor = query(MessagingContentProvider.buildConversationMessagesUri(
+                mConversationId, 100));
+        try {
+            assertMessageIds(cursor, 5, 4, 3, 2, 1, 0);
+            assertEquals(0, cursor.getExtras().getInt(
+                    MessagingContentProvider.EXTRA_OLDER_MESSAGE_COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor query(final Uri uri) {
+        return mContext.getContentResolver().query(uri, ConversationMessageData.getProjection(),
+                null, null, null);
+    }
+
+    private void assertMessageIds(final Cursor cursor, final int... messageIndices) {
+        assertEquals(messageIndices.length, cursor.getCount());
+        final int idIndex = cursor.getColumnIndexOrThrow(MessageColumns._ID);
+        for (final int messageIndex : messageIndices) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(mMessageIds.get(messageIndex), cursor.getString(idIndex));
+        }
+    }
+}
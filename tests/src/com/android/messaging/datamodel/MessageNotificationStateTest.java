@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.MessageNotificationState.ConversationInfoList;
+import com.android.messaging.datamodel.MessageNotificationState.ConversationLineInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@SmallTest
+public class MessageNotificationStateTest extends BugleTestCase {
+    private static ConversationLineInfo createConvInfo(final String conversationId,
+            final long receivedTimestamp, final int messageCount) {
+        final ConversationLineInfo convInfo = new ConversationLineInfo(conversationId,
+                false /* isGroup */, "name", false /* includeEmailAddress */, receivedTimestamp,
+                "self", null /* ringtoneUri */, true /* notificationEnabled */,
+                true /* notificationVibrate */, null /* avatarUri */, null /* contactUri */,
+                -1 /* subId */, 2 /* participantCount */);
+        convInfo.mTotalMessageCount = messageCount;
+        return convInfo;
+    }
+
+    public void testCreateConversationInfoListEmpty() {
+        assertNull(MessageNotificationState.createConversationInfoList(
+                new ArrayList<ConversationLineInfo>()));
+    }
+
+    public void testCreateConversationInfoListSortsLatestFirst() {
+        // Conversation 2 got a new message after conversation 1 was queried
+        final ConversationLineInfo conv1 = createConvInfo("1", 1000, 2);
+        final ConversationLineInfo conv2 = createConvInfo("2", 3000, 1);
+        final ConversationLineInfo conv3 = createConvInfo("3", 2000, 4);
+        final ConversationInfoList convList = MessageNotificationState.createConversationInfoList(
+                Arrays.asList(conv1, conv3, conv2));
+
+        assertEquals(7, convList.mMessageCount);
+        assertEquals(Arrays.asList(conv2, conv3, conv1), convList.mConvInfos);
+    }
+
+    public void testCreateConversationInfoListKeepsOrderOfTies() {
+        final ConversationLineInfo conv1 = createConvInfo("1", 1000, 1);
+        final ConversationLineInfo conv2 = createConvInfo("2", 1000, 1);
+        final ConversationInfoList convList = MessageNotificationState.createConversationInfoList(
+                Arrays.asList(conv2, conv1));
+
+        assertEquals(Arrays.asList(conv2, conv1), convList.mConvInfos);
+    }
+}
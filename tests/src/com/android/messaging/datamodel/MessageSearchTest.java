@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.MessagingContentProvider.SearchMessagesQueryColumns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.datamodel.data.ParticipantData;
+
+import java.util.ArrayList;
+
+/**
+ * Tests that the message search table follows the messages it indexes, and searching it through
+ * {@link MessagingContentProvider}.
+ */
+@SmallTest
+public class MessageSearchTest extends BugleTestCase {
+    private FakeContext mContext;
+    private DatabaseWrapper mDb;
+    private String mConversationId;
+    private String mSelfId;
+    private String mParticipantId;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mContext = new FakeContext(getTestContext());
+        final ContentProvider bugleProvider = new MessagingContentProvider();
+        final ProviderInfo bugleProviderInfo = new ProviderInfo();
+        bugleProviderInfo.authority = MessagingContentProvider.AUTHORITY;
+        bugleProvider.attachInfo(mContext, bugleProviderInfo);
+        mContext.addContentProvider(MessagingContentProvider.AUTHORITY, bugleProvider);
+        FakeFactory.registerWithFakeContext(getTestContext(), mContext)
+                .withDataModel(new FakeDataModel(mContext));
+
+        mDb = DataModel.get().getDatabase();
+        mDb.beginTransaction();
+        try {
+            mSelfId = BugleDatabaseOperations.getOrCreateParticipantInTransaction(mDb,
+                    ParticipantData.getSelfParticipant(ParticipantData.DEFAULT_SELF_SUB_ID));
+            final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
+            participants.add(ParticipantData.getFromRawPhoneBySystemLocale("5551234567"));
+            mConversationId = BugleDatabaseOperations.getOrCreateConversation(mDb, 1234567,
+                    false /* senderBlocked */, participants, false, false, null);
+            mParticipantId = BugleDatabaseOperations.getOrCreateParticipantInTransaction(mDb,
+                    participants.get(0));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    public void testGetSearchMatchQuery() {
+        assertNull(MessagingContentProvider.getSearchMatchQuery(null));
+        assertNull(MessagingContentProvider.getSearchMatchQuery("  \"  "));
+        assertEquals("\"lunch\"*", MessagingContentProvider.getSearchMatchQuery("lunch"));
+        // Words are quoted so that FTS syntax in the query is taken literally.
+        assertEquals("\"lunch\"* \"OR\"* \"dinner\"*",
+                MessagingContentProvider.getSearchMatchQuery(" lunch OR \"dinner "));
+    }
+
+    public void testSearchMatchesPrefixesOfAllWords() {
+        final String lunchId = insertMessage("Lunch at noon tomorrow?");
+        insertMessage("Dinner at eight");
+        assertSearchResults("lun", lunchId);
+        assertSearchResults("at tomorrow", lunchId);
+        assertSearchResults("breakfast");
+    }
+
+    public void testSearchReturnsNewestFirst() {
+        final String firstId = insertMessage("See you soon");
+        final String secondId = insertMessage("See you later");
+        assertSearchResults("see", secondId, firstId);
+    }
+
+    public void testSearchOrdersByTimestampRatherThanId() {
+        // Sync inserts messages newest first, so newer messages can have lower ids.
+        final long now = System.currentTimeMillis();
+        final String newerId = insertMessage("Meet at the station", now);
+        final String olderId = insertMessage("Meet at the cafe", now - 60 * 1000);
+        assertSearchResults("meet", newerId, olderId);
+    }
+
+    public void testDeletedMessageIsNotFound() {
+        final String messageId = insertMessage("Call me back");
+        BugleDatabaseOperations.deleteMessage(mDb, messageId);
+        assertSearchResults("call");
+    }
+
+    public void testSearchFollowsSenderNameChanges() {
+        final String messageId = insertMessage("Hi");
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.FULL_NAME, "Alice Example");
+        mDb.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
+                new String[] { mParticipantId });
+        assertSearchResults("alice", messageId);
+    }
+
+    public void testMessageWithoutTextIsFoundBySender() {
+        final String messageId = insertMessage("Running late");
+        mDb.delete(DatabaseHelper.PARTS_TABLE, DatabaseHelper.PartColumns.MESSAGE_ID + "=?",
+                new String[] { messageId });
+        assertSearchResults("late");
+
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.FULL_NAME, "Alice Example");
+        mDb.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
+                new String[] { mParticipantId });
+        assertSearchResults("alice", messageId);
+    }
+
+    public void testSearchFollowsPartTextChanges() {
+        final String messageId = insertMessage("Pick up milk");
+        final ContentValues values = new ContentValues();
+        values.put(DatabaseHelper.PartColumns.TEXT, "Pick up bread");
+        mDb.update(DatabaseHelper.PARTS_TABLE, values,
+                DatabaseHelper.PartColumns.MESSAGE_ID + "=?", new String[] { messageId });
+        assertSearchResults("milk");
+        assertSearchResults("bread", messageId);
+    }
+
+    public void testIndexMessagesForSearch() {
+        final String firstId = insertMessage("Backfill me");
+        final String secondId = insertMessage("Backfill me too");
+        final String thirdId = insertMessage("Backfill me as well");
+        // Simulate messages that predate the search table, except for one that was indexed
+        // while the backfill was running.
+        mDb.execSQL("DELETE FROM " + DatabaseHelper.MESSAGE_SEARCH_TABLE + " WHERE docid<>"
+                + secondId);
+        assertSearchResults("backfill", secondId);
+
+        mDb.beginTransaction();
+        try {
+            // Batches page down from the newest message by id.
+            assertEquals(Long.parseLong(secondId),
+                    BugleDatabaseOperations.indexMessagesForSearchInTransaction(mDb,
+                            Long.MAX_VALUE, 2));
+            assertEquals(-1, BugleDatabaseOperations.indexMessagesForSearchInTransaction(mDb,
+                    Long.parseLong(secondId), 2));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        assertSearchResults("backfill", thirdId, secondId, firstId);
+    }
+
+    private String insertMessage(final String text) {
+        return insertMessage(text, System.currentTimeMillis());
+    }
+
+    private String insertMessage(final String text, final long timestamp) {
+        final MessageData message = MessageData.createReceivedSmsMessage(null, mConversationId,
+                mParticipantId, mSelfId, text, null, timestamp, timestamp, true /* seen */,
+                true /* read */);
+        mDb.beginTransaction();
+        try {
+            BugleDatabaseOperations.insertNewMessageInTransaction(mDb, message);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return message.getMessageId();
+    }
+
+    private void assertSearchResults(final String query, final String... messageIds) {
+        final Cursor cursor = mContext.getContentResolver().query(
+                MessagingContentProvider.buildSearchMessagesUri(query), null, null, null, null);
+        try {
+            assertEquals(messageIds.length, cursor.getCount());
+            final int idIndex = cursor.getColumnIndexOrThrow(SearchMessagesQueryColumns._ID);
+            final int conversationIdIndex =
+                    cursor.getColumnIndexOrThrow(SearchMessagesQueryColumns.CONVERSATION_ID);
+            for (final String messageId : messageIds) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(messageId, cursor.getString(idIndex));
+                assertEquals(mConversationId, cursor.getString(conversationIdIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
 
@@ -281,4 +282,44 @@ public class ParticipantRefreshTest extends BugleTestCase {
         verifyParticipant("650-123-1233", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
                 null, null);
     }
+
+    /**
+     * Verify that full refresh resolves participants from a batch lookup, and falls back to
+     * looking up participants by themselves when the batch doesn't match them, whether or not
+     * they had a contact before.
+     */
+    public void testFullRefreshBatchLookup() {
+        addParticipant("+16501231233", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
+                null, null);
+        addParticipant("+16501231234", 2, "Joe", "content://photo/joe");
+        addParticipant("+16501231235", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
+                null, null);
+
+        final Uri lookupUri = ContactUtil.lookupPhone(mContext, "+16501231234").getUri();
+        final Uri notFoundLookupUri = ContactUtil.lookupPhone(mContext, "+16501231235").getUri();
+        final FakeContentProvider contacts = new FakeContentProvider(mContext, lookupUri, false);
+        contacts.addOverrideData(Phone.CONTENT_URI, Phone.NORMALIZED_NUMBER + " IN (?,?,?)",
+                "+16501231233;+16501231234;+16501231235",
+                ContactUtil.PhoneBatchLookupQuery.PROJECTION,
+                new Object[][] {
+                        { 1L, "John", "content://photo/john", "650-123-1233", null, null, null,
+                                "+16501231233" }
+                });
+        contacts.addOverrideData(lookupUri, null, null, ContactUtil.PhoneLookupQuery.PROJECTION,
+                new Object[][] {
+                        { 2L, "Joe", "content://photo/joe2", "650-123-1234", null, null, null }
+                });
+        // E.g. a number that doesn't normalize, which only the loose lookup matches.
+        contacts.addOverrideData(notFoundLookupUri, null, null,
+                ContactUtil.PhoneLookupQuery.PROJECTION,
+                new Object[][] {
+                        { 3L, "Jane", "content://photo/jane", "650-123-1235", null, null, null }
+                });
+        mFakeFactory.withProvider(lookupUri, contacts);
+
+        ParticipantRefresh.refreshParticipants(ParticipantRefresh.REFRESH_MODE_FULL);
+        verifyParticipant("+16501231233", 1, "John", "content://photo/john");
+        verifyParticipant("+16501231234", 2, "Joe", "content://photo/joe2");
+        verifyParticipant("+16501231235", 3, "Jane", "content://photo/jane");
+    }
 }
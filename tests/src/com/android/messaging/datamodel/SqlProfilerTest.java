@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.SqlProfiler.StatementStats;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class SqlProfilerTest extends BugleTestCase {
+    public void testNormalize() {
+        assertEquals("SELECT _id FROM messages WHERE conversation_id=? AND text=? LIMIT ?",
+                SqlProfiler.normalize("SELECT _id FROM messages\n  WHERE conversation_id=12"
+                        + " AND text='it''s 5' LIMIT 100"));
+        assertEquals("DELETE FROM parts WHERE message_id IN (?)",
+                SqlProfiler.normalize("DELETE FROM parts WHERE message_id IN (1, 2,3)"));
+        // Digits in names are kept
+        assertEquals("SELECT sub_id2 FROM t1", SqlProfiler.normalize("SELECT sub_id2 FROM t1"));
+    }
+
+    public void testFindFullScans() {
+        assertEquals("messages", SqlProfiler.findFullScans("SCAN TABLE messages"));
+        assertEquals("messages, parts",
+                SqlProfiler.findFullScans("SCAN messages\nSEARCH parts USING INDEX x (a=?)\n"
+                        + "SCAN parts"));
+        assertNull(SqlProfiler.findFullScans(
+                "SCAN TABLE messages USING INDEX index_messages_sort\nUSE TEMP B-TREE"));
+        assertNull(SqlProfiler.findFullScans("SEARCH TABLE messages USING INTEGER PRIMARY KEY"));
+    }
+
+    public void testRecord() {
+        final SqlProfiler profiler = new SqlProfiler();
+        assertTrue(profiler.record("SELECT * FROM t WHERE _id=1", 5, 1));
+        assertFalse(profiler.record("SELECT * FROM t WHERE _id=2", 7, 0));
+        profiler.onQueryPlan("SELECT * FROM t WHERE _id=3", "SCAN TABLE t");
+
+        final StatementStats stats = profiler.getStats("SELECT * FROM t WHERE _id=?");
+        assertEquals(2, stats.getCount());
+        assertEquals(12, stats.getTotalMillis());
+        assertEquals(1, stats.getTotalRows());
+        assertEquals("t", stats.getFullScans());
+    }
+
+    public void testDumpSortsByTotalTime() {
+        final SqlProfiler profiler = new SqlProfiler();
+        profiler.record("SELECT a FROM t", 5, -1);
+        profiler.record("SELECT b FROM t", 50, -1);
+        profiler.record("SELECT c FROM t", 1, -1);
+        final StringWriter dump = new StringWriter();
+        profiler.dump(new PrintWriter(dump), 2);
+        final String dumpText = dump.toString();
+        assertTrue(dumpText.indexOf("SELECT b FROM t") < dumpText.indexOf("SELECT a FROM t"));
+        assertFalse(dumpText.contains("SELECT c FROM t"));
+    }
+
+    public void testIsExplainable() {
+        assertTrue(SqlProfiler.isExplainable(" select 1"));
+        assertTrue(SqlProfiler.isExplainable("UPDATE t SET a=1"));
+        assertFalse(SqlProfiler.isExplainable("CREATE INDEX i ON t(a)"));
+        assertFalse(SqlProfiler.isExplainable("DROP TRIGGER IF EXISTS selected"));
+    }
+}
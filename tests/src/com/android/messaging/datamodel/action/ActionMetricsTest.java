@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.action.ActionMetrics.Histogram;
+import com.android.messaging.datamodel.action.ActionMetrics.Stage;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class ActionMetricsTest extends BugleTestCase {
+    public void testHistogram() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentileMillis(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMaxMillis());
+        assertEquals(50, histogram.getMeanMillis());
+        // Percentiles are upper bounds of power of 2 buckets
+        assertEquals(64, histogram.getPercentileMillis(50));
+        assertEquals(100, histogram.getPercentileMillis(99));
+    }
+
+    public void testHistogramNegativeDuration() {
+        final Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMillis(50));
+    }
+
+    public void testHistogramOverflowBucket() {
+        final Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getPercentileMillis(50));
+    }
+
+    public void testRecordAndDump() {
+        final ActionMetrics metrics = new ActionMetrics();
+        final TestAction action = new TestAction();
+        metrics.record(action, Stage.QUEUE_WAIT, 3);
+        metrics.record(action, Stage.EXECUTE, 10);
+        metrics.record(action, Stage.EXECUTE, 20);
+        metrics.recordFailure(action);
+
+        assertEquals(2, metrics.getHistogram(TestAction.class, Stage.EXECUTE).getCount());
+        assertEquals(0, metrics.getHistogram(TestAction.class, Stage.BACKGROUND_WORK).getCount());
+
+        final StringWriter dump = new StringWriter();
+        metrics.dump(new PrintWriter(dump));
+        final String dumpText = dump.toString();
+        assertTrue(dumpText.contains("TestAction: queue=1 3/3/3/3/3; execute=2 15/16/20/20/20;"
+                + " retries=0 failures=1"));
+        assertFalse(dumpText.contains("bg work"));
+    }
+
+    private static class TestAction extends Action {
+        @Override
+        public void writeToParcel(final Parcel parcel, final int flags) {
+            writeActionToParcel(parcel, flags);
+        }
+    }
+}
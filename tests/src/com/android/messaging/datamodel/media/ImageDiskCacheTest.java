@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+@SmallTest
+public class ImageDiskCacheTest extends BugleTestCase {
+    private static final int KB = 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getTestContext().getCacheDir(), "ImageDiskCacheTest");
+        new ImageDiskCache(mDirectory, Long.MAX_VALUE).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ImageDiskCache(mDirectory, Long.MAX_VALUE).clear();
+        super.tearDown();
+    }
+
+    public void testPutAndFetch() {
+        final ImageDiskCache cache = new ImageDiskCache(mDirectory, 10 * KB);
+        assertNull(cache.fetchResource("image1"));
+
+        final byte[] bytes = createBytes(1 * KB, (byte) 1);
+        cache.putResource("image1", new EncodedImageResource("image1", bytes, 6));
+        final EncodedImageResource resource = cache.fetchResource("image1");
+        assertNotNull(resource);
+        assertEquals("image1", resource.getKey());
+        assertEquals(6, resource.getOrientation());
+        assertTrue(Arrays.equals(bytes, resource.getBytes()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // A new instance over the same directory (e.g. after a process restart) sees the entry.
+        assertNotNull(new ImageDiskCache(mDirectory, 10 * KB).fetchResource("image1"));
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        final ImageDiskCache cache = new ImageDiskCache(mDirectory, 5 * KB);
+        cache.putResource("image1", new EncodedImageResource("image1", createBytes(2 * KB,
+                (byte) 1), 0));
+        cache.putResource("image2", new EncodedImageResource("image2", createBytes(2 * KB,
+                (byte) 2), 0));
+        // Touch image1 so that image2 becomes the least recently used entry.
+        assertNotNull(cache.fetchResource("image1"));
+        cache.putResource("image3", new EncodedImageResource("image3", createBytes(2 * KB,
+                (byte) 3), 0));
+
+        assertNotNull(cache.fetchResource("image1"));
+        assertNull(cache.fetchResource("image2"));
+        assertNotNull(cache.fetchResource("image3"));
+        assertTrue(cache.getSizeInBytes() <= 5 * KB);
+    }
+
+    public void testEvictSource() {
+        final ImageDiskCache cache = new ImageDiskCache(mDirectory, 10 * KB);
+        final String partKey1 = "content://mms/part/1|true|100|100";
+        final String partKey2 = "content://mms/part/1|true|200|200";
+        final String otherPartKey = "content://mms/part/2|true|100|100";
+        cache.putResource(partKey1, new EncodedImageResource(partKey1, createBytes(1 * KB,
+                (byte) 1), 0));
+        cache.putResource(partKey2, new EncodedImageResource(partKey2, createBytes(1 * KB,
+                (byte) 2), 0));
+        cache.putResource(otherPartKey, new EncodedImageResource(otherPartKey,
+                createBytes(1 * KB, (byte) 3), 0));
+
+        // A new instance over the same directory can evict entries written by another one.
+        final ImageDiskCache restartedCache = new ImageDiskCache(mDirectory, 10 * KB);
+        restartedCache.evictSource("content://mms/part/1");
+        assertNull(restartedCache.fetchResource(partKey1));
+        assertNull(restartedCache.fetchResource(partKey2));
+        assertNotNull(restartedCache.fetchResource(otherPartKey));
+        assertEquals(1, mDirectory.list().length);
+    }
+
+    public void testMediaStoreSourceNotPersisted() {
+        final ImageDiskCache cache = new ImageDiskCache(mDirectory, 10 * KB);
+        final String mediaKey = "content://media/external/images/media/1|true|100|100";
+        cache.putResource(mediaKey, new EncodedImageResource(mediaKey, createBytes(1 * KB,
+                (byte) 1), 0));
+        assertNull(cache.fetchResource(mediaKey));
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    private static byte[] createBytes(final int size, final byte value) {
+        final byte[] bytes = new byte[size];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.media.MediaLoadingScheduler.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@SmallTest
+public class MediaLoadingSchedulerTest extends BugleTestCase {
+    private final List<String> mRunOrder = Collections.synchronizedList(new ArrayList<String>());
+
+    public void testPriorityThenNewestFirst() throws InterruptedException {
+        final MediaLoadingScheduler scheduler = new MediaLoadingScheduler(1);
+        final CountDownLatch gate = blockScheduler(scheduler);
+
+        final CountDownLatch done = new CountDownLatch(5);
+        scheduler.schedule(record("prefetch", done), MediaResourceManager.PRIORITY_PREFETCH);
+        scheduler.schedule(record("visible1", done), MediaResourceManager.PRIORITY_VISIBLE);
+        scheduler.schedule(record("avatar", done), MediaResourceManager.PRIORITY_AVATAR);
+        scheduler.schedule(record("visible2", done), MediaResourceManager.PRIORITY_VISIBLE);
+        scheduler.schedule(record("visible3", done), MediaResourceManager.PRIORITY_VISIBLE);
+        gate.countDown();
+        done.await();
+
+        assertEquals(Arrays.asList("visible3", "visible2", "visible1", "avatar", "prefetch"),
+                mRunOrder);
+    }
+
+    public void testCancelAndPromote() throws InterruptedException {
+        final MediaLoadingScheduler scheduler = new MediaLoadingScheduler(1);
+        final CountDownLatch gate = blockScheduler(scheduler);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final ScheduledTask prefetch = scheduler.schedule(record("prefetch", done),
+                MediaResourceManager.PRIORITY_PREFETCH);
+        final ScheduledTask cancelled = scheduler.schedule(record("cancelled", done),
+                MediaResourceManager.PRIORITY_VISIBLE);
+        scheduler.schedule(record("avatar", done), MediaResourceManager.PRIORITY_AVATAR);
+        assertTrue(scheduler.cancel(cancelled));
+        final ScheduledTask promoted =
+                scheduler.promote(prefetch, MediaResourceManager.PRIORITY_VISIBLE);
+        assertNotSame(prefetch, promoted);
+        gate.countDown();
+        done.await();
+
+        assertEquals(Arrays.asList("prefetch", "avatar"), mRunOrder);
+        // Neither can be cancelled or promoted once it has run.
+        assertFalse(scheduler.cancel(promoted));
+        assertSame(promoted, scheduler.promote(promoted, MediaResourceManager.PRIORITY_VISIBLE));
+    }
+
+    /**
+     * Occupies the only thread of the scheduler so that subsequent tasks queue up until the
+     * returned latch is released.
+     */
+    private CountDownLatch blockScheduler(final MediaLoadingScheduler scheduler)
+            throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (final InterruptedException e) {
+                    fail("Something interrupted the gate await.");
+                }
+            }
+        }, MediaResourceManager.PRIORITY_PREFETCH);
+        started.await();
+        return gate;
+    }
+
+    private Runnable record(final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunOrder.add(name);
+                done.countDown();
+            }
+        };
+    }
+}
@@ -22,6 +22,7 @@ import com.android.messaging.FakeFactory;
 import com.android.messaging.datamodel.MemoryCacheManager;
 import com.android.messaging.datamodel.media.MediaResourceManager.MediaResourceLoadListener;
 
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 @SmallTest
@@ -130,6 +131,54 @@ public class MediaResourceManagerTest extends BugleTestCase {
         assertNull(mediaResourceManager.requestMediaResourceSync(invalidRequest));
     }
 
+    public void testConcurrentLoadsAreCoalesced() throws InterruptedException {
+        final MediaResourceManager mediaResourceManager =
+                new MediaResourceManager();
+        MediaCacheManager.get().reclaim();
+
+        // Hold the first load until the second request for the same key has come in.
+        final CountDownLatch loadGate = new CountDownLatch(1);
+        final CountDownLatch signal = new CountDownLatch(2);
+        final FakeImageResource[] loadedResources = new FakeImageResource[2];
+        final FakeImageRequest blockingRequest = new FakeImageRequest("image1", 1 * KB) {
+            @Override
+            public FakeImageResource loadMediaBlocking(
+                    final List<MediaRequest<FakeImageResource>> chainedTask) throws Exception {
+                loadGate.await();
+                return super.loadMediaBlocking(chainedTask);
+            }
+        };
+        for (int i = 0; i < loadedResources.length; i++) {
+            final int index = i;
+            final BindableMediaRequest<FakeImageResource> asyncRequest =
+                    AsyncMediaRequestWrapper.createWith(blockingRequest,
+                            new MediaResourceLoadListener<FakeImageResource>() {
+                @Override
+                public void onMediaResourceLoaded(final MediaRequest<FakeImageResource> request,
+                        final FakeImageResource resource, final boolean isCached) {
+                    assertFalse(resource.isClosed());
+                    assertNotSame(0, resource.getRefCount());
+                    loadedResources[index] = resource;
+                    signal.countDown();
+                }
+
+                @Override
+                public void onMediaResourceLoadError(
+                        final MediaRequest<FakeImageResource> request, final Exception exception) {
+                    fail("Coalesced media load failed");
+                }});
+            asyncRequest.bind("1");
+            mediaResourceManager.requestMediaResourceAsync(asyncRequest);
+        }
+        loadGate.countDown();
+        signal.await();
+
+        assertNotNull(loadedResources[0]);
+        assertSame(loadedResources[0], loadedResources[1]);
+        assertEquals(1, mediaResourceManager.getStartedLoadCount());
+        assertEquals(1, mediaResourceManager.getCoalescedLoadCount());
+    }
+
     private void loadImage(final MediaResourceManager manager, final String key,
             final int size, final boolean shouldBeCached, final boolean shouldFail) {
         try {
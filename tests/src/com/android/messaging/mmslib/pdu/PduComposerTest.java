@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/*
+ * Class for testing composing pdus into a stream.
+ */
+@SmallTest
+public class PduComposerTest extends BugleTestCase {
+    private static final byte[] TEXT = "Hello".getBytes();
+
+    public void testMakeToStreamMatchesMake() throws Exception {
+        final PduPart imagePart = makePart(ContentType.IMAGE_JPEG, "image.jpg");
+        imagePart.setData(makeImage());
+        final SendReq sendReq = makeSendReq(imagePart);
+
+        final byte[] pdu = new PduComposer(getTestContext(), sendReq).make();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long length = new PduComposer(getTestContext(), sendReq).make(out);
+
+        assertNotNull(pdu);
+        assertEquals(pdu.length, length);
+        assertTrue(Arrays.equals(pdu, out.toByteArray()));
+    }
+
+    public void testMakeToStreamCopiesDataFromUri() throws Exception {
+        final byte[] image = makeImage();
+        final File file = new File(getTestContext().getCacheDir(), "pdu_composer_test.jpg");
+        final FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            fileOut.write(image);
+        } finally {
+            fileOut.close();
+        }
+        try {
+            final PduPart imagePart = makePart(ContentType.IMAGE_JPEG, "image.jpg");
+            imagePart.setDataUri(Uri.fromFile(file));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final long length = new PduComposer(getTestContext(), makeSendReq(imagePart))
+                    .make(out);
+
+            final byte[] pdu = out.toByteArray();
+            assertEquals(pdu.length, length);
+            final SendReq parsed = (SendReq) new PduParser(pdu, true).parse();
+            assertEquals(2, parsed.getBody().getPartsNum());
+            assertTrue(Arrays.equals(TEXT, parsed.getBody().getPart(0).getData()));
+            assertTrue(Arrays.equals(image, parsed.getBody().getPart(1).getData()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testMakeToStreamFailsForMissingData() throws Exception {
+        final PduPart imagePart = makePart(ContentType.IMAGE_JPEG, "image.jpg");
+        imagePart.setDataUri(Uri.fromFile(
+                new File(getTestContext().getCacheDir(), "pdu_composer_test_missing.jpg")));
+        final long length = new PduComposer(getTestContext(), makeSendReq(imagePart))
+                .make(new ByteArrayOutputStream());
+        assertEquals(-1, length);
+    }
+
+    private static SendReq makeSendReq(final PduPart imagePart) {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("5551234567"));
+        final PduBody body = new PduBody();
+        final PduPart textPart = makePart(ContentType.TEXT_PLAIN, "text.txt");
+        textPart.setData(TEXT);
+        body.addPart(textPart);
+        body.addPart(imagePart);
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    /**
+     * @return image data spanning several of the blocks the composer copies data in
+     */
+    private static byte[] makeImage() {
+        final byte[] image = new byte[5000];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+        return image;
+    }
+
+    private static PduPart makePart(final String contentType, final String location) {
+        final PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(location.getBytes());
+        return part;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Class for testing parsing pdus out of a ByteBuffer.
+ */
+@SmallTest
+public class PduParserTest extends BugleTestCase {
+    private static final byte[] TEXT = "Hello".getBytes();
+    private static final byte[] IMAGE = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    public void testParsePartsAsViewsOfBuffer() {
+        final byte[] pdu = makeSendReq();
+        // Put the pdu in the middle of a larger buffer, as in a slice of a mapped file.
+        final ByteBuffer buffer = ByteBuffer.allocate(pdu.length + 20);
+        buffer.position(10);
+        buffer.put(pdu);
+        buffer.position(10);
+        buffer.limit(10 + pdu.length);
+
+        final SendReq sendReq = (SendReq) new PduParser(buffer, true).parse();
+        assertNotNull(sendReq);
+        final PduBody body = sendReq.getBody();
+        assertEquals(2, body.getPartsNum());
+
+        final PduPart imagePart = body.getPart(1);
+        assertEquals(IMAGE.length, imagePart.getDataLength());
+        final ByteBuffer imageData = imagePart.getDataBuffer();
+        assertTrue(imageData.isReadOnly());
+        // The part data were not copied out of the pdu buffer.
+        buffer.put(buffer.position() + pdu.length - 1, (byte) 42);
+        assertEquals(42, imageData.get(IMAGE.length - 1));
+
+        assertTrue(Arrays.equals(TEXT, body.getPart(0).getData()));
+        // Parsing doesn't move the caller's buffer.
+        assertEquals(10, buffer.position());
+    }
+
+    public void testParseByteArrayMatchesBuffer() {
+        final byte[] pdu = makeSendReq();
+        final SendReq sendReq = (SendReq) new PduParser(pdu, true).parse();
+        final PduPart imagePart = sendReq.getBody().getPart(1);
+        assertTrue(Arrays.equals(IMAGE, imagePart.getData()));
+    }
+
+    private byte[] makeSendReq() {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("5551234567"));
+        final PduBody body = new PduBody();
+        body.addPart(makePart(ContentType.TEXT_PLAIN, "text.txt", TEXT));
+        // The image is the last part, so its data end the pdu.
+        body.addPart(makePart(ContentType.IMAGE_JPEG, "image.jpg", IMAGE));
+        sendReq.setBody(body);
+        return new PduComposer(getTestContext(), sendReq).make();
+    }
+
+    private static PduPart makePart(final String contentType, final String location,
+            final byte[] data) {
+        final PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(location.getBytes());
+        part.setData(data);
+        return part;
+    }
+}
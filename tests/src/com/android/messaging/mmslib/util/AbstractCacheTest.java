@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+
+/*
+ * Class for testing the eviction of AbstractCache.
+ */
+@SmallTest
+public class AbstractCacheTest extends BugleTestCase {
+    private static class TestCache extends AbstractCache<String, String> {
+        final ArrayList<String> mEvictedKeys = new ArrayList<String>();
+
+        TestCache(final int maxItems, final long maxBytes) {
+            super(maxItems, maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(final String key, final String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onEntryEvicted(final String key, final String value) {
+            mEvictedKeys.add(key);
+        }
+    }
+
+    public void testEvictsLeastRecentlyUsedWhenFull() {
+        final TestCache cache = new TestCache(2, Long.MAX_VALUE);
+        assertTrue(cache.put("a", "1"));
+        assertTrue(cache.put("b", "2"));
+        assertEquals("1", cache.get("a"));
+        assertTrue(cache.put("c", "3"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals("b", cache.mEvictedKeys.get(0));
+    }
+
+    public void testEvictsToStayWithinByteBudget() {
+        final TestCache cache = new TestCache(100, 10);
+        assertTrue(cache.put("a", "aaaa"));
+        assertTrue(cache.put("b", "bbbb"));
+        assertTrue(cache.put("c", "cccc"));
+
+        assertEquals(8, cache.getSizeInBytes());
+        assertNull(cache.get("a"));
+
+        // Replacing an entry accounts for the size of the old value.
+        assertTrue(cache.put("b", "bb"));
+        assertEquals(6, cache.getSizeInBytes());
+
+        // A value larger than the whole budget is refused and evicts nothing.
+        assertFalse(cache.put("d", "ddddddddddd"));
+        assertEquals(2, cache.size());
+
+        cache.purge("c");
+        assertEquals(2, cache.getSizeInBytes());
+        cache.purgeAll();
+        assertEquals(0, cache.getSizeInBytes());
+    }
+}
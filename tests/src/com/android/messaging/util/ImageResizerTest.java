@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ImageUtils.ImageResizer;
+import com.android.messaging.util.exif.ExifInterface;
+
+import java.util.ArrayList;
+
+/**
+ * Tests the quality search of {@link ImageResizer} against a model of the encoded image size.
+ */
+@SmallTest
+public class ImageResizerTest extends BugleTestCase {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    private static final int PIXELS = WIDTH * HEIGHT;
+
+    private Bitmap mBitmap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        super.tearDown();
+    }
+
+    public void testQualitySearchFindsHighestFittingQuality() {
+        // Fits at quality 60 and below.
+        final SizeModelResizer resizer = new SizeModelResizer(PIXELS * 60 / 100,
+                false /* optimisticProbe */);
+        assertNotNull(resizer.encodeWithinLimit(mBitmap, false /* logv */));
+        final int quality = resizer.getQuality();
+        assertTrue("quality=" + quality, quality <= 60 &&
+                quality >= 60 - ImageResizer.QUALITY_SEARCH_PRECISION);
+        // One full encode at the initial quality, and one to confirm the estimate.
+        assertEquals(2, resizer.mFullEncodeQualities.size());
+        assertEquals(0, resizer.getMinimumQualitySize());
+    }
+
+    public void testOptimisticEstimateFallsBackToMinimumQuality() {
+        // The estimate says about 75 fits, but only 55 and below really do.
+        final SizeModelResizer resizer = new SizeModelResizer(
+                getOptimisticFullSize(55), true /* optimisticProbe */);
+        assertNotNull(resizer.encodeWithinLimit(mBitmap, false /* logv */));
+        assertEquals(ImageResizer.MINIMUM_IMAGE_COMPRESSION_QUALITY, resizer.getQuality());
+        assertEquals(0, resizer.getMinimumQualitySize());
+    }
+
+    public void testScalesDownByEstimatedMinimumQualitySize() {
+        // Doesn't fit at any quality, which the probe alone tells.
+        final int byteLimit = PIXELS / 4;
+        final SizeModelResizer resizer = new SizeModelResizer(byteLimit,
+                false /* optimisticProbe */);
+        assertNull(resizer.encodeWithinLimit(mBitmap, false /* logv */));
+        assertEquals(1, resizer.mFullEncodeQualities.size());
+        final int minimumQualitySize = resizer.getMinimumQualitySize();
+        assertEquals(PIXELS * ImageResizer.MINIMUM_IMAGE_COMPRESSION_QUALITY / 100,
+                minimumQualitySize, PIXELS / 100);
+
+        resizer.updateRecodeParameters(minimumQualitySize);
+        assertEquals((float) Math.sqrt((double) minimumQualitySize / byteLimit)
+                * ImageResizer.MIN_SCALE_DOWN_STEP,
+                resizer.getScaleFactor(), 0.001f);
+        assertEquals(ImageResizer.IMAGE_COMPRESSION_QUALITY, resizer.getQuality());
+    }
+
+    public void testScalesDownBySizeEncodedAtMinimumQuality() {
+        // The estimate says about 70 fits, but it doesn't fit even at the minimum quality.
+        final SizeModelResizer resizer = new SizeModelResizer(
+                getOptimisticFullSize(45), true /* optimisticProbe */);
+        assertNull(resizer.encodeWithinLimit(mBitmap, false /* logv */));
+        // The size that the scale down is based on must be measured at the minimum quality.
+        final ArrayList<Integer> qualities = resizer.mFullEncodeQualities;
+        assertEquals(ImageResizer.MINIMUM_IMAGE_COMPRESSION_QUALITY,
+                (int) qualities.get(qualities.size() - 1));
+        assertEquals(getOptimisticFullSize(
+                ImageResizer.MINIMUM_IMAGE_COMPRESSION_QUALITY), resizer.getMinimumQualitySize());
+    }
+
+    private static int getOptimisticFullSize(final int quality) {
+        return PIXELS / 2 + PIXELS / 2 * quality / 100;
+    }
+
+    /**
+     * An image resizer whose encoded sizes follow a model rather than the actual JPEG encoder.
+     * The probe always encodes to one byte per pixel at quality 100, linearly less at lower
+     * qualities. The full image encodes the same way, unless the probe is optimistic, in which
+     * case only half of its size depends on the quality, so the probe underestimates it at any
+     * quality below the initial one.
+     */
+    private class SizeModelResizer extends ImageResizer {
+        final ArrayList<Integer> mFullEncodeQualities = new ArrayList<Integer>();
+        private final boolean mOptimisticProbe;
+
+        SizeModelResizer(final int byteLimit, final boolean optimisticProbe) {
+            super(WIDTH, HEIGHT, ExifInterface.Orientation.TOP_LEFT, WIDTH, HEIGHT, byteLimit,
+                    null /* uri */, getContext(), ContentType.IMAGE_JPEG);
+            mOptimisticProbe = optimisticProbe;
+        }
+
+        @Override
+        int encode(final Bitmap bitmap, final int quality) {
+            // Fill the encode buffer, which holds the returned image.
+            super.encode(bitmap, quality);
+            final int pixels = bitmap.getWidth() * bitmap.getHeight();
+            if (pixels != PIXELS) {
+                return pixels * quality / 100;
+            }
+            mFullEncodeQualities.add(quality);
+            return mOptimisticProbe ? getOptimisticFullSize(quality) : PIXELS * quality / 100;
+        }
+    }
+}
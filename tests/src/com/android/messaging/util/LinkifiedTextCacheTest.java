@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class LinkifiedTextCacheTest extends BugleTestCase {
+    public void testTextWithoutLinks() {
+        final LinkifiedTextCache cache = new LinkifiedTextCache(10);
+        final CharSequence text = cache.getLinkifiedText("1", "Hello there");
+        assertFalse(text instanceof Spanned);
+        assertEquals("Hello there", text.toString());
+    }
+
+    public void testTextWithLinks() {
+        final LinkifiedTextCache cache = new LinkifiedTextCache(10);
+        final CharSequence text = cache.getLinkifiedText("1", "See http://www.android.com");
+        assertTrue(text instanceof Spanned);
+        final URLSpan[] spans = ((Spanned) text).getSpans(0, text.length(), URLSpan.class);
+        assertEquals(1, spans.length);
+        assertEquals("http://www.android.com", spans[0].getURL());
+        // Precomputed text is reused as is
+        assertSame(text, cache.getLinkifiedText("1", "See http://www.android.com"));
+    }
+
+    public void testChangedTextIsLinkifiedAgain() {
+        final LinkifiedTextCache cache = new LinkifiedTextCache(10);
+        cache.precompute("1", "See http://www.android.com");
+        final CharSequence text = cache.getLinkifiedText("1", "Never mind");
+        assertFalse(text instanceof Spanned);
+        assertEquals("Never mind", text.toString());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class JpegHeaderScannerTest extends BugleTestCase {
+    public void testOrientationAndDimensionsLittleEndian() throws IOException {
+        final JpegHeaderScanner.Result result = scan(createJpeg(false /* bigEndian */, 6));
+        assertEquals(6, result.orientation);
+        assertEquals(640, result.width);
+        assertEquals(480, result.height);
+    }
+
+    public void testOrientationAndDimensionsBigEndian() throws IOException {
+        final JpegHeaderScanner.Result result = scan(createJpeg(true /* bigEndian */, 3));
+        assertEquals(3, result.orientation);
+        assertEquals(640, result.width);
+        assertEquals(480, result.height);
+    }
+
+    public void testOrientationAfterHigherTag() throws IOException {
+        final JpegHeaderScanner.Result result = scan(createJpeg(false /* bigEndian */, 8,
+                true /* unsorted */));
+        assertEquals(8, result.orientation);
+        assertTrue(result.hasDimensions());
+    }
+
+    public void testNoOrientationTag() throws IOException {
+        final JpegHeaderScanner.Result result = scan(createJpeg(false /* bigEndian */, 0));
+        assertEquals(android.media.ExifInterface.ORIENTATION_UNDEFINED, result.orientation);
+        assertTrue(result.hasDimensions());
+    }
+
+    public void testNotAJpeg() throws IOException {
+        final JpegHeaderScanner.Result result = scan("GIF89a....".getBytes("US-ASCII"));
+        assertSame(JpegHeaderScanner.Result.UNKNOWN, result);
+        assertFalse(result.hasDimensions());
+    }
+
+    private static JpegHeaderScanner.Result scan(final byte[] data) throws IOException {
+        return JpegHeaderScanner.scan(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Creates the headers of a 640x480 JPEG with an APP0 segment, an EXIF segment with the
+     * given orientation (none if 0) and a frame header.
+     */
+    private static byte[] createJpeg(final boolean bigEndian, final int orientation) {
+        return createJpeg(bigEndian, orientation, false /* unsorted */);
+    }
+
+    /**
+     * Like {@link #createJpeg(boolean, int)}, optionally with the IFD0 entries out of order,
+     * with the orientation after a tag that sorts above it.
+     */
+    private static byte[] createJpeg(final boolean bigEndian, final int orientation,
+            final boolean unsorted) {
+        final ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        writeShort(tiff, bigEndian ? 0x4d4d : 0x4949, true);
+        writeShort(tiff, 0x002A, bigEndian);
+        writeInt(tiff, 8, bigEndian);
+        // IFD0: an image width tag (or a software tag if unsorted), then orientation
+        final int entryCount = orientation > 0 ? 2 : 1;
+        writeShort(tiff, entryCount, bigEndian);
+        writeShort(tiff, unsorted ? 0x0131 : 0x0100, bigEndian);
+        writeShort(tiff, ExifTag.TYPE_UNSIGNED_LONG, bigEndian);
+        writeInt(tiff, 1, bigEndian);
+        writeInt(tiff, 640, bigEndian);
+        if (orientation > 0) {
+            writeShort(tiff, 0x0112, bigEndian);
+            writeShort(tiff, ExifTag.TYPE_UNSIGNED_SHORT, bigEndian);
+            writeInt(tiff, 1, bigEndian);
+            writeShort(tiff, orientation, bigEndian);
+            writeShort(tiff, 0, bigEndian);
+        }
+        writeInt(tiff, 0 /* no next IFD */, bigEndian);
+
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        writeShort(jpeg, 0xFFD8, true);
+        // APP0 (JFIF) segment with dummy content
+        writeShort(jpeg, 0xFFE0, true);
+        writeShort(jpeg, 2 + 4, true);
+        writeInt(jpeg, 0, true);
+        // APP1 (EXIF) segment
+        final byte[] tiffBytes = tiff.toByteArray();
+        writeShort(jpeg, 0xFFE1, true);
+        writeShort(jpeg, 2 + 6 + tiffBytes.length, true);
+        jpeg.write(new byte[] { 'E', 'x', 'i', 'f', 0, 0 }, 0, 6);
+        jpeg.write(tiffBytes, 0, tiffBytes.length);
+        // SOF0 segment: precision, height, width, one component
+        writeShort(jpeg, 0xFFC0, true);
+        writeShort(jpeg, 2 + 1 + 2 + 2 + 1 + 3, true);
+        jpeg.write(8);
+        writeShort(jpeg, 480, true);
+        writeShort(jpeg, 640, true);
+        jpeg.write(1);
+        jpeg.write(new byte[] { 1, 0x11, 0 }, 0, 3);
+        // Start of scan; the scan has to stop before this
+        writeShort(jpeg, 0xFFDA, true);
+        return jpeg.toByteArray();
+    }
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value,
+            final boolean bigEndian) {
+        if (bigEndian) {
+            out.write((value >> 8) & 0xFF);
+            out.write(value & 0xFF);
+        } else {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        }
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int value,
+            final boolean bigEndian) {
+        if (bigEndian) {
+            writeShort(out, value >>> 16, true);
+            writeShort(out, value & 0xFFFF, true);
+        } else {
+            writeShort(out, value & 0xFFFF, false);
+            writeShort(out, value >>> 16, false);
+        }
+    }
+}